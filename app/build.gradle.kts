@@ -42,6 +42,12 @@ android {
     buildFeatures {
         viewBinding = true
     }
+    testOptions {
+        // JVM benchmarks in the unit tests only run with ./gradlew testDebugUnitTest -Pbenchmark
+        unitTests.all { test ->
+            test.systemProperty("benchmark", project.hasProperty("benchmark"))
+        }
+    }
 }
 
 dependencies {
@@ -0,0 +1,85 @@
+package com.sbf.assistant.llm
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+/**
+ * [BpeTokenizer.compileTokenizerJson] reads tokenizer.json with android.util.JsonReader,
+ * so it runs on the device.
+ */
+@RunWith(AndroidJUnit4::class)
+class BpeTokenizerJsonTest {
+
+    private fun tokenizerJson(json: String): File {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        val dir = File(context.cacheDir, "bpe-json-test").apply {
+            deleteRecursively()
+            mkdirs()
+        }
+        return File(dir, "tokenizer.json").apply { writeText(json) }
+    }
+
+    @Test
+    fun compilesByteLevelTokenizer() {
+        val tokenizer = BpeTokenizer.open(tokenizerJson("""
+            {
+              "version": "1.0",
+              "added_tokens": [{"id": 9, "content": "<|end|>", "special": true}],
+              "normalizer": null,
+              "pre_tokenizer": {"type": "ByteLevel", "add_prefix_space": false},
+              "decoder": {"type": "ByteLevel"},
+              "model": {
+                "type": "BPE",
+                "vocab": {"h": 0, "e": 1, "l": 2, "o": 3, "Ġ": 4, "he": 5, "ll": 6, "hell": 7, "hello": 8},
+                "merges": ["h e", "l l", ["he", "ll"], ["hell", "o"]]
+              }
+            }
+        """))!!
+        assertTrue(tokenizer.isByteLevel)
+        // Both merge formats are read; the added token is matched verbatim
+        assertArrayEquals(intArrayOf(8, 4, 8, 9), tokenizer.encode("hello hello<|end|>"))
+        // The GPT-2 byte mapping is undone: token 4 is the space byte
+        assertEquals(" ", tokenizer.vocab.token(4))
+    }
+
+    @Test
+    fun compilesSentencePieceTokenizerWithByteFallback() {
+        val tokenizer = BpeTokenizer.open(tokenizerJson("""
+            {
+              "added_tokens": [],
+              "normalizer": {"type": "Sequence", "normalizers": [
+                {"type": "Prepend", "prepend": "▁"},
+                {"type": "Replace", "pattern": {"String": " "}, "content": "▁"}
+              ]},
+              "pre_tokenizer": null,
+              "decoder": {"type": "Sequence", "decoders": [{"type": "ByteFallback"}, {"type": "Fuse"}]},
+              "model": {
+                "type": "BPE",
+                "byte_fallback": true,
+                "vocab": {"<unk>": 0, "<0x41>": 1, "▁": 2, "h": 3, "i": 4, "▁h": 5, "▁hi": 6},
+                "merges": ["▁ h", "▁h i"]
+              }
+            }
+        """))!!
+        assertFalse(tokenizer.isByteLevel)
+        assertArrayEquals(intArrayOf(6), tokenizer.encode("hi"))
+        assertEquals(0x41, tokenizer.byteValue(1))
+        assertEquals(-1, tokenizer.byteValue(6))
+    }
+
+    @Test
+    fun rejectsOtherModelTypes() {
+        val json = tokenizerJson("""
+            {"model": {"type": "Unigram", "unk_id": 0, "vocab": [["<unk>", 0.0], ["a", -1.5]]}}
+        """)
+        assertNull(BpeTokenizer.open(json))
+    }
+}
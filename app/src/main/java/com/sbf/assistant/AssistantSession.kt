@@ -33,6 +33,7 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.withContext
 import java.util.Locale
+import com.sbf.assistant.llm.InferenceScheduler
 import com.sbf.assistant.llm.LocalLlmService
 import com.sbf.assistant.llm.MediaPipeLlmService
 import com.sbf.assistant.realtime.RealtimeConversationManager
@@ -72,7 +73,7 @@ class AssistantSession(context: Context) : VoiceInteractionSession(context), Lif
     private lateinit var toolRegistry: ToolRegistry
     private lateinit var toolExecutor: ToolExecutor
     private lateinit var mcpClient: McpClient
-    private lateinit var localRuntime: LocalModelRuntime
+    private lateinit var modelLease: LocalModelHost.Lease
     private var geminiNano: GeminiNanoService? = null
     private var localLlm: LocalLlmService? = null
     private var mediaPipeLlm: MediaPipeLlmService? = null
@@ -111,28 +112,29 @@ class AssistantSession(context: Context) : VoiceInteractionSession(context), Lif
         lifecycleRegistry.handleLifecycleEvent(Lifecycle.Event.ON_CREATE)
         
         settingsManager = SettingsManager(context)
-        warmupManager = WarmupManager(context, settingsManager)
         ttsController = TtsController(context, settingsManager)
         speechRecognizer = SpeechRecognizer.createSpeechRecognizer(context)
         mcpClient = McpServerFactory.createClient(context, settingsManager)
         toolRegistry = ToolRegistry(settingsManager, mcpClient)
         toolExecutor = ToolExecutor(context, mcpClient)
-        localRuntime = LocalModelRuntime(context, settingsManager)
-        
-        val localWhisper = LocalWhisperService(context, settingsManager, localRuntime, ModelDownloadManager(context))
+        modelLease = LocalModelHost.acquire(context)
+        val host = modelLease.host
+
+        val localWhisper = host.whisper
         whisperController = WhisperController(
             settingsManager,
             AudioRecorder(context),
             localWhisper,
             scope
         )
-        geminiNano = GeminiNanoService(context)
-        localLlm = LocalLlmService(context)
-        mediaPipeLlm = MediaPipeLlmService(context)
+        geminiNano = host.geminiNano
+        localLlm = host.llm
+        mediaPipeLlm = host.mediaPipe
+        warmupManager = WarmupManager(context, settingsManager, host.runtime, localLlm, localWhisper)
 
         scope.launch {
-            geminiNano?.initialize()
-            val downloadManager = ModelDownloadManager(context)
+            host.initializeGeminiNano()
+            val downloadManager = host.downloadManager
             val installedModels = downloadManager.getInstalledModels(downloadManager.getAvailableModels(settingsManager))
             val selected = settingsManager.localAgentModel
             val selectedModel = installedModels.firstOrNull { it.filename == selected }
@@ -140,13 +142,19 @@ class AssistantSession(context: Context) : VoiceInteractionSession(context), Lif
 
             if (effectiveSelected != null) {
                 when (effectiveSelected.type) {
-                    "task" -> mediaPipeLlm?.initializeWithModel(effectiveSelected)
-                    "tflite" -> localLlm?.initializeWithModel(effectiveSelected, settingsManager.hfApiKey)
+                    "task" -> host.loadMediaPipe(effectiveSelected)
+                    "tflite" -> host.loadTfLite(effectiveSelected)
                 }
             }
         }
 
-        chatController = ChatController(settingsManager, toolExecutor, toolRegistry, geminiNano, localLlm, mediaPipeLlm, ModelDownloadManager(context), scope)
+        // Overlay turns are spoken: schedule them ahead of in-app chat and background work
+        chatController = ChatController(
+            settingsManager, toolExecutor, toolRegistry, geminiNano, localLlm, mediaPipeLlm,
+            host.downloadManager, scope,
+            inferencePriority = InferenceScheduler.Priority.VOICE,
+            modelHost = host
+        )
         historyStore = ChatHistoryStore(context)
     }
 
@@ -573,9 +581,10 @@ class AssistantSession(context: Context) : VoiceInteractionSession(context), Lif
                     return@launch
                 }
             }
-            val usePcm = config.endpointId == "local" || settingsManager.forceWavForRemote
-            val file = whisperController.startRecording(
-                usePcm = usePcm,
+            val local = config.endpointId == "local"
+            val started = whisperController.startRecording(
+                usePcm = settingsManager.forceWavForRemote,
+                inMemory = local,
                 autoStopOnSilence = !ptt,
                 onSilenceDetected = {
                     scope.launch(Dispatchers.Main) {
@@ -587,7 +596,7 @@ class AssistantSession(context: Context) : VoiceInteractionSession(context), Lif
                 onReadyToSpeak = { scope.launch(Dispatchers.Main) { cueReadyToSpeak() } },
                 onAmplitudeUpdate = { amp -> scope.launch(Dispatchers.Main) { voiceVisualizer.addAmplitude(amp) } }
             )
-            if (file == null) withContext(Dispatchers.Main) {
+            if (!started) withContext(Dispatchers.Main) {
                 showSttUi(false)
                 sttMode = SttMode.NONE
                 activeSttConfig = null
@@ -605,7 +614,8 @@ class AssistantSession(context: Context) : VoiceInteractionSession(context), Lif
         // Warmup LLM while STT is processing
         warmupManager.warmupLlm()
 
-        whisperController.stopAndTranscribe(config) { text, error ->
+        val onPartial: (String) -> Unit = { partial -> statusText.text = "Transcribiendo: $partial" }
+        whisperController.stopAndTranscribe(config, onPartial) { text, error ->
             scope.launch(Dispatchers.Main) {
                 if (text != null) {
                     val processed = text.trim()
@@ -736,6 +746,7 @@ class AssistantSession(context: Context) : VoiceInteractionSession(context), Lif
         speechRecognizer?.destroy()
         speechRecognizer = null
         warmupManager.release()
+        modelLease.close()
     }
 
     private fun processUserQuery(query: String) {
@@ -7,6 +7,7 @@ import android.media.AudioRecord
 import android.media.MediaRecorder
 import android.os.Build
 import android.util.Log
+import com.sbf.assistant.whisper.VoiceActivityDetector
 import java.io.File
 import java.io.FileOutputStream
 import java.io.RandomAccessFile
@@ -32,6 +33,9 @@ class AudioRecorder(private val context: Context) {
     private var calibrateNoiseMs: Long = 0
     private var onReadyToSpeak: (() -> Unit)? = null
     private var onAmplitudeUpdate: ((Float) -> Unit)? = null
+    private val speechSegments = mutableListOf<VoiceActivityDetector.Segment>()
+    // Local transcription reads the samples from here instead of a WAV file
+    private val capture = PcmCapture()
 
     fun startRecording(
         usePcm: Boolean = false,
@@ -45,18 +49,11 @@ class AudioRecorder(private val context: Context) {
         onAmplitudeUpdate: ((Float) -> Unit)? = null
     ): File? {
         try {
-            this.autoStopOnSilence = autoStopOnSilence
-            this.silenceDurationMs = silenceDurationMs
-            this.minSpeechMs = minSpeechMs
-            this.silenceThreshold = silenceThreshold
-            this.calibrateNoiseMs = calibrateNoiseMs
-            this.onSilenceDetected = onSilenceDetected
-            this.onReadyToSpeak = onReadyToSpeak
-            this.onAmplitudeUpdate = onAmplitudeUpdate
-            this.silenceTriggered = false
+            configure(autoStopOnSilence, silenceDurationMs, minSpeechMs, silenceThreshold, calibrateNoiseMs,
+                onSilenceDetected, onReadyToSpeak, onAmplitudeUpdate)
             
             if (usePcm) {
-                return startPcmRecording()
+                return if (startPcmRecording(toFile = true)) currentFile else null
             }
 
             currentFile = File.createTempFile("whisper_input", ".m4a", context.cacheDir)
@@ -75,6 +72,62 @@ class AudioRecorder(private val context: Context) {
         }
     }
 
+    /**
+     * Record 16 kHz PCM into memory instead of a file, with the same silence detection as
+     * [startRecording]. Once stopped, [takeCapture] returns the samples.
+     */
+    fun startCapture(
+        autoStopOnSilence: Boolean = false,
+        silenceDurationMs: Long = 1100,
+        minSpeechMs: Long = 300,
+        silenceThreshold: Float = 0.01f,
+        calibrateNoiseMs: Long = 400,
+        onSilenceDetected: (() -> Unit)? = null,
+        onReadyToSpeak: (() -> Unit)? = null,
+        onAmplitudeUpdate: ((Float) -> Unit)? = null
+    ): Boolean {
+        return try {
+            configure(autoStopOnSilence, silenceDurationMs, minSpeechMs, silenceThreshold, calibrateNoiseMs,
+                onSilenceDetected, onReadyToSpeak, onAmplitudeUpdate)
+            startPcmRecording(toFile = false)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to start capture", e)
+            cleanup()
+            false
+        }
+    }
+
+    /**
+     * Samples of the last [startCapture] recording, or null if nothing was captured. Pass
+     * the recording to [recycleCapture] once transcribed so the next one reuses its buffer.
+     */
+    fun takeCapture(): PcmCapture.Recording? = capture.finish()
+
+    fun recycleCapture(recording: PcmCapture.Recording) {
+        capture.recycle(recording)
+    }
+
+    private fun configure(
+        autoStopOnSilence: Boolean,
+        silenceDurationMs: Long,
+        minSpeechMs: Long,
+        silenceThreshold: Float,
+        calibrateNoiseMs: Long,
+        onSilenceDetected: (() -> Unit)?,
+        onReadyToSpeak: (() -> Unit)?,
+        onAmplitudeUpdate: ((Float) -> Unit)?
+    ) {
+        this.autoStopOnSilence = autoStopOnSilence
+        this.silenceDurationMs = silenceDurationMs
+        this.minSpeechMs = minSpeechMs
+        this.silenceThreshold = silenceThreshold
+        this.calibrateNoiseMs = calibrateNoiseMs
+        this.onSilenceDetected = onSilenceDetected
+        this.onReadyToSpeak = onReadyToSpeak
+        this.onAmplitudeUpdate = onAmplitudeUpdate
+        this.silenceTriggered = false
+    }
+
     private fun setupRecorder(file: File): Boolean {
         return try {
             mediaRecorder = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
@@ -123,51 +176,84 @@ class AudioRecorder(private val context: Context) {
                 try { if (it.exists()) it.delete() } catch (_: Exception) {}
             }
             currentFile = null
+            capture.finish()?.let { capture.recycle(it) }
             onSilenceDetected = null
             onReadyToSpeak = null
             onAmplitudeUpdate = null
         }
     }
 
+    /**
+     * Speech spans (in samples, after noise calibration) of the current or last PCM recording.
+     */
+    fun getSpeechSegments(): List<VoiceActivityDetector.Segment> {
+        synchronized(speechSegments) {
+            return speechSegments.toList()
+        }
+    }
+
     fun deleteFile(file: File) {
         try { if (file.exists()) file.delete() } catch (_: Exception) {}
     }
 
     @SuppressLint("MissingPermission") // Permission is checked before calling this method
-    private fun startPcmRecording(): File? {
+    private fun startPcmRecording(toFile: Boolean): Boolean {
         val sampleRate = 16000
         val channelConfig = AudioFormat.CHANNEL_IN_MONO
         val audioFormat = AudioFormat.ENCODING_PCM_16BIT
         val minBuffer = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat)
-        if (minBuffer == AudioRecord.ERROR || minBuffer == AudioRecord.ERROR_BAD_VALUE) return null
+        if (minBuffer == AudioRecord.ERROR || minBuffer == AudioRecord.ERROR_BAD_VALUE) return false
         val bufferSize = minBuffer * 2
         val recorder = AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION, sampleRate, channelConfig, audioFormat, bufferSize)
         if (recorder.state != AudioRecord.STATE_INITIALIZED) {
             recorder.release()
-            return null
+            return false
         }
-        currentFile = File.createTempFile("whisper_input", ".wav", context.cacheDir)
+        val file = if (toFile) File.createTempFile("whisper_input", ".wav", context.cacheDir) else null
+        currentFile = file
         pcmBytesWritten = 0
         isPcmRecording = true
         audioRecord = recorder
-        writeWavHeader(currentFile!!, sampleRate, 1, 16, 0)
+        if (file != null) {
+            writeWavHeader(file, sampleRate, 1, 16, 0)
+        } else {
+            capture.reset()
+        }
         recorder.startRecording()
         
+        synchronized(speechSegments) { speechSegments.clear() }
+        // Energy + spectral flatness VAD; the hangover is the silence that ends an utterance
+        val vad = VoiceActivityDetector(sampleRate).apply {
+            setHangoverMs(silenceDurationMs)
+            setMinSpeechMs(minSpeechMs)
+            setListener(object : VoiceActivityDetector.Listener {
+                override fun onSpeechStart(startSample: Long) {}
+
+                override fun onSpeechEnd(startSample: Long, endSample: Long) {
+                    synchronized(speechSegments) {
+                        speechSegments.add(VoiceActivityDetector.Segment(startSample, endSample))
+                    }
+                    if (autoStopOnSilence && !silenceTriggered) {
+                        silenceTriggered = true
+                        android.os.Handler(android.os.Looper.getMainLooper()).post { onSilenceDetected?.invoke() }
+                    }
+                }
+            })
+        }
+
         recordThread = Thread {
             val buffer = ByteArray(bufferSize)
-            var speechDetected = false
-            var speechStartMs = 0L
-            var lastVoiceMs = 0L
             var calibrating = true 
             var calibrateStartMs = 0L
             var calibrateRmsSum = 0.0
             var calibrateCount = 0
             
-            FileOutputStream(currentFile!!, true).use { output ->
+            val output = file?.let { FileOutputStream(it, true) }
+            try {
                 while (isPcmRecording) {
                     val read = recorder.read(buffer, 0, buffer.size)
                     if (read > 0) {
-                        output.write(buffer, 0, read)
+                        if (output != null) output.write(buffer, 0, read) else capture.appendPcm16(buffer, read)
                         pcmBytesWritten += read
                         val rms = computeRms(buffer, read)
                         android.os.Handler(android.os.Looper.getMainLooper()).post { onAmplitudeUpdate?.invoke(rms) }
@@ -181,33 +267,22 @@ class AudioRecorder(private val context: Context) {
                                 val avg = (calibrateRmsSum / calibrateCount.coerceAtLeast(1)).toFloat()
                                 // Umbral más alto (3.5x) para detectar mejor el fin de habla en ambientes reales
                                 silenceThreshold = (avg * 3.5f).coerceIn(0.012f, 0.06f)
+                                vad.setNoiseFloorRms(avg)
+                                vad.setMinRms(silenceThreshold)
                                 calibrating = false
                                 android.os.Handler(android.os.Looper.getMainLooper()).post { onReadyToSpeak?.invoke() }
                             }
                             continue
                         }
 
-                        if (autoStopOnSilence && !silenceTriggered) {
-                            if (rms >= silenceThreshold) {
-                                if (!speechDetected) {
-                                    speechDetected = true
-                                    speechStartMs = now
-                                }
-                                lastVoiceMs = now
-                            } else if (speechDetected && lastVoiceMs > 0L) {
-                                val silenceMs = now - lastVoiceMs
-                                val speechMs = now - speechStartMs
-                                if (speechMs >= minSpeechMs && silenceMs >= silenceDurationMs) {
-                                    silenceTriggered = true
-                                    android.os.Handler(android.os.Looper.getMainLooper()).post { onSilenceDetected?.invoke() }
-                                }
-                            }
-                        }
+                        vad.processPcm16(buffer, read)
                     }
                 }
+            } finally {
+                output?.close()
             }
         }.also { it.start() }
-        return currentFile
+        return true
     }
 
     @SuppressLint("MissingPermission")
@@ -67,6 +67,7 @@ class ChatActivity : AppCompatActivity() {
     private lateinit var toolRegistry: ToolRegistry
     private lateinit var toolExecutor: ToolExecutor
     private lateinit var mcpClient: McpClient
+    private lateinit var modelLease: LocalModelHost.Lease
     private var geminiNano: GeminiNanoService? = null
     private var localLlm: LocalLlmService? = null
     private var mediaPipeLlm: MediaPipeLlmService? = null
@@ -129,7 +130,6 @@ class ChatActivity : AppCompatActivity() {
         setupMicButtonBehavior()
 
         settingsManager = SettingsManager(this)
-        warmupManager = WarmupManager(this, settingsManager)
         ttsController = TtsController(this.applicationContext, settingsManager)
         ttsController.setPlaybackStateListener { state ->
             if (isRequestInFlight) return@setPlaybackStateListener
@@ -140,12 +140,14 @@ class ChatActivity : AppCompatActivity() {
             }
         }
         permissionController = PermissionController(this)
-        val localRuntime = LocalModelRuntime(this, settingsManager)
-        val downloadManager = ModelDownloadManager(this)
+        modelLease = LocalModelHost.acquire(this)
+        val host = modelLease.host
+        val downloadManager = host.downloadManager
+        val localWhisper = host.whisper
         whisperController = WhisperController(
             settingsManager,
             AudioRecorder(this),
-            LocalWhisperService(this, settingsManager, localRuntime, downloadManager),
+            localWhisper,
             scope
         )
         historyStore = ChatHistoryStore(this)
@@ -153,12 +155,13 @@ class ChatActivity : AppCompatActivity() {
         toolRegistry = ToolRegistry(settingsManager, mcpClient)
         toolExecutor = ToolExecutor(this.applicationContext, mcpClient)
 
-        geminiNano = GeminiNanoService(this.applicationContext)
-        localLlm = LocalLlmService(this.applicationContext)
-        mediaPipeLlm = MediaPipeLlmService(this.applicationContext)
+        geminiNano = host.geminiNano
+        localLlm = host.llm
+        mediaPipeLlm = host.mediaPipe
+        warmupManager = WarmupManager(this, settingsManager, host.runtime, localLlm, localWhisper)
 
         scope.launch {
-            geminiNano?.initialize()
+            host.initializeGeminiNano()
             val installedModels = downloadManager.getInstalledModels(downloadManager.getAvailableModels(settingsManager))
             val selected = settingsManager.localAgentModel
             val selectedModel = installedModels.firstOrNull { it.filename == selected }
@@ -166,13 +169,16 @@ class ChatActivity : AppCompatActivity() {
 
             if (effectiveSelected != null) {
                 when (effectiveSelected.type) {
-                    "task" -> mediaPipeLlm?.initializeWithModel(effectiveSelected)
-                    "tflite" -> localLlm?.initializeWithModel(effectiveSelected, settingsManager.hfApiKey)
+                    "task" -> host.loadMediaPipe(effectiveSelected)
+                    "tflite" -> host.loadTfLite(effectiveSelected)
                 }
             }
         }
 
-        chatController = ChatController(settingsManager, toolExecutor, toolRegistry, geminiNano, localLlm, mediaPipeLlm, downloadManager, scope)
+        chatController = ChatController(
+            settingsManager, toolExecutor, toolRegistry, geminiNano, localLlm, mediaPipeLlm, downloadManager, scope,
+            modelHost = host
+        )
 
         chatAdapter = ChatAdapter(messages, this, 
             onCancelClick = { index -> cancelToolCallsFromUi(index) },
@@ -468,9 +474,10 @@ class ChatActivity : AppCompatActivity() {
                 }
             }
             showSttUi(true, ptt = false, readyToSpeak = false)
-            val usePcm = config.endpointId == "local" || settingsManager.forceWavForRemote
-            val file = whisperController.startRecording(
-                usePcm = usePcm,
+            val local = config.endpointId == "local"
+            val started = whisperController.startRecording(
+                usePcm = settingsManager.forceWavForRemote,
+                inMemory = local,
                 autoStopOnSilence = true,
                 onSilenceDetected = { if (sttMode == SttMode.AUTO) stopWhisperAndTranscribe(config) },
                 onReadyToSpeak = {
@@ -479,7 +486,7 @@ class ChatActivity : AppCompatActivity() {
                 },
                 onAmplitudeUpdate = { amp -> voiceVisualizer.addAmplitude(amp) }
             )
-            if (file == null) {
+            if (!started) {
                 setStatus("STT error", showProgress = false)
                 showSttUi(false)
             } else {
@@ -502,14 +509,15 @@ class ChatActivity : AppCompatActivity() {
                 }
             }
             showSttUi(true, ptt = true, readyToSpeak = false)
-            val usePcm = config.endpointId == "local" || settingsManager.forceWavForRemote
-            val file = whisperController.startRecording(usePcm = usePcm, autoStopOnSilence = false, 
+            val local = config.endpointId == "local"
+            val started = whisperController.startRecording(usePcm = settingsManager.forceWavForRemote,
+                inMemory = local, autoStopOnSilence = false,
                 onReadyToSpeak = {
                     runOnUiThread { showSttUi(true, ptt = true, readyToSpeak = true) }
                     cueReadyToSpeak()
                 },
                 onAmplitudeUpdate = { amp -> voiceVisualizer.addAmplitude(amp) })
-            if (file == null) {
+            if (!started) {
                 setStatus("STT error", showProgress = false)
                 showSttUi(false)
             } else {
@@ -534,7 +542,8 @@ class ChatActivity : AppCompatActivity() {
         activeSttConfig = null
         showSttUi(false)
         warmupManager.warmupLlm()
-        whisperController.stopAndTranscribe(config) { text, error ->
+        val onPartial: (String) -> Unit = { partial -> inputField.setText(partial) }
+        whisperController.stopAndTranscribe(config, onPartial) { text, error ->
             if (text != null) {
                 val processed = text.trim()
                 if (processed.isNotBlank()) {
@@ -1009,6 +1018,7 @@ class ChatActivity : AppCompatActivity() {
         speechRecognizer?.destroy()
         whisperController.cleanup()
         warmupManager.release()
+        modelLease.close()
     }
 
     override fun onCreateOptionsMenu(menu: Menu?): Boolean {
@@ -1,8 +1,11 @@
 package com.sbf.assistant
 
 import android.util.Log
+import com.sbf.assistant.llm.InferenceScheduler
+import com.sbf.assistant.llm.JsonGrammar
 import com.sbf.assistant.llm.LocalLlmService
 import com.sbf.assistant.llm.MediaPipeLlmService
+import com.sbf.assistant.llm.ToolCallGrammar
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
@@ -10,6 +13,9 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.currentCoroutineContext
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.onCompletion
+import kotlinx.coroutines.flow.onStart
 import java.util.concurrent.Executors
 import java.util.concurrent.CancellationException
 import java.util.concurrent.Future
@@ -60,7 +66,11 @@ class ChatController(
     private val mediaPipeLlm: MediaPipeLlmService?,
     private val modelDownloadManager: ModelDownloadManager,
     private val scope: CoroutineScope,
-    private val chatClientFactory: (Endpoint) -> ChatStreamClient = { OpenAiChatStreamClient(it) }
+    private val chatClientFactory: (Endpoint) -> ChatStreamClient = { OpenAiChatStreamClient(it) },
+    // Scheduling class of this controller's on-device generations
+    private val inferencePriority: InferenceScheduler.Priority = InferenceScheduler.Priority.CHAT,
+    // Shared engine owner; loads through it are deduplicated across screens
+    private val modelHost: LocalModelHost? = null
 ) {
     private val llmMessages = mutableListOf<LlmMessage>()
     private var currentRequest: ChatRequestHandle? = null
@@ -387,9 +397,13 @@ class ChatController(
             launch(Dispatchers.Main) { callbacks.onUsageUpdate(promptTokens, 0, promptTokens) }
 
             val flow = when (resolved) {
-                MODEL_GEMINI_NANO -> geminiNano!!.generateContentStream(prompt)
-                MODEL_MEDIAPIPE -> mediaPipeLlm!!.generateContentStream(prompt)
-                MODEL_TFLITE -> localLlm!!.generateContentStream(prompt)
+                MODEL_GEMINI_NANO -> geminiNano!!.generateContentStream(prompt, inferencePriority)
+                MODEL_MEDIAPIPE -> mediaPipeLlm!!.generateContentStream(prompt, inferencePriority)
+                MODEL_TFLITE -> localLlm!!.generateContentStream(
+                    prompt,
+                    staticPrefix = buildLocalPromptHeader(includeTools = false, forceFinal = false),
+                    priority = inferencePriority
+                )
                 else -> {
                     withContext(Dispatchers.Main) {
                         callbacks.onError("Modelo local desconocido: $modelName", true)
@@ -400,7 +414,7 @@ class ChatController(
             try {
                 var fullResponse = ""
                 kotlinx.coroutines.withTimeout(LOCAL_INFERENCE_TIMEOUT_MS) {
-                    flow.collect { chunk ->
+                    flow.holdingModel(resolved).collect { chunk ->
                         fullResponse += chunk
                         val compTokens = estimateTokens(fullResponse)
                         launch(Dispatchers.Main) {
@@ -429,6 +443,26 @@ class ChatController(
         return (text.length / 4).coerceAtLeast(1)
     }
 
+    /**
+     * Keep the engine's model marked in use while the flow runs, so the runtime neither
+     * sweeps it as idle nor evicts it in the middle of a generation.
+     */
+    private fun Flow<String>.holdingModel(resolved: String): Flow<String> {
+        val runtime = modelHost?.runtime ?: return this
+        val filename = when (resolved) {
+            MODEL_TFLITE -> localLlm?.getModelFilename()
+            MODEL_MEDIAPIPE -> mediaPipeLlm?.getModelFilename()
+            else -> null
+        } ?: return this
+        var started = false
+        return onStart {
+            runtime.beginUse(filename)
+            started = true
+        }.onCompletion {
+            if (started) runtime.endUse(filename)
+        }
+    }
+
     private fun findLocalModelInfo(filename: String): ModelDownloadManager.ModelInfo? {
         val models = modelDownloadManager.getAvailableModels(settingsManager)
         return models.firstOrNull { it.filename == filename }
@@ -454,12 +488,13 @@ class ChatController(
                 if (mediaPipeLlm.isAvailable() &&
                     (modelName == MODEL_MEDIAPIPE || mediaPipeLlm.getModelFilename() == modelName)
                 ) {
+                    mediaPipeLlm.getModelFilename()?.let { modelHost?.runtime?.markUsed(it) }
                     return null
                 }
                 withContext(Dispatchers.Main) { callbacks.onStatusUpdate("Cargando modelo...") }
                 val modelInfo = findLocalModelInfo(modelName)
                     ?: return "Modelo MediaPipe no encontrado: $modelName"
-                val status = mediaPipeLlm.initializeWithModel(modelInfo)
+                val status = modelHost?.loadMediaPipe(modelInfo) ?: mediaPipeLlm.initializeWithModel(modelInfo)
                 if (status is MediaPipeLlmService.Status.Available) null
                 else (status as? MediaPipeLlmService.Status.Error)?.message
                     ?: "No se pudo inicializar MediaPipe"
@@ -471,12 +506,19 @@ class ChatController(
                 if (localLlm.isAvailable() &&
                     (modelName == MODEL_TFLITE || localLlm.getModelFilename() == modelName)
                 ) {
+                    localLlm.getModelFilename()?.let { modelHost?.runtime?.markUsed(it) }
                     return null
                 }
                 withContext(Dispatchers.Main) { callbacks.onStatusUpdate("Cargando modelo...") }
                 val modelInfo = findLocalModelInfo(modelName)
                     ?: return "Modelo TFLite no encontrado: $modelName"
-                val status = localLlm.initializeWithModel(modelInfo, settingsManager.hfApiKey)
+                // The host pairs the draft model itself
+                val status = modelHost?.loadTfLite(modelInfo)
+                    ?: localLlm.initializeWithModel(
+                        modelInfo,
+                        settingsManager.hfApiKey,
+                        settingsManager.getSpeculativeDraftModel(modelInfo.filename)?.let { findLocalModelInfo(it) }
+                    )
                 if (status is LocalLlmService.Status.Available) null
                 else (status as? LocalLlmService.Status.Error)?.message
                     ?: "No se pudo inicializar el modelo TFLite"
@@ -491,10 +533,15 @@ class ChatController(
             val promptTokens = estimateTokens(prompt)
             launch(Dispatchers.Main) { callbacks.onUsageUpdate(promptTokens, 0, promptTokens) }
 
+            // Keeps TFLite tool-call JSON valid, so it parses on the first try
+            val toolSchema = toolRegistry.getTools().takeIf { it.isNotEmpty() }
+                ?.let { ToolCallGrammar.forTools(it) }
             val (firstResponse, toolCalls) = streamLocalFirstResponseWithTools(
                 resolved,
                 modelName,
                 prompt,
+                buildLocalPromptHeader(includeTools = true, forceFinal = false),
+                toolSchema,
                 callbacks
             ) ?: return@launch
             
@@ -532,6 +579,7 @@ class ChatController(
                 resolved,
                 modelName,
                 finalPrompt,
+                buildLocalPromptHeader(includeTools = true, forceFinal = true),
                 callbacks
             )
                 ?: return@launch
@@ -550,6 +598,8 @@ class ChatController(
         resolved: String,
         modelName: String,
         prompt: String,
+        header: String,
+        toolSchema: JsonGrammar.Node?,
         callbacks: Callbacks
     ): Pair<String, List<ToolCall>?>? {
         val ensureError = ensureLocalModelReady(resolved, modelName, callbacks)
@@ -560,13 +610,18 @@ class ChatController(
         withContext(Dispatchers.Main) { callbacks.onStatusUpdate("Thinking...") }
         val flow = when (resolved) {
             MODEL_GEMINI_NANO -> {
-                geminiNano!!.generateContentStream(prompt)
+                geminiNano!!.generateContentStream(prompt, inferencePriority)
             }
             MODEL_MEDIAPIPE -> {
-                mediaPipeLlm!!.generateContentStream(prompt)
+                mediaPipeLlm!!.generateContentStream(prompt, inferencePriority)
             }
             MODEL_TFLITE -> {
-                localLlm!!.generateContentStream(prompt)
+                localLlm!!.generateContentStream(
+                    prompt,
+                    staticPrefix = header,
+                    jsonSchema = toolSchema,
+                    priority = inferencePriority
+                )
             }
             else -> {
                 withContext(Dispatchers.Main) { callbacks.onError("Modelo local desconocido: $modelName", true) }
@@ -580,7 +635,7 @@ class ChatController(
 
         try {
             kotlinx.coroutines.withTimeout(LOCAL_INFERENCE_TIMEOUT_MS) {
-                flow.collect { chunk ->
+                flow.holdingModel(resolved).collect { chunk ->
                     buffer.append(chunk)
                     if (streamToUi == null) {
                         val trimmed = buffer.toString().trimStart()
@@ -627,6 +682,7 @@ class ChatController(
         resolved: String,
         modelName: String,
         prompt: String,
+        header: String,
         callbacks: Callbacks
     ): String? {
         val ensureError = ensureLocalModelReady(resolved, modelName, callbacks)
@@ -637,13 +693,13 @@ class ChatController(
         withContext(Dispatchers.Main) { callbacks.onStatusUpdate("Thinking...") }
         val flow = when (resolved) {
             MODEL_GEMINI_NANO -> {
-                geminiNano!!.generateContentStream(prompt)
+                geminiNano!!.generateContentStream(prompt, inferencePriority)
             }
             MODEL_MEDIAPIPE -> {
-                mediaPipeLlm!!.generateContentStream(prompt)
+                mediaPipeLlm!!.generateContentStream(prompt, inferencePriority)
             }
             MODEL_TFLITE -> {
-                localLlm!!.generateContentStream(prompt)
+                localLlm!!.generateContentStream(prompt, staticPrefix = header, priority = inferencePriority)
             }
             else -> {
                 withContext(Dispatchers.Main) { callbacks.onError("Modelo local desconocido: $modelName", true) }
@@ -654,7 +710,7 @@ class ChatController(
         val buffer = StringBuilder()
         try {
             kotlinx.coroutines.withTimeout(LOCAL_INFERENCE_TIMEOUT_MS) {
-                flow.collect { chunk ->
+                flow.holdingModel(resolved).collect { chunk ->
                     buffer.append(chunk)
                     withContext(Dispatchers.Main) { callbacks.onResponseToken(chunk) }
                 }
@@ -671,6 +727,20 @@ class ChatController(
     }
 
     private fun buildLocalPrompt(includeTools: Boolean, forceFinal: Boolean): String {
+        val builder = StringBuilder(buildLocalPromptHeader(includeTools, forceFinal))
+        llmMessages.drop(leadingSystemCount()).forEach { msg ->
+            appendLocalMessage(builder, msg)
+        }
+        builder.append("Assistant:")
+        return builder.toString()
+    }
+
+    /**
+     * Part of the local prompt that stays the same across turns and cleared chats:
+     * the tool block and the leading system messages. The TFLite engine keeps its
+     * KV cache so later prompts starting with it skip that prefill.
+     */
+    private fun buildLocalPromptHeader(includeTools: Boolean, forceFinal: Boolean): String {
         val builder = StringBuilder()
         val tools = if (includeTools) toolRegistry.getTools() else emptyList()
         if (tools.isNotEmpty()) {
@@ -690,24 +760,30 @@ class ChatController(
             }
         }
 
-        llmMessages.forEach { msg ->
-            when (msg.role) {
-                "system" -> builder.append("System: ").append(msg.content.orEmpty()).append("\n")
-                "user" -> builder.append("User: ").append(msg.content.orEmpty()).append("\n")
-                "assistant" -> {
-                    if (!msg.content.isNullOrBlank()) {
-                        builder.append("Assistant: ").append(msg.content).append("\n")
-                    }
-                }
-                "tool" -> {
-                    val name = msg.name ?: "tool"
-                    builder.append("Tool(").append(name).append("): ")
-                        .append(msg.content.orEmpty()).append("\n")
+        llmMessages.take(leadingSystemCount()).forEach { msg ->
+            appendLocalMessage(builder, msg)
+        }
+        return builder.toString()
+    }
+
+    private fun leadingSystemCount(): Int =
+        llmMessages.indexOfFirst { it.role != "system" }.let { if (it < 0) llmMessages.size else it }
+
+    private fun appendLocalMessage(builder: StringBuilder, msg: LlmMessage) {
+        when (msg.role) {
+            "system" -> builder.append("System: ").append(msg.content.orEmpty()).append("\n")
+            "user" -> builder.append("User: ").append(msg.content.orEmpty()).append("\n")
+            "assistant" -> {
+                if (!msg.content.isNullOrBlank()) {
+                    builder.append("Assistant: ").append(msg.content).append("\n")
                 }
             }
+            "tool" -> {
+                val name = msg.name ?: "tool"
+                builder.append("Tool(").append(name).append("): ")
+                    .append(msg.content.orEmpty()).append("\n")
+            }
         }
-        builder.append("Assistant:")
-        return builder.toString()
     }
 
     private fun parseToolCalls(text: String): List<ToolCall>? {
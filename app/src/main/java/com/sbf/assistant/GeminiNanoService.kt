@@ -10,6 +10,8 @@ import com.google.mlkit.genai.prompt.GenerativeModel
 import com.google.mlkit.genai.prompt.ImagePart
 import com.google.mlkit.genai.prompt.TextPart
 import com.google.mlkit.genai.prompt.generateContentRequest
+import com.sbf.assistant.llm.InferenceScheduler
+import com.sbf.assistant.llm.InferenceScheduler.Priority
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.flow
@@ -31,6 +33,11 @@ class GeminiNanoService(private val context: Context) {
     private var _isAvailable = false
     private var _isDownloading = false
     private var lastStatusSummary: String = "Sin inicializar"
+    private val lane = InferenceScheduler.lane(InferenceScheduler.LANE_GEMINI_NANO)
+
+    init {
+        InferenceScheduler.installMemoryProbe(context)
+    }
 
     sealed class Status {
         object Unavailable : Status()
@@ -143,11 +150,13 @@ class GeminiNanoService(private val context: Context) {
 
     /**
      * Warm up the model for faster first inference.
-     * Call this after initialization in background.
+     * Runs as background work: skipped under memory pressure and never delays a request.
      */
-    suspend fun warmup() = withContext(Dispatchers.IO) {
+    suspend fun warmup() {
         try {
-            generativeModel?.warmup()
+            InferenceScheduler.execute(lane, Priority.BACKGROUND, "warmup") {
+                generativeModel?.warmup()
+            }
             Log.d(TAG, "Model warmed up")
         } catch (e: Exception) {
             Log.w(TAG, "Warmup failed", e)
@@ -157,13 +166,16 @@ class GeminiNanoService(private val context: Context) {
     /**
      * Generate content from a text prompt (non-streaming).
      */
-    suspend fun generateContent(prompt: String): Result<String> = withContext(Dispatchers.IO) {
-        val model = generativeModel ?: return@withContext Result.failure(
+    suspend fun generateContent(
+        prompt: String,
+        priority: Priority = Priority.CHAT
+    ): Result<String> = InferenceScheduler.execute(lane, priority, "generate") {
+        val model = generativeModel ?: return@execute Result.failure(
             IllegalStateException("Model not initialized")
         )
 
         if (!_isAvailable) {
-            return@withContext Result.failure(
+            return@execute Result.failure(
                 IllegalStateException("Gemini Nano not available")
             )
         }
@@ -181,13 +193,17 @@ class GeminiNanoService(private val context: Context) {
     /**
      * Generate content from an image + text prompt (non-streaming).
      */
-    suspend fun generateContent(image: Bitmap, prompt: String): Result<String> = withContext(Dispatchers.IO) {
-        val model = generativeModel ?: return@withContext Result.failure(
+    suspend fun generateContent(
+        image: Bitmap,
+        prompt: String,
+        priority: Priority = Priority.CHAT
+    ): Result<String> = InferenceScheduler.execute(lane, priority, "generate") {
+        val model = generativeModel ?: return@execute Result.failure(
             IllegalStateException("Model not initialized")
         )
 
         if (!_isAvailable) {
-            return@withContext Result.failure(
+            return@execute Result.failure(
                 IllegalStateException("Gemini Nano not available")
             )
         }
@@ -212,25 +228,33 @@ class GeminiNanoService(private val context: Context) {
     /**
      * Generate content with streaming response.
      */
-    fun generateContentStream(prompt: String): Flow<String> = flow {
+    fun generateContentStream(prompt: String): Flow<String> = generateContentStream(prompt, Priority.CHAT)
+
+    /**
+     * Generate content with streaming response, holding the scheduler lane at [priority].
+     */
+    fun generateContentStream(prompt: String, priority: Priority): Flow<String> = flow {
         val model = generativeModel ?: throw IllegalStateException("Model not initialized")
 
         if (!_isAvailable) {
             throw IllegalStateException("Gemini Nano not available")
         }
 
-        try {
-            model.generateContentStream(prompt).collect { response ->
-                val text = response.candidates.firstOrNull()?.text
-                if (!text.isNullOrEmpty()) {
-                    emit(text)
+        InferenceScheduler.withPermit(lane, priority, "stream") { ticket ->
+            try {
+                model.generateContentStream(prompt).collect { response ->
+                    ticket.checkpoint()
+                    val text = response.candidates.firstOrNull()?.text
+                    if (!text.isNullOrEmpty()) {
+                        emit(text)
+                    }
                 }
+            } catch (e: Exception) {
+                Log.e(TAG, "Streaming generation failed", e)
+                throw e
             }
-        } catch (e: Exception) {
-            Log.e(TAG, "Streaming generation failed", e)
-            throw e
         }
-    }.flowOn(Dispatchers.IO)
+    }.flowOn(lane.dispatcher)
 
     /**
      * Generate content with streaming and custom parameters.
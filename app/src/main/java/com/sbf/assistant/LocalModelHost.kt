@@ -0,0 +1,245 @@
+package com.sbf.assistant
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.os.SystemClock
+import android.util.Log
+import com.sbf.assistant.llm.LocalLlmService
+import com.sbf.assistant.llm.MediaPipeLlmService
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Process-wide owner of the on-device engines.
+ *
+ * Screens take a [Lease] instead of building their own engines, so the voice overlay, the
+ * chat and the settings screen share one [LocalModelRuntime] and one instance of each
+ * engine, and a model is mapped once per process however many screens use it.
+ *
+ * Loads go through [loadTfLite] and [loadMediaPipe], which run one at a time, skip models
+ * that are already resident and register them with the runtime, so its eviction (idle
+ * timeout or memory pressure, from any screen) releases the engine that holds the model.
+ * Engines are released on their scheduler lane, after the job using them has ended.
+ *
+ * The host also forwards onTrimMemory to the runtime, which releases models by level.
+ *
+ * When the last lease closes, the engines are released after [IDLE_RELEASE_MS] unless a
+ * screen takes a new lease first.
+ */
+class LocalModelHost private constructor(context: Context) {
+
+    private val appContext = context.applicationContext
+
+    val settings = SettingsManager(appContext)
+    val downloadManager = ModelDownloadManager(appContext)
+    val runtime = LocalModelRuntime(appContext, settings)
+    val whisper = LocalWhisperService(appContext, settings, runtime, downloadManager)
+    val llm = LocalLlmService(appContext)
+    val mediaPipe = MediaPipeLlmService(appContext)
+    val geminiNano = GeminiNanoService(appContext)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val loadMutex = Mutex()
+    private var leases = 0
+    private var releaseJob: Job? = null
+    private var geminiInit: Deferred<GeminiNanoService.Status>? = null
+    // Draft setting the TFLite engine's model was loaded with; a change reloads it
+    private var tfLiteDraft: String? = null
+
+    init {
+        appContext.registerComponentCallbacks(object : ComponentCallbacks2 {
+            override fun onTrimMemory(level: Int) = runtime.onTrimMemory(level)
+
+            override fun onConfigurationChanged(newConfig: Configuration) = Unit
+
+            @Deprecated("Deprecated in Java")
+            override fun onLowMemory() = runtime.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+        })
+    }
+
+    /**
+     * A screen's claim on the host. Close it when the screen goes away; closing twice is
+     * harmless.
+     */
+    inner class Lease internal constructor() : Closeable {
+        private val closed = AtomicBoolean(false)
+
+        val host: LocalModelHost get() = this@LocalModelHost
+
+        override fun close() {
+            if (closed.compareAndSet(false, true)) {
+                endLease()
+            }
+        }
+    }
+
+    /**
+     * Load [model] into the TFLite engine unless it already holds it. The runtime first makes
+     * room within its memory budget; if the load still runs out of memory, the least
+     * recently used model is evicted once and the load retried.
+     *
+     * The draft model paired with [model] in the settings is loaded with it and registered
+     * as part of its runtime entry, so both are evicted and released together.
+     */
+    suspend fun loadTfLite(model: ModelDownloadManager.ModelInfo): LocalLlmService.Status = loadMutex.withLock {
+        val draftName = settings.getSpeculativeDraftModel(model.filename)
+        if (llm.isAvailable() && llm.getModelFilename() == model.filename && tfLiteDraft == draftName) {
+            runtime.markUsed(model.filename)
+            return@withLock LocalLlmService.Status.Available
+        }
+        val draft = draftName?.let { name ->
+            downloadManager.getAvailableModels(settings).firstOrNull { it.filename == name }
+        }
+        val previous = llm.getModelFilename()
+        val size = sizeOf(model.filename) + (draft?.let { sizeOf(it.filename) } ?: 0L)
+        if (!runtime.admit(model.filename, size, replacing = previous)) {
+            return@withLock LocalLlmService.Status.Error(NO_MEMORY, isOutOfMemory = true)
+        }
+        val start = SystemClock.elapsedRealtime()
+        var status = llm.initializeWithModel(model, settings.hfApiKey, draft)
+        if (status is LocalLlmService.Status.Error && status.isOutOfMemory &&
+            runtime.evictLeastRecentlyUsed() != null
+        ) {
+            status = llm.initializeWithModel(model, settings.hfApiKey, draft)
+        }
+        if (previous != null && previous != llm.getModelFilename()) {
+            runtime.removeLoaded(previous)
+        }
+        tfLiteDraft = draftName
+        if (status is LocalLlmService.Status.Available) {
+            // An unusable draft is not loaded and does not count against the budget
+            val companions = listOfNotNull(llm.getDraftFilename())
+            val loadedSize = sizeOf(model.filename) + companions.sumOf { sizeOf(it) }
+            register(model.filename, loadedSize, SystemClock.elapsedRealtime() - start, companions) { filename ->
+                scope.launch { llm.unload(filename) }
+            }
+        }
+        status
+    }
+
+    /**
+     * [loadTfLite] for MediaPipe .task models.
+     */
+    suspend fun loadMediaPipe(model: ModelDownloadManager.ModelInfo): MediaPipeLlmService.Status =
+        loadMutex.withLock {
+            if (mediaPipe.isAvailable() && mediaPipe.getModelFilename() == model.filename) {
+                runtime.markUsed(model.filename)
+                return@withLock MediaPipeLlmService.Status.Available
+            }
+            val previous = mediaPipe.getModelFilename()
+            val size = sizeOf(model.filename)
+            if (!runtime.admit(model.filename, size, replacing = previous)) {
+                return@withLock MediaPipeLlmService.Status.Error(NO_MEMORY, isOutOfMemory = true)
+            }
+            val start = SystemClock.elapsedRealtime()
+            var status = mediaPipe.initializeWithModel(model)
+            if (status is MediaPipeLlmService.Status.Error && status.isOutOfMemory &&
+                runtime.evictLeastRecentlyUsed() != null
+            ) {
+                status = mediaPipe.initializeWithModel(model)
+            }
+            if (previous != null && previous != mediaPipe.getModelFilename()) {
+                runtime.removeLoaded(previous)
+            }
+            if (status is MediaPipeLlmService.Status.Available) {
+                register(model.filename, size, SystemClock.elapsedRealtime() - start) { filename ->
+                    scope.launch { mediaPipe.unload(filename) }
+                }
+            }
+            status
+        }
+
+    /**
+     * Initialize Gemini Nano once per process. Concurrent callers share one check; a
+     * status other than available is re-checked on the next call.
+     */
+    suspend fun initializeGeminiNano(): GeminiNanoService.Status {
+        if (geminiNano.isAvailable()) return GeminiNanoService.Status.Available
+        val pending = synchronized(this) {
+            geminiInit?.takeIf { it.isActive }
+                ?: scope.async { geminiNano.initialize() }.also { geminiInit = it }
+        }
+        return pending.await()
+    }
+
+    /**
+     * Unload [filename] from whichever engine holds it.
+     */
+    fun unload(filename: String) {
+        whisper.releaseModel(filename)
+        scope.launch {
+            llm.unload(filename)
+            mediaPipe.unload(filename)
+        }
+        runtime.removeLoaded(filename)
+    }
+
+    private fun sizeOf(filename: String): Long = downloadManager.getModelFile(filename)?.length() ?: 0L
+
+    private fun register(
+        filename: String,
+        size: Long,
+        loadMs: Long,
+        companions: List<String> = emptyList(),
+        onRelease: LocalModelRuntime.ReleaseCallback
+    ) {
+        runtime.registerLoaded(filename, size, onRelease, loadMs, companions)
+    }
+
+    private fun newLease(): Lease = synchronized(this) {
+        leases++
+        releaseJob?.cancel()
+        releaseJob = null
+        Lease()
+    }
+
+    private fun endLease() {
+        synchronized(this) {
+            leases--
+            if (leases > 0) return
+            releaseJob?.cancel()
+            releaseJob = scope.launch {
+                delay(IDLE_RELEASE_MS)
+                loadMutex.withLock {
+                    if (synchronized(this@LocalModelHost) { leases > 0 }) return@launch
+                    Log.d(TAG, "No screen uses local models, releasing engines")
+                    runtime.releaseAll()
+                    whisper.releaseModel()
+                    llm.unload()
+                    mediaPipe.unload()
+                }
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "LocalModelHost"
+        private const val NO_MEMORY = "Memoria insuficiente para cargar el modelo"
+        // Keeps models resident across quick screen switches, e.g. overlay to chat
+        private const val IDLE_RELEASE_MS = 60_000L
+
+        @Volatile
+        private var instance: LocalModelHost? = null
+
+        /**
+         * Take a lease on the process-wide host, creating it on first use.
+         */
+        fun acquire(context: Context): Lease {
+            val host = instance ?: synchronized(this) {
+                instance ?: LocalModelHost(context).also { instance = it }
+            }
+            return host.newLease()
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package com.sbf.assistant
 
+import android.app.ActivityManager
 import android.content.Context
 import android.os.SystemClock
 import android.util.Log
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
 
 /**
  * Manages lifecycle of local models to optimize memory usage.
  * Tracks loaded models and releases idle ones automatically.
+ * A model is "hot" once a warm-up inference has run on it since it was loaded.
+ *
+ * Models share a RAM budget ([SettingsManager.localModelMemoryPercent] of the device memory,
+ * see [ModelMemoryBudget]). A load is admitted only once it fits the budget and the memory
+ * the system reports free, evicting the resident models that are cheapest to lose first;
+ * onTrimMemory levels release progressively more.
  */
 class LocalModelRuntime(private val context: Context, private val settings: SettingsManager) {
 
@@ -19,114 +29,296 @@ class LocalModelRuntime(private val context: Context, private val settings: Sett
         val filename: String,
         val sizeBytes: Long,
         var lastUsedMs: Long,
-        val releaseCallback: ReleaseCallback?
+        val releaseCallback: ReleaseCallback?,
+        var hot: Boolean = false,
+        var loadMs: Long = 0,
+        // Files loaded as part of this model, e.g. its speculative draft; they go with it
+        val companions: List<String> = emptyList(),
+        // Running jobs (see beginUse); a model in use is never evicted
+        var activeJobs: Int = 0
     )
 
     data class LoadedModelInfo(
         val filename: String,
         val sizeBytes: Long,
-        val lastUsedMs: Long
+        val lastUsedMs: Long,
+        val hot: Boolean
     )
 
     private val loaded = LinkedHashMap<String, LoadedModel>()
+    private val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+    private val sweeper = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "model-idle-sweep").apply { isDaemon = true }
+    }
+    private var sweep: ScheduledFuture<*>? = null
 
     /**
      * Register a model as loaded with an optional release callback.
      * The callback will be invoked when the model is evicted due to idle timeout or memory pressure.
+     * Returns false, leaving the model unregistered, if it does not fit in memory.
      */
-    @Synchronized
     fun ensureLoaded(filename: String, sizeBytes: Long, releaseCallback: ReleaseCallback? = null): Boolean {
         cleanupIdle()
-        val now = SystemClock.elapsedRealtime()
-        val existing = loaded[filename]
-        if (existing != null) {
-            existing.lastUsedMs = now
-            return true
+        synchronized(this) {
+            val existing = loaded[filename]
+            if (existing != null) {
+                existing.lastUsedMs = SystemClock.elapsedRealtime()
+                return true
+            }
+        }
+        if (!admit(filename, sizeBytes)) return false
+        synchronized(this) {
+            loaded[filename] = LoadedModel(filename, sizeBytes, SystemClock.elapsedRealtime(), releaseCallback)
+            scheduleSweep()
         }
-
-        loaded[filename] = LoadedModel(filename, sizeBytes, now, releaseCallback)
         Log.d(TAG, "Loaded model: $filename (${sizeBytes / (1024 * 1024)}MB)")
         return true
     }
 
+    /**
+     * Make room for a [sizeBytes] model before loading it, evicting other models if needed.
+     * [replacing] is a model the load will unload anyway (the engine's current one), so it
+     * does not count against the budget. Returns false if the model cannot fit.
+     */
+    fun admit(filename: String, sizeBytes: Long, replacing: String? = null): Boolean {
+        val memory = ActivityManager.MemoryInfo().also { activityManager.getMemoryInfo(it) }
+        val budget = ModelMemoryBudget.forDevice(memory.totalMem, settings.localModelMemoryPercent)
+        val victims = synchronized(this) {
+            val others = loaded.values.filter { it.filename != filename && it.filename != replacing }
+            val chosen = budget.victimsFor(
+                sizeBytes,
+                others.map { it.toResident() },
+                memory.availMem - memory.threshold,
+                SystemClock.elapsedRealtime()
+            )
+            if (chosen == null) {
+                Log.w(TAG, "Not admitting $filename (${sizeBytes / (1024 * 1024)}MB): " +
+                    "budget ${budget.budgetBytes / (1024 * 1024)}MB, free ${memory.availMem / (1024 * 1024)}MB")
+                return false
+            }
+            removeAll(chosen.map { it.filename })
+        }
+        victims.forEach { Log.d(TAG, "Evicted ${it.filename} to admit $filename") }
+        release(victims)
+        return true
+    }
+
     @Synchronized
     fun markUsed(filename: String) {
         loaded[filename]?.lastUsedMs = SystemClock.elapsedRealtime()
     }
 
+    /**
+     * A job (e.g. a chat generation) starts on [filename]: it counts as used and is kept
+     * through idle sweeps, admission and trim until the matching [endUse].
+     */
+    @Synchronized
+    fun beginUse(filename: String) {
+        val model = ownerOf(filename)?.let { loaded[it] } ?: return
+        model.activeJobs++
+        model.lastUsedMs = SystemClock.elapsedRealtime()
+    }
+
     @Synchronized
+    fun endUse(filename: String) {
+        val model = ownerOf(filename)?.let { loaded[it] } ?: return
+        model.activeJobs = (model.activeJobs - 1).coerceAtLeast(0)
+        model.lastUsedMs = SystemClock.elapsedRealtime()
+    }
+
     private fun cleanupIdle() {
         val idleMs = settings.localModelIdleMs
         if (idleMs <= 0) return
-        val now = SystemClock.elapsedRealtime()
-        val toRelease = mutableListOf<LoadedModel>()
-        val iterator = loaded.values.iterator()
-        while (iterator.hasNext()) {
-            val model = iterator.next()
-            if (now - model.lastUsedMs >= idleMs) {
-                iterator.remove()
-                toRelease.add(model)
-                Log.d(TAG, "Unloaded idle model: ${model.filename}")
-            }
-        }
-        // Release outside the synchronized iteration to avoid potential deadlocks
-        toRelease.forEach { model ->
-            try {
-                model.releaseCallback?.onRelease(model.filename)
-            } catch (e: Exception) {
-                Log.e(TAG, "Error releasing model: ${model.filename}", e)
-            }
+        releaseIdleFor(idleMs)
+    }
+
+    private fun releaseIdleFor(idleMs: Long) {
+        val toRelease = synchronized(this) {
+            val now = SystemClock.elapsedRealtime()
+            removeAll(loaded.values.filter { it.activeJobs == 0 && now - it.lastUsedMs >= idleMs }.map { it.filename })
         }
+        toRelease.forEach { Log.d(TAG, "Unloaded idle model: ${it.filename}") }
+        release(toRelease)
     }
 
     /**
-     * Evict the least recently used model to free memory.
-     * Returns the filename of the evicted model, or null if no models are loaded.
+     * Evict the least recently used model that is not running a job, to free memory.
+     * Returns the filename of the evicted model, or null if no model could be evicted.
      */
-    @Synchronized
     fun evictLeastRecentlyUsed(): String? {
-        val lru = loaded.values.minByOrNull { it.lastUsedMs } ?: return null
-        loaded.remove(lru.filename)
-        Log.w(TAG, "Evicted model due to memory pressure: ${lru.filename}")
-        try {
-            lru.releaseCallback?.onRelease(lru.filename)
-        } catch (e: Exception) {
-            Log.e(TAG, "Error releasing evicted model: ${lru.filename}", e)
+        val lru = synchronized(this) {
+            val oldest = loaded.values.filter { it.activeJobs == 0 }.minByOrNull { it.lastUsedMs } ?: return null
+            removeAll(listOf(oldest.filename))
         }
-        return lru.filename
+        lru.forEach { Log.w(TAG, "Evicted model due to memory pressure: ${it.filename}") }
+        release(lru)
+        return lru.firstOrNull()?.filename
+    }
+
+    /**
+     * Progressive release for [android.content.ComponentCallbacks2.onTrimMemory]: the
+     * higher the level, the less of the budget models may keep.
+     */
+    fun onTrimMemory(level: Int) {
+        val memory = ActivityManager.MemoryInfo().also { activityManager.getMemoryInfo(it) }
+        val budget = ModelMemoryBudget.forDevice(memory.totalMem, settings.localModelMemoryPercent)
+        val target = budget.trimTarget(level)
+        if (target == null) {
+            releaseIdleFor(TRIM_IDLE_MS)
+            return
+        }
+        val victims = synchronized(this) {
+            val chosen = budget.evictDownTo(
+                target,
+                loaded.values.map { it.toResident() },
+                SystemClock.elapsedRealtime()
+            )
+            removeAll(chosen.map { it.filename })
+        }
+        victims.forEach { Log.d(TAG, "Released ${it.filename} on trim level $level") }
+        release(victims)
+    }
+
+    /**
+     * Release every loaded model, e.g. once no screen uses local inference any more.
+     */
+    fun releaseAll() {
+        val toRelease = synchronized(this) { removeAll(loaded.keys.toList()) }
+        release(toRelease)
     }
 
     @Synchronized
     fun getLoadedModelInfo(filename: String): LoadedModelInfo? {
         val model = loaded[filename] ?: return null
-        return LoadedModelInfo(model.filename, model.sizeBytes, model.lastUsedMs)
+        return LoadedModelInfo(model.filename, model.sizeBytes, model.lastUsedMs, model.hot)
     }
 
+    /** Bytes held by loaded models. */
+    @Synchronized
+    fun usedBytes(): Long = loaded.values.sumOf { it.sizeBytes }
+
+    /** Current RAM ceiling for loaded models. */
+    fun budgetBytes(): Long {
+        val memory = ActivityManager.MemoryInfo().also { activityManager.getMemoryInfo(it) }
+        return ModelMemoryBudget.forDevice(memory.totalMem, settings.localModelMemoryPercent).budgetBytes
+    }
+
+    /**
+     * Memory a loaded model could still grow into without evicting anything: what is left
+     * of the budget, capped by what the system reports free.
+     */
+    fun headroomBytes(): Long {
+        val memory = ActivityManager.MemoryInfo().also { activityManager.getMemoryInfo(it) }
+        val budget = ModelMemoryBudget.forDevice(memory.totalMem, settings.localModelMemoryPercent)
+        return minOf(budget.budgetBytes - usedBytes(), memory.availMem - memory.threshold).coerceAtLeast(0)
+    }
+
+    /**
+     * Update the memory [filename] holds, e.g. after adding interpreters on its weights.
+     */
+    @Synchronized
+    fun resize(filename: String, sizeBytes: Long) {
+        val model = loaded[filename] ?: return
+        loaded[filename] = model.copy(sizeBytes = sizeBytes)
+    }
+
+    /**
+     * Record that [filename] has run a warm-up inference. No effect unless it is loaded.
+     */
+    @Synchronized
+    fun markHot(filename: String) {
+        loaded[filename]?.hot = true
+    }
+
+    @Synchronized
+    fun isHot(filename: String): Boolean {
+        return loaded[filename]?.hot == true
+    }
+
+    /**
+     * Whether [filename] is resident, on its own or as a companion of another model.
+     */
     @Synchronized
     fun isLoaded(filename: String): Boolean {
-        return loaded.containsKey(filename)
+        return ownerOf(filename) != null
     }
 
     /**
-     * Register an already loaded model with an optional release callback.
+     * Register an already loaded model with an optional release callback. [loadMs] is how
+     * long the load took; eviction prefers models that are quick to bring back.
+     * [companions] are files loaded with it (a draft model): [sizeBytes] includes them and
+     * they are evicted and released together with [filename].
      */
     @Synchronized
-    fun registerLoaded(filename: String, sizeBytes: Long, releaseCallback: ReleaseCallback? = null) {
+    fun registerLoaded(
+        filename: String,
+        sizeBytes: Long,
+        releaseCallback: ReleaseCallback? = null,
+        loadMs: Long = 0,
+        companions: List<String> = emptyList()
+    ) {
         loaded[filename] = LoadedModel(
             filename = filename,
             sizeBytes = sizeBytes,
             lastUsedMs = SystemClock.elapsedRealtime(),
-            releaseCallback = releaseCallback
+            releaseCallback = releaseCallback,
+            loadMs = loadMs,
+            companions = companions
         )
+        scheduleSweep()
     }
 
+    /**
+     * Forget [filename]; a companion takes the model it belongs to with it.
+     */
     @Synchronized
     fun removeLoaded(filename: String) {
-        loaded.remove(filename)
+        ownerOf(filename)?.let { loaded.remove(it) }
     }
 
+    // Caller holds the lock
+    private fun ownerOf(filename: String): String? {
+        if (loaded.containsKey(filename)) return filename
+        return loaded.values.firstOrNull { filename in it.companions }?.filename
+    }
+
+    private fun LoadedModel.toResident() =
+        ModelMemoryBudget.Resident(filename, sizeBytes, lastUsedMs, loadMs, pinned = activeJobs > 0)
+
+    // Caller holds the lock
+    private fun removeAll(filenames: List<String>): List<LoadedModel> =
+        filenames.mapNotNull { loaded.remove(it) }
+
+    // Runs without the lock: engines take their own locks to release, and a transcription
+    // holding its engine lock may be waiting for ours
+    private fun release(models: List<LoadedModel>) {
+        models.forEach { model ->
+            try {
+                model.releaseCallback?.onRelease(model.filename)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error releasing model: ${model.filename}", e)
+            }
+        }
+    }
+
+    // Caller holds the lock. Idle models are released on a timer, not only on the next load
+    private fun scheduleSweep() {
+        if (sweep != null) return
+        sweep = sweeper.scheduleWithFixedDelay({
+            cleanupIdle()
+            synchronized(this) {
+                if (loaded.isEmpty()) {
+                    sweep?.cancel(false)
+                    sweep = null
+                }
+            }
+        }, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS)
+    }
 
     companion object {
         private const val TAG = "LocalModelRuntime"
+        private const val SWEEP_INTERVAL_MS = 30_000L
+        // Models idle this long go when the UI is hidden
+        private const val TRIM_IDLE_MS = 30_000L
     }
 }
@@ -1,7 +1,17 @@
 package com.sbf.assistant
 
 import android.util.Log
+import com.sbf.assistant.llm.ComputePool
+import com.sbf.assistant.llm.CpuBudget
+import com.sbf.assistant.llm.InferenceScheduler
+import com.sbf.assistant.llm.TfLiteHelper
+import com.sbf.assistant.whisper.LongFormTranscriber
+import com.sbf.assistant.whisper.WaveUtil
+import com.sbf.assistant.whisper.WhisperEngineJava
+import com.sbf.assistant.whisper.WhisperUtil
 import java.io.File
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
 
 enum class WhisperMode {
     TRANSCRIBE,
@@ -14,18 +24,30 @@ class LocalWhisperService(
     private val modelRuntime: LocalModelRuntime,
     private val modelDownloadManager: ModelDownloadManager
 ) {
-    private var engine: com.sbf.assistant.whisper.WhisperEngineJava? = null
-    private var engineModel: String? = null
-    private var engineVocab: String? = null
-    private val engineLock = Any()
+    // Engines of the loaded model; transcriptions of that model run concurrently on them
+    private var pool: WhisperEnginePool<WhisperEngineJava>? = null
+    private var poolModel: String? = null
+    private var poolVocab: String? = null
 
-    fun transcribe(audioFile: File): String? {
+    init {
+        InferenceScheduler.installMemoryProbe(context)
+        ComputePool.get().setParallelism(settings.localComputeThreads)
+    }
+
+    /**
+     * Transcribe a WAV file. Audio longer than Whisper's 30 s window is transcribed in
+     * windows; [onSegment] receives each window's text as soon as it is ready.
+     */
+    fun transcribe(
+        audioFile: File,
+        onSegment: ((LongFormTranscriber.Segment) -> Unit)? = null
+    ): String? {
         val filename = settings.localSttModel
         if (filename.isBlank()) {
             Log.d(TAG, "Local Whisper model not configured.")
             return null
         }
-        return transcribeWithModel(filename, audioFile)
+        return transcribeWithModel(filename, audioFile, onSegment = onSegment)
     }
 
     fun translate(audioFile: File): String? {
@@ -37,11 +59,73 @@ class LocalWhisperService(
         return transcribeWithModel(filename, audioFile, WhisperMode.TRANSLATE)
     }
 
+    /**
+     * Blocking form of [submitTranscription]. Speech is the most urgent work by default: it
+     * runs ahead of queued chat and background jobs.
+     */
     fun transcribeWithModel(
         filename: String,
         audioFile: File,
-        mode: WhisperMode = WhisperMode.TRANSCRIBE
+        mode: WhisperMode = WhisperMode.TRANSCRIBE,
+        onSegment: ((LongFormTranscriber.Segment) -> Unit)? = null,
+        priority: InferenceScheduler.Priority = InferenceScheduler.Priority.VOICE
     ): String? {
+        return await(submitTranscription(filename, audioFile, mode, onSegment, priority), audioFile.name)
+    }
+
+    /**
+     * Transcribe the first [length] entries of [samples], 16 kHz mono audio already in
+     * memory (see [PcmCapture]), with the configured model. Blocks like [transcribe].
+     */
+    fun transcribeSamples(
+        samples: FloatArray,
+        length: Int,
+        onSegment: ((LongFormTranscriber.Segment) -> Unit)? = null,
+        priority: InferenceScheduler.Priority = InferenceScheduler.Priority.VOICE
+    ): String? {
+        val source = "$length captured samples"
+        val future = submitAudio(settings.localSttModel, WhisperMode.TRANSCRIBE, onSegment, priority, source) {
+            PcmCapture.Recording(samples, length)
+        }
+        return await(future, source)
+    }
+
+    /**
+     * Queue a transcription on the model's engine pool. Null if the model is not installed
+     * or does not fit in memory; the future carries the text with its wait and inference time.
+     */
+    fun submitTranscription(
+        filename: String,
+        audioFile: File,
+        mode: WhisperMode = WhisperMode.TRANSCRIBE,
+        onSegment: ((LongFormTranscriber.Segment) -> Unit)? = null,
+        priority: InferenceScheduler.Priority = InferenceScheduler.Priority.VOICE
+    ): CompletableFuture<WhisperEnginePool.Outcome<String?>>? =
+        submitAudio(filename, mode, onSegment, priority, audioFile.name) {
+            val samples = WaveUtil.getSamples(audioFile.absolutePath)
+            PcmCapture.Recording(samples, samples.size)
+        }
+
+    private fun await(future: CompletableFuture<WhisperEnginePool.Outcome<String?>>?, source: String): String? {
+        val outcome = try {
+            future?.get() ?: return null
+        } catch (e: ExecutionException) {
+            Log.e(TAG, "Whisper inference failed", e.cause ?: e)
+            return null
+        }
+        Log.d(TAG, "Transcribed $source: waited ${outcome.waitMs} ms, inference ${outcome.inferenceMs} ms")
+        return outcome.value
+    }
+
+    // Audio is read on the engine's thread, so a file is only decoded once an engine is free
+    private fun submitAudio(
+        filename: String,
+        mode: WhisperMode,
+        onSegment: ((LongFormTranscriber.Segment) -> Unit)?,
+        priority: InferenceScheduler.Priority,
+        source: String,
+        audio: () -> PcmCapture.Recording
+    ): CompletableFuture<WhisperEnginePool.Outcome<String?>>? {
         if (filename.isBlank()) {
             Log.d(TAG, "Local Whisper model not configured.")
             return null
@@ -55,19 +139,49 @@ class LocalWhisperService(
             Log.d(TAG, "Whisper vocab not installed for $filename")
             return null
         }
-        modelRuntime.ensureLoaded(filename, file.length()) { releaseModel(it) }
-        synchronized(engineLock) {
-            return try {
-                val engine = getEngine(file.absolutePath, vocabFile.absolutePath, isMultilingual(filename))
-                if (mode == WhisperMode.TRANSLATE && !filename.contains("translate")) {
-                    Log.w(TAG, "Translate requested but model is not translate-capable: $filename")
+        if (!modelRuntime.ensureLoaded(filename, file.length()) { releaseModel(it) }) {
+            Log.w(TAG, "Not enough memory for Whisper model $filename")
+            return null
+        }
+        val enginePool = try {
+            getPool(filename, file, vocabFile)
+        } catch (e: Exception) {
+            Log.e(TAG, "Whisper engine unavailable", e)
+            return null
+        }
+        return enginePool.submit(priority, "transcribe") { engine ->
+            transcribeOn(engine, filename, source, audio, mode, onSegment)
+        }
+    }
+
+    /** Queue and timing figures of the loaded model's engines, or null if none is loaded. */
+    @Synchronized
+    fun poolStats(): WhisperEnginePool.Stats? = pool?.stats()
+
+    private fun transcribeOn(
+        engine: WhisperEngineJava,
+        filename: String,
+        source: String,
+        audio: () -> PcmCapture.Recording,
+        mode: WhisperMode,
+        onSegment: ((LongFormTranscriber.Segment) -> Unit)?
+    ): String? {
+        return try {
+            if (mode == WhisperMode.TRANSLATE && !filename.contains("translate")) {
+                Log.w(TAG, "Translate requested but model is not translate-capable: $filename")
+            }
+            Log.d(TAG, "Running Whisper inference on $source")
+            val recording = audio()
+            if (recording.length > LONG_FORM_THRESHOLD_SAMPLES) {
+                LongFormTranscriber(engine).transcribe(recording.samples, recording.length) { segment ->
+                    onSegment?.invoke(segment)
                 }
-                Log.d(TAG, "Running Whisper inference on ${audioFile.name}")
-                engine.transcribeFile(audioFile.absolutePath)
-            } catch (e: Exception) {
-                Log.e(TAG, "Whisper inference failed", e)
-                null
+            } else {
+                engine.transcribeBuffer(recording.samples, recording.length)
             }
+        } catch (e: Exception) {
+            Log.e(TAG, "Whisper inference failed", e)
+            null
         }
     }
 
@@ -75,15 +189,38 @@ class LocalWhisperService(
         if (filename.isBlank()) return false
         val file = modelDownloadManager.getModelFile(filename) ?: return false
         val vocabFile = resolveWhisperVocabFile(filename) ?: return false
-        modelRuntime.ensureLoaded(filename, file.length()) { releaseModel(it) }
-        synchronized(engineLock) {
-            return try {
-                getEngine(file.absolutePath, vocabFile.absolutePath, isMultilingual(filename))
-                true
-            } catch (e: Exception) {
-                Log.e(TAG, "Whisper prepare failed", e)
-                false
-            }
+        if (!modelRuntime.ensureLoaded(filename, file.length()) { releaseModel(it) }) return false
+        return try {
+            getPool(filename, file, vocabFile).prepare()
+            true
+        } catch (e: Throwable) {
+            Log.e(TAG, "Whisper prepare failed", e)
+            false
+        }
+    }
+
+    /**
+     * Load [filename] and run it once on silence, so the first real transcription skips
+     * delegate setup. Runs as background work: a voice request never waits behind more
+     * than this single run.
+     *
+     * @return false if the model could not be loaded or the run was refused
+     */
+    fun warmUp(filename: String): Boolean {
+        if (!prepareModel(filename)) return false
+        val enginePool = synchronized(this) { pool } ?: return false
+        return try {
+            enginePool.submit(InferenceScheduler.Priority.BACKGROUND, "warmup") { engine ->
+                val input = engine.newInputBuffer()
+                val silence = FloatArray(WhisperUtil.WHISPER_SAMPLE_RATE)
+                engine.writeMel(silence, 0, silence.size, input)
+                engine.transcribeInput(input)
+            }.get()
+            modelRuntime.markHot(filename)
+            true
+        } catch (e: Exception) {
+            Log.w(TAG, "Whisper warm-up skipped: ${e.message}")
+            false
         }
     }
 
@@ -101,52 +238,81 @@ class LocalWhisperService(
     }
 
     @Synchronized
-    private fun getEngine(modelPath: String, vocabPath: String, multilingual: Boolean): com.sbf.assistant.whisper.WhisperEngineJava {
-        val current = engine
-        if (current != null && engineModel == modelPath && engineVocab == vocabPath) {
+    private fun getPool(filename: String, file: File, vocabFile: File): WhisperEnginePool<WhisperEngineJava> {
+        val modelPath = file.absolutePath
+        val vocabPath = vocabFile.absolutePath
+        val current = pool
+        if (current != null && poolModel == modelPath && poolVocab == vocabPath) {
             return current
         }
-        current?.deinitialize()
+        current?.close()
 
-        fun initEngine(): com.sbf.assistant.whisper.WhisperEngineJava {
-            val newEngine = com.sbf.assistant.whisper.WhisperEngineJava(context)
-            val initialized = newEngine.initialize(modelPath, vocabPath, multilingual)
-            if (!initialized) {
+        // Mapped once: every engine of the pool runs on the same weights
+        val weights = TfLiteHelper.loadModelFile(modelPath)
+        val multilingual = isMultilingual(filename)
+        // Every engine takes its part of the Whisper thread share, so a full pool fits the cores
+        val engines = maxEngines()
+        fun initEngine(): WhisperEngineJava {
+            val newEngine = WhisperEngineJava(context)
+            if (!newEngine.initialize(weights, modelPath, vocabPath, multilingual, engines)) {
+                newEngine.deinitialize()
                 throw IllegalStateException("Whisper engine initialization failed")
             }
-            engine = newEngine
-            engineModel = modelPath
-            engineVocab = vocabPath
             return newEngine
         }
 
-        return try {
-            initEngine()
-        } catch (e: OutOfMemoryError) {
-            val evicted = modelRuntime.evictLeastRecentlyUsed()
-            val currentName = File(modelPath).name
-            if (evicted != null && evicted != currentName) {
-                initEngine()
-            } else {
-                throw e
-            }
-        }
+        val created = WhisperEnginePool(
+            lanePrefix = InferenceScheduler.LANE_WHISPER,
+            maxEngines = engines,
+            createEngine = { index ->
+                if (index == 0) {
+                    try {
+                        initEngine()
+                    } catch (e: OutOfMemoryError) {
+                        val evicted = modelRuntime.evictLeastRecentlyUsed()
+                        if (evicted != null && evicted != filename) initEngine() else throw e
+                    }
+                } else {
+                    // Extra engines never evict other models; the pool only asks while there is headroom
+                    initEngine().also { modelRuntime.resize(filename, file.length() * (index + 1)) }
+                }
+            },
+            destroyEngine = { it.deinitialize() },
+            // Each engine may hold a full copy of the weights on an accelerator
+            canGrow = { modelRuntime.headroomBytes() >= file.length() }
+        )
+        pool = created
+        poolModel = modelPath
+        poolVocab = vocabPath
+        return created
     }
 
+    // Concurrent transcriptions split the performance cores; more engines than pairs of
+    // cores would only slow each other down
+    private fun maxEngines(): Int =
+        (CpuBudget.get().topology.performanceCores / 2).coerceIn(1, MAX_ENGINES)
+
     companion object {
         private const val TAG = "LocalWhisper"
+        private const val LONG_FORM_THRESHOLD_SAMPLES =
+            WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE
+        private const val MAX_ENGINES = 3
     }
 
     fun releaseModel(filename: String? = null) {
-        synchronized(engineLock) {
-            if (engine == null) return
-            if (filename == null || engineModel?.endsWith(filename) == true || engineModel == filename) {
-                engine?.deinitialize()
-                engine = null
-                engineModel = null
-                engineVocab = null
+        val retired = synchronized(this) {
+            val current = pool ?: return
+            val model = poolModel
+            if (filename == null || model?.endsWith(filename) == true || model == filename) {
+                pool = null
+                poolModel = null
+                poolVocab = null
+                current
+            } else {
+                null
             }
         }
+        retired?.close()
     }
 }
 
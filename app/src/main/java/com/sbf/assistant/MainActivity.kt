@@ -35,6 +35,7 @@ import com.google.android.material.materialswitch.MaterialSwitch
 import com.google.android.material.tabs.TabLayout
 import com.google.android.material.textfield.TextInputLayout
 import com.sbf.assistant.databinding.ActivityMainBinding
+import com.sbf.assistant.llm.DelegateTuner
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.delay
@@ -53,6 +54,7 @@ class MainActivity : AppCompatActivity() {
     private lateinit var networkScanner: NetworkScanner
     private lateinit var modelDownloadManager: ModelDownloadManager
     private lateinit var permissionController: PermissionController
+    private lateinit var modelLease: LocalModelHost.Lease
     private lateinit var localRuntime: LocalModelRuntime
     private lateinit var localWhisperService: LocalWhisperService
     private lateinit var localLlmService: com.sbf.assistant.llm.LocalLlmService
@@ -77,16 +79,19 @@ class MainActivity : AppCompatActivity() {
         permissionController = PermissionController(this)
         modelCacheManager = ModelCacheManager(this)
         networkScanner = NetworkScanner(this)
-        modelDownloadManager = ModelDownloadManager(this)
-        localRuntime = LocalModelRuntime(this, settingsManager)
-        localWhisperService = LocalWhisperService(this, settingsManager, localRuntime, modelDownloadManager)
-        localLlmService = com.sbf.assistant.llm.LocalLlmService(this)
-        mediaPipeLlmService = com.sbf.assistant.llm.MediaPipeLlmService(this)
+        // Engines are shared with the chat and the voice overlay
+        modelLease = LocalModelHost.acquire(this)
+        val host = modelLease.host
+        modelDownloadManager = host.downloadManager
+        localRuntime = host.runtime
+        localWhisperService = host.whisper
+        localLlmService = host.llm
+        mediaPipeLlmService = host.mediaPipe
 
         // Initialize Gemini Nano (via AICore)
-        geminiNanoService = GeminiNanoService(this)
+        geminiNanoService = host.geminiNano
         lifecycleScope.launch {
-            geminiNanoService?.initialize()
+            host.initializeGeminiNano()
         }
 
         testRecorder = AudioRecorder(this)
@@ -94,6 +99,11 @@ class MainActivity : AppCompatActivity() {
         setupUI()
     }
 
+    override fun onDestroy() {
+        super.onDestroy()
+        modelLease.close()
+    }
+
     private fun setupUI() {
         setupTabs()
         endpointAdapter = EndpointAdapter(
@@ -653,6 +663,8 @@ class MainActivity : AppCompatActivity() {
                 }
 
                 val installed = modelDownloadManager.isModelInstalled(model)
+                val tuning = installedFile?.takeIf { model.type == "tflite" }
+                    ?.let { DelegateTuner.get(this).lookup(it) }
                 val statusText = aicoreDownloadStatus[model.filename]
                 val statusLabel = TextView(this).apply {
                     val base = if (installed) "Instalado" else "No instalado"
@@ -664,7 +676,7 @@ class MainActivity : AppCompatActivity() {
                     val memoryInfo = localRuntime.getLoadedModelInfo(model.filename)
                     val memoryLabel = if (memoryInfo != null) {
                         val mb = memoryInfo.sizeBytes / (1024 * 1024)
-                        "En memoria: ${mb}MB"
+                        if (memoryInfo.hot) "En memoria: ${mb}MB (listo)" else "En memoria: ${mb}MB"
                     } else {
                         "No cargado en memoria"
                     }
@@ -672,6 +684,12 @@ class MainActivity : AppCompatActivity() {
                     val lines = mutableListOf<String>()
                     lines.add(if (!statusText.isNullOrBlank()) "$base$aicoreHint - $statusText" else "$base$aicoreHint")
                     lines.add(memoryLabel)
+                    if (model.type == "tflite" && installed) {
+                        lines.add(tuningLabel(tuning))
+                        settingsManager.getSpeculativeDraftModel(model.filename)?.let {
+                            lines.add("Borrador especulativo: $it")
+                        }
+                    }
                     if (!testLabel.isNullOrBlank()) {
                         lines.add(testLabel)
                     }
@@ -715,6 +733,28 @@ class MainActivity : AppCompatActivity() {
                     }
                     actionRow.addView(testButton)
                 }
+                if (model.type == "tflite" && canAssignLlm && installed) {
+                    val draftButton = MaterialButton(this).apply {
+                        text = "Borrador"
+                        setOnClickListener { showDraftModelDialog(model) }
+                    }
+                    actionRow.addView(draftButton)
+                }
+                if (tuning != null && installedFile != null) {
+                    val retuneButton = MaterialButton(this).apply {
+                        text = "Recalibrar"
+                        setOnClickListener {
+                            DelegateTuner.get(this@MainActivity).forget(installedFile)
+                            Toast.makeText(
+                                this@MainActivity,
+                                "Se medira de nuevo en la proxima carga",
+                                Toast.LENGTH_SHORT
+                            ).show()
+                            renderAicoreModels()
+                        }
+                    }
+                    actionRow.addView(retuneButton)
+                }
 
                 val assignmentLabel = TextView(this).apply {
                     val assigned = when {
@@ -776,6 +816,44 @@ class MainActivity : AppCompatActivity() {
         addSection("MediaPipe (.task)", taskModels, requiresAicore = false)
     }
 
+    /**
+     * Pick the small model that drafts tokens for [model] (speculative decoding). It must
+     * share the target's vocabulary; an incompatible pick only disables speculation.
+     */
+    private fun showDraftModelDialog(model: ModelDownloadManager.ModelInfo) {
+        val candidates = modelDownloadManager
+            .getInstalledModels(modelDownloadManager.getAvailableModels(settingsManager))
+            .filter {
+                it.type == "tflite" && it.filename != model.filename &&
+                    (it.category == "LLM-Text" || it.category == "Function-Calling")
+            }
+        val current = settingsManager.getSpeculativeDraftModel(model.filename)
+        val names = arrayOf("Ninguno") + candidates.map { it.name }.toTypedArray()
+        val checked = candidates.indexOfFirst { it.filename == current } + 1
+        AlertDialog.Builder(this)
+            .setTitle("Modelo borrador para ${model.name}")
+            .setSingleChoiceItems(names, checked) { dialog, which ->
+                settingsManager.setSpeculativeDraftModel(
+                    model.filename,
+                    candidates.getOrNull(which - 1)?.filename
+                )
+                dialog.dismiss()
+                renderAicoreModels()
+            }
+            .setNegativeButton("Cancelar", null)
+            .show()
+    }
+
+    private fun tuningLabel(tuning: DelegateTuner.Result?): String {
+        if (tuning == null) {
+            return "Backend: sin calibrar (se mide en la primera carga)"
+        }
+        val timings = tuning.latencyMs.entries.joinToString(", ") { (backend, ms) ->
+            "${backend.label} ${String.format(Locale.US, "%.1f", ms)} ms"
+        }
+        return "Backend: ${tuning.backend.label} ($timings)"
+    }
+
     private fun renderHfRepoList() {
         val container = binding.hfRepoContainer
         container.removeAllViews()
@@ -1150,7 +1228,11 @@ class MainActivity : AppCompatActivity() {
                 renderAicoreModels()
                 val recordingFile = file ?: return@launch
                 val result = kotlinx.coroutines.withContext(kotlinx.coroutines.Dispatchers.IO) {
-                    localWhisperService.transcribeWithModel(model.filename, recordingFile)
+                    // A model test must not hold up a voice turn
+                    localWhisperService.transcribeWithModel(
+                        model.filename, recordingFile,
+                        priority = com.sbf.assistant.llm.InferenceScheduler.Priority.CHAT
+                    )
                 }
                 testRecorder.deleteFile(recordingFile)
                 file = null
@@ -1225,7 +1307,7 @@ class MainActivity : AppCompatActivity() {
                         showTestResult("Test LiteRT LM", "AICore no inicializado.")
                         return@launch
                     }
-                    val status = gemini.initialize()
+                    val status = modelLease.host.initializeGeminiNano()
                     if (status == GeminiNanoService.Status.Available) {
                         val result = gemini.generateContent("ping")
                         testStatus[model.filename] = if (result.isSuccess) "Test completo" else "Test fallo"
@@ -1260,18 +1342,8 @@ class MainActivity : AppCompatActivity() {
                 } else if (localLlmService.isAvailable() && localLlmService.getModelFilename() == model.filename) {
                     null
                 } else {
-                    var status = localLlmService.initializeWithModel(model, settingsManager.hfApiKey)
-                    if (status is com.sbf.assistant.llm.LocalLlmService.Status.Error && status.isOutOfMemory) {
-                        val evicted = localRuntime.evictLeastRecentlyUsed()
-                        if (evicted == localLlmService.getModelFilename()) {
-                            localLlmService.release()
-                        } else if (evicted == mediaPipeLlmService.getModelFilename()) {
-                            mediaPipeLlmService.release()
-                        }
-                        status = localLlmService.initializeWithModel(model, settingsManager.hfApiKey)
-                    }
+                    val status = modelLease.host.loadTfLite(model)
                     if (status is com.sbf.assistant.llm.LocalLlmService.Status.Available) {
-                        localRuntime.registerLoaded(model.filename, file.length())
                         null
                     } else {
                         (status as? com.sbf.assistant.llm.LocalLlmService.Status.Error)?.message
@@ -1283,18 +1355,8 @@ class MainActivity : AppCompatActivity() {
                 if (mediaPipeLlmService.isAvailable() && mediaPipeLlmService.getModelFilename() == model.filename) {
                     null
                 } else {
-                    var status = mediaPipeLlmService.initializeWithModel(model)
-                    if (status is com.sbf.assistant.llm.MediaPipeLlmService.Status.Error && status.isOutOfMemory) {
-                        val evicted = localRuntime.evictLeastRecentlyUsed()
-                        if (evicted == mediaPipeLlmService.getModelFilename()) {
-                            mediaPipeLlmService.release()
-                        } else if (evicted == localLlmService.getModelFilename()) {
-                            localLlmService.release()
-                        }
-                        status = mediaPipeLlmService.initializeWithModel(model)
-                    }
+                    val status = modelLease.host.loadMediaPipe(model)
                     if (status is com.sbf.assistant.llm.MediaPipeLlmService.Status.Available) {
-                        localRuntime.registerLoaded(model.filename, file.length())
                         null
                     } else {
                         (status as? com.sbf.assistant.llm.MediaPipeLlmService.Status.Error)?.message
@@ -1307,7 +1369,7 @@ class MainActivity : AppCompatActivity() {
                 if (gemini == null) {
                     "AICore no inicializado."
                 } else {
-                    val status = gemini.initialize()
+                    val status = modelLease.host.initializeGeminiNano()
                     if (status == GeminiNanoService.Status.Available) {
                         localRuntime.registerLoaded(model.filename, file.length())
                         null
@@ -1322,10 +1384,8 @@ class MainActivity : AppCompatActivity() {
 
     private fun runGeminiNanoTest() {
         lifecycleScope.launch {
-            val gemini = geminiNanoService ?: GeminiNanoService(this@MainActivity).also {
-                geminiNanoService = it
-            }
-            val status = gemini.initialize()
+            val gemini = modelLease.host.geminiNano
+            val status = modelLease.host.initializeGeminiNano()
             if (status != GeminiNanoService.Status.Available) {
                 val message = when (status) {
                     is GeminiNanoService.Status.Unavailable -> "Gemini Nano no esta disponible en este dispositivo."
@@ -1364,24 +1424,15 @@ class MainActivity : AppCompatActivity() {
                             localWhisperService.prepareModel(model.filename)
                         }
                         if (ready) {
-                            localRuntime.registerLoaded(model.filename, file.length())
+                            warmUpLoadedModel(model)
                             "Cargado"
                         } else {
                             "No se pudo cargar"
                         }
                     } else {
-                    var llmStatus = localLlmService.initializeWithModel(model, settingsManager.hfApiKey)
-                        if (llmStatus is com.sbf.assistant.llm.LocalLlmService.Status.Error && llmStatus.isOutOfMemory) {
-                            val evicted = localRuntime.evictLeastRecentlyUsed()
-                            if (evicted == localLlmService.getModelFilename()) {
-                                localLlmService.release()
-                            } else if (evicted == mediaPipeLlmService.getModelFilename()) {
-                                mediaPipeLlmService.release()
-                            }
-                            llmStatus = localLlmService.initializeWithModel(model, settingsManager.hfApiKey)
-                        }
+                    val llmStatus = modelLease.host.loadTfLite(model)
                         if (llmStatus is com.sbf.assistant.llm.LocalLlmService.Status.Available) {
-                            localRuntime.registerLoaded(model.filename, file.length())
+                            warmUpLoadedModel(model)
                             "Cargado"
                         } else {
                             (llmStatus as? com.sbf.assistant.llm.LocalLlmService.Status.Error)?.message
@@ -1390,18 +1441,8 @@ class MainActivity : AppCompatActivity() {
                     }
                 }
                 "task" -> {
-                        var mpStatus = mediaPipeLlmService.initializeWithModel(model)
-                    if (mpStatus is com.sbf.assistant.llm.MediaPipeLlmService.Status.Error && mpStatus.isOutOfMemory) {
-                        val evicted = localRuntime.evictLeastRecentlyUsed()
-                        if (evicted == mediaPipeLlmService.getModelFilename()) {
-                            mediaPipeLlmService.release()
-                        } else if (evicted == localLlmService.getModelFilename()) {
-                            localLlmService.release()
-                        }
-                        mpStatus = mediaPipeLlmService.initializeWithModel(model)
-                    }
+                        val mpStatus = modelLease.host.loadMediaPipe(model)
                     if (mpStatus is com.sbf.assistant.llm.MediaPipeLlmService.Status.Available) {
-                        localRuntime.registerLoaded(model.filename, file.length())
                         "Cargado"
                     } else {
                         (mpStatus as? com.sbf.assistant.llm.MediaPipeLlmService.Status.Error)?.message
@@ -1409,10 +1450,7 @@ class MainActivity : AppCompatActivity() {
                     }
                 }
                 "litertlm" -> {
-                    val gemini = geminiNanoService ?: GeminiNanoService(this@MainActivity).also {
-                        geminiNanoService = it
-                    }
-                    val status = gemini.initialize()
+                    val status = modelLease.host.initializeGeminiNano()
                     if (status == GeminiNanoService.Status.Available) {
                         localRuntime.registerLoaded(model.filename, file.length())
                         "AICore listo"
@@ -1428,17 +1466,23 @@ class MainActivity : AppCompatActivity() {
         }
     }
 
-    private fun unloadLocalModel(model: ModelDownloadManager.ModelInfo) {
-        if (model.type == "tflite" && model.category == "STT") {
-            localWhisperService.releaseModel(model.filename)
-        }
-        if (model.type == "tflite" && localLlmService.getModelFilename() == model.filename) {
-            localLlmService.release()
-        }
-        if (model.type == "task" && mediaPipeLlmService.getModelFilename() == model.filename) {
-            mediaPipeLlmService.release()
+    /**
+     * Run a dummy inference on a freshly loaded TFLite model in the background, so the
+     * first real request does not pay for delegate setup.
+     */
+    private fun warmUpLoadedModel(model: ModelDownloadManager.ModelInfo) {
+        lifecycleScope.launch {
+            val hot = if (model.category == "STT") {
+                withContext(Dispatchers.IO) { localWhisperService.warmUp(model.filename) }
+            } else {
+                localLlmService.warmUp().also { if (it) localRuntime.markHot(model.filename) }
+            }
+            if (hot) renderAicoreModels()
         }
-        localRuntime.removeLoaded(model.filename)
+    }
+
+    private fun unloadLocalModel(model: ModelDownloadManager.ModelInfo) {
+        modelLease.host.unload(model.filename)
         renderAicoreModels()
         updateMemoryInfo()
     }
@@ -1563,7 +1607,9 @@ class MainActivity : AppCompatActivity() {
         manager.getMemoryInfo(info)
         val totalMb = info.totalMem / (1024 * 1024)
         val availMb = info.availMem / (1024 * 1024)
-        binding.tvMemoryInfo.text = "Memoria: ${availMb}MB libres de ${totalMb}MB"
+        val modelsMb = localRuntime.usedBytes() / (1024 * 1024)
+        val budgetMb = localRuntime.budgetBytes() / (1024 * 1024)
+        binding.tvMemoryInfo.text = "Memoria: ${availMb}MB libres de ${totalMb}MB, modelos ${modelsMb}/${budgetMb}MB"
     }
 
     private fun updateStorageInfo() {
@@ -652,6 +652,7 @@ class ModelDownloadManager(private val context: Context) {
             "${base}.txt",
             "vocab.txt",
             "tokenizer.txt",
+            "tokenizer.json",
             "tokenizer.model"
         )
         return candidates
@@ -719,7 +720,8 @@ class ModelDownloadManager(private val context: Context) {
             "_vocab.txt",
             ".vocab",
             "vocab.txt",
-            "tokenizer.txt"
+            "tokenizer.txt",
+            "tokenizer.json"
         )
         val hasWhisperVocab = filenames.any { it == "filters_vocab_en.bin" || it == "filters_vocab_multilingual.bin" }
 
@@ -807,7 +809,8 @@ class ModelDownloadManager(private val context: Context) {
             "_vocab.txt",
             ".vocab",
             "vocab.txt",
-            "tokenizer.txt"
+            "tokenizer.txt",
+            "tokenizer.json"
         )
         val hasWhisperVocab = filenames.any { it == "filters_vocab_en.bin" || it == "filters_vocab_multilingual.bin" }
 
@@ -1007,6 +1010,7 @@ class ModelDownloadManager(private val context: Context) {
             "${base}.txt",
             "vocab.txt",
             "tokenizer.txt",
+            "tokenizer.json",
             "tokenizer.model"
         )
         val target = candidates.firstOrNull { candidate ->
@@ -0,0 +1,97 @@
+package com.sbf.assistant
+
+import android.content.ComponentCallbacks2
+
+/**
+ * Memory policy for [LocalModelRuntime]: how much RAM local models may hold and which
+ * resident models to give up when a new one does not fit or the system asks for memory.
+ *
+ * Victims are ranked by what keeping them is worth per byte: the time a reload would take,
+ * divided by the model's size and discounted by how long it has been idle. A small model
+ * that is slow to set up (delegate compilation, tokenizer load) outlives a large one that
+ * maps back in quickly, and a model nobody has used for minutes goes first either way.
+ * Pinned models (running a job) are never chosen, though their memory still counts.
+ */
+class ModelMemoryBudget(val budgetBytes: Long) {
+
+    data class Resident(
+        val filename: String,
+        val sizeBytes: Long,
+        val lastUsedMs: Long,
+        // Measured load time, 0 if unknown
+        val loadMs: Long = 0,
+        // In use by a running job; never evicted
+        val pinned: Boolean = false
+    )
+
+    /**
+     * Models to evict, cheapest to lose first, so that [incomingBytes] fits both the budget
+     * and the [availableBytes] the system can still give. Empty if it already fits; null if
+     * it would not fit even with every unpinned model evicted.
+     */
+    fun victimsFor(
+        incomingBytes: Long,
+        resident: List<Resident>,
+        availableBytes: Long,
+        nowMs: Long
+    ): List<Resident>? {
+        val used = resident.sumOf { it.sizeBytes }
+        // Evicting a model returns its memory to the system, so the two limits combine
+        val limit = minOf(budgetBytes, used + availableBytes.coerceAtLeast(0))
+        val pinned = resident.filter { it.pinned }.sumOf { it.sizeBytes }
+        if (incomingBytes + pinned > limit) return null
+        return evictDownTo(limit - incomingBytes, resident, nowMs)
+    }
+
+    /**
+     * Bytes models may keep after an onTrimMemory callback at [level], or null if the level
+     * only calls for dropping idle models.
+     */
+    @Suppress("DEPRECATION")
+    fun trimTarget(level: Int): Long? = when {
+        level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE -> 0L
+        level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE -> budgetBytes / 4
+        level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> budgetBytes / 2
+        level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN -> null
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL -> budgetBytes / 4
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> budgetBytes / 2
+        level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE -> budgetBytes * 3 / 4
+        else -> null
+    }
+
+    /**
+     * Models to evict, cheapest to lose first, until at most [targetBytes] stay resident
+     * or only pinned models are left.
+     */
+    fun evictDownTo(targetBytes: Long, resident: List<Resident>, nowMs: Long): List<Resident> {
+        var excess = resident.sumOf { it.sizeBytes } - targetBytes
+        if (excess <= 0) return emptyList()
+        val victims = mutableListOf<Resident>()
+        for (model in resident.filterNot { it.pinned }.sortedBy { keepValue(it, nowMs) }) {
+            victims.add(model)
+            excess -= model.sizeBytes
+            if (excess <= 0) break
+        }
+        return victims
+    }
+
+    companion object {
+        // Idle time after which a model's keep value has halved
+        private const val IDLE_HALF_VALUE_MS = 60_000.0
+        // Assumed load speed for models whose load time was not measured (~200 MB/s)
+        private const val ESTIMATED_LOAD_BYTES_PER_MS = 200_000L
+
+        /**
+         * Budget of [percent] of the device RAM, kept between 10 and 90 percent.
+         */
+        fun forDevice(totalMemBytes: Long, percent: Int): ModelMemoryBudget =
+            ModelMemoryBudget(totalMemBytes / 100 * percent.coerceIn(10, 90))
+
+        internal fun keepValue(model: Resident, nowMs: Long): Double {
+            val reloadMs = if (model.loadMs > 0) model.loadMs else model.sizeBytes / ESTIMATED_LOAD_BYTES_PER_MS
+            val idleMs = (nowMs - model.lastUsedMs).coerceAtLeast(0)
+            return reloadMs.coerceAtLeast(1).toDouble() / model.sizeBytes.coerceAtLeast(1) /
+                (1.0 + idleMs / IDLE_HALF_VALUE_MS)
+        }
+    }
+}
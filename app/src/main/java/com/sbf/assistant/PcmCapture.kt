@@ -0,0 +1,94 @@
+package com.sbf.assistant
+
+/**
+ * In-memory microphone capture for local transcription: 16-bit PCM is converted to floats
+ * as it arrives, so a finished recording goes to Whisper without a WAV file in between.
+ *
+ * The buffer grows by doubling up to [maxSamples]; past that it becomes a ring and keeps
+ * the most recent audio. [finish] lends the buffer to the caller, who hands it back with
+ * [recycle] once transcribed, so back-to-back voice turns reuse one array.
+ */
+class PcmCapture(
+    private val maxSamples: Int = MAX_SAMPLES,
+    private val initialSamples: Int = INITIAL_SAMPLES
+) {
+
+    /** A finished capture: the first [length] entries of [samples], oldest first. */
+    class Recording(val samples: FloatArray, val length: Int)
+
+    private var buffer: FloatArray? = null
+    private var spare: FloatArray? = null
+    // Next write position; once the ring is full it is also the oldest sample
+    private var position = 0
+    private var length = 0
+
+    /**
+     * Start a new capture, reusing a recycled buffer if there is one.
+     */
+    @Synchronized
+    fun reset() {
+        buffer = buffer ?: spare ?: FloatArray(initialSamples.coerceAtMost(maxSamples))
+        spare = null
+        position = 0
+        length = 0
+    }
+
+    /**
+     * Append [length] bytes of little-endian 16-bit mono PCM.
+     */
+    @Synchronized
+    fun appendPcm16(bytes: ByteArray, length: Int) {
+        var target = buffer ?: return
+        var i = 0
+        while (i + 1 < length) {
+            if (this.length == target.size && target.size < maxSamples) {
+                target = target.copyOf(minOf(target.size * 2, maxSamples))
+                buffer = target
+                // Nothing was overwritten before the buffer filled, so the data is in order
+                position = this.length
+            }
+            val sample = (bytes[i + 1].toInt() shl 8) or (bytes[i].toInt() and 0xFF)
+            target[position] = sample.toShort() / 32768.0f
+            position = (position + 1) % target.size
+            if (this.length < target.size) this.length++
+            i += 2
+        }
+    }
+
+    /**
+     * End the capture and take its samples; null if nothing was captured since [reset].
+     */
+    @Synchronized
+    fun finish(): Recording? {
+        val samples = buffer ?: return null
+        buffer = null
+        if (length == 0) {
+            spare = samples
+            return null
+        }
+        // A wrapped ring starts at the write position; rotate it in place so callers see it in order
+        if (length == samples.size && position != 0) {
+            samples.reverse(0, position)
+            samples.reverse(position, samples.size)
+            samples.reverse()
+        }
+        return Recording(samples, length)
+    }
+
+    /**
+     * Give a finished recording's buffer back for the next capture.
+     */
+    @Synchronized
+    fun recycle(recording: Recording) {
+        if (spare == null || recording.samples.size > spare!!.size) {
+            spare = recording.samples
+        }
+    }
+
+    companion object {
+        const val SAMPLE_RATE = 16_000
+        // Two minutes of speech; a dictation running longer keeps its latest two minutes
+        const val MAX_SAMPLES = SAMPLE_RATE * 120
+        private const val INITIAL_SAMPLES = SAMPLE_RATE * 10
+    }
+}
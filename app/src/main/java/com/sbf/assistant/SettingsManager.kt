@@ -1,6 +1,7 @@
 package com.sbf.assistant
 
 import android.content.Context
+import com.sbf.assistant.llm.ComputePool
 import org.json.JSONArray
 import org.json.JSONObject
 
@@ -231,10 +232,33 @@ class SettingsManager(context: Context) {
         get() = prefs.getString("local_agent_model", "") ?: ""
         set(value) = prefs.edit().putString("local_agent_model", value).apply()
 
+    /** Draft model filename for speculative decoding of a local TFLite model, if paired. */
+    fun getSpeculativeDraftModel(targetFilename: String): String? =
+        readStringMap("speculative_draft_models")[targetFilename]?.takeIf { it.isNotBlank() }
+
+    fun setSpeculativeDraftModel(targetFilename: String, draftFilename: String?) {
+        val map = readStringMap("speculative_draft_models")
+        if (draftFilename.isNullOrBlank()) map.remove(targetFilename) else map[targetFilename] = draftFilename
+        writeStringMap("speculative_draft_models", map)
+    }
+
     var localModelIdleMs: Long
         get() = prefs.getLong("local_model_idle_ms", 5 * 60_000L)
         set(value) = prefs.edit().putLong("local_model_idle_ms", value).apply()
 
+    /** Share of device RAM that loaded local models may hold, in percent. */
+    var localModelMemoryPercent: Int
+        get() = prefs.getInt("local_model_memory_percent", 40)
+        set(value) = prefs.edit().putInt("local_model_memory_percent", value).apply()
+
+    /** Threads for local audio/compute work (mel extraction). 0 = automatic. */
+    var localComputeThreads: Int
+        get() = prefs.getInt("local_compute_threads", 0)
+        set(value) {
+            prefs.edit().putInt("local_compute_threads", value).apply()
+            ComputePool.get().setParallelism(value)
+        }
+
     var agentSystemPrompt: String
         get() = prefs.getString("agent_system_prompt", "") ?: ""
         set(value) = prefs.edit().putString("agent_system_prompt", value).apply()
@@ -446,6 +470,28 @@ class SettingsManager(context: Context) {
         prefs.edit().putString(key, obj.toString()).apply()
     }
 
+    private fun readStringMap(key: String): MutableMap<String, String> {
+        val json = prefs.getString(key, null) ?: return mutableMapOf()
+        val obj = try {
+            org.json.JSONObject(json)
+        } catch (e: Exception) {
+            return mutableMapOf()
+        }
+        val map = mutableMapOf<String, String>()
+        val keys = obj.keys()
+        while (keys.hasNext()) {
+            val k = keys.next()
+            map[k] = obj.optString(k, "")
+        }
+        return map
+    }
+
+    private fun writeStringMap(key: String, map: Map<String, String>) {
+        val obj = org.json.JSONObject()
+        map.forEach { (k, v) -> obj.put(k, v) }
+        prefs.edit().putString(key, obj.toString()).apply()
+    }
+
     private fun getDefaultMcpServers(): List<McpServerConfig> {
         return listOf(
             McpServerConfig(
@@ -0,0 +1,142 @@
+package com.sbf.assistant
+
+/**
+ * Turns a series of Whisper hypotheses over a growing audio window into stable text.
+ *
+ * Words are committed once the last [agreement] hypotheses all start with them: the longest
+ * common prefix of the recent passes (local agreement). Committed text is never revised; the
+ * remaining words are a volatile tail that may change on the next pass.
+ *
+ * Hypotheses carry no word timings, so the audio is trimmed at pass boundaries: once every
+ * word an earlier pass heard is committed, the audio up to that pass's end is settled and
+ * reported in [Update.settledEnd].
+ */
+class TranscriptStabilizer(private val agreement: Int = 2) {
+
+    data class Update(
+        /** Text committed by this hypothesis, empty if nothing new was agreed. */
+        val committed: String,
+        /** Words after the committed prefix; may change on the next pass. */
+        val tail: String,
+        /** Audio end of the latest earlier pass whose words are all committed, or -1. */
+        val settledEnd: Long
+    )
+
+    private class Pass(val words: List<String>, val end: Long)
+
+    private val committed = StringBuilder()
+    // The last agreement - 1 passes over the current window, oldest first
+    private val history = ArrayDeque<Pass>()
+    private var windowCommitted = 0
+    // Words of the window up to the last settledEnd, dropped by onSettledDiscarded
+    private var settledWords = 0
+
+    init {
+        require(agreement >= 2) { "Agreement needs at least two hypotheses" }
+    }
+
+    val committedText: String
+        get() = committed.toString()
+
+    fun reset() {
+        committed.setLength(0)
+        history.clear()
+        windowCommitted = 0
+        settledWords = 0
+    }
+
+    /**
+     * @param end Absolute audio position the hypothesis covers up to
+     */
+    fun onHypothesis(hypothesis: String, end: Long = -1): Update {
+        val words = splitWords(hypothesis)
+        val agreed = if (history.size < agreement - 1) {
+            0
+        } else {
+            history.minOf { commonPrefix(it.words, words) }
+        }
+
+        val newlyCommitted = if (agreed > windowCommitted) {
+            val text = words.subList(windowCommitted, agreed).joinToString(" ")
+            append(text)
+            windowCommitted = agreed
+            text
+        } else {
+            ""
+        }
+
+        // An earlier pass all of whose words every recent pass agrees on. The current pass is
+        // never settled: a word cut off at the end of its audio may still be missing.
+        val settled = history.lastOrNull { it.words.isNotEmpty() && it.words.size <= agreed }
+        settledWords = settled?.words?.size ?: 0
+
+        history.addLast(Pass(words, end))
+        while (history.size > agreement - 1) {
+            history.removeFirst()
+        }
+        return Update(
+            committed = newlyCommitted,
+            tail = words.drop(windowCommitted).joinToString(" "),
+            settledEnd = settled?.end ?: -1
+        )
+    }
+
+    /**
+     * The window was trimmed past the audio of all committed words; start agreement afresh.
+     */
+    fun onWindowAdvanced() {
+        history.clear()
+        windowCommitted = 0
+        settledWords = 0
+    }
+
+    /**
+     * The window was trimmed to the last [Update.settledEnd]; committed words after it are
+     * still in the window and are not committed again.
+     */
+    fun onSettledDiscarded() {
+        history.clear()
+        windowCommitted = (windowCommitted - settledWords).coerceAtLeast(0)
+        settledWords = 0
+    }
+
+    /**
+     * Commit whatever the last hypothesis has beyond the committed prefix, e.g. on stop.
+     *
+     * @return The text committed by this call
+     */
+    fun finish(hypothesis: String?): String {
+        val words = if (hypothesis == null) history.lastOrNull()?.words.orEmpty() else splitWords(hypothesis)
+        val text = words.drop(windowCommitted).joinToString(" ")
+        append(text)
+        onWindowAdvanced()
+        return text
+    }
+
+    private fun append(text: String) {
+        if (text.isEmpty()) return
+        if (committed.isNotEmpty()) committed.append(' ')
+        committed.append(text)
+    }
+
+    private fun commonPrefix(a: List<String>, b: List<String>): Int {
+        val n = minOf(a.size, b.size)
+        for (i in 0 until n) {
+            if (normalize(a[i]) != normalize(b[i])) return i
+        }
+        return n
+    }
+
+    private fun splitWords(text: String): List<String> {
+        return text.trim().split(WHITESPACE).filter { it.isNotEmpty() }
+    }
+
+    // Whisper often flips case or trailing punctuation between passes; ignore that when agreeing
+    private fun normalize(word: String): String {
+        return word.trimEnd { !it.isLetterOrDigit() }.lowercase()
+    }
+
+    companion object {
+        private val WHITESPACE = Regex("\\s+")
+    }
+}
@@ -2,6 +2,7 @@ package com.sbf.assistant
 
 import android.content.Context
 import android.util.Log
+import com.sbf.assistant.llm.LocalLlmService
 import kotlinx.coroutines.*
 import okhttp3.MediaType.Companion.toMediaType
 import okhttp3.MultipartBody
@@ -10,14 +11,22 @@ import okhttp3.RequestBody.Companion.toRequestBody
 import org.json.JSONArray
 import org.json.JSONObject
 import java.io.File
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * Manages model warmup requests to preload models on the server
  * while the user is preparing their input.
+ *
+ * Local models are warmed on the device instead: their file is read once so the weights
+ * are in the page cache, then a dummy inference runs as background work and the model
+ * is marked hot in [localRuntime]. Both steps stop when the warmup job is cancelled.
  */
 class WarmupManager(
     private val context: Context,
-    private val settingsManager: SettingsManager
+    private val settingsManager: SettingsManager,
+    private val localRuntime: LocalModelRuntime? = null,
+    private val localLlm: LocalLlmService? = null,
+    private val localWhisper: LocalWhisperService? = null
 ) {
     private val client = HttpClientProvider.streaming
     private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
@@ -26,11 +35,14 @@ class WarmupManager(
     private var lastSttWarmup = 0L
     private var llmWarmupJob: Job? = null
     private var sttWarmupJob: Job? = null
+    // Model files already read into the page cache, by path, with the mtime they had then
+    private val touchedFiles = ConcurrentHashMap<String, Long>()
 
     companion object {
         private const val TAG = "WarmupManager"
         private const val WARMUP_COOLDOWN_MS = 240_000L // 4 min cooldown (server keeps models 5 min)
         private const val WARMUP_DEBOUNCE_MS = 300L // Debounce rapid triggers
+        private const val PAGE_TOUCH_CHUNK = 1 shl 20
     }
 
     /**
@@ -80,8 +92,11 @@ class WarmupManager(
         val config = settingsManager.getCategoryConfig(Category.AGENT).primary ?: return
         val endpoint = settingsManager.getEndpoint(config.endpointId) ?: return
 
-        // Skip local endpoints
-        if (config.endpointId == "local") return
+        if (config.endpointId == "local") {
+            lastLlmWarmup = System.currentTimeMillis()
+            warmupLocalLlm(config.modelName)
+            return
+        }
 
         Log.d(TAG, "Starting LLM warmup for ${config.modelName}")
         lastLlmWarmup = System.currentTimeMillis()
@@ -129,8 +144,13 @@ class WarmupManager(
         val config = settingsManager.getCategoryConfig(Category.STT).primary ?: return
         val endpoint = settingsManager.getEndpoint(config.endpointId) ?: return
 
-        // Skip local/system endpoints
-        if (config.endpointId == "local" || config.endpointId == "system") return
+        if (config.endpointId == "local") {
+            lastSttWarmup = System.currentTimeMillis()
+            warmupLocalWhisper()
+            return
+        }
+        // Skip system endpoints
+        if (config.endpointId == "system") return
 
         Log.d(TAG, "Starting STT warmup for ${config.modelName}")
         lastSttWarmup = System.currentTimeMillis()
@@ -170,6 +190,53 @@ class WarmupManager(
         }
     }
 
+    // Loading stays with the chat path (it also pairs the draft model); an unloaded model
+    // only gets its pages read, which still makes that load faster
+    private suspend fun warmupLocalLlm(modelName: String) {
+        val llm = localLlm ?: return
+        if (!modelName.endsWith(".tflite", ignoreCase = true)) return
+        val loaded = llm.isAvailable() && llm.getModelFilename() == modelName
+        if (loaded && localRuntime?.isHot(modelName) == true) return
+        val file = ModelDownloadManager(context).getModelFile(modelName) ?: return
+
+        touchPages(file)
+        if (!loaded) return
+        localRuntime?.ensureLoaded(modelName, file.length())
+        if (llm.warmUp()) {
+            localRuntime?.markHot(modelName)
+            Log.d(TAG, "Local LLM warm: $modelName")
+        }
+    }
+
+    private suspend fun warmupLocalWhisper() {
+        val whisper = localWhisper ?: return
+        val filename = settingsManager.localSttModel
+        if (filename.isBlank() || localRuntime?.isHot(filename) == true) return
+        val file = ModelDownloadManager(context).getModelFile(filename) ?: return
+
+        touchPages(file)
+        if (runInterruptible { whisper.warmUp(filename) }) {
+            Log.d(TAG, "Local Whisper warm: $filename")
+        }
+    }
+
+    /**
+     * Read [file] sequentially so its pages are cached before the engine maps it. A file is
+     * read once per version: each pass costs a full read of a multi-GB model, and warm-up
+     * triggers repeat every cooldown while the model stays unloaded.
+     */
+    private suspend fun touchPages(file: File) = withContext(Dispatchers.IO) {
+        val modified = file.lastModified()
+        if (touchedFiles[file.absolutePath] == modified) return@withContext
+        val buffer = ByteArray(PAGE_TOUCH_CHUNK)
+        file.inputStream().use { input ->
+            while (input.read(buffer) > 0) {
+                ensureActive()
+            }
+        }
+        touchedFiles[file.absolutePath] = modified
+    }
+
     /**
      * Creates a minimal valid WAV file with silence (about 0.1 seconds)
      */
@@ -2,6 +2,7 @@ package com.sbf.assistant
 
 import android.os.Handler
 import android.os.Looper
+import com.sbf.assistant.whisper.LongFormTranscriber
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
@@ -17,18 +18,37 @@ class WhisperController(
     private val scope: CoroutineScope
 ) {
     private var currentFile: File? = null
+    // Recording into memory for local Whisper rather than into currentFile
+    private var capturing = false
     private var isRecording = false
     private val mainHandler = Handler(Looper.getMainLooper())
 
     fun isRecording(): Boolean = isRecording
 
+    /**
+     * Start recording; false if the microphone could not be opened. With [inMemory] the
+     * audio stays in memory and goes straight to local Whisper, so it only suits a local
+     * config; otherwise it is written to a file ([usePcm] for WAV rather than M4A).
+     */
     fun startRecording(
         usePcm: Boolean = false,
+        inMemory: Boolean = false,
         autoStopOnSilence: Boolean = false,
         onSilenceDetected: (() -> Unit)? = null,
         onReadyToSpeak: (() -> Unit)? = null,
         onAmplitudeUpdate: ((Float) -> Unit)? = null
-    ): File? {
+    ): Boolean {
+        capturing = inMemory
+        if (inMemory) {
+            currentFile = null
+            isRecording = audioRecorder.startCapture(
+                autoStopOnSilence = autoStopOnSilence,
+                onSilenceDetected = onSilenceDetected,
+                onReadyToSpeak = onReadyToSpeak,
+                onAmplitudeUpdate = onAmplitudeUpdate
+            )
+            return isRecording
+        }
         currentFile = audioRecorder.startRecording(
             usePcm = usePcm,
             autoStopOnSilence = autoStopOnSilence,
@@ -37,12 +57,16 @@ class WhisperController(
             onAmplitudeUpdate = onAmplitudeUpdate
         )
         isRecording = currentFile != null
-        return currentFile
+        return isRecording
     }
 
     fun cancelRecording() {
         audioRecorder.stopRecording()
         isRecording = false
+        if (capturing) {
+            capturing = false
+            audioRecorder.takeCapture()?.let { audioRecorder.recycleCapture(it) }
+        }
         val file = currentFile
         currentFile = null
         if (file != null) {
@@ -50,12 +74,24 @@ class WhisperController(
         }
     }
 
+    /**
+     * Stop recording and transcribe. Local Whisper splits audio over 30 s into windows;
+     * [onPartial] then gets the transcript so far on the main thread after each window.
+     */
     fun stopAndTranscribe(
         config: ModelConfig,
+        onPartial: ((String) -> Unit)? = null,
         onResult: (text: String?, error: String?) -> Unit
     ) {
         audioRecorder.stopRecording()
         isRecording = false
+        val onSegment = onPartial?.let { partialListener(it) }
+
+        if (capturing) {
+            capturing = false
+            transcribeCapture(config, onSegment, onResult)
+            return
+        }
 
         val file = currentFile
         currentFile = null
@@ -66,7 +102,7 @@ class WhisperController(
 
         if (config.endpointId == "local") {
             scope.launch(Dispatchers.IO) {
-                val localText = localWhisper.transcribe(file)
+                val localText = localWhisper.transcribe(file, onSegment)
                 audioRecorder.deleteFile(file)
                 withContext(Dispatchers.Main) {
                     val error = if (localText == null) "Local Whisper no disponible" else null
@@ -98,7 +134,7 @@ class WhisperController(
             }
             scope.launch(Dispatchers.IO) {
                 val prepared = localWhisper.prepareModel(settingsManager.localSttModel)
-                val localText = if (prepared) localWhisper.transcribe(file) else null
+                val localText = if (prepared) localWhisper.transcribe(file, onSegment) else null
                 audioRecorder.deleteFile(file)
                 withContext(Dispatchers.Main) {
                     if (!localText.isNullOrBlank()) {
@@ -111,6 +147,44 @@ class WhisperController(
         }
     }
 
+    // Samples go from the recorder's buffer to the engine; no WAV is written or read back
+    private fun transcribeCapture(
+        config: ModelConfig,
+        onSegment: ((LongFormTranscriber.Segment) -> Unit)?,
+        onResult: (text: String?, error: String?) -> Unit
+    ) {
+        val recording = audioRecorder.takeCapture()
+        if (recording == null || config.endpointId != "local") {
+            recording?.let { audioRecorder.recycleCapture(it) }
+            onResult(null, "Audio no disponible")
+            return
+        }
+        scope.launch(Dispatchers.IO) {
+            val localText = try {
+                localWhisper.transcribeSamples(recording.samples, recording.length, onSegment)
+            } finally {
+                audioRecorder.recycleCapture(recording)
+            }
+            withContext(Dispatchers.Main) {
+                val error = if (localText == null) "Local Whisper no disponible" else null
+                onResult(localText, error)
+            }
+        }
+    }
+
+    // Segments arrive in order on the engine's thread; the stitched text goes to the main thread
+    private fun partialListener(onPartial: (String) -> Unit): (LongFormTranscriber.Segment) -> Unit {
+        val transcript = StringBuilder()
+        return { segment ->
+            if (segment.text.isNotEmpty()) {
+                if (transcript.isNotEmpty()) transcript.append(' ')
+                transcript.append(segment.text)
+                val partial = transcript.toString()
+                mainHandler.post { onPartial(partial) }
+            }
+        }
+    }
+
     private fun classifyRemoteError(error: Throwable?): String {
         return when (error) {
             is OpenAiClient.ApiError -> when (error.code) {
@@ -137,6 +211,7 @@ class WhisperController(
     fun cleanup() {
         audioRecorder.cleanup()
         currentFile = null
+        capturing = false
         isRecording = false
     }
 }
@@ -0,0 +1,218 @@
+package com.sbf.assistant
+
+import com.sbf.assistant.llm.InferenceScheduler
+import com.sbf.assistant.llm.InferenceScheduler.Priority
+import java.util.PriorityQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+
+/**
+ * A few engines of one Whisper model, so a voice turn, a dictation and a model test can
+ * transcribe at the same time instead of queueing behind a single interpreter.
+ *
+ * The pool starts with one engine and adds another only when a request arrives while
+ * every engine is busy, up to [maxEngines] and only while [canGrow] allows it (the caller
+ * checks its memory headroom). Engines built by [createEngine] are expected to share the
+ * model's memory-mapped weights, so each extra one costs only its own tensors.
+ *
+ * Requests wait in one queue, most urgent first and in arrival order within a priority.
+ * Each engine runs on its own [InferenceScheduler] lane, so a voice transcription still
+ * pauses on-device chat generation. Every request reports how long it waited for an
+ * engine and how long inference took.
+ */
+class WhisperEnginePool<E : Any>(
+    private val lanePrefix: String,
+    private val maxEngines: Int,
+    private val createEngine: (index: Int) -> E,
+    private val destroyEngine: (E) -> Unit,
+    private val canGrow: (engines: Int) -> Boolean = { true }
+) {
+
+    class Outcome<T>(val value: T, val waitMs: Long, val inferenceMs: Long)
+
+    data class Stats(
+        val engines: Int,
+        val busy: Int,
+        val queued: Int,
+        val completed: Long,
+        val averageWaitMs: Long,
+        val maxWaitMs: Long,
+        val averageInferenceMs: Long
+    )
+
+    private class Slot<E : Any>(val lane: InferenceScheduler.Lane) {
+        var engine: E? = null
+        var busy = true
+    }
+
+    private inner class Request<T>(
+        val priority: Priority,
+        val label: String,
+        val sequence: Long,
+        val work: (E) -> T
+    ) {
+        val future = CompletableFuture<Outcome<T>>()
+        val enqueuedNanos = System.nanoTime()
+
+        fun runOn(slot: Slot<E>, engine: E) {
+            try {
+                val outcome = InferenceScheduler.executeBlocking(slot.lane, priority, label) {
+                    val started = System.nanoTime()
+                    val value = work(engine)
+                    val waited = started - enqueuedNanos
+                    val inference = System.nanoTime() - started
+                    record(waited, inference)
+                    Outcome(value, waited / 1_000_000, inference / 1_000_000)
+                }
+                future.complete(outcome)
+            } catch (e: Throwable) {
+                future.completeExceptionally(e)
+            }
+        }
+    }
+
+    private val pending = PriorityQueue<Request<*>>(
+        compareByDescending<Request<*>> { it.priority }.thenBy { it.sequence }
+    )
+    private val slots = mutableListOf<Slot<E>>()
+    private val workers = Executors.newCachedThreadPool { runnable ->
+        Thread(runnable, "$lanePrefix-pool").apply { isDaemon = true }
+    }
+    private var nextSequence = 0L
+    private var closed = false
+    private var completed = 0L
+    private var totalWaitNanos = 0L
+    private var maxWaitNanos = 0L
+    private var totalInferenceNanos = 0L
+
+    /**
+     * Queue [work] for the next free engine.
+     */
+    @Synchronized
+    fun <T> submit(priority: Priority, label: String, work: (E) -> T): CompletableFuture<Outcome<T>> {
+        val request = Request(priority, label, nextSequence++, work)
+        if (closed) {
+            request.future.completeExceptionally(IllegalStateException("Whisper pool closed"))
+            return request.future
+        }
+        pending.add(request)
+        dispatch()
+        return request.future
+    }
+
+    /**
+     * Create the first engine on the calling thread, so loading errors reach the caller.
+     * No effect if the pool already has an engine.
+     */
+    fun prepare() {
+        val slot = synchronized(this) {
+            check(!closed) { "Whisper pool closed" }
+            if (slots.isNotEmpty()) return
+            newSlot()
+        }
+        try {
+            slot.engine = createEngine(0)
+        } catch (e: Throwable) {
+            synchronized(this) { slots.remove(slot) }
+            throw e
+        }
+        finish(slot)
+    }
+
+    /**
+     * Fail queued requests and destroy the engines; busy ones go when their request ends.
+     */
+    fun close() {
+        val idle = synchronized(this) {
+            closed = true
+            while (pending.isNotEmpty()) {
+                pending.poll()?.future?.completeExceptionally(IllegalStateException("Whisper pool closed"))
+            }
+            val free = slots.filter { !it.busy }
+            slots.removeAll(free)
+            free.mapNotNull { it.engine }
+        }
+        idle.forEach(destroyEngine)
+        workers.shutdown()
+    }
+
+    @Synchronized
+    fun stats(): Stats = Stats(
+        engines = slots.size,
+        busy = slots.count { it.busy },
+        queued = pending.size,
+        completed = completed,
+        averageWaitMs = if (completed == 0L) 0 else totalWaitNanos / completed / 1_000_000,
+        maxWaitMs = maxWaitNanos / 1_000_000,
+        averageInferenceMs = if (completed == 0L) 0 else totalInferenceNanos / completed / 1_000_000
+    )
+
+    // Caller holds the lock
+    private fun dispatch() {
+        while (pending.isNotEmpty()) {
+            val free = slots.firstOrNull { !it.busy && it.engine != null }
+            if (free != null) {
+                free.busy = true
+                val request = pending.poll()!!
+                workers.execute { run(free, request) }
+                continue
+            }
+            // Grow only while nothing is already starting up for the queue
+            if (slots.any { it.engine == null } || slots.size >= maxEngines || !canGrow(slots.size)) return
+            val slot = newSlot()
+            val index = slots.size - 1
+            workers.execute { start(slot, index) }
+            return
+        }
+    }
+
+    // Caller holds the lock; the slot starts busy until its engine exists
+    private fun newSlot(): Slot<E> {
+        val index = slots.size
+        val lane = InferenceScheduler.lane(if (index == 0) lanePrefix else "$lanePrefix-$index")
+        return Slot<E>(lane).also { slots.add(it) }
+    }
+
+    private fun start(slot: Slot<E>, index: Int) {
+        try {
+            slot.engine = createEngine(index)
+        } catch (e: Throwable) {
+            synchronized(this) {
+                slots.remove(slot)
+                // Without any engine the queue would never drain
+                if (slots.isEmpty()) {
+                    while (pending.isNotEmpty()) pending.poll()?.future?.completeExceptionally(e)
+                }
+            }
+            return
+        }
+        finish(slot)
+    }
+
+    private fun run(slot: Slot<E>, request: Request<*>) {
+        request.runOn(slot, slot.engine!!)
+        finish(slot)
+    }
+
+    private fun finish(slot: Slot<E>) {
+        val retired = synchronized(this) {
+            slot.busy = false
+            if (closed) {
+                slots.remove(slot)
+                slot.engine
+            } else {
+                dispatch()
+                null
+            }
+        }
+        retired?.let(destroyEngine)
+    }
+
+    @Synchronized
+    private fun record(waitNanos: Long, inferenceNanos: Long) {
+        completed++
+        totalWaitNanos += waitNanos
+        maxWaitNanos = maxOf(maxWaitNanos, waitNanos)
+        totalInferenceNanos += inferenceNanos
+    }
+}
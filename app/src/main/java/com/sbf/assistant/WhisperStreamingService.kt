@@ -8,9 +8,12 @@ import android.media.AudioRecord
 import android.media.MediaRecorder
 import android.util.Log
 import androidx.core.content.ContextCompat
+import com.sbf.assistant.whisper.StreamingMelFrontend
+import com.sbf.assistant.whisper.VoiceActivityDetector
 import com.sbf.assistant.whisper.WhisperEngineJava
 import com.sbf.assistant.whisper.WhisperUtil
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import java.util.concurrent.atomic.AtomicBoolean
@@ -18,8 +21,11 @@ import java.util.concurrent.atomic.AtomicBoolean
 /**
  * Real-time streaming transcription service using Whisper TFLite.
  *
- * Continuously captures audio and transcribes it in chunks, providing
- * incremental transcription results.
+ * Continuously captures audio and transcribes a sliding window of it every chunk.
+ * Words that two consecutive passes agree on are committed and emitted once with
+ * `isFinal = true`; the rest is emitted as a volatile tail with `isFinal = false`.
+ * Audio whose text is settled is dropped from the window, so the cost of each pass
+ * stays bounded however long the session runs.
  *
  * Usage:
  * ```
@@ -46,30 +52,51 @@ class WhisperStreamingService(
     private val bufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat)
 
     // Streaming configuration
-    private val chunkDurationSeconds = 5 // Process audio every 5 seconds
-    private val maxBufferSeconds = 30 // Maximum buffer (Whisper limit)
+    // Mel frames are computed incrementally, so short chunks only pay for the new audio
+    private val chunkDurationSeconds = 2 // Process audio every 2 seconds
     private val samplesPerChunk = sampleRate * chunkDurationSeconds
-    private val maxBufferSamples = sampleRate * maxBufferSeconds
+    // Past this the window is trimmed even if the hypothesis has not settled
+    private val maxWindowSamples = sampleRate * 20
+    // Audio kept before speech when silence is dropped from the window
+    private val silenceKeepSamples = sampleRate * 3 / 10
 
     // State
     private var audioRecord: AudioRecord? = null
     private val isRecording = AtomicBoolean(false)
     private var recordingJob: Job? = null
+    private var transcriptionJob: Job? = null
 
-    // Circular buffer for audio samples
-    private val audioBuffer = FloatArray(maxBufferSamples)
-    private var bufferWriteIndex = 0
-    private var totalSamplesWritten = 0L
+    // Conflated: if inference falls behind, the next pass simply covers more audio
+    private var chunkSignal = Channel<Unit>(Channel.CONFLATED)
+
+    // Rolling mel frames for the last 30 s (Whisper limit)
+    private val melFrontend: StreamingMelFrontend = whisperEngine.newStreamingFrontend()
     private val bufferLock = Object()
 
-    // Transcription state
-    private var lastTranscription = ""
+    // Runs on the capture thread; passes without new speech skip the encoder
+    private val vad = VoiceActivityDetector(sampleRate)
+    @Volatile
+    private var lastSpeechSample = -1L
+
+    // Transcription state, guarded by transcribeLock
+    private val transcribeLock = Object()
+    private val melWindow = FloatArray(WhisperUtil.WHISPER_N_MEL * WhisperUtil.WHISPER_MEL_LEN)
+    private val stabilizer = TranscriptStabilizer()
+    private var lastTail = ""
+    // Absolute sample index covered by the previous pass
+    private var previousPassEnd = 0L
+    @Volatile
     private var lastProcessedSamples = 0L
 
     // Flow for emitting transcription results
     private val _transcriptionFlow = MutableSharedFlow<TranscriptionResult>(replay = 1)
     val transcriptionFlow: SharedFlow<TranscriptionResult> = _transcriptionFlow
 
+    /**
+     * @property text Committed text plus the current tail
+     * @property isFinal True when [incrementalText] was just committed and will not change
+     * @property incrementalText Newly committed text, or the whole volatile tail when not final
+     */
     data class TranscriptionResult(
         val text: String,
         val isFinal: Boolean,
@@ -129,19 +156,31 @@ class WhisperStreamingService(
 
             // Reset state
             synchronized(bufferLock) {
-                bufferWriteIndex = 0
-                totalSamplesWritten = 0L
+                melFrontend.reset()
+                vad.reset()
+                lastSpeechSample = -1L
+            }
+            synchronized(transcribeLock) {
+                stabilizer.reset()
+                lastTail = ""
+                previousPassEnd = 0L
                 lastProcessedSamples = 0L
-                lastTranscription = ""
             }
+            chunkSignal = Channel(Channel.CONFLATED)
 
             audioRecord?.startRecording()
             isRecording.set(true)
             callback?.onStateChanged(true)
 
-            // Start recording coroutine
+            // Capture and inference run separately so slow passes never stall AudioRecord
+            val signal = chunkSignal
             recordingJob = scope.launch {
-                recordingLoop()
+                recordingLoop(signal)
+            }
+            transcriptionJob = scope.launch {
+                for (ignored in signal) {
+                    processCurrentBuffer()
+                }
             }
 
             Log.d(TAG, "Streaming started (GPU=${whisperEngine.isUsingGpu})")
@@ -159,12 +198,15 @@ class WhisperStreamingService(
      */
     fun stopStreaming(): String {
         if (!isRecording.get()) {
-            return lastTranscription
+            return synchronized(transcribeLock) { stabilizer.committedText }
         }
 
         isRecording.set(false)
         recordingJob?.cancel()
         recordingJob = null
+        chunkSignal.close()
+        transcriptionJob?.cancel()
+        transcriptionJob = null
 
         try {
             audioRecord?.stop()
@@ -182,31 +224,25 @@ class WhisperStreamingService(
         return finalText
     }
 
-    private suspend fun recordingLoop() {
+    private suspend fun recordingLoop(signal: Channel<Unit>) {
         val readBuffer = FloatArray(bufferSize)
-        var lastProcessTime = System.currentTimeMillis()
 
+        // READ_BLOCKING paces the loop; no extra polling delay is needed
         while (isRecording.get()) {
             val readCount = audioRecord?.read(readBuffer, 0, readBuffer.size, AudioRecord.READ_BLOCKING) ?: -1
 
             if (readCount > 0) {
-                synchronized(bufferLock) {
-                    // Write to circular buffer
-                    for (i in 0 until readCount) {
-                        audioBuffer[bufferWriteIndex] = readBuffer[i]
-                        bufferWriteIndex = (bufferWriteIndex + 1) % maxBufferSamples
-                    }
-                    totalSamplesWritten += readCount
+                // Computes mel frames for the new hops only
+                val totalSamples = synchronized(bufferLock) {
+                    melFrontend.accept(readBuffer, 0, readCount)
+                    vad.process(readBuffer, 0, readCount)
+                    lastSpeechSample = if (vad.isSpeech) melFrontend.totalSamples else vad.lastSpeechSample
+                    melFrontend.totalSamples
                 }
 
-                // Check if we have enough samples to process
-                val samplesAvailable = totalSamplesWritten - lastProcessedSamples
-                val now = System.currentTimeMillis()
-                val timeSinceLastProcess = now - lastProcessTime
-
-                if (samplesAvailable >= samplesPerChunk || timeSinceLastProcess >= chunkDurationSeconds * 1000) {
-                    processCurrentBuffer()
-                    lastProcessTime = now
+                if (totalSamples - lastProcessedSamples >= samplesPerChunk) {
+                    lastProcessedSamples = totalSamples
+                    signal.trySend(Unit)
                 }
             } else if (readCount < 0) {
                 Log.e(TAG, "AudioRecord read error: $readCount")
@@ -215,73 +251,108 @@ class WhisperStreamingService(
                 }
                 break
             }
+        }
+    }
 
-            // Small delay to prevent busy loop
-            delay(10)
+    private fun processCurrentBuffer(isLast: Boolean = false) {
+        synchronized(transcribeLock) {
+            transcribeWindow(isLast)
         }
     }
 
-    private fun processCurrentBuffer() {
+    private fun transcribeWindow(isLast: Boolean) {
         val startTime = System.currentTimeMillis()
 
-        // Get current buffer contents
-        val samples = synchronized(bufferLock) {
-            val available = minOf(totalSamplesWritten, maxBufferSamples.toLong()).toInt()
-            if (available == 0) return
-
-            val result = FloatArray(available)
-            val startIndex = if (totalSamplesWritten > maxBufferSamples) {
-                bufferWriteIndex
-            } else {
-                0
+        try {
+            // Copy the window out so capture can continue during inference
+            val windowStart: Long
+            val windowEnd: Long
+            // Nothing said since the last pass and nothing pending: no encoder pass needed
+            val silent: Boolean
+            synchronized(bufferLock) {
+                if (melFrontend.totalSamples == 0L) return
+                windowStart = melFrontend.windowStartSample
+                windowEnd = melFrontend.totalSamples
+                silent = lastSpeechSample <= previousPassEnd && lastTail.isEmpty()
+                if (!silent) {
+                    melFrontend.buildWindow(melWindow)
+                }
             }
 
-            for (i in 0 until available) {
-                result[i] = audioBuffer[(startIndex + i) % maxBufferSamples]
+            if (silent) {
+                // Keep a little audio in case speech is just starting
+                discard(windowEnd - windowStart - silenceKeepSamples)
+                stabilizer.onWindowAdvanced()
+                previousPassEnd = windowEnd
+                return
             }
 
-            lastProcessedSamples = totalSamplesWritten
-            result
-        }
+            val transcription = whisperEngine.transcribeMel(melWindow) ?: return
+            val durationMs = System.currentTimeMillis() - startTime
 
-        // Transcribe
-        try {
-            val transcription = whisperEngine.transcribeBuffer(samples)
-            val endTime = System.currentTimeMillis()
-
-            if (transcription != null && transcription.isNotEmpty()) {
-                // Calculate incremental text
-                val incrementalText = if (transcription.startsWith(lastTranscription)) {
-                    transcription.substring(lastTranscription.length)
-                } else {
-                    transcription
+            // Last pass, or the window is not settling: commit everything it heard
+            if (isLast || windowEnd - windowStart >= maxWindowSamples) {
+                val committed = stabilizer.finish(transcription)
+                lastTail = ""
+                if (committed.isNotEmpty()) {
+                    emit(TranscriptionResult(stabilizer.committedText, true, committed, durationMs))
                 }
+                discard(windowEnd - windowStart)
+                previousPassEnd = windowEnd
+                return
+            }
 
-                lastTranscription = transcription
-
-                val result = TranscriptionResult(
-                    text = transcription,
-                    isFinal = false,
-                    incrementalText = incrementalText,
-                    durationMs = endTime - startTime
-                )
-
-                scope.launch(Dispatchers.Main) {
-                    _transcriptionFlow.emit(result)
-                    callback?.onTranscription(result)
-                }
+            val update = stabilizer.onHypothesis(transcription, windowEnd)
+            if (update.committed.isNotEmpty()) {
+                emit(TranscriptionResult(stabilizer.committedText, true, update.committed, durationMs))
+            }
+            if (update.tail != lastTail) {
+                lastTail = update.tail
+                emit(TranscriptionResult(joinText(stabilizer.committedText, update.tail), false, update.tail, durationMs))
+            }
 
-                Log.d(TAG, "Transcription (${endTime - startTime}ms): $incrementalText")
+            // Every word heard up to an earlier pass is committed: drop that audio
+            if (update.settledEnd > windowStart) {
+                discard(update.settledEnd - windowStart)
+                stabilizer.onSettledDiscarded()
             }
+            previousPassEnd = windowEnd
+
+            Log.d(TAG, "Pass (${durationMs}ms, window ${(windowEnd - windowStart) / sampleRate}s): " +
+                "+'${update.committed}' tail='${update.tail}'")
         } catch (e: Exception) {
             Log.e(TAG, "Transcription failed", e)
         }
     }
 
+    // Drop audio whose text is committed so the next window starts after it
+    private fun discard(samples: Long) {
+        val frames = (samples / WhisperUtil.WHISPER_HOP_LENGTH).toInt()
+        if (frames <= 0) return
+        synchronized(bufferLock) {
+            melFrontend.discardFrames(frames)
+        }
+    }
+
+    private fun emit(result: TranscriptionResult) {
+        scope.launch(Dispatchers.Main) {
+            _transcriptionFlow.emit(result)
+            callback?.onTranscription(result)
+        }
+    }
+
+    private fun joinText(committed: String, tail: String): String {
+        return when {
+            committed.isEmpty() -> tail
+            tail.isEmpty() -> committed
+            else -> "$committed $tail"
+        }
+    }
+
     private fun processRemainingAudio(): String {
-        // Process any remaining audio in buffer
-        processCurrentBuffer()
-        return lastTranscription
+        // Transcribe what is left in the window and commit all of it
+        processCurrentBuffer(isLast = true)
+        return synchronized(transcribeLock) { stabilizer.committedText }
     }
 
     private fun cleanup() {
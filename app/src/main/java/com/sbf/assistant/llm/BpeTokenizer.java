@@ -0,0 +1,649 @@
+package com.sbf.assistant.llm;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BPE tokenizer for HuggingFace {@code tokenizer.json} files.
+ *
+ * The JSON is converted once into a {@link CompiledVocab} ({@link #compileTokenizerJson})
+ * holding the tokens, the merges in rank order and the added tokens. At load the merges go
+ * into a primitive open-addressing table keyed by the (left, right) id pair. Each
+ * pre-tokenized word is merged with a binary heap of candidate pairs, lowest rank first, and
+ * the result is kept in a bounded LRU cache so words repeated across prompts (system prompt,
+ * tool schemas) are not merged again.
+ *
+ * Two flavours are supported: GPT-2 style byte-level BPE, whose tokens are stored as raw
+ * bytes, and SentencePiece-style BPE with the U+2581 space marker and byte fallback.
+ * Added tokens such as {@code <|im_start|>} are matched verbatim before pre-tokenization.
+ *
+ * Thread-safe; the cache is the only shared mutable state.
+ */
+public final class BpeTokenizer {
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private static final String SPACE_MARKER = "\u2581";
+
+    private final CompiledVocab vocab;
+    private final boolean byteLevel;
+    private final boolean prefixSpace;
+
+    // Merge table: key (left << 32 | right) -> rank and merged id
+    private final long[] mergeKeys;
+    private final int[] mergeRanks;
+    private final int[] mergeResults;
+    private final int mergeMask;
+
+    // Initial symbols: raw byte tokens (byte-level), or byte-fallback tokens (SentencePiece)
+    private final ByteFallbackTokens byteTokens;
+    private final int unkId;
+
+    private final String[] specialTokens;
+    private final int[] specialIds;
+    // First characters of the special tokens, to skip the scan on ordinary text
+    private final String specialStarts;
+
+    private final Map<String, int[]> cache;
+    private long cacheHits;
+    private long cacheMisses;
+
+    public BpeTokenizer(CompiledVocab vocab) {
+        this(vocab, DEFAULT_CACHE_SIZE);
+    }
+
+    public BpeTokenizer(CompiledVocab vocab, int cacheSize) {
+        this.vocab = vocab;
+        byteLevel = vocab.hasFlag(CompiledVocab.FLAG_BYTE_LEVEL);
+        prefixSpace = vocab.hasFlag(CompiledVocab.FLAG_PREFIX_SPACE);
+
+        int merges = vocab.mergeCount();
+        int capacity = Integer.highestOneBit(Math.max(2, merges * 2 - 1)) << 1;
+        mergeKeys = new long[capacity];
+        mergeRanks = new int[capacity];
+        mergeResults = new int[capacity];
+        mergeMask = capacity - 1;
+        Arrays.fill(mergeRanks, -1);
+        for (int rank = 0; rank < merges; rank++) {
+            int left = vocab.mergeLeft(rank);
+            int right = vocab.mergeRight(rank);
+            int merged = mergedId(left, right);
+            if (merged < 0) continue;
+            long key = pairKey(left, right);
+            int slot = mix(key) & mergeMask;
+            while (mergeRanks[slot] >= 0 && mergeKeys[slot] != key) {
+                slot = (slot + 1) & mergeMask;
+            }
+            // The first (lowest) rank of a duplicated pair wins
+            if (mergeRanks[slot] < 0) {
+                mergeKeys[slot] = key;
+                mergeRanks[slot] = rank;
+                mergeResults[slot] = merged;
+            }
+        }
+
+        if (byteLevel) {
+            int[] byteIds = new int[256];
+            for (int b = 0; b < 256; b++) byteIds[b] = vocab.id(new byte[]{(byte) b});
+            byteTokens = new ByteFallbackTokens(byteIds);
+        } else {
+            byteTokens = ByteFallbackTokens.of(vocab);
+        }
+        unkId = vocab.id("<unk>");
+
+        int nSpecial = vocab.specialCount();
+        Integer[] order = new Integer[nSpecial];
+        for (int i = 0; i < nSpecial; i++) order[i] = i;
+        String[] names = new String[nSpecial];
+        for (int i = 0; i < nSpecial; i++) names[i] = vocab.token(vocab.specialId(i));
+        // Longest first, so "<|im_start|>" is not shadowed by a shorter prefix
+        Arrays.sort(order, (a, b) -> names[b].length() - names[a].length());
+        specialTokens = new String[nSpecial];
+        specialIds = new int[nSpecial];
+        StringBuilder starts = new StringBuilder();
+        for (int i = 0; i < nSpecial; i++) {
+            specialTokens[i] = names[order[i]];
+            specialIds[i] = vocab.specialId(order[i]);
+            if (!specialTokens[i].isEmpty() && starts.indexOf(specialTokens[i].substring(0, 1)) < 0) {
+                starts.append(specialTokens[i].charAt(0));
+            }
+        }
+        specialStarts = starts.toString();
+
+        cache = new LinkedHashMap<String, int[]>(Math.min(cacheSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Open {@code tokenizer.json}, compiling it next to the source on first use.
+     *
+     * @return null if the file is not a BPE tokenizer
+     */
+    public static BpeTokenizer open(File tokenizerJson) throws IOException {
+        CompiledVocab compiled = CompiledVocab.openOrCompile(tokenizerJson, BpeTokenizer::compileTokenizerJson);
+        return compiled == null ? null : new BpeTokenizer(compiled);
+    }
+
+    public CompiledVocab getVocab() {
+        return vocab;
+    }
+
+    public boolean isByteLevel() {
+        return byteLevel;
+    }
+
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    public synchronized long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Byte-fallback value of a SentencePiece-style {@code <0xAB>} token, or -1.
+     */
+    public int byteValue(int id) {
+        // Byte-level tokens are plain text, not fallbacks
+        return byteLevel ? -1 : byteTokens.value(id);
+    }
+
+    public int[] encode(String text) {
+        IntList out = new IntList();
+        int start = 0;
+        int i = 0;
+        while (i < text.length()) {
+            int special = matchSpecial(text, i);
+            if (special < 0) {
+                i++;
+                continue;
+            }
+            encodeChunk(text.substring(start, i), start == 0, out);
+            out.add(specialIds[special]);
+            i += specialTokens[special].length();
+            start = i;
+        }
+        encodeChunk(text.substring(start), start == 0, out);
+        return out.toArray();
+    }
+
+    private int matchSpecial(String text, int at) {
+        if (specialStarts.indexOf(text.charAt(at)) < 0) return -1;
+        for (int s = 0; s < specialTokens.length; s++) {
+            if (text.startsWith(specialTokens[s], at)) return s;
+        }
+        return -1;
+    }
+
+    private void encodeChunk(String chunk, boolean atStart, IntList out) {
+        if (chunk.isEmpty()) return;
+        if (byteLevel) {
+            for (int start = 0; start < chunk.length(); ) {
+                int end = nextWordEnd(chunk, start);
+                out.addAll(encodeWord(chunk.substring(start, end)));
+                start = end;
+            }
+            return;
+        }
+
+        String normalized = chunk.replace(" ", SPACE_MARKER);
+        if (prefixSpace && atStart) normalized = SPACE_MARKER + normalized;
+        // Words start at a marker run; SentencePiece merges do not cross into one
+        int wordStart = 0;
+        for (int c = 1; c < normalized.length(); c++) {
+            if (normalized.charAt(c) == SPACE_MARKER.charAt(0) && normalized.charAt(c - 1) != SPACE_MARKER.charAt(0)) {
+                out.addAll(encodeWord(normalized.substring(wordStart, c)));
+                wordStart = c;
+            }
+        }
+        out.addAll(encodeWord(normalized.substring(wordStart)));
+    }
+
+    /**
+     * End of the pre-token starting at {@code start}, following the GPT-2 pattern
+     * {@code 's|'t|'re|'ve|'m|'ll|'d| ?\p{L}+| ?\p{N}+| ?[^\s\p{L}\p{N}]+|\s+(?!\S)|\s+}
+     * without a regex. Newer models use variants, which this approximates at word edges.
+     */
+    static int nextWordEnd(String text, int start) {
+        int length = text.length();
+        char first = text.charAt(start);
+        if (first == '\'' && start + 1 < length) {
+            char c1 = text.charAt(start + 1);
+            if (c1 == 's' || c1 == 'd' || c1 == 'm' || c1 == 't') return start + 2;
+            if (start + 2 < length) {
+                char c2 = text.charAt(start + 2);
+                if ((c1 == 'l' && c2 == 'l') || (c1 == 'v' && c2 == 'e') || (c1 == 'r' && c2 == 'e')) {
+                    return start + 3;
+                }
+            }
+        }
+
+        int i = start;
+        if (first == ' ' && start + 1 < length && !Character.isWhitespace(text.charAt(start + 1))) {
+            i++;
+        }
+        if (i > start || !Character.isWhitespace(first)) {
+            int kind = charClass(text.codePointAt(i));
+            i += Character.charCount(text.codePointAt(i));
+            while (i < length) {
+                int cp = text.codePointAt(i);
+                if (Character.isWhitespace(cp) || charClass(cp) != kind) break;
+                i += Character.charCount(cp);
+            }
+            return i;
+        }
+
+        // Whitespace run; before a word its last space goes with the word instead
+        while (i < length && Character.isWhitespace(text.charAt(i))) i++;
+        return i < length && i - start > 1 ? i - 1 : i;
+    }
+
+    // 0 letter, 1 number, 2 anything else (whitespace is handled by the caller)
+    private static int charClass(int cp) {
+        if (Character.isLetter(cp)) return 0;
+        switch (Character.getType(cp)) {
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.LETTER_NUMBER:
+            case Character.OTHER_NUMBER:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    private int[] encodeWord(String word) {
+        synchronized (this) {
+            int[] cached = cache.get(word);
+            if (cached != null) {
+                cacheHits++;
+                return cached;
+            }
+            cacheMisses++;
+        }
+        int[] ids = merge(initialSymbols(word));
+        synchronized (this) {
+            cache.put(word, ids);
+        }
+        return ids;
+    }
+
+    private IntList initialSymbols(String word) {
+        IntList symbols = new IntList();
+        if (byteLevel) {
+            for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+                int id = byteTokens.id(b & 0xFF);
+                if (id >= 0) symbols.add(id);
+            }
+            return symbols;
+        }
+        for (int i = 0; i < word.length(); ) {
+            int cp = word.codePointAt(i);
+            String ch = new String(Character.toChars(cp));
+            i += Character.charCount(cp);
+            int id = vocab.id(ch);
+            if (id >= 0) {
+                symbols.add(id);
+                continue;
+            }
+            boolean fallback = true;
+            byte[] bytes = ch.getBytes(StandardCharsets.UTF_8);
+            for (byte b : bytes) fallback &= byteTokens.id(b & 0xFF) >= 0;
+            if (fallback) {
+                for (byte b : bytes) symbols.add(byteTokens.id(b & 0xFF));
+            } else if (unkId >= 0) {
+                symbols.add(unkId);
+            }
+        }
+        return symbols;
+    }
+
+    // Merge adjacent symbols, lowest rank first, over a linked list of positions
+    private int[] merge(IntList symbols) {
+        int n = symbols.size;
+        if (n < 2) return symbols.toArray();
+        int[] ids = Arrays.copyOf(symbols.items, n);
+        int[] prev = new int[n];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1 < n ? i + 1 : -1;
+        }
+
+        // Heap of (rank << 32 | left position); stale entries are skipped on pop
+        long[] heap = new long[n];
+        int heapSize = 0;
+        for (int i = 0; i + 1 < n; i++) {
+            int slot = findMerge(ids[i], ids[i + 1]);
+            if (slot >= 0) heapSize = push(heap, heapSize, entry(mergeRanks[slot], i));
+        }
+
+        int alive = n;
+        while (heapSize > 0) {
+            long top = heap[0];
+            heapSize = pop(heap, heapSize);
+            int rank = (int) (top >>> 32);
+            int left = (int) top;
+            int right = next[left];
+            if (ids[left] < 0 || right < 0) continue;
+            int slot = findMerge(ids[left], ids[right]);
+            if (slot < 0 || mergeRanks[slot] != rank) continue;
+
+            ids[left] = mergeResults[slot];
+            ids[right] = -1;
+            next[left] = next[right];
+            if (next[right] >= 0) prev[next[right]] = left;
+            alive--;
+
+            if (heapSize + 2 > heap.length) heap = Arrays.copyOf(heap, heap.length * 2 + 2);
+            if (prev[left] >= 0) {
+                int before = findMerge(ids[prev[left]], ids[left]);
+                if (before >= 0) heapSize = push(heap, heapSize, entry(mergeRanks[before], prev[left]));
+            }
+            if (next[left] >= 0) {
+                int after = findMerge(ids[left], ids[next[left]]);
+                if (after >= 0) heapSize = push(heap, heapSize, entry(mergeRanks[after], left));
+            }
+        }
+
+        int[] out = new int[alive];
+        for (int i = 0, k = 0; i >= 0 && k < alive; i = next[i]) {
+            out[k++] = ids[i];
+        }
+        return out;
+    }
+
+    private int findMerge(int left, int right) {
+        long key = pairKey(left, right);
+        int slot = mix(key) & mergeMask;
+        while (mergeRanks[slot] >= 0) {
+            if (mergeKeys[slot] == key) return slot;
+            slot = (slot + 1) & mergeMask;
+        }
+        return -1;
+    }
+
+    private int mergedId(int left, int right) {
+        byte[] merged = new byte[vocab.byteLength(left) + vocab.byteLength(right)];
+        vocab.bytes(right, merged, vocab.bytes(left, merged, 0));
+        return vocab.id(merged);
+    }
+
+    private static long entry(int rank, int position) {
+        return ((long) rank << 32) | position;
+    }
+
+    private static long pairKey(int left, int right) {
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private static int push(long[] heap, int size, long value) {
+        int i = size;
+        heap[i] = value;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= heap[i]) break;
+            long tmp = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = tmp;
+            i = parent;
+        }
+        return size + 1;
+    }
+
+    private static int pop(long[] heap, int size) {
+        size--;
+        heap[0] = heap[size];
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int l = 2 * i + 1;
+            int r = l + 1;
+            if (l < size && heap[l] < heap[smallest]) smallest = l;
+            if (r < size && heap[r] < heap[smallest]) smallest = r;
+            if (smallest == i) break;
+            long tmp = heap[smallest];
+            heap[smallest] = heap[i];
+            heap[i] = tmp;
+            i = smallest;
+        }
+        return size;
+    }
+
+    private static final class IntList {
+        int[] items = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = value;
+        }
+
+        void addAll(int[] values) {
+            if (size + values.length > items.length) {
+                items = Arrays.copyOf(items, Math.max(items.length * 2, size + values.length));
+            }
+            System.arraycopy(values, 0, items, size, values.length);
+            size += values.length;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
+
+    // ---- tokenizer.json conversion ----
+
+    /**
+     * Convert a HuggingFace {@code tokenizer.json} with a BPE model. Byte-level vocabularies
+     * are stored as raw bytes, undoing the GPT-2 byte-to-unicode mapping.
+     *
+     * @return false if the model is not BPE
+     */
+    public static boolean compileTokenizerJson(File source, File target) throws IOException {
+        Map<String, Integer> vocabMap = new HashMap<>();
+        List<String[]> merges = new ArrayList<>();
+        Map<Integer, String> added = new HashMap<>();
+        Set<String> types = new HashSet<>();
+        String modelType = null;
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new FileInputStream(source), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "added_tokens":
+                        readAddedTokens(reader, added);
+                        break;
+                    case "normalizer":
+                    case "pre_tokenizer":
+                    case "decoder":
+                        collectTypes(reader, types);
+                        break;
+                    case "model":
+                        modelType = readModel(reader, vocabMap, merges);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        if (modelType != null && !"BPE".equals(modelType)) {
+            return false;
+        }
+        if (vocabMap.isEmpty()) {
+            return false;
+        }
+
+        boolean byteLevel = types.contains("ByteLevel");
+        int flags = (byteLevel ? CompiledVocab.FLAG_BYTE_LEVEL : 0)
+                | (types.contains("Prepend") || types.contains("Metaspace") ? CompiledVocab.FLAG_PREFIX_SPACE : 0);
+
+        int size = 0;
+        for (int id : vocabMap.values()) size = Math.max(size, id + 1);
+        for (int id : added.keySet()) size = Math.max(size, id + 1);
+        List<byte[]> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) tokens.add(new byte[0]);
+        for (Map.Entry<String, Integer> e : vocabMap.entrySet()) {
+            tokens.set(e.getValue(), byteLevel ? unmapBytes(e.getKey()) : e.getKey().getBytes(StandardCharsets.UTF_8));
+        }
+
+        int[] special = new int[added.size()];
+        int k = 0;
+        for (Map.Entry<Integer, String> e : added.entrySet()) {
+            tokens.set(e.getKey(), e.getValue().getBytes(StandardCharsets.UTF_8));
+            special[k++] = e.getKey();
+        }
+
+        int[] pairs = new int[merges.size() * 2];
+        int count = 0;
+        for (String[] merge : merges) {
+            Integer left = vocabMap.get(merge[0]);
+            Integer right = vocabMap.get(merge[1]);
+            if (left == null || right == null) continue;
+            pairs[count++] = left;
+            pairs[count++] = right;
+        }
+
+        CompiledVocab.write(target, null, 0, 0, tokens, null, Arrays.copyOf(pairs, count), special, flags);
+        return true;
+    }
+
+    private static void readAddedTokens(JsonReader reader, Map<Integer, String> added) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int id = -1;
+            String content = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("id".equals(name)) {
+                    id = reader.nextInt();
+                } else if ("content".equals(name)) {
+                    content = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (id >= 0 && content != null) added.put(id, content);
+        }
+        reader.endArray();
+    }
+
+    private static String readModel(JsonReader reader, Map<String, Integer> vocab, List<String[]> merges)
+            throws IOException {
+        String type = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) {
+                type = reader.nextString();
+            } else if ("vocab".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String token = reader.nextName();
+                    vocab.put(token, reader.nextInt());
+                }
+                reader.endObject();
+            } else if ("merges".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        // Newer format: ["left", "right"]
+                        reader.beginArray();
+                        String left = reader.nextString();
+                        String right = reader.nextString();
+                        reader.endArray();
+                        merges.add(new String[]{left, right});
+                    } else {
+                        String merge = reader.nextString();
+                        int space = merge.indexOf(' ', 1);
+                        if (space > 0) merges.add(new String[]{merge.substring(0, space), merge.substring(space + 1)});
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return type;
+    }
+
+    // Every "type" value anywhere below the current value
+    private static void collectTypes(JsonReader reader, Set<String> types) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("type".equals(name) && reader.peek() == JsonToken.STRING) {
+                        types.add(reader.nextString());
+                    } else {
+                        collectTypes(reader, types);
+                    }
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while (reader.hasNext()) collectTypes(reader, types);
+                reader.endArray();
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    // GPT-2 bytes_to_unicode, inverted: printable bytes map to themselves, the rest to 256 + n
+    private static final int[] UNICODE_TO_BYTE = buildUnicodeToByte();
+
+    private static int[] buildUnicodeToByte() {
+        int[] table = new int[512];
+        Arrays.fill(table, -1);
+        int n = 0;
+        for (int b = 0; b < 256; b++) {
+            boolean printable = (b >= '!' && b <= '~') || (b >= 0xA1 && b <= 0xAC) || (b >= 0xAE && b <= 0xFF);
+            table[printable ? b : 256 + n++] = b;
+        }
+        return table;
+    }
+
+    static byte[] unmapBytes(String token) {
+        byte[] out = new byte[token.length()];
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            int b = c < UNICODE_TO_BYTE.length ? UNICODE_TO_BYTE[c] : -1;
+            if (b < 0) {
+                // Not byte-mapped (added text); keep it as UTF-8
+                return token.getBytes(StandardCharsets.UTF_8);
+            }
+            out[i] = (byte) b;
+        }
+        return out;
+    }
+}
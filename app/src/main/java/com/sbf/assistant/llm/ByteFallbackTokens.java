@@ -0,0 +1,70 @@
+package com.sbf.assistant.llm;
+
+import java.util.Arrays;
+
+/**
+ * The byte-fallback tokens ({@code <0xAB>}) of a vocabulary, looked up both ways in one
+ * array access: byte to token id when encoding, token id to byte when decoding. Shared by
+ * {@link SubwordEncoder} and {@link BpeTokenizer}.
+ *
+ * Immutable and safe to share between threads.
+ */
+final class ByteFallbackTokens {
+    private final int[] ids;
+    // Byte of token minId + i, or -1; byte tokens are normally one contiguous id range
+    private final int[] values;
+    private final int minId;
+    private final boolean complete;
+
+    /**
+     * @param ids Token id of each byte value, -1 where the vocab has none
+     */
+    ByteFallbackTokens(int[] ids) {
+        this.ids = Arrays.copyOf(ids, 256);
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        boolean all = true;
+        for (int id : this.ids) {
+            if (id < 0) {
+                all = false;
+                continue;
+            }
+            min = Math.min(min, id);
+            max = Math.max(max, id);
+        }
+        complete = all;
+        minId = max < 0 ? 0 : min;
+        values = new int[max < 0 ? 0 : max - min + 1];
+        Arrays.fill(values, -1);
+        for (int b = 0; b < 256; b++) {
+            if (this.ids[b] >= 0) values[this.ids[b] - minId] = b;
+        }
+    }
+
+    /**
+     * Table of the {@code <0x00>}..{@code <0xFF>} tokens found in {@code vocab}.
+     */
+    static ByteFallbackTokens of(CompiledVocab vocab) {
+        int[] ids = new int[256];
+        for (int b = 0; b < 256; b++) {
+            ids[b] = vocab.id(String.format("<0x%02X>", b));
+        }
+        return new ByteFallbackTokens(ids);
+    }
+
+    /** Whether every byte value has a token. */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /** Token for byte {@code b} (0..255), or -1. */
+    int id(int b) {
+        return ids[b];
+    }
+
+    /** Byte a token stands for, or -1 if it is not a byte-fallback token. */
+    int value(int id) {
+        int index = id - minId;
+        return index >= 0 && index < values.length ? values[index] : -1;
+    }
+}
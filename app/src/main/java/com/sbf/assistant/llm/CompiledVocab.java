@@ -0,0 +1,449 @@
+package com.sbf.assistant.llm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, memory-mapped vocabulary shared by the Whisper and local LLM frontends.
+ *
+ * The file is written once next to the source vocab ({@link #compiledFileFor}) and then
+ * mapped read-only, so loading costs no parsing and the tokens live in the page cache
+ * instead of the Java heap. Layout (little-endian):
+ * <pre>
+ *   header    magic, version, nTokens, nMel, nFft, flags, hashCapacity, blobLength,
+ *             nMerges, nSpecial
+ *   filters   float[nMel * nFft]             (optional mel filter bank)
+ *   offsets   int[nTokens + 1]               token i is blob[offsets[i], offsets[i + 1])
+ *   scores    float[nTokens]                 (only when FLAG_SCORES is set)
+ *   merges    int[nMerges * 2]               BPE merges as (left, right) ids, by rank
+ *   special   int[nSpecial]                  ids matched verbatim before encoding
+ *   hash      int[hashCapacity]              open addressing on FNV-1a, id or -1
+ *   blob      token bytes (UTF-8, or raw bytes for byte-level BPE)
+ * </pre>
+ * Token strings are decoded on demand; {@link #id} looks a string up without any map.
+ */
+public final class CompiledVocab {
+    public static final String EXTENSION = ".cvoc";
+
+    private static final int MAGIC = 0x434F5643; // "CVOC"
+    private static final int VERSION = 2;
+    private static final int HEADER_INTS = 10;
+    private static final int FLAG_SCORES = 1;
+    /** Tokens hold raw bytes, GPT-2 style byte-level BPE */
+    public static final int FLAG_BYTE_LEVEL = 2;
+    /** Text gets a leading space marker before encoding (SentencePiece dummy prefix) */
+    public static final int FLAG_PREFIX_SPACE = 4;
+
+    private static final int WHISPER_MAGIC = 0x5553454e; // "USEN"
+
+    /**
+     * Converts a source vocab file into the compiled format.
+     */
+    public interface Compiler {
+        /**
+         * @return false if the source is not in the expected format
+         */
+        boolean compile(File source, File target) throws IOException;
+    }
+
+    private final ByteBuffer data;
+    private final int size;
+    private final int nMel;
+    private final int nFft;
+    private final int flags;
+    private final int nMerges;
+    private final int nSpecial;
+    private final int offsetsPos;
+    private final int scoresPos;
+    private final int mergesPos;
+    private final int specialPos;
+    private final int hashPos;
+    private final int hashMask;
+    private final int blobPos;
+    private final FloatBuffer filters;
+
+    private CompiledVocab(ByteBuffer data) throws IOException {
+        this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.capacity() < HEADER_INTS * 4 || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("Not a compiled vocab (v" + VERSION + ")");
+        }
+        size = data.getInt(8);
+        nMel = data.getInt(12);
+        nFft = data.getInt(16);
+        flags = data.getInt(20);
+        int hashCapacity = data.getInt(24);
+        int blobLength = data.getInt(28);
+        nMerges = data.getInt(32);
+        nSpecial = data.getInt(36);
+
+        int filtersPos = HEADER_INTS * 4;
+        offsetsPos = filtersPos + nMel * nFft * 4;
+        int afterOffsets = offsetsPos + (size + 1) * 4;
+        scoresPos = (flags & FLAG_SCORES) != 0 ? afterOffsets : -1;
+        mergesPos = afterOffsets + (scoresPos >= 0 ? size * 4 : 0);
+        specialPos = mergesPos + nMerges * 8;
+        hashPos = specialPos + nSpecial * 4;
+        hashMask = hashCapacity - 1;
+        blobPos = hashPos + hashCapacity * 4;
+        if (blobPos + blobLength > data.capacity() || Integer.bitCount(hashCapacity) != 1) {
+            throw new IOException("Truncated compiled vocab");
+        }
+
+        ByteBuffer view = data.duplicate();
+        view.position(filtersPos);
+        view.limit(offsetsPos);
+        filters = view.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * Map a compiled vocab file read-only.
+     */
+    public static CompiledVocab open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return new CompiledVocab(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static File compiledFileFor(File source) {
+        return new File(source.getPath() + EXTENSION);
+    }
+
+    /**
+     * Open the compiled form of {@code source}, converting it first if it is missing,
+     * stale or unreadable.
+     *
+     * @return null if the compiler rejects the source
+     */
+    public static CompiledVocab openOrCompile(File source, Compiler compiler) throws IOException {
+        File target = compiledFileFor(source);
+        if (target.exists() && target.lastModified() >= source.lastModified()) {
+            try {
+                return open(target);
+            } catch (IOException e) {
+                // Written by an older version or cut short; rebuild below
+            }
+        }
+
+        File tmp = new File(target.getPath() + ".tmp");
+        if (!compiler.compile(source, tmp)) {
+            tmp.delete();
+            return null;
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + target);
+        }
+        return open(target);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int filterMel() {
+        return nMel;
+    }
+
+    public int filterFft() {
+        return nFft;
+    }
+
+    /**
+     * Mel filter bank, [nMel][nFft] row-major, backed by the mapped file.
+     */
+    public FloatBuffer filters() {
+        return filters.duplicate();
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int mergeCount() {
+        return nMerges;
+    }
+
+    public int mergeLeft(int rank) {
+        return data.getInt(mergesPos + rank * 8);
+    }
+
+    public int mergeRight(int rank) {
+        return data.getInt(mergesPos + rank * 8 + 4);
+    }
+
+    public int specialCount() {
+        return nSpecial;
+    }
+
+    public int specialId(int index) {
+        return data.getInt(specialPos + index * 4);
+    }
+
+    public boolean hasScores() {
+        return scoresPos >= 0;
+    }
+
+    public float score(int id) {
+        return scoresPos >= 0 ? data.getFloat(scoresPos + id * 4) : 0f;
+    }
+
+    /**
+     * Length of token {@code id} in UTF-8 bytes.
+     */
+    public int byteLength(int id) {
+        return data.getInt(offsetsPos + (id + 1) * 4) - data.getInt(offsetsPos + id * 4);
+    }
+
+    /**
+     * Copy the UTF-8 bytes of token {@code id} into {@code out} and return their count.
+     */
+    public int bytes(int id, byte[] out, int offset) {
+        int start = data.getInt(offsetsPos + id * 4);
+        int length = data.getInt(offsetsPos + (id + 1) * 4) - start;
+        for (int i = 0; i < length; i++) {
+            out[offset + i] = data.get(blobPos + start + i);
+        }
+        return length;
+    }
+
+    public boolean startsWith(int id, byte[] prefix) {
+        int start = data.getInt(offsetsPos + id * 4);
+        int length = data.getInt(offsetsPos + (id + 1) * 4) - start;
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data.get(blobPos + start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Token string, decoded from the mapped blob on each call.
+     */
+    public String token(int id) {
+        if (id < 0 || id >= size) {
+            return null;
+        }
+        byte[] bytes = new byte[byteLength(id)];
+        bytes(id, bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Id of {@code token}, or -1 if it is not in the vocabulary
+     */
+    public int id(String token) {
+        return id(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int id(byte[] utf8) {
+        int slot = hash(utf8, 0, utf8.length) & hashMask;
+        while (true) {
+            int id = data.getInt(hashPos + slot * 4);
+            if (id < 0) {
+                return -1;
+            }
+            if (equalsToken(id, utf8)) {
+                return id;
+            }
+            slot = (slot + 1) & hashMask;
+        }
+    }
+
+    private boolean equalsToken(int id, byte[] utf8) {
+        int start = data.getInt(offsetsPos + id * 4);
+        int end = data.getInt(offsetsPos + (id + 1) * 4);
+        if (end - start != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < utf8.length; i++) {
+            if (data.get(blobPos + start + i) != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h ^= bytes[offset + i] & 0xFF;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // ---- Converters ----
+
+    /**
+     * Convert a Whisper {@code filters_vocab_*.bin} (magic, mel filters, length-prefixed words).
+     */
+    public static boolean compileWhisper(File source, File target) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(source.toPath()));
+        in.order(ByteOrder.nativeOrder());
+        if (in.getInt() != WHISPER_MAGIC) {
+            return false;
+        }
+        int nMel = in.getInt();
+        int nFft = in.getInt();
+        float[] filters = new float[nMel * nFft];
+        in.asFloatBuffer().get(filters);
+        in.position(in.position() + filters.length * 4);
+
+        int nVocab = in.getInt();
+        List<byte[]> tokens = new ArrayList<>(nVocab);
+        for (int i = 0; i < nVocab; i++) {
+            byte[] word = new byte[in.getInt()];
+            in.get(word);
+            tokens.add(word);
+        }
+        write(target, filters, nMel, nFft, tokens, null);
+        return true;
+    }
+
+    /**
+     * Convert a text vocab: one token per line, optionally followed by a tab/space and a score.
+     * Blank lines do not take an id.
+     */
+    public static boolean compileText(File source, File target) throws IOException {
+        List<byte[]> tokens = new ArrayList<>();
+        List<Float> scoreList = new ArrayList<>();
+        boolean anyScore = false;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) continue;
+                int split = indexOfSeparator(trimmed);
+                String token = split < 0 ? trimmed : trimmed.substring(0, split);
+                float score = 0f;
+                if (split >= 0) {
+                    try {
+                        score = Float.parseFloat(trimmed.substring(split + 1).trim());
+                        anyScore = true;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                tokens.add(token.getBytes(StandardCharsets.UTF_8));
+                scoreList.add(score);
+            }
+        }
+
+        float[] scores = null;
+        if (anyScore) {
+            scores = new float[scoreList.size()];
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = scoreList.get(i);
+            }
+        }
+        write(target, null, 0, 0, tokens, scores);
+        return true;
+    }
+
+    /**
+     * Write a compiled vocab. Duplicate tokens resolve to the last id, as a map would.
+     */
+    public static void write(File target, float[] filters, int nMel, int nFft,
+                             List<byte[]> tokens, float[] scores) throws IOException {
+        write(target, filters, nMel, nFft, tokens, scores, null, null, 0);
+    }
+
+    /**
+     * @param merges BPE merges as consecutive (left, right) id pairs in rank order, or null
+     * @param special Ids of tokens matched verbatim in text, or null
+     * @param extraFlags {@link #FLAG_BYTE_LEVEL}, {@link #FLAG_PREFIX_SPACE}
+     */
+    public static void write(File target, float[] filters, int nMel, int nFft, List<byte[]> tokens,
+                             float[] scores, int[] merges, int[] special, int extraFlags) throws IOException {
+        int size = tokens.size();
+        int mergeInts = merges == null ? 0 : merges.length & ~1;
+        int specialCount = special == null ? 0 : special.length;
+        int blobLength = 0;
+        for (byte[] token : tokens) {
+            blobLength += token.length;
+        }
+        int hashCapacity = Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1;
+        int filterFloats = filters == null ? 0 : nMel * nFft;
+        int total = HEADER_INTS * 4 + filterFloats * 4 + (size + 1) * 4
+                + (scores != null ? size * 4 : 0) + mergeInts * 4 + specialCount * 4
+                + hashCapacity * 4 + blobLength;
+
+        ByteBuffer out = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(size)
+                .putInt(filters == null ? 0 : nMel).putInt(filters == null ? 0 : nFft)
+                .putInt((scores != null ? FLAG_SCORES : 0) | extraFlags).putInt(hashCapacity).putInt(blobLength)
+                .putInt(mergeInts / 2).putInt(specialCount);
+        for (int i = 0; i < filterFloats; i++) {
+            out.putFloat(filters[i]);
+        }
+
+        int offset = 0;
+        for (byte[] token : tokens) {
+            out.putInt(offset);
+            offset += token.length;
+        }
+        out.putInt(offset);
+        if (scores != null) {
+            for (int i = 0; i < size; i++) {
+                out.putFloat(scores[i]);
+            }
+        }
+        for (int i = 0; i < mergeInts; i++) {
+            out.putInt(merges[i]);
+        }
+        for (int i = 0; i < specialCount; i++) {
+            out.putInt(special[i]);
+        }
+
+        int[] table = new int[hashCapacity];
+        Arrays.fill(table, -1);
+        int mask = hashCapacity - 1;
+        for (int id = 0; id < size; id++) {
+            byte[] token = tokens.get(id);
+            int slot = hash(token, 0, token.length) & mask;
+            while (table[slot] >= 0 && !Arrays.equals(tokens.get(table[slot]), token)) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+        for (int entry : table) {
+            out.putInt(entry);
+        }
+        for (byte[] token : tokens) {
+            out.put(token);
+        }
+
+        try (FileOutputStream stream = new FileOutputStream(target)) {
+            stream.write(out.array(), 0, out.position());
+        }
+    }
+
+    private static int indexOfSeparator(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t' || c == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,146 @@
+package com.sbf.assistant.llm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide, bounded worker pool for CPU work in the local inference stack
+ * (mel extraction, audio preprocessing, tokenization helpers).
+ *
+ * Threads are created once and reused. The parallelism used by {@link #parallelFor}
+ * follows the per-model {@link CpuBudget} share unless it is set explicitly.
+ */
+public final class ComputePool {
+    private static final int MAX_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final ComputePool INSTANCE = new ComputePool();
+
+    private final ThreadPoolExecutor executor;
+    // Explicit parallelism, or 0 to follow the CPU budget
+    private volatile int parallelism;
+
+    /**
+     * Work over a contiguous range [start, end). {@code chunk} is a stable index in
+     * [0, parallelism) that callers can use to pick per-thread scratch buffers.
+     */
+    public interface RangeTask {
+        void run(int chunk, int start, int end);
+    }
+
+    private ComputePool() {
+        executor = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new ComputeThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ComputePool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * The current per-model CPU budget share; it shrinks while several models are loaded.
+     */
+    public static int defaultParallelism() {
+        return Math.max(1, Math.min(MAX_THREADS, CpuBudget.get().threadsPerModel()));
+    }
+
+    public static int maxThreads() {
+        return MAX_THREADS;
+    }
+
+    public int getParallelism() {
+        int configured = parallelism;
+        return configured > 0 ? configured : defaultParallelism();
+    }
+
+    /**
+     * Set how many threads a single {@link #parallelFor} call may use.
+     * Values <= 0 restore the default.
+     */
+    public void setParallelism(int threads) {
+        parallelism = threads <= 0 ? 0 : Math.min(threads, MAX_THREADS);
+    }
+
+    /**
+     * Split [0, total) into at most {@code maxChunks} (and at most the configured
+     * parallelism) contiguous ranges and run them in parallel. The calling thread runs
+     * the first range itself and returns once every range has finished.
+     */
+    public void parallelFor(int total, int maxChunks, RangeTask task) {
+        if (total <= 0) return;
+        int chunks = Math.max(1, Math.min(Math.min(maxChunks, getParallelism()), total));
+        if (chunks == 1 || ComputeThreadFactory.isComputeThread()) {
+            // Nested calls from a pool thread run inline to avoid starving the pool.
+            task.run(0, 0, total);
+            return;
+        }
+
+        int per = (total + chunks - 1) / chunks;
+        CountDownLatch done = new CountDownLatch(chunks - 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int c = 1; c < chunks; c++) {
+            final int chunk = c;
+            final int start = c * per;
+            final int end = Math.min(total, start + per);
+            executor.execute(() -> {
+                try {
+                    if (start < end) task.run(chunk, start, end);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        try {
+            task.run(0, 0, Math.min(total, per));
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for compute pool", e);
+        }
+        Throwable error = failure.get();
+        if (error != null) {
+            throw new IllegalStateException("Compute task failed", error);
+        }
+    }
+
+    /**
+     * Submit a standalone task to the pool.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    private static final class ComputeThreadFactory implements ThreadFactory {
+        private static final ThreadLocal<Boolean> IS_COMPUTE = new ThreadLocal<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        static boolean isComputeThread() {
+            return IS_COMPUTE.get() != null;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                IS_COMPUTE.set(Boolean.TRUE);
+                runnable.run();
+            }, "local-compute-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.sbf.assistant.llm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide CPU budget for local inference.
+ *
+ * Reads the core topology from sysfs and counts only the performance cores (everything
+ * faster than the slowest cluster on big.LITTLE parts). Those cores are split evenly
+ * between the models that are currently loaded: one active model gets all of them, a
+ * second one halves the share. Fewer threads than cores keeps the work off the little
+ * cores, where a straggler thread would hold back every operator.
+ *
+ * Interpreters take their share when they are created and keep it: LiteRT cannot change
+ * an interpreter's thread count, and rebuilding a loaded model would drop its KV cache. A
+ * model loaded while it was alone therefore keeps every performance core after a second
+ * one arrives; only the newcomer and later interpreters get the smaller share.
+ * {@link ComputePool} follows the current share on every call.
+ */
+public final class CpuBudget {
+    public static final String OWNER_LLM = "llm";
+    public static final String OWNER_WHISPER = "whisper";
+
+    private static final String CPU_ROOT = "/sys/devices/system/cpu";
+    private static final int MAX_CPUS = 64;
+    private static final CpuBudget INSTANCE = new CpuBudget(
+            Topology.read(new File(CPU_ROOT), Runtime.getRuntime().availableProcessors()));
+
+    private final Topology topology;
+    // Active owners and how many interpreters each holds
+    private final Map<String, Integer> owners = new LinkedHashMap<>();
+
+    CpuBudget(Topology topology) {
+        this.topology = topology;
+    }
+
+    public static CpuBudget get() {
+        return INSTANCE;
+    }
+
+    public Topology getTopology() {
+        return topology;
+    }
+
+    /**
+     * Register an interpreter of {@code owner} and return its thread count. Interpreters of
+     * the same owner share a slot: a target and its draft model run one after another, so
+     * each gets the whole share.
+     */
+    public int acquire(String owner) {
+        return acquire(owner, 1);
+    }
+
+    /**
+     * {@link #acquire(String)} for an interpreter that runs alongside {@code parts - 1}
+     * others of the same owner, e.g. one engine of a Whisper pool: it gets that fraction of
+     * the share, so the pool at full size does not oversubscribe the cores.
+     */
+    public synchronized int acquire(String owner, int parts) {
+        Integer count = owners.get(owner);
+        owners.put(owner, count == null ? 1 : count + 1);
+        return Math.max(1, threadsPerModel() / Math.max(1, parts));
+    }
+
+    /**
+     * Give back a slot taken by {@link #acquire}; the remaining owners' share grows.
+     */
+    public synchronized void release(String owner) {
+        Integer count = owners.get(owner);
+        if (count == null) return;
+        if (count <= 1) {
+            owners.remove(owner);
+        } else {
+            owners.put(owner, count - 1);
+        }
+    }
+
+    /**
+     * Threads each active model may use: the performance cores split between owners.
+     */
+    public synchronized int threadsPerModel() {
+        return Math.max(1, topology.performanceCores / Math.max(1, owners.size()));
+    }
+
+    public synchronized int getActiveOwners() {
+        return owners.size();
+    }
+
+    /**
+     * CPU core layout. Cores whose maximum frequency is above the slowest cluster's count
+     * as performance cores; when the layout is uniform or unreadable, all cores (or half,
+     * if the frequencies are unknown) do.
+     */
+    public static final class Topology {
+        final long[] maxFreqKhz;
+        final int performanceCores;
+
+        private Topology(long[] maxFreqKhz, int performanceCores) {
+            this.maxFreqKhz = maxFreqKhz;
+            this.performanceCores = performanceCores;
+        }
+
+        /**
+         * @param maxFreqKhz Maximum frequency of each core, 0 where unknown
+         * @param fallbackCores Core count to assume when no frequency is known
+         */
+        static Topology fromFrequencies(long[] maxFreqKhz, int fallbackCores) {
+            long slowest = Long.MAX_VALUE;
+            long fastest = 0;
+            for (long freq : maxFreqKhz) {
+                if (freq <= 0) continue;
+                slowest = Math.min(slowest, freq);
+                fastest = Math.max(fastest, freq);
+            }
+            if (fastest == 0) {
+                return new Topology(maxFreqKhz, Math.max(1, fallbackCores / 2));
+            }
+            if (slowest == fastest) {
+                return new Topology(maxFreqKhz, maxFreqKhz.length);
+            }
+            int performance = 0;
+            for (long freq : maxFreqKhz) {
+                if (freq > slowest) performance++;
+            }
+            return new Topology(maxFreqKhz, performance);
+        }
+
+        static Topology read(File cpuRoot, int fallbackCores) {
+            int cpus = 0;
+            while (cpus < MAX_CPUS && new File(cpuRoot, "cpu" + cpus).isDirectory()) {
+                cpus++;
+            }
+            if (cpus == 0) {
+                return fromFrequencies(new long[0], fallbackCores);
+            }
+            long[] freqs = new long[cpus];
+            for (int i = 0; i < cpus; i++) {
+                freqs[i] = readLong(new File(cpuRoot, "cpu" + i + "/cpufreq/cpuinfo_max_freq"));
+            }
+            return fromFrequencies(freqs, fallbackCores);
+        }
+
+        private static long readLong(File file) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line = reader.readLine();
+                return line == null ? 0 : Long.parseLong(line.trim());
+            } catch (IOException | NumberFormatException | SecurityException e) {
+                return 0;
+            }
+        }
+
+        public int getCoreCount() {
+            return maxFreqKhz.length;
+        }
+
+        public int getPerformanceCores() {
+            return performanceCores;
+        }
+
+        public boolean isHeterogeneous() {
+            return performanceCores < maxFreqKhz.length;
+        }
+
+        @Override
+        public String toString() {
+            return performanceCores + "/" + maxFreqKhz.length + " performance cores";
+        }
+    }
+}
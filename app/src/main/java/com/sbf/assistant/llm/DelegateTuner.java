@@ -0,0 +1,322 @@
+package com.sbf.assistant.llm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.tensorflow.lite.Interpreter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Picks the fastest TFLite backend for each model on this device.
+ *
+ * The first load of a model benchmarks CPU (XNNPACK), GPU at fp16 and fp32 precision and
+ * NNAPI on zero-filled inputs, and keeps the one with the lowest median latency. The
+ * result is stored per model hash and device build, so it survives restarts and is
+ * redone after a model or OS update. GPU candidates serialize their compiled kernels into
+ * {@link #getKernelCacheDir()}, so the winning GPU variant loads without recompiling.
+ *
+ * An accelerator has to beat the CPU by {@link #MIN_SPEEDUP}; a close call is not worth
+ * its delegate's load time and memory.
+ */
+public final class DelegateTuner {
+    private static final String TAG = "DelegateTuner";
+    private static final String PREFS = "delegate_tuning";
+    private static final float MIN_SPEEDUP = 1.1f;
+    private static final int WARMUP_RUNS = 1;
+    private static final int TIMED_RUNS = 3;
+    // Bytes hashed from each end of the model file
+    private static final int HASH_SPAN = 1 << 20;
+
+    private static volatile DelegateTuner instance;
+
+    private final SharedPreferences prefs;
+    private final File kernelCacheDir;
+
+    public enum Backend {
+        CPU("CPU (XNNPACK)"),
+        GPU_FP16("GPU fp16"),
+        GPU_FP32("GPU fp32"),
+        NNAPI("NNAPI");
+
+        public final String label;
+
+        Backend(String label) {
+            this.label = label;
+        }
+
+        public boolean isGpu() {
+            return this == GPU_FP16 || this == GPU_FP32;
+        }
+    }
+
+    /**
+     * Tuning outcome of one model on this device.
+     */
+    public static final class Result {
+        public final String modelKey;
+        public final Backend backend;
+        /** Median run latency of each backend that worked. */
+        public final Map<Backend, Float> latencyMs;
+        public final long tunedAt;
+        final String fileName;
+        final long fileSize;
+        final long fileModified;
+
+        Result(String modelKey, Backend backend, Map<Backend, Float> latencyMs, long tunedAt,
+               String fileName, long fileSize, long fileModified) {
+            this.modelKey = modelKey;
+            this.backend = backend;
+            this.latencyMs = Collections.unmodifiableMap(latencyMs);
+            this.tunedAt = tunedAt;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.fileModified = fileModified;
+        }
+
+        boolean describes(File file) {
+            return fileName.equals(file.getName()) && fileSize == file.length()
+                    && fileModified == file.lastModified();
+        }
+
+        String toJson() throws JSONException {
+            JSONObject latency = new JSONObject();
+            for (Map.Entry<Backend, Float> entry : latencyMs.entrySet()) {
+                latency.put(entry.getKey().name(), entry.getValue().doubleValue());
+            }
+            return new JSONObject()
+                    .put("key", modelKey)
+                    .put("backend", backend.name())
+                    .put("latency", latency)
+                    .put("tunedAt", tunedAt)
+                    .put("file", fileName)
+                    .put("size", fileSize)
+                    .put("modified", fileModified)
+                    .toString();
+        }
+
+        static Result fromJson(String json) throws JSONException {
+            JSONObject obj = new JSONObject(json);
+            Map<Backend, Float> latency = new EnumMap<>(Backend.class);
+            JSONObject timings = obj.getJSONObject("latency");
+            Iterator<String> names = timings.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                latency.put(Backend.valueOf(name), (float) timings.getDouble(name));
+            }
+            return new Result(obj.getString("key"), Backend.valueOf(obj.getString("backend")), latency,
+                    obj.getLong("tunedAt"), obj.getString("file"), obj.getLong("size"), obj.getLong("modified"));
+        }
+    }
+
+    private DelegateTuner(Context context) {
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        kernelCacheDir = new File(context.getCodeCacheDir(), "gpu_kernels");
+        if (!kernelCacheDir.isDirectory() && !kernelCacheDir.mkdirs()) {
+            Log.w(TAG, "Cannot create kernel cache " + kernelCacheDir);
+        }
+    }
+
+    public static DelegateTuner get(Context context) {
+        DelegateTuner tuner = instance;
+        if (tuner == null) {
+            synchronized (DelegateTuner.class) {
+                tuner = instance;
+                if (tuner == null) {
+                    tuner = new DelegateTuner(context.getApplicationContext());
+                    instance = tuner;
+                }
+            }
+        }
+        return tuner;
+    }
+
+    public File getKernelCacheDir() {
+        return kernelCacheDir;
+    }
+
+    /**
+     * The stored result for a model file on this device, found without hashing it.
+     * Null if the model has not been tuned (or changed since).
+     */
+    public Result lookup(File modelFile) {
+        String suffix = "@" + deviceKey();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().endsWith(suffix) || !(entry.getValue() instanceof String)) continue;
+            Result result = parse((String) entry.getValue());
+            if (result != null && result.describes(modelFile)) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The stored backend choice for a model, benchmarking the candidates first if there is
+     * none. Null if the model cannot be hashed or no backend runs it.
+     */
+    public synchronized Result tune(File modelFile, ByteBuffer model, int numThreads) {
+        String modelKey;
+        try {
+            modelKey = modelKey(modelFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot hash " + modelFile, e);
+            return null;
+        }
+        String prefKey = modelKey + "@" + deviceKey();
+        String stored = prefs.getString(prefKey, null);
+        if (stored != null) {
+            Result result = parse(stored);
+            if (result != null) return result;
+        }
+
+        Map<Backend, Float> latency = new EnumMap<>(Backend.class);
+        for (Backend backend : Backend.values()) {
+            if (backend.isGpu() && !TfLiteHelper.isGpuDelegateAvailable()) continue;
+            Float ms = benchmark(model, backend, numThreads, modelKey);
+            if (ms != null) latency.put(backend, ms);
+        }
+        Backend best = pickFastest(latency);
+        if (best == null) {
+            return null;
+        }
+        Result result = new Result(modelKey, best, latency, System.currentTimeMillis(),
+                modelFile.getName(), modelFile.length(), modelFile.lastModified());
+        Log.d(TAG, modelFile.getName() + ": " + best.label + " " + latency);
+        try {
+            prefs.edit().putString(prefKey, result.toJson()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Cannot store tuning result", e);
+        }
+        return result;
+    }
+
+    /**
+     * Drop the stored choice for a model so the next load benchmarks again.
+     */
+    public void forget(File modelFile) {
+        Result result = lookup(modelFile);
+        if (result != null) {
+            prefs.edit().remove(result.modelKey + "@" + deviceKey()).apply();
+        }
+    }
+
+    /**
+     * Fastest backend, keeping the CPU unless an accelerator beats it by {@link #MIN_SPEEDUP}.
+     */
+    static Backend pickFastest(Map<Backend, Float> latencyMs) {
+        Backend best = null;
+        float bestMs = Float.MAX_VALUE;
+        for (Map.Entry<Backend, Float> entry : latencyMs.entrySet()) {
+            if (entry.getValue() < bestMs) {
+                best = entry.getKey();
+                bestMs = entry.getValue();
+            }
+        }
+        Float cpuMs = latencyMs.get(Backend.CPU);
+        if (best != null && best != Backend.CPU && cpuMs != null && bestMs * MIN_SPEEDUP > cpuMs) {
+            return Backend.CPU;
+        }
+        return best;
+    }
+
+    // Median latency of one backend, or null if it cannot run the model
+    private Float benchmark(ByteBuffer model, Backend backend, int numThreads, String modelKey) {
+        TfLiteHelper.InterpreterResult candidate = null;
+        try {
+            candidate = TfLiteHelper.open(model, backend, numThreads, null, kernelCacheDir, modelKey);
+            return medianRunMs(candidate.interpreter);
+        } catch (Throwable t) {
+            Log.d(TAG, backend.label + " unusable: " + t.getMessage());
+            return null;
+        } finally {
+            if (candidate != null) candidate.release();
+        }
+    }
+
+    private static float medianRunMs(Interpreter interpreter) {
+        ByteBuffer[] inputs = new ByteBuffer[interpreter.getInputTensorCount()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = zeroed(interpreter.getInputTensor(i).numBytes());
+        }
+        Map<Integer, Object> outputs = new HashMap<>();
+        for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+            outputs.put(i, zeroed(interpreter.getOutputTensor(i).numBytes()));
+        }
+        long[] nanos = new long[TIMED_RUNS];
+        for (int run = -WARMUP_RUNS; run < TIMED_RUNS; run++) {
+            for (ByteBuffer input : inputs) input.rewind();
+            for (Object output : outputs.values()) ((ByteBuffer) output).rewind();
+            long start = System.nanoTime();
+            interpreter.runForMultipleInputsOutputs(inputs, outputs);
+            if (run >= 0) nanos[run] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[TIMED_RUNS / 2] / 1_000_000f;
+    }
+
+    private static ByteBuffer zeroed(int bytes) {
+        return ByteBuffer.allocateDirect(Math.max(bytes, 1)).order(ByteOrder.nativeOrder());
+    }
+
+    private static Result parse(String json) {
+        try {
+            return Result.fromJson(json);
+        } catch (JSONException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Backend speed depends on the driver stack, so an OS update invalidates results
+    private static String deviceKey() {
+        return Integer.toHexString(Build.FINGERPRINT.hashCode());
+    }
+
+    /**
+     * Stable model id: SHA-256 of the size and the first and last MiB. Hashing multi-GB
+     * models whole would cost more than the benchmark.
+     */
+    static String modelKey(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, length));
+            byte[] span = new byte[(int) Math.min(HASH_SPAN, length)];
+            raf.readFully(span);
+            digest.update(span);
+            if (length > HASH_SPAN) {
+                raf.seek(Math.max(HASH_SPAN, length - HASH_SPAN));
+                int tail = (int) Math.min(HASH_SPAN, length - HASH_SPAN);
+                raf.readFully(span, 0, tail);
+                digest.update(span, 0, tail);
+            }
+        }
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package com.sbf.assistant.llm;
+
+/**
+ * Picks how many tokens the draft model proposes per speculative-decoding round.
+ *
+ * Tracks a moving average of the fraction of drafted tokens the target accepts. A high
+ * rate grows the draft (more tokens per target pass), a low one shrinks it, and when even
+ * single-token drafts are mostly rejected speculation is reported as not worthwhile, so
+ * the caller can fall back to plain decoding.
+ *
+ * Not thread-safe: use one controller per generation loop.
+ */
+public final class DraftLengthController {
+    private static final float SMOOTHING = 0.3f;
+    private static final float GROW_ABOVE = 0.75f;
+    private static final float SHRINK_BELOW = 0.4f;
+    private static final float GIVE_UP_BELOW = 0.15f;
+    // Rounds observed before giving up, so one bad start does not disable speculation
+    private static final int MIN_ROUNDS = 8;
+
+    private final int minLength;
+    private final int maxLength;
+    private final int initialLength;
+    private int draftLength;
+    private float averageRate;
+    private int rounds;
+    private long proposed;
+    private long accepted;
+
+    public DraftLengthController(int minLength, int maxLength, int initialLength) {
+        if (minLength < 1 || maxLength < minLength) {
+            throw new IllegalArgumentException("Invalid draft range: " + minLength + ".." + maxLength);
+        }
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.initialLength = Math.max(minLength, Math.min(initialLength, maxLength));
+        reset();
+    }
+
+    /**
+     * Start a new generation with the initial draft length and no history.
+     */
+    public void reset() {
+        draftLength = initialLength;
+        averageRate = 0.5f;
+        rounds = 0;
+        proposed = 0;
+        accepted = 0;
+    }
+
+    public int getDraftLength() {
+        return draftLength;
+    }
+
+    /**
+     * Record one round: {@code acceptedTokens} of {@code proposedTokens} drafts matched.
+     */
+    public void record(int proposedTokens, int acceptedTokens) {
+        if (proposedTokens <= 0) {
+            return;
+        }
+        float rate = (float) acceptedTokens / proposedTokens;
+        averageRate += SMOOTHING * (rate - averageRate);
+        rounds++;
+        proposed += proposedTokens;
+        accepted += acceptedTokens;
+
+        if (averageRate > GROW_ABOVE && draftLength < maxLength) {
+            draftLength++;
+        } else if (averageRate < SHRINK_BELOW && draftLength > minLength) {
+            draftLength--;
+        }
+    }
+
+    /**
+     * False once the draft is at its shortest and still mostly rejected.
+     */
+    public boolean isWorthwhile() {
+        return rounds < MIN_ROUNDS || draftLength > minLength || averageRate >= GIVE_UP_BELOW;
+    }
+
+    /**
+     * Accepted fraction of all drafted tokens since {@link #reset()}.
+     */
+    public float getAcceptanceRate() {
+        return proposed == 0 ? 0f : (float) accepted / proposed;
+    }
+
+    public long getProposedTokens() {
+        return proposed;
+    }
+
+    public long getAcceptedTokens() {
+        return accepted;
+    }
+}
@@ -0,0 +1,114 @@
+package com.sbf.assistant.llm;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Applies a {@link JsonGrammar} to next-token logits: tokens whose text cannot continue the
+ * output get -Infinity, written straight into the engine-owned logits buffer before the
+ * sampler sees it.
+ *
+ * Token text comes from a flat table (bytes of token i in [offsets[i], offsets[i + 1])),
+ * with special tokens empty. Before the output has started, tokens that would open the JSON
+ * object must fit the schema; special tokens are allowed then. They are rejected while the
+ * object is open, and the end-of-sequence ones are allowed once it has closed. Each step
+ * remembers which first bytes the grammar rejects, so most tokens are dismissed without
+ * running the automaton. Nothing is allocated per step.
+ *
+ * Not thread-safe: use one mask per generation.
+ */
+public final class GrammarMask {
+    private static final byte UNKNOWN = 0;
+    private static final byte ALLOWED = 1;
+    private static final byte REJECTED = 2;
+
+    private final JsonGrammar grammar;
+    private final byte[] tokenBytes;
+    private final int[] tokenOffsets;
+    private final int tokenCount;
+    private final boolean[] endTokens;
+    private final byte[] firstByte = new byte[256];
+
+    /**
+     * @param tokenBytes Concatenated token text
+     * @param tokenOffsets Start of each token in {@code tokenBytes}, plus the end
+     * @param endIds End-of-sequence token ids
+     */
+    public GrammarMask(JsonGrammar grammar, byte[] tokenBytes, int[] tokenOffsets, int[] endIds) {
+        this.grammar = grammar;
+        this.tokenBytes = tokenBytes;
+        this.tokenOffsets = tokenOffsets;
+        this.tokenCount = tokenOffsets.length - 1;
+        this.endTokens = new boolean[tokenCount];
+        for (int id : endIds) {
+            if (id >= 0 && id < tokenCount) {
+                endTokens[id] = true;
+            }
+        }
+    }
+
+    /**
+     * Mask logits in [position, limit) of the buffer. Does nothing once the output has
+     * turned out to be free text.
+     *
+     * @return false if no token fits the grammar
+     */
+    public boolean mask(FloatBuffer logits) {
+        if (grammar.isFreeText()) {
+            return true;
+        }
+        Arrays.fill(firstByte, UNKNOWN);
+        boolean open = grammar.isConstraining();
+        boolean complete = grammar.isComplete();
+        int base = logits.position();
+        int count = logits.remaining();
+        boolean any = false;
+        for (int id = 0; id < count; id++) {
+            if (id < tokenCount && logits.get(base + id) != Float.NEGATIVE_INFINITY && allows(id, open, complete)) {
+                any = true;
+            } else {
+                logits.put(base + id, Float.NEGATIVE_INFINITY);
+            }
+        }
+        return any;
+    }
+
+    private boolean allows(int id, boolean open, boolean complete) {
+        int start = tokenOffsets[id];
+        int length = tokenOffsets[id + 1] - start;
+        if (length == 0) {
+            return !open || (complete && endTokens[id]);
+        }
+        int first = tokenBytes[start] & 0xFF;
+        byte state = firstByte[first];
+        if (state == UNKNOWN) {
+            state = grammar.canAccept(tokenBytes, start, 1) ? ALLOWED : REJECTED;
+            firstByte[first] = state;
+        }
+        if (state == REJECTED) {
+            return false;
+        }
+        return length == 1 || grammar.canAccept(tokenBytes, start, length);
+    }
+
+    /**
+     * Advance the grammar over a sampled token. Special tokens leave it unchanged.
+     *
+     * @return false if the token does not fit
+     */
+    public boolean accept(int id) {
+        if (id < 0 || id >= tokenCount) {
+            return false;
+        }
+        int start = tokenOffsets[id];
+        int length = tokenOffsets[id + 1] - start;
+        return length == 0 || grammar.accept(tokenBytes, start, length);
+    }
+
+    /**
+     * Whether the output is a complete JSON object, so generation can stop.
+     */
+    public boolean isComplete() {
+        return grammar.isComplete();
+    }
+}
@@ -0,0 +1,237 @@
+package com.sbf.assistant.llm
+
+import android.app.ActivityManager
+import android.content.Context
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import java.util.PriorityQueue
+import java.util.concurrent.Executors
+
+/**
+ * Process-wide scheduler for on-device inference.
+ *
+ * Each engine runs on its own [Lane]: a dedicated long-lived thread plus a priority queue,
+ * so an engine runs one job at a time and waiting jobs start most urgent first (voice,
+ * then chat, then background), in arrival order within a class.
+ *
+ * Jobs call [Ticket.checkpoint] at token boundaries, where:
+ * - a background job is preempted ([PreemptedException]) when a more urgent job waits
+ *   for its lane, so a voice turn never sits behind a background task;
+ * - any job pauses while a more urgent one runs on another lane, leaving it the CPU.
+ *
+ * Background jobs are refused ([AdmissionException]) while the system reports low memory.
+ */
+object InferenceScheduler {
+    const val LANE_TFLITE_LLM = "tflite-llm"
+    const val LANE_MEDIAPIPE = "mediapipe"
+    const val LANE_GEMINI_NANO = "gemini-nano"
+    const val LANE_WHISPER = "whisper"
+
+    /** Urgency classes, least urgent first. */
+    enum class Priority { BACKGROUND, CHAT, VOICE }
+
+    class PreemptedException(label: String) : Exception("Preempted: $label")
+
+    class AdmissionException(label: String) : Exception("Rejected under memory pressure: $label")
+
+    fun interface MemoryProbe {
+        fun isLow(): Boolean
+    }
+
+    class Lane internal constructor(val name: String) {
+        /** The lane's thread; interpreters stay on it across jobs. */
+        val dispatcher: CoroutineDispatcher = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "inference-$name").apply { isDaemon = true }
+        }.asCoroutineDispatcher()
+
+        internal val queue = PriorityQueue<Ticket>(
+            compareByDescending<Ticket> { it.priority }.thenBy { it.sequence }
+        )
+        internal var running: Ticket? = null
+        internal var completed = 0L
+        internal var totalWaitNanos = 0L
+        internal var maxWaitNanos = 0L
+        internal var preempted = 0L
+        internal var rejected = 0L
+        internal var pauses = 0L
+    }
+
+    data class LaneStats(
+        val lane: String,
+        val running: Priority?,
+        val queueDepth: Int,
+        val completed: Long,
+        val averageWaitMs: Long,
+        val maxWaitMs: Long,
+        val preempted: Long,
+        val rejected: Long,
+        val pauses: Long
+    )
+
+    class Ticket internal constructor(
+        val lane: Lane,
+        val priority: Priority,
+        val label: String,
+        internal val sequence: Long
+    ) {
+        internal val granted = CompletableDeferred<Unit>()
+        internal val enqueuedNanos = System.nanoTime()
+
+        /**
+         * Token-boundary hook: throws [PreemptedException] or suspends while more urgent
+         * work runs elsewhere; returns at once otherwise.
+         */
+        suspend fun checkpoint() = InferenceScheduler.checkpoint(this)
+    }
+
+    private val lanes = LinkedHashMap<String, Lane>()
+    // Bumped whenever a job starts or ends, to wake paused jobs
+    private val changes = MutableStateFlow(0L)
+    private var nextSequence = 0L
+
+    @Volatile
+    var memoryProbe: MemoryProbe = MemoryProbe { false }
+
+    @Volatile
+    private var probeInstalled = false
+
+    /**
+     * Refuse background work while [ActivityManager] reports low memory. Idempotent.
+     */
+    fun installMemoryProbe(context: Context) {
+        if (probeInstalled) return
+        probeInstalled = true
+        val manager = context.applicationContext.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        memoryProbe = MemoryProbe {
+            val info = ActivityManager.MemoryInfo()
+            manager.getMemoryInfo(info)
+            info.lowMemory
+        }
+    }
+
+    @Synchronized
+    fun lane(name: String): Lane = lanes.getOrPut(name) { Lane(name) }
+
+    /**
+     * Run [block] on the lane's thread once the lane is granted.
+     */
+    suspend fun <T> execute(
+        lane: Lane,
+        priority: Priority,
+        label: String,
+        block: suspend (Ticket) -> T
+    ): T = withPermit(lane, priority, label) { ticket ->
+        withContext(lane.dispatcher) { block(ticket) }
+    }
+
+    /**
+     * [execute] for callers on plain worker threads.
+     */
+    fun <T> executeBlocking(lane: Lane, priority: Priority, label: String, block: (Ticket) -> T): T =
+        runBlocking { execute(lane, priority, label) { block(it) } }
+
+    /**
+     * Hold the lane while [block] runs in the caller's context. For flows, which must
+     * emit from their own context: collect with flowOn([Lane.dispatcher]).
+     */
+    suspend fun <T> withPermit(
+        lane: Lane,
+        priority: Priority,
+        label: String,
+        block: suspend (Ticket) -> T
+    ): T {
+        val ticket = enqueue(lane, priority, label)
+        try {
+            ticket.granted.await()
+        } catch (e: CancellationException) {
+            abandon(ticket)
+            throw e
+        }
+        try {
+            return block(ticket)
+        } finally {
+            finish(ticket)
+        }
+    }
+
+    @Synchronized
+    fun stats(): List<LaneStats> = lanes.values.map { lane ->
+        LaneStats(
+            lane = lane.name,
+            running = lane.running?.priority,
+            queueDepth = lane.queue.size,
+            completed = lane.completed,
+            averageWaitMs = if (lane.completed == 0L) 0 else lane.totalWaitNanos / lane.completed / 1_000_000,
+            maxWaitMs = lane.maxWaitNanos / 1_000_000,
+            preempted = lane.preempted,
+            rejected = lane.rejected,
+            pauses = lane.pauses
+        )
+    }
+
+    @Synchronized
+    private fun enqueue(lane: Lane, priority: Priority, label: String): Ticket {
+        if (priority == Priority.BACKGROUND && memoryProbe.isLow()) {
+            lane.rejected++
+            throw AdmissionException(label)
+        }
+        val ticket = Ticket(lane, priority, label, nextSequence++)
+        lane.queue.add(ticket)
+        dispatch(lane)
+        return ticket
+    }
+
+    private fun dispatch(lane: Lane) {
+        if (lane.running != null) return
+        val next = lane.queue.poll() ?: return
+        val waited = System.nanoTime() - next.enqueuedNanos
+        lane.totalWaitNanos += waited
+        lane.maxWaitNanos = maxOf(lane.maxWaitNanos, waited)
+        lane.running = next
+        next.granted.complete(Unit)
+        changes.value++
+    }
+
+    @Synchronized
+    private fun finish(ticket: Ticket) {
+        val lane = ticket.lane
+        if (lane.running !== ticket) return
+        lane.running = null
+        lane.completed++
+        dispatch(lane)
+        changes.value++
+    }
+
+    // Cancelled while waiting; the grant may have raced in
+    @Synchronized
+    private fun abandon(ticket: Ticket) {
+        if (!ticket.lane.queue.remove(ticket)) {
+            finish(ticket)
+        }
+    }
+
+    private suspend fun checkpoint(ticket: Ticket) {
+        while (true) {
+            val seen = synchronized(this) {
+                val lane = ticket.lane
+                if (ticket.priority == Priority.BACKGROUND && lane.queue.any { it.priority > ticket.priority }) {
+                    lane.preempted++
+                    throw PreemptedException(ticket.label)
+                }
+                val urgentElsewhere = lanes.values.any { other ->
+                    other !== lane && other.running.let { it != null && it.priority > ticket.priority }
+                }
+                if (!urgentElsewhere) return
+                lane.pauses++
+                changes.value
+            }
+            changes.first { it != seen }
+        }
+    }
+}
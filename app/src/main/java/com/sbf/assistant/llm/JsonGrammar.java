@@ -0,0 +1,685 @@
+package com.sbf.assistant.llm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte-level pushdown automaton for JSON that follows a schema, used to constrain decoding.
+ *
+ * The schema is a tree of {@link Node}s: objects with known keys (each at most once, required
+ * ones before the closing brace), arrays, free strings, string enums, numbers, integers,
+ * booleans, null and "any value". {@link Node#toolCall} is an object whose "arguments"
+ * schema depends on the "name" enum value matched before it.
+ *
+ * A reply that starts with anything but '{' (after whitespace) is free text; one that opens
+ * with '{' must follow the schema. Whitespace between tokens is allowed up to a short run,
+ * so the model cannot stall on it. State lives in preallocated arrays: {@link #canAccept}
+ * and {@link #accept} never allocate.
+ *
+ * LIMITATIONS:
+ * - Enum values and keys are matched byte for byte, without escapes.
+ * - Objects with more than 63 keys, and enums with more than 63 values, are not restricted.
+ *
+ * Not thread-safe: use one grammar per generation.
+ */
+public final class JsonGrammar {
+    private static final int MAX_DEPTH = 32;
+    private static final int MAX_WHITESPACE = 16;
+    private static final int MAX_KEYS = 63;
+
+    private static final int MODE_PENDING = 0;
+    private static final int MODE_FREE = 1;
+    private static final int MODE_JSON = 2;
+    private static final int MODE_DONE = 3;
+
+    private static final int REJECT = 0;
+    private static final int CONSUMED = 1;
+    private static final int REPROCESS = 2;
+
+    // Object phases
+    private static final int OBJ_START = 0;
+    private static final int OBJ_KEY = 1;
+    private static final int OBJ_COLON = 2;
+    private static final int OBJ_VALUE = 3;
+    private static final int OBJ_AFTER_VALUE = 4;
+    private static final int OBJ_NEXT_KEY = 5;
+
+    // Array phases
+    private static final int ARR_START = 0;
+    private static final int ARR_AFTER = 1;
+    private static final int ARR_NEXT = 2;
+
+    // String phases; 2..5 are \\u escapes with 4..1 hex digits left
+    private static final int STR_NORMAL = 0;
+    private static final int STR_ESCAPE = 1;
+    private static final int STR_HEX_FIRST = 5;
+    private static final int STR_HEX_LAST = 2;
+
+    // Number phases
+    private static final int NUM_SIGN = 0;
+    private static final int NUM_ZERO = 1;
+    private static final int NUM_INT = 2;
+    private static final int NUM_DOT = 3;
+    private static final int NUM_FRAC = 4;
+    private static final int NUM_EXP = 5;
+    private static final int NUM_EXP_SIGN = 6;
+    private static final int NUM_EXP_DIGITS = 7;
+
+    /**
+     * Schema element. Build with the static factories; nodes are immutable and may be shared.
+     */
+    public static final class Node {
+        static final int OBJECT = 0;
+        static final int TOOL_CALL = 1;
+        static final int ARRAY = 2;
+        static final int STRING = 3;
+        static final int ENUM = 4;
+        static final int LITERAL = 5;
+        static final int NUMBER = 6;
+        static final int INTEGER = 7;
+        static final int ANY = 8;
+        static final int KEY = 9;
+
+        final int kind;
+        // Keys (objects) or values (enums, literals); null for objects with free keys
+        final byte[][] names;
+        // Property schemas (objects) or argument schemas per tool (tool calls)
+        final Node[] values;
+        final long required;
+        // Array items, or the tool-name enum of a tool call
+        final Node item;
+        final int minItems;
+
+        private Node(int kind, byte[][] names, Node[] values, long required, Node item, int minItems) {
+            this.kind = kind;
+            this.names = names;
+            this.values = values;
+            this.required = required;
+            this.item = item;
+            this.minItems = minItems;
+        }
+
+        private static Node of(int kind) {
+            return new Node(kind, null, null, 0, null, 0);
+        }
+
+        private static final Node ANY_VALUE = of(ANY);
+        private static final Node STRING_VALUE = of(STRING);
+        private static final Node NUMBER_VALUE = of(NUMBER);
+        private static final Node INTEGER_VALUE = of(INTEGER);
+        private static final Node KEY_VALUE = of(KEY);
+        private static final Node ANY_OBJECT = new Node(OBJECT, null, null, 0, null, 0);
+        private static final Node ANY_ARRAY = new Node(ARRAY, null, null, 0, ANY_VALUE, 0);
+        private static final Node BOOLEAN_VALUE = new Node(LITERAL, bytes("true", "false"), null, 0, null, 0);
+        private static final Node NULL_VALUE = new Node(LITERAL, bytes("null"), null, 0, null, 0);
+        private static final Node ANY_LITERAL = new Node(LITERAL, bytes("true", "false", "null"), null, 0, null, 0);
+
+        public static Node any() {
+            return ANY_VALUE;
+        }
+
+        public static Node string() {
+            return STRING_VALUE;
+        }
+
+        public static Node number() {
+            return NUMBER_VALUE;
+        }
+
+        public static Node integer() {
+            return INTEGER_VALUE;
+        }
+
+        public static Node bool() {
+            return BOOLEAN_VALUE;
+        }
+
+        public static Node nullValue() {
+            return NULL_VALUE;
+        }
+
+        public static Node anyObject() {
+            return ANY_OBJECT;
+        }
+
+        /**
+         * String restricted to {@code values}; a free string if they cannot be matched.
+         */
+        public static Node enumeration(List<String> values) {
+            if (values.isEmpty() || values.size() > MAX_KEYS || !plain(values)) {
+                return STRING_VALUE;
+            }
+            return new Node(ENUM, bytes(values.toArray(new String[0])), null, 0, null, 0);
+        }
+
+        /**
+         * Object with the given properties; unknown keys are rejected.
+         */
+        public static Node object(List<String> keys, List<Node> schemas, List<String> required) {
+            if (keys.size() > MAX_KEYS || !plain(keys)) {
+                return ANY_OBJECT;
+            }
+            long requiredMask = 0;
+            for (String key : required) {
+                int index = keys.indexOf(key);
+                if (index >= 0) {
+                    requiredMask |= 1L << index;
+                }
+            }
+            return new Node(OBJECT, bytes(keys.toArray(new String[0])), schemas.toArray(new Node[0]),
+                    requiredMask, null, 0);
+        }
+
+        public static Node array(Node item, int minItems) {
+            return new Node(ARRAY, null, null, 0, item, minItems);
+        }
+
+        /**
+         * {"name": one of {@code toolNames}, "arguments": the matching schema}, in that order.
+         */
+        public static Node toolCall(List<String> toolNames, List<Node> arguments) {
+            return new Node(TOOL_CALL, bytes("name", "arguments"), arguments.toArray(new Node[0]),
+                    3L, enumeration(toolNames), 0);
+        }
+
+        private static boolean plain(List<String> values) {
+            for (String value : values) {
+                if (value.indexOf('"') >= 0 || value.indexOf('\\') >= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static byte[][] bytes(String... values) {
+            byte[][] out = new byte[values.length][];
+            for (int i = 0; i < values.length; i++) {
+                out[i] = values[i].getBytes(StandardCharsets.UTF_8);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Automaton state: a stack of frames plus the mode. Copied, never reallocated.
+     */
+    private static final class State {
+        final Node[] node = new Node[MAX_DEPTH];
+        final int[] phase = new int[MAX_DEPTH];
+        // Key index (objects), match position (enums), item count (arrays)
+        final int[] aux = new int[MAX_DEPTH];
+        // Matched tool (tool calls)
+        final int[] selected = new int[MAX_DEPTH];
+        // Used keys (objects) or remaining candidates (enums)
+        final long[] mask = new long[MAX_DEPTH];
+        int depth;
+        int mode;
+        int whitespace;
+
+        void copyFrom(State other) {
+            int n = other.depth;
+            System.arraycopy(other.node, 0, node, 0, n);
+            System.arraycopy(other.phase, 0, phase, 0, n);
+            System.arraycopy(other.aux, 0, aux, 0, n);
+            System.arraycopy(other.selected, 0, selected, 0, n);
+            System.arraycopy(other.mask, 0, mask, 0, n);
+            depth = n;
+            mode = other.mode;
+            whitespace = other.whitespace;
+        }
+    }
+
+    private final Node root;
+    private final State committed = new State();
+    private final State trial = new State();
+
+    /**
+     * @param root Schema of the whole output; must be an object
+     */
+    public JsonGrammar(Node root) {
+        if (root.kind != Node.OBJECT && root.kind != Node.TOOL_CALL) {
+            throw new IllegalArgumentException("Root must be an object");
+        }
+        this.root = root;
+        reset();
+    }
+
+    public void reset() {
+        committed.depth = 0;
+        committed.mode = MODE_PENDING;
+        committed.whitespace = 0;
+        Arrays.fill(committed.node, null);
+    }
+
+    /**
+     * Whether output is being constrained: it opened a JSON object, which may be complete.
+     */
+    public boolean isConstraining() {
+        return committed.mode == MODE_JSON || committed.mode == MODE_DONE;
+    }
+
+    /**
+     * Whether the output started as something other than JSON, so nothing is constrained.
+     */
+    public boolean isFreeText() {
+        return committed.mode == MODE_FREE;
+    }
+
+    /**
+     * Whether the JSON object has closed; only whitespace may follow.
+     */
+    public boolean isComplete() {
+        return committed.mode == MODE_DONE;
+    }
+
+    /**
+     * Whether the bytes could follow the output accepted so far. Leaves the state unchanged.
+     */
+    public boolean canAccept(byte[] bytes, int offset, int length) {
+        if (committed.mode == MODE_FREE) {
+            return true;
+        }
+        trial.copyFrom(committed);
+        return run(trial, bytes, offset, length);
+    }
+
+    /**
+     * Advance over the bytes if they fit.
+     *
+     * @return false, leaving the state unchanged, if they do not
+     */
+    public boolean accept(byte[] bytes, int offset, int length) {
+        if (committed.mode == MODE_FREE) {
+            return true;
+        }
+        trial.copyFrom(committed);
+        if (!run(trial, bytes, offset, length)) {
+            return false;
+        }
+        committed.copyFrom(trial);
+        return true;
+    }
+
+    private boolean run(State s, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (!step(s, bytes[i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean step(State s, int b) {
+        boolean space = isWhitespace(b);
+        switch (s.mode) {
+            case MODE_FREE:
+                return true;
+            case MODE_PENDING:
+                if (space) {
+                    return ++s.whitespace <= MAX_WHITESPACE;
+                }
+                if (b == '{') {
+                    s.mode = MODE_JSON;
+                    s.whitespace = 0;
+                    return startValue(s, root, b);
+                }
+                s.mode = MODE_FREE;
+                return true;
+            case MODE_DONE:
+                return space && ++s.whitespace <= MAX_WHITESPACE;
+            default:
+                break;
+        }
+        if (!space) {
+            s.whitespace = 0;
+        }
+        while (true) {
+            int top = s.depth - 1;
+            Node node = s.node[top];
+            int result;
+            switch (node.kind) {
+                case Node.OBJECT:
+                case Node.TOOL_CALL:
+                    result = objectStep(s, top, node, b);
+                    break;
+                case Node.ARRAY:
+                    result = arrayStep(s, top, node, b);
+                    break;
+                case Node.STRING:
+                    result = stringStep(s, top, b);
+                    break;
+                case Node.ENUM:
+                    result = enumStep(s, top, node.names, true, b);
+                    break;
+                case Node.KEY:
+                    result = enumStep(s, top, s.node[top - 1].names, true, b);
+                    break;
+                case Node.LITERAL:
+                    result = enumStep(s, top, node.names, false, b);
+                    break;
+                default:
+                    result = numberStep(s, top, node.kind == Node.INTEGER, b);
+                    break;
+            }
+            if (result != REPROCESS) {
+                return result == CONSUMED;
+            }
+        }
+    }
+
+    private int objectStep(State s, int top, Node node, int b) {
+        int phase = s.phase[top];
+        if (phase != OBJ_KEY && isWhitespace(b)) {
+            return ++s.whitespace <= MAX_WHITESPACE ? CONSUMED : REJECT;
+        }
+        switch (phase) {
+            case OBJ_START:
+            case OBJ_NEXT_KEY:
+                if (b == '"' && remainingKeys(s, top, node) != 0) {
+                    s.phase[top] = OBJ_KEY;
+                    if (node.names == null) {
+                        push(s, Node.STRING_VALUE, STR_NORMAL);
+                    } else {
+                        long keys = remainingKeys(s, top, node);
+                        push(s, Node.KEY_VALUE, 0);
+                        // Tool calls take their keys in order
+                        s.mask[s.depth - 1] = node.kind == Node.TOOL_CALL ? Long.lowestOneBit(keys) : keys;
+                    }
+                    return CONSUMED;
+                }
+                if (b == '}' && phase == OBJ_START && canClose(s, top, node)) {
+                    pop(s, -1);
+                    return CONSUMED;
+                }
+                return REJECT;
+            case OBJ_COLON:
+                if (b != ':') {
+                    return REJECT;
+                }
+                s.phase[top] = OBJ_VALUE;
+                return CONSUMED;
+            case OBJ_VALUE:
+                s.phase[top] = OBJ_AFTER_VALUE;
+                return startValue(s, valueSchema(s, top, node), b) ? CONSUMED : REJECT;
+            case OBJ_AFTER_VALUE:
+                if (b == ',' && remainingKeys(s, top, node) != 0) {
+                    s.phase[top] = OBJ_NEXT_KEY;
+                    return CONSUMED;
+                }
+                if (b == '}' && canClose(s, top, node)) {
+                    pop(s, -1);
+                    return CONSUMED;
+                }
+                return REJECT;
+            default:
+                return REJECT;
+        }
+    }
+
+    private static long remainingKeys(State s, int top, Node node) {
+        if (node.names == null) {
+            return -1L;
+        }
+        long all = (1L << node.names.length) - 1;
+        return all & ~s.mask[top];
+    }
+
+    private static boolean canClose(State s, int top, Node node) {
+        return node.names == null || (s.mask[top] & node.required) == node.required;
+    }
+
+    private static Node valueSchema(State s, int top, Node node) {
+        int key = s.aux[top];
+        if (node.names == null || key < 0) {
+            return Node.ANY_VALUE;
+        }
+        if (node.kind == Node.TOOL_CALL) {
+            if (key == 0) {
+                return node.item;
+            }
+            int tool = s.selected[top];
+            return tool >= 0 && tool < node.values.length ? node.values[tool] : Node.ANY_OBJECT;
+        }
+        return node.values[key];
+    }
+
+    private int arrayStep(State s, int top, Node node, int b) {
+        if (isWhitespace(b)) {
+            return ++s.whitespace <= MAX_WHITESPACE ? CONSUMED : REJECT;
+        }
+        int phase = s.phase[top];
+        if (phase == ARR_AFTER) {
+            if (b == ',') {
+                s.phase[top] = ARR_NEXT;
+                return CONSUMED;
+            }
+            if (b == ']' && s.aux[top] >= node.minItems) {
+                pop(s, -1);
+                return CONSUMED;
+            }
+            return REJECT;
+        }
+        if (b == ']' && phase == ARR_START && node.minItems == 0) {
+            pop(s, -1);
+            return CONSUMED;
+        }
+        s.phase[top] = ARR_AFTER;
+        s.aux[top]++;
+        return startValue(s, node.item, b) ? CONSUMED : REJECT;
+    }
+
+    private int stringStep(State s, int top, int b) {
+        int phase = s.phase[top];
+        if (phase == STR_NORMAL) {
+            if (b == '"') {
+                pop(s, -1);
+            } else if (b == '\\') {
+                s.phase[top] = STR_ESCAPE;
+            } else if (b < 0x20) {
+                return REJECT;
+            }
+            return CONSUMED;
+        }
+        if (phase == STR_ESCAPE) {
+            if (b == 'u') {
+                s.phase[top] = STR_HEX_FIRST;
+                return CONSUMED;
+            }
+            if (b == '"' || b == '\\' || b == '/' || b == 'b' || b == 'f' || b == 'n' || b == 'r' || b == 't') {
+                s.phase[top] = STR_NORMAL;
+                return CONSUMED;
+            }
+            return REJECT;
+        }
+        if (!isHexDigit(b)) {
+            return REJECT;
+        }
+        s.phase[top] = phase == STR_HEX_LAST ? STR_NORMAL : phase - 1;
+        return CONSUMED;
+    }
+
+    // Quoted enums and keys end at the closing quote; literals as soon as one value is spelled out
+    private int enumStep(State s, int top, byte[][] names, boolean quoted, int b) {
+        int position = s.aux[top];
+        long candidates = s.mask[top];
+        if (quoted && b == '"') {
+            for (long rest = candidates; rest != 0; rest &= rest - 1) {
+                int i = Long.numberOfTrailingZeros(rest);
+                if (names[i].length == position) {
+                    pop(s, i);
+                    return CONSUMED;
+                }
+            }
+            return REJECT;
+        }
+        long next = 0;
+        for (long rest = candidates; rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            if (names[i].length > position && (names[i][position] & 0xFF) == b) {
+                next |= 1L << i;
+            }
+        }
+        if (next == 0) {
+            return REJECT;
+        }
+        s.mask[top] = next;
+        s.aux[top] = ++position;
+        if (!quoted && Long.bitCount(next) == 1) {
+            int i = Long.numberOfTrailingZeros(next);
+            if (names[i].length == position) {
+                pop(s, i);
+            }
+        }
+        return CONSUMED;
+    }
+
+    // Numbers have no terminator: the first byte that cannot continue one ends it
+    private int numberStep(State s, int top, boolean integer, int b) {
+        boolean digit = b >= '0' && b <= '9';
+        boolean exponent = !integer && (b == 'e' || b == 'E');
+        int next;
+        switch (s.phase[top]) {
+            case NUM_SIGN:
+                next = b == '0' ? NUM_ZERO : digit ? NUM_INT : -1;
+                if (next < 0) {
+                    return REJECT;
+                }
+                break;
+            case NUM_ZERO:
+            case NUM_INT:
+                next = digit && s.phase[top] == NUM_INT ? NUM_INT
+                        : !integer && b == '.' ? NUM_DOT
+                        : exponent ? NUM_EXP : -1;
+                break;
+            case NUM_DOT:
+                if (!digit) {
+                    return REJECT;
+                }
+                next = NUM_FRAC;
+                break;
+            case NUM_FRAC:
+                next = digit ? NUM_FRAC : exponent ? NUM_EXP : -1;
+                break;
+            case NUM_EXP:
+                next = digit ? NUM_EXP_DIGITS : b == '+' || b == '-' ? NUM_EXP_SIGN : -1;
+                if (next < 0) {
+                    return REJECT;
+                }
+                break;
+            case NUM_EXP_SIGN:
+                if (!digit) {
+                    return REJECT;
+                }
+                next = NUM_EXP_DIGITS;
+                break;
+            default:
+                next = digit ? NUM_EXP_DIGITS : -1;
+                break;
+        }
+        if (next < 0) {
+            pop(s, -1);
+            return REPROCESS;
+        }
+        s.phase[top] = next;
+        return CONSUMED;
+    }
+
+    // Push the frame for a value of the given schema, consuming its first byte
+    private boolean startValue(State s, Node node, int b) {
+        if (s.depth == MAX_DEPTH) {
+            return false;
+        }
+        switch (node.kind) {
+            case Node.ANY:
+                Node actual = b == '{' ? Node.ANY_OBJECT
+                        : b == '[' ? Node.ANY_ARRAY
+                        : b == '"' ? Node.STRING_VALUE
+                        : b == '-' || (b >= '0' && b <= '9') ? Node.NUMBER_VALUE
+                        : Node.ANY_LITERAL;
+                return startValue(s, actual, b);
+            case Node.OBJECT:
+            case Node.TOOL_CALL:
+                if (b != '{') {
+                    return false;
+                }
+                push(s, node, OBJ_START);
+                s.aux[s.depth - 1] = -1;
+                return true;
+            case Node.ARRAY:
+                if (b != '[') {
+                    return false;
+                }
+                push(s, node, ARR_START);
+                return true;
+            case Node.STRING:
+                if (b != '"') {
+                    return false;
+                }
+                push(s, node, STR_NORMAL);
+                return true;
+            case Node.ENUM:
+                if (b != '"') {
+                    return false;
+                }
+                push(s, node, 0);
+                s.mask[s.depth - 1] = (1L << node.names.length) - 1;
+                return true;
+            case Node.LITERAL:
+                push(s, node, 0);
+                s.mask[s.depth - 1] = (1L << node.names.length) - 1;
+                return enumStep(s, s.depth - 1, node.names, false, b) == CONSUMED;
+            case Node.NUMBER:
+            case Node.INTEGER:
+                int phase = b == '-' ? NUM_SIGN : b == '0' ? NUM_ZERO : b >= '1' && b <= '9' ? NUM_INT : -1;
+                if (phase < 0) {
+                    return false;
+                }
+                push(s, node, phase);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void push(State s, Node node, int phase) {
+        int i = s.depth++;
+        s.node[i] = node;
+        s.phase[i] = phase;
+        s.aux[i] = 0;
+        s.selected[i] = -1;
+        s.mask[i] = 0;
+    }
+
+    // Pop the top frame and hand its result (matched key or enum index, else -1) to the parent
+    private static void pop(State s, int result) {
+        s.depth--;
+        if (s.depth == 0) {
+            s.mode = MODE_DONE;
+            s.whitespace = 0;
+            return;
+        }
+        int parent = s.depth - 1;
+        Node node = s.node[parent];
+        if (node.kind != Node.OBJECT && node.kind != Node.TOOL_CALL) {
+            return;
+        }
+        if (s.phase[parent] == OBJ_KEY) {
+            s.aux[parent] = result;
+            if (result >= 0) {
+                s.mask[parent] |= 1L << result;
+            }
+            s.phase[parent] = OBJ_COLON;
+        } else if (node.kind == Node.TOOL_CALL && s.aux[parent] == 0) {
+            s.selected[parent] = result;
+        }
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isHexDigit(int b) {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+    }
+}
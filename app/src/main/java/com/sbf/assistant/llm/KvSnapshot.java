@@ -0,0 +1,73 @@
+package com.sbf.assistant.llm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Copy of the first {@link #length()} positions of every KV-cache tensor, together with the
+ * tokens that produced them. Restoring it lets a prompt with the same token prefix skip
+ * prefill for those positions.
+ */
+public final class KvSnapshot {
+    private final int[] tokens;
+    private final ByteBuffer[] tensors;
+    private final long bytes;
+
+    KvSnapshot(int[] tokens, ByteBuffer[] tensors) {
+        this.tokens = tokens;
+        this.tensors = tensors;
+        long total = 0;
+        for (ByteBuffer tensor : tensors) {
+            total += tensor.capacity();
+        }
+        this.bytes = total;
+    }
+
+    public int length() {
+        return tokens.length;
+    }
+
+    /**
+     * Memory held by the copied tensors.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    ByteBuffer tensor(int index) {
+        return tensors[index];
+    }
+
+    int tensorCount() {
+        return tensors.length;
+    }
+
+    /**
+     * Whether this snapshot's tokens are a prefix of {@code sequence[0, length)}.
+     */
+    public boolean isPrefixOf(int[] sequence, int length) {
+        if (tokens.length > length) {
+            return false;
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i] != sequence[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void copyTokens(int[] out) {
+        System.arraycopy(tokens, 0, out, 0, tokens.length);
+    }
+
+    boolean hasTokens(int[] sequence, int length) {
+        return tokens.length == length && isPrefixOf(sequence, length);
+    }
+
+    @Override
+    public String toString() {
+        return "KvSnapshot{tokens=" + tokens.length + ", bytes=" + bytes
+                + ", head=" + Arrays.toString(Arrays.copyOf(tokens, Math.min(4, tokens.length))) + "}";
+    }
+}
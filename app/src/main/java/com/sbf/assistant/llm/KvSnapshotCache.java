@@ -0,0 +1,91 @@
+package com.sbf.assistant.llm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used set of {@link KvSnapshot}s under a byte budget.
+ *
+ * Used for the static prompt header (tool schemas + system prompt), which is identical
+ * across turns and conversations, so a cleared chat or a prompt variant that diverges right
+ * after the header still skips its prefill. Snapshots belong to one model; clear the cache
+ * when the model changes.
+ *
+ * Not thread-safe: used from the generation loop only.
+ */
+public final class KvSnapshotCache {
+    private final long budgetBytes;
+    // Access-ordered; keys are only for identity, lookups scan (a handful of entries)
+    private final LinkedHashMap<Integer, KvSnapshot> entries = new LinkedHashMap<>(8, 0.75f, true);
+    private int nextKey = 0;
+    private long totalBytes = 0;
+
+    public KvSnapshotCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Longest snapshot whose tokens prefix {@code sequence[0, length)}, marked as used.
+     */
+    public KvSnapshot findLongestPrefix(int[] sequence, int length) {
+        Integer bestKey = null;
+        KvSnapshot best = null;
+        for (Map.Entry<Integer, KvSnapshot> entry : entries.entrySet()) {
+            KvSnapshot snapshot = entry.getValue();
+            if ((best == null || snapshot.length() > best.length()) && snapshot.isPrefixOf(sequence, length)) {
+                best = snapshot;
+                bestKey = entry.getKey();
+            }
+        }
+        if (bestKey != null) {
+            entries.get(bestKey);
+        }
+        return best;
+    }
+
+    public boolean contains(int[] sequence, int length) {
+        for (KvSnapshot snapshot : entries.values()) {
+            if (snapshot.hasTokens(sequence, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a snapshot, evicting least-recently-used ones to stay within the budget.
+     *
+     * @return false if the snapshot alone exceeds the budget
+     */
+    public boolean put(KvSnapshot snapshot) {
+        if (snapshot.bytes() > budgetBytes) {
+            return false;
+        }
+        Iterator<KvSnapshot> eldest = entries.values().iterator();
+        while (totalBytes + snapshot.bytes() > budgetBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().bytes();
+            eldest.remove();
+        }
+        entries.put(nextKey++, snapshot);
+        totalBytes += snapshot.bytes();
+        return true;
+    }
+
+    public void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+}
@@ -0,0 +1,297 @@
+package com.sbf.assistant.llm;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Token sampler for local LLM generation.
+ *
+ * All scratch arrays are allocated once per vocabulary size, so sampling a token does not
+ * allocate. Top-K candidates are selected with a bounded min-heap (O(V log K)) and softmax
+ * is computed only over those candidates. Supports temperature, top-k, top-p (nucleus),
+ * min-p and a windowed repetition penalty. The RNG is seedable for reproducible runs.
+ *
+ * Not thread-safe: use one sampler per generation loop.
+ */
+public class LlmSampler {
+    private final int vocabSize;
+    private final Random random;
+
+    // Sampling parameters
+    private float temperature = 0.7f;
+    private int topK = 40;
+    private float topP = 1.0f;
+    private float minP = 0.0f;
+    private float repetitionPenalty = 1.0f;
+
+    // Candidate heap (min-heap by value while selecting, then sorted descending)
+    private int[] candIds;
+    private float[] candValues;
+    private float[] candProbs;
+
+    // Copy of buffer-backed logits, so both entry points share one code path
+    private final float[] logitsScratch;
+
+    // Repetition window: ring of recent tokens plus per-token occurrence counts
+    private final int[] recentCounts;
+    private int[] recentTokens = new int[0];
+    private int recentSize = 0;
+    private int recentHead = 0;
+
+    public LlmSampler(int vocabSize, long seed) {
+        this.vocabSize = vocabSize;
+        this.random = new Random(seed);
+        this.recentCounts = new int[vocabSize];
+        this.logitsScratch = new float[vocabSize];
+        ensureCandidateCapacity(topK);
+    }
+
+    public LlmSampler(int vocabSize) {
+        this(vocabSize, System.nanoTime());
+    }
+
+    public int getVocabSize() {
+        return vocabSize;
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * Temperature; values <= 0 select the highest scoring token (greedy).
+     */
+    public void setTemperature(float temperature) {
+        this.temperature = temperature;
+    }
+
+    /**
+     * Number of candidates kept before softmax; <= 0 keeps the whole vocabulary.
+     */
+    public void setTopK(int topK) {
+        this.topK = topK;
+        ensureCandidateCapacity(effectiveTopK());
+    }
+
+    /**
+     * Nucleus threshold in (0, 1]; 1 disables it.
+     */
+    public void setTopP(float topP) {
+        this.topP = topP;
+    }
+
+    /**
+     * Minimum probability relative to the best candidate in [0, 1); 0 disables it.
+     */
+    public void setMinP(float minP) {
+        this.minP = minP;
+    }
+
+    /**
+     * Penalize tokens seen in the last {@code window} accepted tokens.
+     * Positive logits are divided by {@code penalty}, negative ones multiplied.
+     */
+    public void setRepetitionPenalty(float penalty, int window) {
+        this.repetitionPenalty = penalty;
+        if (window != recentTokens.length) {
+            reset();
+            recentTokens = new int[Math.max(0, window)];
+        }
+    }
+
+    /**
+     * Clear the repetition history. Call at the start of each generation.
+     */
+    public void reset() {
+        for (int i = 0; i < recentSize; i++) {
+            recentCounts[recentTokens[(recentHead + i) % recentTokens.length]] = 0;
+        }
+        recentSize = 0;
+        recentHead = 0;
+    }
+
+    /**
+     * Record a token (prompt or generated) for the repetition penalty.
+     */
+    public void accept(int token) {
+        int capacity = recentTokens.length;
+        if (capacity == 0 || token < 0 || token >= vocabSize) return;
+        if (recentSize == capacity) {
+            int evicted = recentTokens[recentHead];
+            recentCounts[evicted]--;
+            recentTokens[recentHead] = token;
+            recentHead = (recentHead + 1) % capacity;
+        } else {
+            recentTokens[(recentHead + recentSize) % capacity] = token;
+            recentSize++;
+        }
+        recentCounts[token]++;
+    }
+
+    /**
+     * Sample the next token from raw logits. The array is not modified.
+     *
+     * @return Token id, or -1 if logits are empty
+     */
+    public int sample(float[] logits) {
+        if (logits == null || logits.length == 0) {
+            return -1;
+        }
+        return sample(logits, Math.min(logits.length, vocabSize));
+    }
+
+    /**
+     * Sample from logits in [position, limit) of an engine-owned buffer.
+     * The buffer position is left unchanged.
+     */
+    public int sample(FloatBuffer logits) {
+        if (logits == null || !logits.hasRemaining()) {
+            return -1;
+        }
+        int start = logits.position();
+        int n = Math.min(logits.remaining(), vocabSize);
+        logits.get(logitsScratch, 0, n);
+        logits.position(start);
+        return sample(logitsScratch, n);
+    }
+
+    private int sample(float[] logits, int n) {
+        if (temperature <= 0f) {
+            return argmax(logits, n);
+        }
+        int size = selectTopK(logits, n, Math.min(effectiveTopK(), n));
+        sortCandidatesDescending(size);
+        return sampleCandidates(size);
+    }
+
+    private int argmax(float[] logits, int n) {
+        int best = 0;
+        float bestValue = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            float v = penalized(logits[i], i);
+            if (v > bestValue) {
+                bestValue = v;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private float penalized(float value, int id) {
+        if (recentCounts[id] == 0 || repetitionPenalty == 1.0f) return value;
+        return value > 0 ? value / repetitionPenalty : value * repetitionPenalty;
+    }
+
+    // Bounded min-heap: the root is the weakest of the current top-K.
+    private int selectTopK(float[] logits, int n, int k) {
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            float v = penalized(logits[i], i);
+            if (size < k) {
+                candIds[size] = i;
+                candValues[size] = v;
+                siftUp(size);
+                size++;
+            } else if (v > candValues[0]) {
+                candIds[0] = i;
+                candValues[0] = v;
+                siftDown(0, size);
+            }
+        }
+        return size;
+    }
+
+    private void siftUp(int index) {
+        int i = index;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (candValues[i] >= candValues[parent]) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int index, int size) {
+        int i = index;
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) break;
+            int right = left + 1;
+            int smallest = (right < size && candValues[right] < candValues[left]) ? right : left;
+            if (candValues[i] <= candValues[smallest]) break;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    // Heap sort on the min-heap leaves the candidates in descending order.
+    private void sortCandidatesDescending(int size) {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private int sampleCandidates(int size) {
+        float maxValue = candValues[0];
+        float invTemp = 1.0f / temperature;
+
+        // Softmax over candidates only; probabilities are relative to the best one.
+        float sum = 0f;
+        int kept = size;
+        float minRelative = minP > 0f ? minP : 0f;
+        for (int i = 0; i < size; i++) {
+            float p = (float) Math.exp((candValues[i] - maxValue) * invTemp);
+            if (i > 0 && p < minRelative) {
+                kept = i;
+                break;
+            }
+            candProbs[i] = p;
+            sum += p;
+        }
+
+        if (topP > 0f && topP < 1.0f) {
+            float threshold = topP * sum;
+            float cumulative = 0f;
+            for (int i = 0; i < kept; i++) {
+                cumulative += candProbs[i];
+                if (cumulative >= threshold) {
+                    kept = i + 1;
+                    sum = cumulative;
+                    break;
+                }
+            }
+        }
+
+        float r = random.nextFloat() * sum;
+        float cumulative = 0f;
+        for (int i = 0; i < kept; i++) {
+            cumulative += candProbs[i];
+            if (r < cumulative) {
+                return candIds[i];
+            }
+        }
+        return candIds[kept - 1];
+    }
+
+    private int effectiveTopK() {
+        return (topK <= 0 || topK > vocabSize) ? vocabSize : topK;
+    }
+
+    private void ensureCandidateCapacity(int k) {
+        if (candIds == null || candIds.length < k) {
+            candIds = new int[k];
+            candValues = new float[k];
+            candProbs = new float[k];
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = candIds[a];
+        candIds[a] = candIds[b];
+        candIds[b] = id;
+        float value = candValues[a];
+        candValues[a] = candValues[b];
+        candValues[b] = value;
+    }
+}
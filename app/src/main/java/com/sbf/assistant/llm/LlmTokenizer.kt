@@ -1,33 +1,47 @@
 package com.sbf.assistant.llm
 
 import android.util.Log
-import java.io.BufferedReader
 import java.io.File
-import java.io.FileReader
 
 /**
- * Basic tokenizer for TFLite LLM models.
- * Supports SentencePiece-style vocabulary files (text format).
- *
- * LIMITATIONS:
- * - This is a simplified word-level tokenizer with character fallback.
- * - Does NOT implement proper SentencePiece BPE/Unigram algorithms.
- * - Works best with simple prompts; complex text may tokenize poorly.
- * - For production use, consider integrating the SentencePiece library
- *   or using MediaPipe's built-in tokenization (.task models).
+ * Tokenizer for TFLite LLM models.
  *
  * SUPPORTED FORMATS:
  * - Plain text vocab files (one token per line)
  * - Tab/space-separated vocab files (token + score per line)
+ * - HuggingFace tokenizer.json with a BPE model (byte-level or SentencePiece-style)
+ *
+ * Text vocabs encode with [SubwordEncoder]: unigram (Viterbi) segmentation when the
+ * vocab carries scores, fewest-tokens segmentation otherwise, with byte fallback for
+ * characters the vocab does not cover. Spaces become the "▁" marker when the vocab
+ * uses it, with SentencePiece's dummy prefix. tokenizer.json files encode with
+ * [BpeTokenizer], applying the merges by rank.
+ *
+ * Either source is converted once into a [CompiledVocab] next to it, which is
+ * memory-mapped on every later load; tokens are decoded from it on demand.
+ * Use [newStreamDecoder] when streaming, so characters split across tokens
+ * come out whole.
+ *
+ * LIMITATIONS:
+ * - No NFKC normalization; text is matched as given.
+ * - Byte-level BPE pre-tokenizes with the GPT-2 pattern whatever the model's own is.
  *
  * NOT SUPPORTED:
  * - Binary .model files (SentencePiece native format)
- * - BPE merges files
- * - HuggingFace tokenizer.json format
+ * - Unigram/WordPiece tokenizer.json models
  */
 class LlmTokenizer {
-    private val tokenToId = mutableMapOf<String, Int>()
-    private val idToToken = mutableMapOf<Int, String>()
+    private var vocab: CompiledVocab? = null
+    private var encoder: SubwordEncoder? = null
+    private var bpe: BpeTokenizer? = null
+    // Decoded token strings, filled on first use
+    private var idToToken = emptyArray<String?>()
+    private var spaceMarker = false
+    private var addsBos = true
+    // Every end-of-sequence candidate the vocab defines (chat models end turns differently)
+    private var stopIds = IntArray(0)
+    // Token text for grammar masks, built on first use
+    private var tokenTable: Pair<ByteArray, IntArray>? = null
 
     private var bosToken = "<s>"
     private var eosToken = "</s>"
@@ -50,8 +64,8 @@ class LlmTokenizer {
         private set
 
     /**
-     * Load vocabulary from a text file.
-     * Expected format: one token per line, or "token score" per line.
+     * Load vocabulary from a text file or a tokenizer.json.
+     * Expected text format: one token per line, or "token score" per line.
      */
     fun loadVocab(vocabPath: String): Boolean {
         return try {
@@ -61,44 +75,54 @@ class LlmTokenizer {
                 return false
             }
 
-            BufferedReader(FileReader(file)).use { reader ->
-                var id = 0
-                reader.forEachLine { line ->
-                    val parts = line.trim().split("\t", " ")
-                    val token = if (parts.isNotEmpty()) parts[0] else line.trim()
-
-                    if (token.isNotEmpty()) {
-                        tokenToId[token] = id
-                        idToToken[id] = token
-
-                        // Detect special tokens
-                        when (token) {
-                            "<s>", "<bos>", "[BOS]" -> {
-                                bosToken = token
-                                bosId = id
-                            }
-                            "</s>", "<eos>", "[EOS]" -> {
-                                eosToken = token
-                                eosId = id
-                            }
-                            "<pad>", "[PAD]" -> {
-                                padToken = token
-                                padId = id
-                            }
-                            "<unk>", "[UNK]" -> {
-                                unkToken = token
-                                unkId = id
-                            }
-                        }
-
-                        id++
-                    }
+            val isJson = file.name.endsWith(".json", ignoreCase = true)
+            val compiled = if (isJson) {
+                val tokenizer = BpeTokenizer.open(file) ?: run {
+                    Log.e(TAG, "Unsupported tokenizer.json model: $vocabPath")
+                    return false
                 }
-                vocabSize = id
+                bpe = tokenizer
+                tokenizer.vocab
+            } else {
+                CompiledVocab.openOrCompile(file, CompiledVocab::compileText) ?: return false
             }
+            vocab = compiled
+            vocabSize = compiled.size()
+
+            // Detect special tokens
+            val bos = findSpecial(compiled, *BOS_NAMES)
+            bos?.let { (token, id) ->
+                bosToken = token
+                bosId = id
+            }
+            // Text vocabs have always assumed a BOS; BPE vocabs without one (Qwen) get none
+            addsBos = !isJson || bos != null
+            findSpecial(compiled, *EOS_NAMES)?.let { (token, id) ->
+                eosToken = token
+                eosId = id
+            }
+            stopIds = EOS_NAMES.map { compiled.id(it) }.filter { it >= 0 }.toIntArray()
+            findSpecial(compiled, "<pad>", "[PAD]", "<|pad|>")?.let { (token, id) ->
+                padToken = token
+                padId = id
+            }
+            findSpecial(compiled, "<unk>", "[UNK]")?.let { (token, id) ->
+                unkToken = token
+                unkId = id
+            }
+
+            val byteLevel = compiled.hasFlag(CompiledVocab.FLAG_BYTE_LEVEL)
+            spaceMarker = !byteLevel && usesSpaceMarker(compiled)
+            if (!isJson) {
+                encoder = SubwordEncoder(compiled, unkId, bosId, eosId, padId, unkId)
+            }
+            idToToken = arrayOfNulls(vocabSize)
+            tokenTable = null
 
             isLoaded = true
-            Log.d(TAG, "Loaded vocab with $vocabSize tokens. BOS=$bosId, EOS=$eosId")
+            Log.d(TAG, "Loaded vocab with $vocabSize tokens. BOS=$bosId, EOS=$eosId, " +
+                    if (isJson) "bpe merges=${compiled.mergeCount()}, byteLevel=$byteLevel"
+                    else "scores=${compiled.hasScores()}, trie=${encoder?.trieSize}")
             true
         } catch (e: Exception) {
             Log.e(TAG, "Failed to load vocab", e)
@@ -106,78 +130,164 @@ class LlmTokenizer {
         }
     }
 
+    // Candidate that appears last in the vocab, like a line-by-line scan would pick
+    private fun findSpecial(compiled: CompiledVocab, vararg names: String): Pair<String, Int>? {
+        return names.map { it to compiled.id(it) }
+            .filter { it.second >= 0 }
+            .maxByOrNull { it.second }
+    }
+
+    // SentencePiece vocabs spell word starts with "▁"; byte-level ones keep the space
+    private fun usesSpaceMarker(compiled: CompiledVocab): Boolean {
+        val marker = SPACE_MARKER.toByteArray()
+        return (0 until compiled.size()).any { compiled.startsWith(it, marker) }
+    }
+
+    private fun tokenOf(id: Int): String {
+        if (id < 0 || id >= idToToken.size) return unkToken
+        return idToToken[id] ?: (vocab?.token(id) ?: unkToken).also { idToToken[id] = it }
+    }
+
+    private fun byteValue(id: Int): Int = encoder?.byteValue(id) ?: bpe?.byteValue(id) ?: -1
+
+    private fun isSkipped(id: Int): Boolean = id == bosId || id == padId || isEos(id)
+
     /**
      * Encode text to token IDs.
-     * Simple character/word-based encoding for demonstration.
-     * For production, use proper SentencePiece tokenization.
      */
     fun encode(text: String, addBos: Boolean = true): IntArray {
-        val tokens = mutableListOf<Int>()
+        val prefix = if (addBos && addsBos) intArrayOf(bosId) else IntArray(0)
+        bpe?.let { return prefix + it.encode(text) }
+        val subwords = encoder ?: return prefix
+        val normalized = if (spaceMarker) SPACE_MARKER + text.replace(' ', SPACE_MARKER[0]) else text
+        val bytes = normalized.toByteArray(Charsets.UTF_8)
+        return prefix + subwords.encode(bytes, bytes.size)
+    }
 
-        if (addBos) {
-            tokens.add(bosId)
+    /**
+     * Decode token IDs to text.
+     */
+    fun decode(tokenIds: IntArray, skipSpecialTokens: Boolean = true): String {
+        val decoder = StreamDecoder(skipSpecialTokens)
+        val result = StringBuilder()
+        for (id in tokenIds) {
+            result.append(decoder.next(id))
         }
+        result.append(decoder.finish())
+        return result.toString().trim()
+    }
 
-        // Simple word-level tokenization with subword fallback
-        val words = text.split(Regex("\\s+"))
-        for (word in words) {
-            val wordWithSpace = " $word"
-            when {
-                tokenToId.containsKey(wordWithSpace) -> {
-                    tokens.add(tokenToId[wordWithSpace]!!)
-                }
-                tokenToId.containsKey(word) -> {
-                    tokens.add(tokenToId[word]!!)
-                }
-                else -> {
-                    // Character-level fallback
-                    for (char in word) {
-                        val charStr = char.toString()
-                        tokens.add(tokenToId[charStr] ?: unkId)
-                    }
-                }
-            }
+    /**
+     * Decode a single token ID to text, without context. Bytes of a character split
+     * across tokens are lost; prefer [newStreamDecoder] for generation output.
+     */
+    fun decodeToken(tokenId: Int): String {
+        if (isSkipped(tokenId)) {
+            return ""
         }
-
-        return tokens.toIntArray()
+        val byteValue = byteValue(tokenId)
+        if (byteValue >= 0) {
+            return if (byteValue < 0x80) byteValue.toChar().toString() else ""
+        }
+        return tokenOf(tokenId).replace(SPACE_MARKER, " ")
     }
 
     /**
-     * Decode token IDs to text.
+     * Decoder for one generated sequence; returns only whole characters.
      */
-    fun decode(tokenIds: IntArray, skipSpecialTokens: Boolean = true): String {
-        val result = StringBuilder()
+    fun newStreamDecoder(): StreamDecoder = StreamDecoder(true)
 
-        for (id in tokenIds) {
-            if (skipSpecialTokens && (id == bosId || id == eosId || id == padId)) {
-                continue
-            }
+    inner class StreamDecoder internal constructor(private val skipSpecialTokens: Boolean) {
+        private val utf8 = Utf8StreamDecoder()
+        private var scratch = ByteArray(64)
 
-            val token = idToToken[id] ?: unkToken
-            result.append(token)
+        fun next(tokenId: Int): String {
+            if (skipSpecialTokens && isSkipped(tokenId)) {
+                return ""
+            }
+            val compiled = vocab ?: return ""
+            if (tokenId < 0 || tokenId >= compiled.size()) {
+                return flushThen(unkToken)
+            }
+            val byteValue = byteValue(tokenId)
+            if (byteValue >= 0) {
+                scratch[0] = byteValue.toByte()
+                return clean(utf8.append(scratch, 0, 1))
+            }
+            val length = compiled.byteLength(tokenId)
+            if (length > scratch.size) scratch = ByteArray(length * 2)
+            compiled.bytes(tokenId, scratch, 0)
+            return clean(utf8.append(scratch, 0, length))
         }
 
-        return result.toString()
-            .replace("▁", " ")  // SentencePiece space marker
-            .trim()
+        fun finish(): String = clean(utf8.flush())
+
+        private fun flushThen(text: String): String = clean(utf8.flush()) + text
+
+        private fun clean(text: String): String =
+            if (spaceMarker) text.replace(SPACE_MARKER, " ") else text
     }
 
     /**
-     * Decode a single token ID to text.
+     * Mask that keeps generation within [grammar], sharing this tokenizer's token text.
      */
-    fun decodeToken(tokenId: Int): String {
-        if (tokenId == bosId || tokenId == eosId || tokenId == padId) {
-            return ""
+    fun newGrammarMask(grammar: JsonGrammar): GrammarMask {
+        val (bytes, offsets) = tokenTable ?: buildTokenTable().also { tokenTable = it }
+        return GrammarMask(grammar, bytes, offsets, stopIds + eosId)
+    }
+
+    // Decoded bytes of every token: spaces restored, byte tokens as their byte, specials empty
+    private fun buildTokenTable(): Pair<ByteArray, IntArray> {
+        val compiled = vocab ?: return ByteArray(0) to IntArray(1)
+        val special = BooleanArray(vocabSize)
+        val specialIds = (0 until compiled.specialCount()).map { compiled.specialId(it) } +
+                listOf(bosId, eosId, padId, unkId) + stopIds.toList()
+        specialIds.filter { it in 0 until vocabSize }.forEach { special[it] = true }
+
+        val marker = SPACE_MARKER.toByteArray()
+        val out = java.io.ByteArrayOutputStream(vocabSize * 4)
+        val offsets = IntArray(vocabSize + 1)
+        var scratch = ByteArray(64)
+        for (id in 0 until vocabSize) {
+            offsets[id] = out.size()
+            if (special[id]) continue
+            val byteValue = byteValue(id)
+            if (byteValue >= 0) {
+                out.write(byteValue)
+                continue
+            }
+            val length = compiled.byteLength(id)
+            if (length > scratch.size) scratch = ByteArray(length * 2)
+            compiled.bytes(id, scratch, 0)
+            var i = 0
+            while (i < length) {
+                if (spaceMarker && i + marker.size <= length &&
+                    (marker.indices).all { scratch[i + it] == marker[it] }
+                ) {
+                    out.write(' '.code)
+                    i += marker.size
+                } else {
+                    out.write(scratch[i].toInt())
+                    i++
+                }
+            }
         }
-        return (idToToken[tokenId] ?: unkToken).replace("▁", " ")
+        offsets[vocabSize] = out.size()
+        return out.toByteArray() to offsets
     }
 
     /**
-     * Check if token ID is EOS.
+     * Check if token ID ends generation.
      */
-    fun isEos(tokenId: Int): Boolean = tokenId == eosId
+    fun isEos(tokenId: Int): Boolean = tokenId == eosId || stopIds.contains(tokenId)
 
     companion object {
         private const val TAG = "LlmTokenizer"
+        // SentencePiece space marker
+        private const val SPACE_MARKER = "▁"
+        private val BOS_NAMES = arrayOf("<s>", "<bos>", "[BOS]", "<|begin_of_text|>", "<|startoftext|>")
+        private val EOS_NAMES = arrayOf(
+            "</s>", "<eos>", "[EOS]", "<|endoftext|>", "<|end_of_text|>", "<|eot_id|>", "<|im_end|>", "<end_of_turn>"
+        )
     }
 }
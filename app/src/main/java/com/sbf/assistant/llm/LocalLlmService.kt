@@ -3,13 +3,15 @@ package com.sbf.assistant.llm
 import android.content.Context
 import android.util.Log
 import com.sbf.assistant.ModelDownloadManager
-import kotlinx.coroutines.Dispatchers
+import com.sbf.assistant.llm.InferenceScheduler.Priority
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOn
-import kotlinx.coroutines.withContext
 import kotlinx.coroutines.yield
 import java.io.File
+import java.nio.FloatBuffer
 
 /**
  * Service for on-device LLM inference via TensorFlow Lite.
@@ -18,7 +20,10 @@ import java.io.File
  * - Text generation with TFLite models
  * - GPU acceleration when available
  * - Streaming token generation
- * - Temperature and top-k sampling
+ * - Temperature, top-k, top-p, min-p and repetition-penalty sampling
+ * - Prompt-prefix reuse: a turn only prefills what changed since the cached context,
+ *   and the static prompt header is kept as a snapshot that survives cleared chats
+ * - Speculative decoding with an optional small draft model sharing the vocabulary
  *
  * This is an alternative to GeminiNanoService for devices without AICore.
  */
@@ -26,9 +31,22 @@ class LocalLlmService(private val context: Context) {
 
     private var engine: TfLiteLlmEngine? = null
     private var tokenizer: LlmTokenizer? = null
+    private var sampler: LlmSampler? = null
+    // Speculative decoding: greedy draft model, set only when it can pair with the target
+    private var draftEngine: TfLiteLlmEngine? = null
+    private var draftSampler: LlmSampler? = null
+    private var draftFilename: String? = null
+    private val draftController = DraftLengthController(1, MAX_DRAFT_TOKENS, INITIAL_DRAFT_TOKENS)
+    // Prompt-header KV snapshots of the loaded model
+    private val snapshots = KvSnapshotCache(SNAPSHOT_BUDGET_BYTES)
     private var _isAvailable = false
     private var _modelName: String? = null
     private var _modelFilename: String? = null
+    private val lane = InferenceScheduler.lane(InferenceScheduler.LANE_TFLITE_LLM)
+
+    init {
+        InferenceScheduler.installMemoryProbe(context)
+    }
 
     sealed class Status {
         object Unavailable : Status()
@@ -38,21 +56,26 @@ class LocalLlmService(private val context: Context) {
     }
 
     /**
-     * Initialize the service with a specific model.
+     * Initialize the service with a specific model and, optionally, a draft model for
+     * speculative decoding. An unusable draft only disables speculation.
      */
-    suspend fun initialize(modelPath: String, vocabPath: String): Status = withContext(Dispatchers.IO) {
+    suspend fun initialize(
+        modelPath: String,
+        vocabPath: String,
+        draftModelPath: String? = null
+    ): Status = InferenceScheduler.execute(lane, Priority.CHAT, "load") {
         try {
             Log.d(TAG, "Initializing LocalLlmService with model: $modelPath")
 
             // Verify files exist
             if (!File(modelPath).exists()) {
                 Log.e(TAG, "Model file not found: $modelPath")
-                return@withContext Status.Error("Modelo no encontrado")
+                return@execute Status.Error("Modelo no encontrado")
             }
 
             if (!File(vocabPath).exists()) {
                 Log.e(TAG, "Vocab file not found: $vocabPath")
-                return@withContext Status.Error("Vocabulario no encontrado")
+                return@execute Status.Error("Vocabulario no encontrado")
             }
 
             release()
@@ -60,21 +83,23 @@ class LocalLlmService(private val context: Context) {
             // Initialize tokenizer
             val newTokenizer = LlmTokenizer()
             if (!newTokenizer.loadVocab(vocabPath)) {
-                return@withContext Status.Error("Error cargando vocabulario")
+                return@execute Status.Error("Error cargando vocabulario")
             }
             tokenizer = newTokenizer
 
             // Initialize engine
             val newEngine = TfLiteLlmEngine(context)
             if (!newEngine.initialize(modelPath)) {
-                return@withContext Status.Error("Error inicializando modelo")
+                return@execute Status.Error("Error inicializando modelo")
             }
             engine = newEngine
+            sampler = LlmSampler(newEngine.vocabSize)
+            draftModelPath?.let { loadDraft(it, newEngine) }
 
             _isAvailable = true
             _modelName = File(modelPath).nameWithoutExtension
             _modelFilename = File(modelPath).name
-            Log.d(TAG, "LocalLlmService initialized. GPU=${newEngine.isUsingGpu}")
+            Log.d(TAG, "LocalLlmService initialized. GPU=${newEngine.isUsingGpu}, draft=${draftEngine != null}")
 
             Status.Available
         } catch (e: OutOfMemoryError) {
@@ -86,12 +111,44 @@ class LocalLlmService(private val context: Context) {
         }
     }
 
+    /**
+     * Load the draft model if it can pair with [target]: both need a KV cache, the same
+     * vocabulary size (the target tokenizer is shared), the draft at least the target's
+     * context (it follows the whole sequence) and the target must verify in batches.
+     */
+    private fun loadDraft(path: String, target: TfLiteLlmEngine) {
+        if (!target.supportsVerify()) {
+            Log.w(TAG, "Target model has no per-position prefill logits; speculative decoding off")
+            return
+        }
+        if (!File(path).exists()) {
+            Log.w(TAG, "Draft model not found: $path")
+            return
+        }
+        val draft = TfLiteLlmEngine(context)
+        if (!draft.initialize(path) || !draft.supportsKvCache() || draft.vocabSize != target.vocabSize ||
+            draft.maxSeqLen < target.maxSeqLen) {
+            Log.w(TAG, "Draft model unusable: kv=${draft.supportsKvCache()}, " +
+                    "vocab=${draft.vocabSize} vs ${target.vocabSize}, " +
+                    "context=${draft.maxSeqLen} vs ${target.maxSeqLen}")
+            draft.deinitialize()
+            return
+        }
+        draftEngine = draft
+        draftFilename = File(path).name
+        draftSampler = LlmSampler(draft.vocabSize).apply {
+            setTemperature(0f)
+            setRepetitionPenalty(1.0f, 0)
+        }
+    }
+
     /**
      * Initialize with a model from ModelDownloadManager.
      */
     suspend fun initializeWithModel(
         modelInfo: ModelDownloadManager.ModelInfo,
-        apiKey: String? = null
+        apiKey: String? = null,
+        draftModelInfo: ModelDownloadManager.ModelInfo? = null
     ): Status {
         if (modelInfo.category == "LLM-Multimodal") {
             return Status.Error("Modelo multimodal no compatible con el tokenizer local")
@@ -111,7 +168,8 @@ class LocalLlmService(private val context: Context) {
             return Status.Error("Tokenizer .model no soportado en TFLite LLM local")
         }
 
-        return initialize(modelFile.absolutePath, vocabFile.absolutePath)
+        val draftFile = draftModelInfo?.let { downloadManager.getModelFile(it.filename) }
+        return initialize(modelFile.absolutePath, vocabFile.absolutePath, draftFile?.absolutePath)
     }
 
     /**
@@ -131,24 +189,49 @@ class LocalLlmService(private val context: Context) {
 
     fun getModelFilename(): String? = _modelFilename
 
+    /** File of the paired draft model, null when generation is not speculative. */
+    fun getDraftFilename(): String? = draftFilename
+
+    /**
+     * Whether generation runs speculatively with a draft model.
+     */
+    fun isSpeculative(): Boolean = draftEngine != null && engine?.supportsKvCache() == true
+
     /**
-     * Generate content (non-streaming).
+     * Fraction of drafted tokens the target accepted in the last speculative generation.
+     */
+    fun getDraftAcceptanceRate(): Float = draftController.acceptanceRate
+
+    /**
+     * Generate content (non-streaming) on the engine's scheduler lane at [priority].
+     * Background generations fail with [InferenceScheduler.PreemptedException] when a
+     * more urgent job needs the engine.
      */
     suspend fun generateContent(
         prompt: String,
         maxTokens: Int = 256,
         temperature: Float = 0.7f,
-        topK: Int = 40
-    ): Result<String> = withContext(Dispatchers.IO) {
-        val currentEngine = engine ?: return@withContext Result.failure(
+        topK: Int = 40,
+        topP: Float = 1.0f,
+        minP: Float = 0.0f,
+        repetitionPenalty: Float = 1.0f,
+        seed: Long? = null,
+        staticPrefix: String? = null,
+        jsonSchema: JsonGrammar.Node? = null,
+        priority: Priority = Priority.CHAT
+    ): Result<String> = InferenceScheduler.execute(lane, priority, "generate") { ticket ->
+        val currentEngine = engine ?: return@execute Result.failure(
             IllegalStateException("Motor no inicializado")
         )
-        val currentTokenizer = tokenizer ?: return@withContext Result.failure(
+        val currentTokenizer = tokenizer ?: return@execute Result.failure(
             IllegalStateException("Tokenizer no inicializado")
         )
+        val currentSampler = sampler ?: return@execute Result.failure(
+            IllegalStateException("Sampler no inicializado")
+        )
 
         if (!_isAvailable) {
-            return@withContext Result.failure(
+            return@execute Result.failure(
                 IllegalStateException("Servicio no disponible")
             )
         }
@@ -156,31 +239,14 @@ class LocalLlmService(private val context: Context) {
         try {
             val inputIds = currentTokenizer.encode(prompt, addBos = true)
             val generatedTokens = mutableListOf<Int>()
-            var currentInput = inputIds
-
-            for (i in 0 until maxTokens) {
-                val logits = currentEngine.runInference(currentInput)
-                    ?: return@withContext Result.failure(Exception("Error en inferencia"))
-
-                val nextToken = if (temperature <= 0) {
-                    currentEngine.greedyDecode(logits)
-                } else {
-                    currentEngine.sampleToken(logits, temperature, topK)
-                }
-
-                if (nextToken < 0 || currentTokenizer.isEos(nextToken)) {
-                    break
-                }
-
-                generatedTokens.add(nextToken)
-
-                // Update input for next iteration (autoregressive)
-                currentInput = (inputIds.toList() + generatedTokens).toIntArray()
-
-                // Prevent exceeding max sequence length
-                if (currentInput.size >= currentEngine.maxSeqLen) {
-                    break
-                }
+            currentSampler.configure(temperature, topK, topP, minP, repetitionPenalty, seed)
+            val headerLength = headerLength(currentTokenizer, staticPrefix, inputIds)
+            val constraint = jsonSchema?.let { currentTokenizer.newGrammarMask(JsonGrammar(it)) }
+            generateTokens(
+                currentEngine, currentTokenizer, currentSampler, inputIds, headerLength, constraint, maxTokens
+            ) { token ->
+                ticket.checkpoint()
+                generatedTokens.add(token)
             }
 
             val output = currentTokenizer.decode(generatedTokens.toIntArray())
@@ -192,65 +258,390 @@ class LocalLlmService(private val context: Context) {
     }
 
     /**
-     * Generate content with streaming output.
+     * Generate content with streaming output; scheduled like [generateContent].
      */
     fun generateContentStream(
         prompt: String,
         maxTokens: Int = 256,
         temperature: Float = 0.7f,
-        topK: Int = 40
+        topK: Int = 40,
+        topP: Float = 1.0f,
+        minP: Float = 0.0f,
+        repetitionPenalty: Float = 1.0f,
+        seed: Long? = null,
+        staticPrefix: String? = null,
+        jsonSchema: JsonGrammar.Node? = null,
+        priority: Priority = Priority.CHAT
     ): Flow<String> = flow {
+        InferenceScheduler.withPermit(lane, priority, "stream") { ticket ->
+            streamTokens(
+                ticket, prompt, maxTokens, temperature, topK, topP, minP, repetitionPenalty, seed,
+                staticPrefix, jsonSchema
+            )
+        }
+    }.flowOn(lane.dispatcher)
+
+    private suspend fun FlowCollector<String>.streamTokens(
+        ticket: InferenceScheduler.Ticket,
+        prompt: String,
+        maxTokens: Int,
+        temperature: Float,
+        topK: Int,
+        topP: Float,
+        minP: Float,
+        repetitionPenalty: Float,
+        seed: Long?,
+        staticPrefix: String?,
+        jsonSchema: JsonGrammar.Node?
+    ) {
         val currentEngine = engine ?: throw IllegalStateException("Motor no inicializado")
         val currentTokenizer = tokenizer ?: throw IllegalStateException("Tokenizer no inicializado")
+        val currentSampler = sampler ?: throw IllegalStateException("Sampler no inicializado")
 
         if (!_isAvailable) {
             throw IllegalStateException("Servicio no disponible")
         }
 
         val inputIds = currentTokenizer.encode(prompt, addBos = true)
-        val generatedTokens = mutableListOf<Int>()
-        var currentInput = inputIds
-
-        for (i in 0 until maxTokens) {
+        currentSampler.configure(temperature, topK, topP, minP, repetitionPenalty, seed)
+        // Holds back bytes of characters split across tokens
+        val decoder = currentTokenizer.newStreamDecoder()
+        val headerLength = headerLength(currentTokenizer, staticPrefix, inputIds)
+        val constraint = jsonSchema?.let { currentTokenizer.newGrammarMask(JsonGrammar(it)) }
+        generateTokens(
+            currentEngine, currentTokenizer, currentSampler, inputIds, headerLength, constraint, maxTokens
+        ) { token ->
             yield() // Allow cancellation
+            ticket.checkpoint()
+            val tokenText = decoder.next(token)
+            if (tokenText.isNotEmpty()) {
+                emit(tokenText)
+            }
+        }
+        val tail = decoder.finish()
+        if (tail.isNotEmpty()) {
+            emit(tail)
+        }
+    }
 
-            val logits = currentEngine.runInference(currentInput)
-                ?: throw Exception("Error en inferencia")
+    /**
+     * Run a two-token dummy generation so the first real request does not pay for delegate
+     * setup and first-touch of the weights. Runs as background work, so any real request
+     * preempts it.
+     *
+     * @return false if no model is loaded or the warm-up did not finish
+     */
+    suspend fun warmUp(): Boolean = try {
+        InferenceScheduler.execute(lane, Priority.BACKGROUND, "warmup") { ticket ->
+            val currentEngine = engine
+            val currentTokenizer = tokenizer
+            val currentSampler = sampler
+            if (!_isAvailable || currentEngine == null || currentTokenizer == null || currentSampler == null) {
+                return@execute false
+            }
+            val inputIds = currentTokenizer.encode(WARMUP_PROMPT, addBos = true)
+            currentSampler.configure(0f, 1, 1.0f, 0.0f, 1.0f, null)
+            // Two tokens: the first comes from prefill, the second from decode
+            generateTokens(currentEngine, currentTokenizer, currentSampler, inputIds, 0, null, 2) {
+                ticket.checkpoint()
+            }
+            true
+        }
+    } catch (e: InferenceScheduler.PreemptedException) {
+        false
+    } catch (e: InferenceScheduler.AdmissionException) {
+        false
+    } catch (e: CancellationException) {
+        // A cancelled caller is not a failed warm-up: keep structured cancellation working
+        throw e
+    } catch (e: Exception) {
+        Log.w(TAG, "Warm-up failed", e)
+        false
+    }
 
-            val nextToken = if (temperature <= 0) {
-                currentEngine.greedyDecode(logits)
-            } else {
-                currentEngine.sampleToken(logits, temperature, topK)
+    /**
+     * Number of leading prompt tokens that come from [staticPrefix]. Tokens at the seam
+     * may merge differently, so only the common token prefix counts.
+     */
+    private fun headerLength(tokenizer: LlmTokenizer, staticPrefix: String?, inputIds: IntArray): Int {
+        if (staticPrefix.isNullOrEmpty()) return 0
+        val header = tokenizer.encode(staticPrefix, addBos = true)
+        var common = 0
+        val limit = minOf(header.size, inputIds.size)
+        while (common < limit && header[common] == inputIds[common]) common++
+        return common
+    }
+
+    /**
+     * Autoregressive loop shared by both generation paths.
+     *
+     * With a KV-cache model the prompt is prefilled once and every further step feeds
+     * only the last sampled token. Otherwise the whole sequence is re-run per token.
+     * Logits stay in engine-owned buffers, so the loop allocates nothing per token.
+     *
+     * The prefill skips whatever prefix of the prompt is already in the cache, either
+     * left over from the previous turn or restored from a header snapshot; the first
+     * [headerLength] tokens are snapshotted for later turns.
+     *
+     * With a [constraint], tokens that cannot continue the JSON are masked out before
+     * sampling and generation ends as soon as the JSON object closes. It fails if the
+     * grammar leaves no token or rejects the sampled one.
+     */
+    private suspend fun generateTokens(
+        engine: TfLiteLlmEngine,
+        tokenizer: LlmTokenizer,
+        sampler: LlmSampler,
+        inputIds: IntArray,
+        headerLength: Int,
+        constraint: GrammarMask?,
+        maxTokens: Int,
+        onToken: suspend (Int) -> Unit
+    ) {
+        val useCache = engine.supportsKvCache()
+        val (promptIds, promptHeader) = fitPrompt(inputIds, headerLength, engine.maxSeqLen, maxTokens)
+        if (promptIds.size < inputIds.size) {
+            Log.w(TAG, "Prompt trimmed from ${inputIds.size} to ${promptIds.size} tokens to fit the context")
+        }
+        val sequence = IntArray(engine.maxSeqLen.coerceAtLeast(promptIds.size + 1))
+        promptIds.copyInto(sequence)
+        var length = promptIds.size
+        sampler.reset()
+        promptIds.forEach { sampler.accept(it) }
+
+        var logits = if (useCache) {
+            prefillReusingCache(engine, sequence, length, promptHeader)
+        } else {
+            engine.runInference(sequence, length)
+        } ?: throw Exception("Error en inferencia")
+
+        val draft = draftEngine
+        if (useCache && draft != null) {
+            generateSpeculative(
+                engine, draft, tokenizer, sampler, sequence, length, logits, constraint, maxTokens, onToken
+            )
+            return
+        }
+
+        for (i in 0 until maxTokens) {
+            val nextToken = sampler.sampleWithin(logits, constraint)
+
+            if (nextToken < 0 || tokenizer.isEos(nextToken)) {
+                break
             }
 
-            if (nextToken < 0 || currentTokenizer.isEos(nextToken)) {
+            sampler.accept(nextToken)
+            constraint.acceptOrFail(nextToken)
+            onToken(nextToken)
+
+            // Prevent exceeding max sequence length
+            if (length + 1 >= engine.maxSeqLen || constraint?.isComplete == true) {
                 break
             }
+            sequence[length++] = nextToken
 
-            generatedTokens.add(nextToken)
+            logits = if (useCache) {
+                engine.decode(nextToken)
+            } else {
+                engine.runInference(sequence, length)
+            } ?: throw Exception("Error en inferencia")
+        }
+    }
 
-            // Emit the new token
-            val tokenText = currentTokenizer.decodeToken(nextToken)
-            if (tokenText.isNotEmpty()) {
-                emit(tokenText)
+    /**
+     * Speculative loop: the draft proposes a few tokens greedily, the target scores them all
+     * in one [TfLiteLlmEngine.verify] pass, and drafts are kept while the target's own sample
+     * agrees. The first disagreement is replaced by the target's sample, so the output
+     * follows the target distribution exactly; the draft only changes the speed.
+     *
+     * Between rounds the target cache holds sequence[0, length - 1); the last token is
+     * fed as the first verify position.
+     */
+    private suspend fun generateSpeculative(
+        target: TfLiteLlmEngine,
+        draft: TfLiteLlmEngine,
+        tokenizer: LlmTokenizer,
+        sampler: LlmSampler,
+        sequence: IntArray,
+        promptLength: Int,
+        promptLogits: FloatBuffer,
+        constraint: GrammarMask?,
+        maxTokens: Int,
+        onToken: suspend (Int) -> Unit
+    ) {
+        val controller = draftController
+        controller.reset()
+        // loadDraft only pairs drafts with at least the target's context
+        val maxLength = minOf(target.maxSeqLen, sequence.size)
+        var length = promptLength
+        var generated = 0
+        var token = sampler.sampleWithin(promptLogits, constraint)
+        var complete = false
+
+        while (token >= 0 && !tokenizer.isEos(token)) {
+            sampler.accept(token)
+            constraint.acceptOrFail(token)
+            onToken(token)
+            generated++
+            if (generated >= maxTokens || length + 1 >= maxLength || constraint?.isComplete == true) {
+                break
             }
+            sequence[length++] = token
 
-            // Update input for next iteration
-            currentInput = (inputIds.toList() + generatedTokens).toIntArray()
+            val k = minOf(
+                controller.draftLength,
+                target.maxVerifyLength - 1,
+                maxTokens - generated,
+                maxLength - length - 1
+            )
+            if (k <= 0 || !controller.isWorthwhile) {
+                val logits = target.decode(sequence[length - 1]) ?: throw Exception("Error en inferencia")
+                token = sampler.sampleWithin(logits, constraint)
+                continue
+            }
 
-            if (currentInput.size >= currentEngine.maxSeqLen) {
+            val drafted = draftTokens(draft, tokenizer, sequence, length, k)
+            if (!target.verify(sequence, length - 1, length + drafted)) {
+                throw Exception("Error en inferencia")
+            }
+            var accepted = 0
+            for (i in 0..drafted) {
+                val sampled = sampler.sampleWithin(target.verifyLogits(i), constraint)
+                if (i == drafted || sampled != sequence[length + i] || tokenizer.isEos(sampled)) {
+                    token = sampled
+                    break
+                }
+                sampler.accept(sampled)
+                constraint.acceptOrFail(sampled)
+                onToken(sampled)
+                generated++
+                accepted++
+                if (constraint?.isComplete == true) {
+                    complete = true
+                    break
+                }
+            }
+            controller.record(drafted, accepted)
+            length += accepted
+            // Drop the rejected drafts; the replacement token is fed next round
+            target.rewindCache(length)
+            if (generated >= maxTokens || complete) {
                 break
             }
         }
-    }.flowOn(Dispatchers.IO)
+        Log.d(TAG, "Speculative: accepted ${controller.acceptedTokens}/${controller.proposedTokens}, " +
+                "k=${controller.draftLength}")
+    }
+
+    /**
+     * Greedily draft up to [count] tokens after sequence[0, length) into sequence[length, ...),
+     * stopping early at an end-of-sequence token.
+     *
+     * @return Number of drafted tokens
+     */
+    private fun draftTokens(
+        draft: TfLiteLlmEngine,
+        tokenizer: LlmTokenizer,
+        sequence: IntArray,
+        length: Int,
+        count: Int
+    ): Int {
+        val greedy = draftSampler ?: return 0
+        val reused = draft.matchCachedPrefix(sequence, length).coerceAtMost(length - 1)
+        draft.rewindCache(reused)
+        var logits = draft.prefill(sequence, reused, length) ?: return 0
+        for (i in 0 until count) {
+            val token = greedy.sample(logits)
+            if (token < 0) return i
+            sequence[length + i] = token
+            if (i == count - 1 || tokenizer.isEos(token)) return i + 1
+            logits = draft.decode(token) ?: return i + 1
+        }
+        return count
+    }
+
+    private fun prefillReusingCache(
+        engine: TfLiteLlmEngine,
+        sequence: IntArray,
+        length: Int,
+        headerLength: Int
+    ): FloatBuffer? {
+        var reused = engine.matchCachedPrefix(sequence, length)
+        if (engine.supportsSnapshots()) {
+            val snapshot = snapshots.findLongestPrefix(sequence, length)
+            if (snapshot != null && snapshot.length() > reused && engine.restoreCache(snapshot)) {
+                reused = snapshot.length()
+            }
+        }
+        // The last prompt token is always fed again to get its logits
+        reused = reused.coerceAtMost(length - 1)
+        engine.rewindCache(reused)
+        Log.d(TAG, "Prefill: reused $reused of $length prompt tokens")
+        val logits = engine.prefill(sequence, reused, length) ?: return null
+
+        if (headerLength >= MIN_SNAPSHOT_TOKENS && engine.supportsSnapshots() &&
+            !snapshots.contains(sequence, headerLength)
+        ) {
+            engine.snapshotCache(headerLength)?.let { snapshot ->
+                if (snapshots.put(snapshot)) {
+                    Log.d(TAG, "Cached header snapshot: $snapshot, total=${snapshots.totalBytes}")
+                }
+            }
+        }
+        return logits
+    }
+
+    private fun LlmSampler.sampleWithin(logits: FloatBuffer, constraint: GrammarMask?): Int {
+        if (constraint != null && !constraint.mask(logits)) {
+            throw IllegalStateException(OFF_SCHEMA)
+        }
+        return sample(logits)
+    }
+
+    // A token the grammar rejects means the output can no longer match the schema
+    private fun GrammarMask?.acceptOrFail(token: Int) {
+        if (this != null && !accept(token)) {
+            throw IllegalStateException(OFF_SCHEMA)
+        }
+    }
+
+    private fun LlmSampler.configure(
+        temperature: Float,
+        topK: Int,
+        topP: Float,
+        minP: Float,
+        repetitionPenalty: Float,
+        seed: Long?
+    ) {
+        setTemperature(temperature)
+        setTopK(topK)
+        setTopP(topP)
+        setMinP(minP)
+        setRepetitionPenalty(repetitionPenalty, REPETITION_WINDOW)
+        if (seed != null) setSeed(seed)
+    }
 
     /**
-     * Release resources.
+     * [release] on the engine's lane, once the job using the model has ended, if [filename]
+     * (the model or its draft) is still loaded. Freeing interpreters under a running job
+     * would pull native memory from under it.
+     */
+    suspend fun unload(filename: String? = null) = InferenceScheduler.execute(lane, Priority.VOICE, "release") {
+        if (filename == null || filename == _modelFilename || filename == draftFilename) release()
+    }
+
+    /**
+     * Release resources. Call on the engine's lane or while nothing runs on it; see [unload].
      */
     fun release() {
+        snapshots.clear()
+        draftEngine?.deinitialize()
+        draftEngine = null
+        draftSampler = null
+        draftFilename = null
         engine?.deinitialize()
         engine = null
         tokenizer = null
+        sampler = null
         _isAvailable = false
         _modelName = null
         _modelFilename = null
@@ -258,5 +649,34 @@ class LocalLlmService(private val context: Context) {
 
     companion object {
         private const val TAG = "LocalLlmService"
+        private const val OFF_SCHEMA = "La salida no cumple el esquema JSON"
+        private const val REPETITION_WINDOW = 64
+        // Headers shorter than this prefill quickly enough not to be worth a copy
+        private const val MIN_SNAPSHOT_TOKENS = 32
+        private const val SNAPSHOT_BUDGET_BYTES = 64L * 1024 * 1024
+        private const val INITIAL_DRAFT_TOKENS = 4
+        private const val MAX_DRAFT_TOKENS = 8
+        private const val WARMUP_PROMPT = "Hello, how are you?"
+
+        /**
+         * Left-trim a prompt that does not fit a [capacity]-token context, keeping room for
+         * up to [maxTokens] of output (at most a quarter of the context). The oldest tokens
+         * after the [headerLength]-token header go first; the header goes too only when it
+         * leaves no room for the recent turns. Returns the prompt and its header length.
+         */
+        internal fun fitPrompt(
+            inputIds: IntArray,
+            headerLength: Int,
+            capacity: Int,
+            maxTokens: Int
+        ): Pair<IntArray, Int> {
+            val limit = (capacity - minOf(maxTokens, capacity / 4)).coerceAtLeast(1)
+            if (inputIds.size <= limit) return inputIds to headerLength
+            if (headerLength <= limit / 2) {
+                val tail = inputIds.copyOfRange(inputIds.size - (limit - headerLength), inputIds.size)
+                return (inputIds.copyOf(headerLength) + tail) to headerLength
+            }
+            return inputIds.copyOfRange(inputIds.size - limit, inputIds.size) to 0
+        }
     }
 }
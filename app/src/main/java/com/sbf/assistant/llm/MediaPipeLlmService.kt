@@ -4,12 +4,12 @@ import android.content.Context
 import android.util.Log
 import com.google.mediapipe.tasks.genai.llminference.LlmInference
 import com.sbf.assistant.ModelDownloadManager
-import kotlinx.coroutines.Dispatchers
+import com.sbf.assistant.llm.InferenceScheduler.Priority
 import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOn
-import kotlinx.coroutines.withContext
 import java.io.File
 
 /**
@@ -30,6 +30,11 @@ class MediaPipeLlmService(private val context: Context) {
     private var _modelName: String? = null
     private var _modelFilename: String? = null
     private var _isUsingGpu = false
+    private val lane = InferenceScheduler.lane(InferenceScheduler.LANE_MEDIAPIPE)
+
+    init {
+        InferenceScheduler.installMemoryProbe(context)
+    }
 
     sealed class Status {
         object Unavailable : Status()
@@ -41,14 +46,17 @@ class MediaPipeLlmService(private val context: Context) {
     /**
      * Initialize the service with a .task model file.
      */
-    suspend fun initialize(modelPath: String, preferGpu: Boolean = false): Status = withContext(Dispatchers.IO) {
+    suspend fun initialize(
+        modelPath: String,
+        preferGpu: Boolean = false
+    ): Status = InferenceScheduler.execute(lane, Priority.CHAT, "load") {
         try {
             Log.d(TAG, "Initializing MediaPipeLlmService with model: $modelPath")
 
             val modelFile = File(modelPath)
             if (!modelFile.exists()) {
                 Log.e(TAG, "Model file not found: $modelPath")
-                return@withContext Status.Error("Modelo no encontrado: $modelPath")
+                return@execute Status.Error("Modelo no encontrado: $modelPath")
             }
 
             if (!modelPath.endsWith(".task")) {
@@ -112,15 +120,18 @@ class MediaPipeLlmService(private val context: Context) {
     fun getModelFilename(): String? = _modelFilename
 
     /**
-     * Generate content (non-streaming).
+     * Generate content (non-streaming) on the engine's scheduler lane at [priority].
      */
-    suspend fun generateContent(prompt: String): Result<String> = withContext(Dispatchers.IO) {
-        val inference = llmInference ?: return@withContext Result.failure(
+    suspend fun generateContent(
+        prompt: String,
+        priority: Priority = Priority.CHAT
+    ): Result<String> = InferenceScheduler.execute(lane, priority, "generate") {
+        val inference = llmInference ?: return@execute Result.failure(
             IllegalStateException("Servicio no inicializado")
         )
 
         if (!_isAvailable) {
-            return@withContext Result.failure(
+            return@execute Result.failure(
                 IllegalStateException("Servicio no disponible")
             )
         }
@@ -135,9 +146,19 @@ class MediaPipeLlmService(private val context: Context) {
     }
 
     /**
-     * Generate content with streaming output.
+     * Generate content with streaming output; holds the engine's scheduler lane until the
+     * response completes.
      */
-    fun generateContentStream(prompt: String): Flow<String> = callbackFlow {
+    fun generateContentStream(prompt: String, priority: Priority = Priority.CHAT): Flow<String> = flow {
+        InferenceScheduler.withPermit(lane, priority, "stream") { ticket ->
+            partialResults(prompt).collect { partial ->
+                ticket.checkpoint()
+                emit(partial)
+            }
+        }
+    }.flowOn(lane.dispatcher)
+
+    private fun partialResults(prompt: String): Flow<String> = callbackFlow {
         val inference = llmInference
         if (inference == null) {
             close(IllegalStateException("Servicio no inicializado"))
@@ -165,10 +186,18 @@ class MediaPipeLlmService(private val context: Context) {
         awaitClose {
             // Cleanup if needed
         }
-    }.flowOn(Dispatchers.IO)
+    }
+
+    /**
+     * [release] on the engine's lane, once the job using the model has ended, if [filename]
+     * is still the loaded model.
+     */
+    suspend fun unload(filename: String? = null) = InferenceScheduler.execute(lane, Priority.VOICE, "release") {
+        if (filename == null || filename == _modelFilename) release()
+    }
 
     /**
-     * Release resources.
+     * Release resources. Call on the engine's lane or while nothing runs on it; see [unload].
      */
     fun release() {
         try {
@@ -0,0 +1,293 @@
+package com.sbf.assistant.llm;
+
+import java.util.Arrays;
+
+/**
+ * Subword encoder for SentencePiece-style vocabularies.
+ *
+ * The token bytes are stored in a double-array trie (three int arrays, one entry per trie
+ * node), and a Viterbi pass over the UTF-8 input picks the segmentation with the best total
+ * score. With unigram scores this is SentencePiece unigram decoding; when the vocab has no
+ * scores every token costs the same, which yields the fewest tokens. Characters no token
+ * covers are emitted as byte-fallback tokens ({@code <0xAB>}) when the vocab has all of them,
+ * otherwise as one unk token per run.
+ *
+ * Immutable after construction and safe to share between threads.
+ */
+public final class SubwordEncoder {
+    private static final int ROOT = 0;
+    private static final int FREE = -1;
+
+    // Trie: child of node s on byte c is t = base[s] + c + 1 when check[t] == s
+    private int[] base;
+    private int[] check;
+    // Token id ending at each node, or -1
+    private int[] value;
+    private int nextFree = 1;
+
+    private final float[] scores;
+    private final ByteFallbackTokens byteTokens;
+    private final boolean byteFallback;
+    private final int unkId;
+    private final float unkScore;
+
+    /**
+     * @param excludedIds Control tokens (bos, eos, ...) that must never be produced from text
+     */
+    public SubwordEncoder(CompiledVocab vocab, int unkId, int... excludedIds) {
+        int size = vocab.size();
+        this.unkId = unkId;
+
+        scores = new float[size];
+        float minScore = 0f;
+        for (int id = 0; id < size; id++) {
+            // Unscored vocab: uniform cost, so the search minimises the token count
+            scores[id] = vocab.hasScores() ? vocab.score(id) : -1f;
+            minScore = Math.min(minScore, scores[id]);
+        }
+        unkScore = minScore - 10f;
+
+        boolean[] excluded = new boolean[size];
+        for (int id : excludedIds) {
+            if (id >= 0 && id < size) excluded[id] = true;
+        }
+
+        int[] byteIds = new int[256];
+        Arrays.fill(byteIds, -1);
+        byte[][] keys = new byte[size][];
+        int keyCount = 0;
+        for (int id = 0; id < size; id++) {
+            byte[] bytes = new byte[vocab.byteLength(id)];
+            vocab.bytes(id, bytes, 0);
+            int byteValue = parseByteToken(bytes);
+            if (byteValue >= 0) {
+                byteIds[byteValue] = id;
+            } else if (!excluded[id] && bytes.length > 0) {
+                keys[id] = bytes;
+                keyCount++;
+            }
+        }
+        byteTokens = new ByteFallbackTokens(byteIds);
+        byteFallback = byteTokens.isComplete();
+
+        // Sort ids by token bytes; ties keep id order so the last duplicate wins
+        Integer[] order = new Integer[keyCount];
+        for (int id = 0, k = 0; id < size; id++) {
+            if (keys[id] != null) order[k++] = id;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int c = compareUnsigned(keys[a], keys[b]);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        byte[][] sortedKeys = new byte[keyCount][];
+        int[] sortedIds = new int[keyCount];
+        for (int k = 0; k < keyCount; k++) {
+            sortedIds[k] = order[k];
+            sortedKeys[k] = keys[order[k]];
+        }
+
+        int capacity = Math.max(1024, keyCount * 4);
+        base = new int[capacity];
+        check = new int[capacity];
+        value = new int[capacity];
+        Arrays.fill(check, FREE);
+        Arrays.fill(value, -1);
+        check[ROOT] = -2;
+        int used = build(ROOT, sortedKeys, sortedIds, 0, keyCount, 0, 1);
+
+        base = Arrays.copyOf(base, used);
+        check = Arrays.copyOf(check, used);
+        value = Arrays.copyOf(value, used);
+    }
+
+    /**
+     * Number of trie slots; memory is three ints per slot.
+     */
+    public int getTrieSize() {
+        return check.length;
+    }
+
+    public boolean hasByteFallback() {
+        return byteFallback;
+    }
+
+    /**
+     * @return The byte a {@code <0xAB>} fallback token stands for, or -1
+     */
+    public int byteValue(int id) {
+        return byteTokens.value(id);
+    }
+
+    /**
+     * Encode already-normalised UTF-8 text (spaces replaced by the vocab's space marker).
+     */
+    public int[] encode(byte[] text, int length) {
+        float[] best = new float[length + 1];
+        int[] from = new int[length + 1];
+        int[] via = new int[length + 1];
+        Arrays.fill(best, Float.NEGATIVE_INFINITY);
+        best[0] = 0f;
+
+        for (int i = 0; i < length; i++) {
+            float start = best[i];
+            if (start == Float.NEGATIVE_INFINITY) continue;
+
+            int node = ROOT;
+            for (int j = i; j < length; j++) {
+                int next = base[node] + (text[j] & 0xFF) + 1;
+                if (next >= check.length || check[next] != node) break;
+                node = next;
+                int id = value[node];
+                if (id >= 0) {
+                    float score = start + scores[id];
+                    if (score > best[j + 1]) {
+                        best[j + 1] = score;
+                        from[j + 1] = i;
+                        via[j + 1] = id;
+                    }
+                }
+            }
+
+            // Unknown character: always possible, so every character boundary is reachable
+            int end = Math.min(length, i + utf8Length(text[i]));
+            float score = start + unkScore;
+            if (score > best[end]) {
+                best[end] = score;
+                from[end] = i;
+                via[end] = -1;
+            }
+        }
+
+        // Backtrack, then reverse
+        int[] out = new int[16];
+        int count = 0;
+        boolean lastUnk = false;
+        for (int pos = length; pos > 0; pos = from[pos]) {
+            int id = via[pos];
+            if (id >= 0) {
+                out = grow(out, count + 1);
+                out[count++] = id;
+                lastUnk = false;
+            } else if (byteFallback) {
+                for (int b = pos - 1; b >= from[pos]; b--) {
+                    out = grow(out, count + 1);
+                    out[count++] = byteTokens.id(text[b] & 0xFF);
+                }
+            } else if (!lastUnk) {
+                out = grow(out, count + 1);
+                out[count++] = unkId;
+                lastUnk = true;
+            }
+        }
+        for (int a = 0, b = count - 1; a < b; a++, b--) {
+            int tmp = out[a];
+            out[a] = out[b];
+            out[b] = tmp;
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    // Insert keys[lo, hi), which share their first `depth` bytes, below `node`
+    private int build(int node, byte[][] keys, int[] ids, int lo, int hi, int depth, int used) {
+        int i = lo;
+        while (i < hi && keys[i].length == depth) {
+            value[node] = ids[i++];
+        }
+        if (i == hi) {
+            return used;
+        }
+
+        int count = 0;
+        int last = -1;
+        for (int k = i; k < hi; k++) {
+            int label = (keys[k][depth] & 0xFF) + 1;
+            if (label != last) {
+                count++;
+                last = label;
+            }
+        }
+        int[] labels = new int[count];
+        int[] starts = new int[count + 1];
+        count = 0;
+        last = -1;
+        for (int k = i; k < hi; k++) {
+            int label = (keys[k][depth] & 0xFF) + 1;
+            if (label != last) {
+                labels[count] = label;
+                starts[count++] = k;
+                last = label;
+            }
+        }
+        starts[count] = hi;
+
+        int b = findBase(labels);
+        base[node] = b;
+        for (int label : labels) {
+            check[b + label] = node;
+        }
+        used = Math.max(used, b + labels[labels.length - 1] + 1);
+        for (int k = 0; k < count; k++) {
+            used = build(b + labels[k], keys, ids, starts[k], starts[k + 1], depth + 1, used);
+        }
+        return used;
+    }
+
+    // Lowest base whose slots for all labels are free
+    private int findBase(int[] labels) {
+        while (nextFree < check.length && check[nextFree] != FREE) {
+            nextFree++;
+        }
+        for (int pos = Math.max(nextFree, labels[0] + 1); ; pos++) {
+            ensureCapacity(pos + 257);
+            if (check[pos] != FREE) continue;
+            int b = pos - labels[0];
+            boolean fits = true;
+            for (int k = 1; k < labels.length && fits; k++) {
+                fits = check[b + labels[k]] == FREE;
+            }
+            if (fits) return b;
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= check.length) return;
+        int capacity = Math.max(size, check.length + (check.length >> 1));
+        int old = check.length;
+        base = Arrays.copyOf(base, capacity);
+        check = Arrays.copyOf(check, capacity);
+        value = Arrays.copyOf(value, capacity);
+        Arrays.fill(check, old, capacity, FREE);
+        Arrays.fill(value, old, capacity, -1);
+    }
+
+    // "<0xAB>" -> 0xAB
+    private static int parseByteToken(byte[] bytes) {
+        if (bytes.length != 6 || bytes[0] != '<' || bytes[1] != '0' || bytes[2] != 'x' || bytes[5] != '>') {
+            return -1;
+        }
+        int hi = Character.digit(bytes[3], 16);
+        int lo = Character.digit(bytes[4], 16);
+        return hi < 0 || lo < 0 ? -1 : (hi << 4) | lo;
+    }
+
+    private static int utf8Length(byte lead) {
+        int b = lead & 0xFF;
+        if (b < 0xC0) return 1;
+        if (b < 0xE0) return 2;
+        if (b < 0xF0) return 3;
+        return 4;
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) return c;
+        }
+        return a.length - b.length;
+    }
+
+    private static int[] grow(int[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, array.length * 2);
+    }
+}
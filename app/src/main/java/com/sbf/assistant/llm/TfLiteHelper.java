@@ -1,11 +1,14 @@
 package com.sbf.assistant.llm;
 
+import android.content.Context;
 import android.util.Log;
 
 import org.tensorflow.lite.Delegate;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.gpu.GpuDelegate;
+import org.tensorflow.lite.gpu.GpuDelegateFactory;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -14,6 +17,8 @@ import java.nio.channels.FileChannel;
 /**
  * Helper class for TensorFlow Lite interpreter initialization.
  * Provides common functionality for loading models with optional GPU acceleration.
+ * CPU work runs on XNNPACK with the thread count handed out by {@link CpuBudget}; with a
+ * {@link Context}, the backend is the one {@link DelegateTuner} measured fastest.
  */
 public class TfLiteHelper {
     private static final String TAG = "TfLiteHelper";
@@ -25,11 +30,24 @@ public class TfLiteHelper {
         public final Interpreter interpreter;
         public final Delegate gpuDelegate;
         public final boolean usingGpu;
+        public final DelegateTuner.Backend backend;
+        public final int numThreads;
+        private final String budgetOwner;
+        private boolean released;
 
         public InterpreterResult(Interpreter interpreter, Delegate gpuDelegate, boolean usingGpu) {
+            this(interpreter, gpuDelegate,
+                    usingGpu ? DelegateTuner.Backend.GPU_FP16 : DelegateTuner.Backend.CPU, 0, null);
+        }
+
+        InterpreterResult(Interpreter interpreter, Delegate gpuDelegate, DelegateTuner.Backend backend,
+                          int numThreads, String budgetOwner) {
             this.interpreter = interpreter;
             this.gpuDelegate = gpuDelegate;
-            this.usingGpu = usingGpu;
+            this.usingGpu = backend.isGpu();
+            this.backend = backend;
+            this.numThreads = numThreads;
+            this.budgetOwner = budgetOwner;
         }
 
         /**
@@ -44,6 +62,10 @@ public class TfLiteHelper {
                     gpuDelegate.close();
                 } catch (Exception ignored) {}
             }
+            if (budgetOwner != null && !released) {
+                CpuBudget.get().release(budgetOwner);
+            }
+            released = true;
         }
     }
 
@@ -56,33 +78,134 @@ public class TfLiteHelper {
      * @throws IOException If the model file cannot be read
      */
     public static InterpreterResult createInterpreter(String modelPath, boolean preferGpu) throws IOException {
-        ByteBuffer tfliteModel = loadModelFile(modelPath);
-        int numThreads = Runtime.getRuntime().availableProcessors();
+        return createInterpreter(modelPath, preferGpu, null);
+    }
 
-        if (preferGpu && isGpuDelegateAvailable()) {
-            try {
-                Log.d(TAG, "Attempting TFLite GPU delegate...");
-                GpuDelegate gpuDelegate = new GpuDelegate();
+    /**
+     * Load a TFLite model, taking its CPU threads from the {@link CpuBudget} share of
+     * {@code budgetOwner} (one of the {@code CpuBudget.OWNER_*} names). The share is held
+     * until {@link InterpreterResult#release()}.
+     *
+     * @param budgetOwner Budget slot to take, or null to use the current share untracked
+     */
+    public static InterpreterResult createInterpreter(String modelPath, boolean preferGpu, String budgetOwner)
+            throws IOException {
+        return createInterpreter(null, modelPath, preferGpu, budgetOwner);
+    }
+
+    /**
+     * Load a TFLite model on its tuned backend. The first load of a model on this device
+     * benchmarks the candidates ({@link DelegateTuner#tune}); later loads reuse the choice
+     * and the serialized GPU kernels.
+     *
+     * @param context Enables tuning and the kernel cache; null uses the GPU when allowed
+     * @param preferGpu Whether accelerators may be used at all
+     * @param budgetOwner Budget slot to take, or null to use the current share untracked
+     */
+    public static InterpreterResult createInterpreter(Context context, String modelPath, boolean preferGpu,
+                                                      String budgetOwner) throws IOException {
+        return createInterpreter(context, modelPath, loadModelFile(modelPath), preferGpu, budgetOwner);
+    }
+
+    /**
+     * {@link #createInterpreter(Context, String, boolean, String)} on weights the caller has
+     * already mapped with {@link #loadModelFile}. Interpreters built on the same buffer share
+     * one copy of the weights.
+     */
+    public static InterpreterResult createInterpreter(Context context, String modelPath, ByteBuffer tfliteModel,
+                                                      boolean preferGpu, String budgetOwner) {
+        return createInterpreter(context, modelPath, tfliteModel, preferGpu, budgetOwner, 1);
+    }
 
-                Interpreter.Options options = new Interpreter.Options();
-                options.setNumThreads(numThreads);
-                options.addDelegate(gpuDelegate);
+    /**
+     * @param shareParts Interpreters of {@code budgetOwner} that may run at once; each takes
+     *                   that fraction of the owner's threads (see {@link CpuBudget#acquire(String, int)})
+     */
+    public static InterpreterResult createInterpreter(Context context, String modelPath, ByteBuffer tfliteModel,
+                                                      boolean preferGpu, String budgetOwner, int shareParts) {
+        CpuBudget budget = CpuBudget.get();
+        int numThreads = budgetOwner != null
+                ? budget.acquire(budgetOwner, shareParts)
+                : Math.max(1, budget.threadsPerModel() / Math.max(1, shareParts));
+        try {
+            DelegateTuner.Backend backend = preferGpu ? DelegateTuner.Backend.GPU_FP16 : DelegateTuner.Backend.CPU;
+            File kernelCache = null;
+            String modelToken = null;
+            if (preferGpu && context != null) {
+                DelegateTuner tuner = DelegateTuner.get(context);
+                DelegateTuner.Result tuned = tuner.tune(new File(modelPath), tfliteModel, numThreads);
+                if (tuned != null) {
+                    backend = tuned.backend;
+                    kernelCache = tuner.getKernelCacheDir();
+                    modelToken = tuned.modelKey;
+                }
+            }
+            return openWithFallback(tfliteModel, backend, numThreads, budgetOwner, kernelCache, modelToken);
+        } catch (RuntimeException e) {
+            if (budgetOwner != null) budget.release(budgetOwner);
+            throw e;
+        }
+    }
 
-                Interpreter interpreter = new Interpreter(tfliteModel, options);
-                Log.d(TAG, "TFLite GPU delegate enabled");
-                return new InterpreterResult(interpreter, gpuDelegate, true);
+    private static InterpreterResult openWithFallback(ByteBuffer tfliteModel, DelegateTuner.Backend backend,
+                                                      int numThreads, String budgetOwner,
+                                                      File kernelCache, String modelToken) {
+        if (backend != DelegateTuner.Backend.CPU) {
+            try {
+                Log.d(TAG, "Attempting TFLite " + backend.label + "...");
+                InterpreterResult result = open(tfliteModel, backend, numThreads, budgetOwner, kernelCache, modelToken);
+                Log.d(TAG, "TFLite " + backend.label + " enabled");
+                return result;
             } catch (Throwable t) {
-                Log.w(TAG, "GPU delegate failed, falling back to CPU: " + t.getMessage());
+                Log.w(TAG, backend.label + " failed, falling back to CPU: " + t.getMessage());
             }
         }
 
         // Fallback to CPU
-        Log.d(TAG, "Using CPU inference (threads=" + numThreads + ")");
-        Interpreter.Options cpuOptions = new Interpreter.Options();
-        cpuOptions.setNumThreads(numThreads);
+        Log.d(TAG, "Using CPU inference (threads=" + numThreads + ", " + CpuBudget.get().getTopology() + ")");
+        return open(tfliteModel, DelegateTuner.Backend.CPU, numThreads, budgetOwner, null, null);
+    }
+
+    /**
+     * Create an interpreter on exactly {@code backend}; throws if it cannot be used.
+     *
+     * @param kernelCache Directory for serialized GPU kernels, or null to compile every time
+     * @param modelToken Stable model id naming the serialized kernels
+     */
+    static InterpreterResult open(ByteBuffer tfliteModel, DelegateTuner.Backend backend, int numThreads,
+                                  String budgetOwner, File kernelCache, String modelToken) {
+        Interpreter.Options options = cpuOptions(numThreads);
+        GpuDelegate gpuDelegate = null;
+        if (backend.isGpu()) {
+            if (!isGpuDelegateAvailable()) {
+                throw new IllegalStateException("GPU delegate not available");
+            }
+            GpuDelegateFactory.Options gpuOptions = new GpuDelegateFactory.Options()
+                    .setPrecisionLossAllowed(backend == DelegateTuner.Backend.GPU_FP16)
+                    .setInferencePreference(GpuDelegateFactory.Options.INFERENCE_PREFERENCE_SUSTAINED_SPEED);
+            if (kernelCache != null && modelToken != null) {
+                gpuOptions.setSerializationParams(kernelCache.getAbsolutePath(), modelToken + "-" + backend.name());
+            }
+            gpuDelegate = new GpuDelegate(gpuOptions);
+            options.addDelegate(gpuDelegate);
+        } else if (backend == DelegateTuner.Backend.NNAPI) {
+            options.setUseNNAPI(true);
+        }
+        try {
+            Interpreter interpreter = new Interpreter(tfliteModel, options);
+            return new InterpreterResult(interpreter, gpuDelegate, backend, numThreads, budgetOwner);
+        } catch (RuntimeException e) {
+            if (gpuDelegate != null) gpuDelegate.close();
+            throw e;
+        }
+    }
 
-        Interpreter interpreter = new Interpreter(tfliteModel, cpuOptions);
-        return new InterpreterResult(interpreter, null, false);
+    // Ops the GPU delegate leaves on the CPU run on XNNPACK too
+    private static Interpreter.Options cpuOptions(int numThreads) {
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(numThreads);
+        options.setUseXNNPACK(true);
+        return options;
     }
 
     /**
@@ -10,12 +10,28 @@ import org.tensorflow.lite.Tensor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * TensorFlow Lite engine for running LLM models.
  * Supports autoregressive text generation with GPU acceleration.
+ *
+ * Models exported with "prefill" and "decode" signatures (ai-edge-torch layout) run
+ * with a persistent KV cache: one prefill pass over the prompt, then one-token decode
+ * steps. Other models fall back to re-running the full sequence per token.
+ *
+ * The engine remembers which token fills each cache position, so a follow-up prompt that
+ * shares a prefix with what is cached only prefills the new suffix
+ * ({@link #matchCachedPrefix}, {@link #rewindCache}), and a prefix can be copied out and
+ * restored later ({@link #snapshotCache}, {@link #restoreCache}).
+ *
+ * When the prefill signature also returns per-position logits, {@link #verify} scores a
+ * run of tokens in one pass, which is what speculative decoding needs.
  */
 public class TfLiteLlmEngine {
     private static final String TAG = "TfLiteLlmEngine";
@@ -37,6 +53,43 @@ public class TfLiteLlmEngine {
     private DataType inputType;
     private DataType outputType;
 
+    // KV cache (prefill/decode signatures)
+    private static final String SIGNATURE_PREFILL = "prefill";
+    private static final String SIGNATURE_DECODE = "decode";
+    private boolean kvCacheSupported = false;
+    private int kvCacheLen = 0;
+    private int prefillSeqLen = 0;
+    private int cachePosition = 0;
+    private final Map<String, Object> prefillInputs = new HashMap<>();
+    private final Map<String, Object> prefillOutputs = new HashMap<>();
+    private final Map<String, Object> decodeInputs = new HashMap<>();
+    private final Map<String, Object> decodeOutputs = new HashMap<>();
+    private IntBuffer prefillTokens;
+    private IntBuffer prefillPositions;
+    private IntBuffer decodeTokens;
+    private IntBuffer decodePositions;
+    private ByteBuffer decodeLogits;
+    private FloatBuffer decodeLogitsFloats;
+    // Prefill logits, when the signature has them for every position ([1, seq, vocab])
+    private FloatBuffer prefillLogitsFloats;
+    // Token at each cache position, valid in [0, cachePosition)
+    private int[] cachedTokens = new int[0];
+    // KV tensors in signature order, with the bytes one position takes in each
+    private final List<ByteBuffer> kvTensors = new ArrayList<>();
+    private final List<Integer> kvBytesPerPosition = new ArrayList<>();
+    private boolean snapshotsSupported = false;
+
+    // Full-sequence path: reusable tensors per sequence-length bucket
+    private static final int MIN_BUCKET = 32;
+    private static final int DEFAULT_DYNAMIC_SEQ_LEN = 512;
+    private boolean dynamicSeqLen = false;
+    // Output is [1, vocab]: the logits of the last input position only
+    private boolean lastTokenOutput = false;
+    private final Map<Integer, SeqBuffers> seqBuffers = new HashMap<>();
+    private SeqBuffers activeBuffers;
+    // Length the input of a last-token model is currently resized to
+    private int lastTokenLength = 0;
+
     public TfLiteLlmEngine(Context context) {
         mContext = context;
     }
@@ -64,9 +117,16 @@ public class TfLiteLlmEngine {
         try {
             loadModel(modelPath);
             extractModelInfo();
+            setupKvCache();
+            if (lastTokenOutput && !dynamicSeqLen && !kvCacheSupported) {
+                // Padding would put the only logits row on a pad position, not the last token
+                Log.e(TAG, "Unsupported model: static sequence length with last-token output only");
+                return false;
+            }
             mIsInitialized = true;
             Log.d(TAG, "LLM Engine initialized. GPU=" + usingGpu +
-                    ", maxSeqLen=" + maxSeqLen + ", vocabSize=" + vocabSize);
+                    ", maxSeqLen=" + maxSeqLen + ", vocabSize=" + vocabSize +
+                    ", kvCache=" + kvCacheSupported);
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to initialize LLM engine", e);
@@ -79,6 +139,10 @@ public class TfLiteLlmEngine {
      * Deinitialize and release resources.
      */
     public void deinitialize() {
+        releaseKvCache();
+        seqBuffers.clear();
+        activeBuffers = null;
+        lastTokenLength = 0;
         if (interpreterResult != null) {
             interpreterResult.release();
             interpreterResult = null;
@@ -88,217 +152,585 @@ public class TfLiteLlmEngine {
     }
 
     /**
-     * Run inference for next token prediction.
+     * Run inference for next token prediction over the whole sequence.
+     *
+     * Input and output tensors are allocated once per sequence-length bucket and reused,
+     * so repeated calls produce no garbage. The returned buffer is owned by the engine
+     * and only valid until the next call.
      *
-     * @param inputIds Array of input token IDs
-     * @return Logits array for next token prediction
+     * @param inputIds Token IDs; only the first {@code length} are used
+     * @param length Number of valid tokens
+     * @return Logits for the next token in [position, limit) of the returned buffer
      */
-    public float[] runInference(int[] inputIds) {
+    public FloatBuffer runInference(int[] inputIds, int length) {
         if (!mIsInitialized || mInterpreter == null) {
             Log.e(TAG, "Engine not initialized");
             return null;
         }
 
         try {
-            // Prepare input buffer
-            int seqLen = Math.min(inputIds.length, maxSeqLen);
-            ByteBuffer inputBuffer = ByteBuffer.allocateDirect(seqLen * 4);
-            inputBuffer.order(ByteOrder.nativeOrder());
-
-            for (int i = 0; i < seqLen; i++) {
-                inputBuffer.putInt(inputIds[i]);
+            int seqLen = Math.min(length, maxSeqLen);
+            SeqBuffers buffers = buffersFor(seqLen);
+
+            // Bulk write; clear only the slots left over from a longer previous sequence
+            buffers.inputInts.position(0);
+            buffers.inputInts.put(inputIds, 0, seqLen);
+            for (int i = seqLen; i < buffers.filled; i++) {
+                buffers.inputInts.put(i, 0);
             }
-            inputBuffer.rewind();
+            buffers.filled = seqLen;
+
+            ByteBuffer input = buffers.inputFor(seqLen);
+            input.rewind();
+            buffers.output.rewind();
+            mInterpreter.run(input, buffers.output);
+
+            // [1, seq, vocab] -> row of the last real token; [1, vocab] -> the only row
+            int row = buffers.perPosition ? seqLen - 1 : 0;
+            int start = row * vocabSize;
+            FloatBuffer logits = buffers.outputFloats;
+            logits.limit(start + vocabSize);
+            logits.position(start);
+            return logits;
+        } catch (Exception e) {
+            Log.e(TAG, "Inference failed", e);
+            return null;
+        }
+    }
 
-            // Prepare output buffer (logits for vocab)
-            ByteBuffer outputBuffer = ByteBuffer.allocateDirect(vocabSize * 4);
-            outputBuffer.order(ByteOrder.nativeOrder());
+    /**
+     * Get (or allocate) the tensors for a sequence length. Models with a dynamic
+     * sequence dimension are resized to power-of-two buckets so the interpreter is
+     * only re-allocated a handful of times per generation; static models use one bucket.
+     * Models with a last-token output cannot be padded, since their only logits row is
+     * the last input position, so they are resized to the exact length instead.
+     */
+    private SeqBuffers buffersFor(int seqLen) {
+        if (dynamicSeqLen && lastTokenOutput) {
+            return lastTokenBuffersFor(seqLen);
+        }
+        int bucket = dynamicSeqLen ? bucketFor(seqLen) : maxSeqLen;
+        if (activeBuffers != null && activeBuffers.seqLen == bucket) {
+            return activeBuffers;
+        }
 
-            // Run inference
-            mInterpreter.run(inputBuffer, outputBuffer);
+        if (dynamicSeqLen) {
+            mInterpreter.resizeInput(0, new int[]{1, bucket});
+            mInterpreter.allocateTensors();
+        }
+        SeqBuffers buffers = seqBuffers.get(bucket);
+        if (buffers == null) {
+            Tensor input = mInterpreter.getInputTensor(0);
+            Tensor output = mInterpreter.getOutputTensor(0);
+            int[] shape = output.shape();
+            buffers = new SeqBuffers(bucket, allocate(input.numBytes()), allocate(output.numBytes()),
+                    shape.length >= 3 && shape[shape.length - 2] > 1, false);
+            seqBuffers.put(bucket, buffers);
+            Log.d(TAG, "Allocated tensors for bucket " + bucket + ", output=" + arrayToString(shape));
+        }
+        activeBuffers = buffers;
+        return buffers;
+    }
 
-            // Extract logits
-            outputBuffer.rewind();
-            float[] logits = new float[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                logits[i] = outputBuffer.getFloat();
+    /**
+     * Resize a last-token model to {@code seqLen}. Its tensors are allocated once: the input
+     * for {@link #maxSeqLen} tokens, of which each call uses the first {@code seqLen}, and
+     * the single logits row, which does not depend on the length.
+     */
+    private SeqBuffers lastTokenBuffersFor(int seqLen) {
+        if (lastTokenLength != seqLen) {
+            mInterpreter.resizeInput(0, new int[]{1, seqLen});
+            mInterpreter.allocateTensors();
+            lastTokenLength = seqLen;
+        }
+        if (activeBuffers == null) {
+            int tokenBytes = mInterpreter.getInputTensor(0).numBytes() / seqLen;
+            activeBuffers = new SeqBuffers(maxSeqLen, allocate(tokenBytes * maxSeqLen),
+                    allocate(mInterpreter.getOutputTensor(0).numBytes()), false, true);
+            Log.d(TAG, "Allocated last-token tensors for up to " + maxSeqLen + " tokens");
+        }
+        return activeBuffers;
+    }
+
+    private int bucketFor(int seqLen) {
+        int bucket = MIN_BUCKET;
+        while (bucket < seqLen) {
+            bucket <<= 1;
+        }
+        return Math.min(bucket, maxSeqLen);
+    }
+
+    /**
+     * Reusable input/output tensors for one sequence-length bucket.
+     */
+    private static class SeqBuffers {
+        final int seqLen;
+        final ByteBuffer input;
+        final IntBuffer inputInts;
+        final ByteBuffer output;
+        final FloatBuffer outputFloats;
+        final boolean perPosition;
+        // Input is sized for seqLen but fed at the model's current, shorter length
+        final boolean exactLength;
+        int filled = 0;
+
+        SeqBuffers(int seqLen, ByteBuffer input, ByteBuffer output, boolean perPosition,
+                   boolean exactLength) {
+            this.seqLen = seqLen;
+            this.input = input;
+            this.inputInts = input.asIntBuffer();
+            this.output = output;
+            this.outputFloats = output.asFloatBuffer();
+            this.perPosition = perPosition;
+            this.exactLength = exactLength;
+        }
+
+        /**
+         * Input holding {@code length} tokens. The interpreter matches a buffer's capacity
+         * against the tensor, so an exact-length model gets a view of the first bytes; the
+         * view shares the direct memory and costs no native allocation.
+         */
+        ByteBuffer inputFor(int length) {
+            if (!exactLength || length == seqLen) {
+                return input;
             }
+            input.limit(length * (input.capacity() / seqLen));
+            ByteBuffer view = input.slice().order(input.order());
+            input.clear();
+            return view;
+        }
+    }
 
-            return logits;
-        } catch (Exception e) {
-            Log.e(TAG, "Inference failed", e);
+    /**
+     * Whether the model exposes prefill/decode signatures with KV-cache tensors.
+     * When true, use {@link #prefill(int[], int)} and {@link #decode(int)} instead of
+     * re-running {@link #runInference(int[], int)} over the whole sequence per token.
+     */
+    public boolean supportsKvCache() {
+        return kvCacheSupported;
+    }
+
+    /**
+     * Current write position in the KV cache (number of tokens already processed).
+     */
+    public int getCachePosition() {
+        return cachePosition;
+    }
+
+    /**
+     * Forget the cached context. Stale cache entries beyond the position are masked
+     * by the model, so there is no need to clear the buffers.
+     */
+    public void resetCache() {
+        cachePosition = 0;
+    }
+
+    /**
+     * Number of leading tokens of {@code tokens[0, length)} already in the cache.
+     */
+    public int matchCachedPrefix(int[] tokens, int length) {
+        int limit = Math.min(length, cachePosition);
+        int i = 0;
+        while (i < limit && cachedTokens[i] == tokens[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Drop cached positions from {@code position} on, keeping the prefix before it.
+     * Like {@link #resetCache()}, nothing is cleared; later positions are masked.
+     */
+    public void rewindCache(int position) {
+        cachePosition = Math.max(0, Math.min(position, cachePosition));
+    }
+
+    /**
+     * Whether the cache layout ([1, positions, ...] per tensor) allows prefix snapshots.
+     */
+    public boolean supportsSnapshots() {
+        return kvCacheSupported && snapshotsSupported;
+    }
+
+    /**
+     * Copy the first {@code length} cached positions into a new snapshot.
+     *
+     * @return The snapshot, or null if snapshots are unsupported or the prefix is not cached
+     */
+    public KvSnapshot snapshotCache(int length) {
+        if (!supportsSnapshots() || length <= 0 || length > cachePosition) {
             return null;
         }
+        ByteBuffer[] copies = new ByteBuffer[kvTensors.size()];
+        for (int i = 0; i < copies.length; i++) {
+            ByteBuffer source = kvTensors.get(i).duplicate();
+            source.position(0);
+            source.limit(length * kvBytesPerPosition.get(i));
+            copies[i] = ByteBuffer.allocateDirect(source.remaining()).order(ByteOrder.nativeOrder());
+            copies[i].put(source);
+        }
+        int[] tokens = new int[length];
+        System.arraycopy(cachedTokens, 0, tokens, 0, length);
+        return new KvSnapshot(tokens, copies);
     }
 
     /**
-     * Run inference with multiple outputs (for models with KV cache).
-     * Note: This is a more advanced API for models that use KV caching.
+     * Load a snapshot into the cache; the cache then holds exactly its prefix.
      */
-    public float[] runInferenceWithCache(int[] inputIds, Object[] kvCache) {
-        if (!mIsInitialized || mInterpreter == null) {
-            Log.e(TAG, "Engine not initialized");
+    public boolean restoreCache(KvSnapshot snapshot) {
+        if (!supportsSnapshots() || snapshot.tensorCount() != kvTensors.size()
+                || snapshot.length() > kvCacheLen) {
+            return false;
+        }
+        for (int i = 0; i < kvTensors.size(); i++) {
+            ByteBuffer source = snapshot.tensor(i).duplicate();
+            source.rewind();
+            if (source.remaining() != snapshot.length() * kvBytesPerPosition.get(i)) {
+                return false;
+            }
+            ByteBuffer target = kvTensors.get(i).duplicate();
+            target.position(0);
+            target.put(source);
+        }
+        snapshot.copyTokens(cachedTokens);
+        cachePosition = snapshot.length();
+        return true;
+    }
+
+    /**
+     * Prefill the KV cache with a prompt and return logits for the last prompt token.
+     * The prompt is fed in prefill-sized chunks; the last token goes through the
+     * decode signature so models whose prefill signature has no logits output work too.
+     *
+     * @param tokens Prompt token IDs
+     * @param length Number of valid tokens in {@code tokens}
+     * @return Logits for next token prediction, or null on failure
+     */
+    public FloatBuffer prefill(int[] tokens, int length) {
+        return prefill(tokens, 0, length);
+    }
+
+    /**
+     * Prefill {@code tokens[start, end)} at the current cache position, typically after
+     * rewinding to a cached prefix of length {@code start}.
+     */
+    public FloatBuffer prefill(int[] tokens, int start, int end) {
+        if (!mIsInitialized || !kvCacheSupported) {
+            Log.e(TAG, "KV cache not available");
+            return null;
+        }
+        int length = end - start;
+        if (length <= 0) {
+            return null;
+        }
+        if (cachePosition + length > kvCacheLen) {
+            Log.e(TAG, "Prompt exceeds KV cache: pos=" + cachePosition + ", len=" + length);
             return null;
         }
 
         try {
-            int seqLen = Math.min(inputIds.length, maxSeqLen);
-
-            // Prepare input buffer
-            ByteBuffer inputBuffer = ByteBuffer.allocateDirect(seqLen * 4);
-            inputBuffer.order(ByteOrder.nativeOrder());
-            for (int i = 0; i < seqLen; i++) {
-                inputBuffer.putInt(inputIds[i]);
-            }
-            inputBuffer.rewind();
-
-            // Prepare inputs array (input_ids + optional KV cache)
-            Object[] inputs;
-            if (kvCache != null && kvCache.length > 0) {
-                inputs = new Object[1 + kvCache.length];
-                inputs[0] = inputBuffer;
-                System.arraycopy(kvCache, 0, inputs, 1, kvCache.length);
-            } else {
-                inputs = new Object[]{inputBuffer};
+            int prefillCount = length - 1;
+            int offset = start;
+            while (offset < start + prefillCount) {
+                int chunk = Math.min(prefillSeqLen, start + prefillCount - offset);
+                runPrefillChunk(tokens, offset, chunk);
+                offset += chunk;
             }
+            return decode(tokens[end - 1]);
+        } catch (Exception e) {
+            Log.e(TAG, "Prefill failed", e);
+            return null;
+        }
+    }
 
-            // Prepare outputs (indexed by output tensor number)
-            Map<Integer, Object> outputs = new HashMap<>();
-            ByteBuffer logitsBuffer = ByteBuffer.allocateDirect(vocabSize * 4);
-            logitsBuffer.order(ByteOrder.nativeOrder());
-            outputs.put(0, logitsBuffer);
+    /**
+     * Whether {@link #verify} is available: KV cache plus per-position prefill logits.
+     */
+    public boolean supportsVerify() {
+        return kvCacheSupported && prefillLogitsFloats != null;
+    }
 
-            // Run inference
-            mInterpreter.runForMultipleInputsOutputs(inputs, outputs);
+    /**
+     * Most tokens one {@link #verify} call accepts.
+     */
+    public int getMaxVerifyLength() {
+        return supportsVerify() ? prefillSeqLen : 0;
+    }
 
-            // Extract logits
-            logitsBuffer.rewind();
-            float[] logits = new float[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                logits[i] = logitsBuffer.getFloat();
-            }
+    /**
+     * Feed {@code tokens[start, end)} in a single prefill pass and keep the logits of every
+     * position; {@link #verifyLogits(int)} row i predicts the token after
+     * {@code tokens[start + i]}. The cache advances past all of them, so rewind to the
+     * accepted length afterwards.
+     *
+     * @return false if unsupported, too long or the pass failed
+     */
+    public boolean verify(int[] tokens, int start, int end) {
+        int length = end - start;
+        if (!supportsVerify() || length <= 0 || length > prefillSeqLen) {
+            return false;
+        }
+        if (cachePosition + length > kvCacheLen) {
+            Log.w(TAG, "Verify exceeds KV cache: pos=" + cachePosition + ", len=" + length);
+            return false;
+        }
+        try {
+            runPrefillChunk(tokens, start, length);
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Verify failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Logits row of the last {@link #verify} call. The returned buffer is owned by the
+     * engine and only valid until the next call.
+     */
+    public FloatBuffer verifyLogits(int row) {
+        FloatBuffer logits = prefillLogitsFloats;
+        int offset = row * vocabSize;
+        logits.limit(offset + vocabSize);
+        logits.position(offset);
+        return logits;
+    }
+
+    private void runPrefillChunk(int[] tokens, int offset, int chunk) {
+        prefillTokens.clear();
+        prefillPositions.clear();
+        for (int i = 0; i < prefillSeqLen; i++) {
+            // Padding slots get positions past the chunk; they are overwritten later.
+            prefillTokens.put(i < chunk ? tokens[offset + i] : 0);
+            prefillPositions.put(Math.min(cachePosition + i, kvCacheLen - 1));
+        }
+        runSignature(SIGNATURE_PREFILL, prefillInputs, prefillOutputs);
+        System.arraycopy(tokens, offset, cachedTokens, cachePosition, chunk);
+        cachePosition += chunk;
+    }
 
+    /**
+     * Run a single decode step: feed one token at the current cache position,
+     * update the KV cache in place and return logits for the next token.
+     * The returned buffer is owned by the engine and only valid until the next call.
+     */
+    public FloatBuffer decode(int token) {
+        if (!mIsInitialized || !kvCacheSupported) {
+            Log.e(TAG, "KV cache not available");
+            return null;
+        }
+        if (cachePosition >= kvCacheLen) {
+            Log.w(TAG, "KV cache full at position " + cachePosition);
+            return null;
+        }
+
+        try {
+            decodeTokens.clear();
+            decodeTokens.put(0, token);
+            decodePositions.clear();
+            decodePositions.put(0, cachePosition);
+            runSignature(SIGNATURE_DECODE, decodeInputs, decodeOutputs);
+            cachedTokens[cachePosition] = token;
+            cachePosition++;
+
+            // Output may be [1, 1, vocab]; the last vocabSize floats are the next-token logits.
+            FloatBuffer logits = decodeLogitsFloats;
+            logits.limit(logits.capacity());
+            logits.position(logits.capacity() - vocabSize);
             return logits;
         } catch (Exception e) {
-            Log.e(TAG, "Inference with cache failed", e);
+            Log.e(TAG, "Decode failed", e);
             return null;
         }
     }
 
+    private void runSignature(String signature, Map<String, Object> inputs, Map<String, Object> outputs) {
+        for (Object buffer : inputs.values()) {
+            ((ByteBuffer) buffer).rewind();
+        }
+        for (Object buffer : outputs.values()) {
+            ((ByteBuffer) buffer).rewind();
+        }
+        // KV buffers appear in both maps: TFLite copies them in before invoke and
+        // writes the updated cache back after, so the same direct buffer persists state.
+        mInterpreter.runSignature(inputs, outputs, signature);
+    }
+
     /**
-     * Sample next token from logits using temperature sampling.
+     * Detect prefill/decode signatures and preallocate the KV cache buffers.
+     * Falls back to full-sequence inference when the layout is not recognised.
      */
-    public int sampleToken(float[] logits, float temperature, int topK) {
-        if (logits == null || logits.length == 0) {
-            return -1;
-        }
+    private void setupKvCache() {
+        kvCacheSupported = false;
+        if (mInterpreter == null) return;
 
-        // Apply temperature
-        if (temperature > 0) {
-            for (int i = 0; i < logits.length; i++) {
-                logits[i] /= temperature;
+        try {
+            String[] keys = mInterpreter.getSignatureKeys();
+            boolean hasPrefill = false;
+            boolean hasDecode = false;
+            for (String key : keys) {
+                if (SIGNATURE_PREFILL.equals(key)) hasPrefill = true;
+                if (SIGNATURE_DECODE.equals(key)) hasDecode = true;
+            }
+            if (!hasPrefill || !hasDecode) {
+                Log.d(TAG, "No prefill/decode signatures, using full-sequence inference");
+                return;
             }
-        }
 
-        // Softmax
-        float maxLogit = Float.NEGATIVE_INFINITY;
-        for (float logit : logits) {
-            maxLogit = Math.max(maxLogit, logit);
-        }
-
-        float sumExp = 0;
-        float[] probs = new float[logits.length];
-        for (int i = 0; i < logits.length; i++) {
-            probs[i] = (float) Math.exp(logits[i] - maxLogit);
-            sumExp += probs[i];
-        }
-
-        for (int i = 0; i < probs.length; i++) {
-            probs[i] /= sumExp;
-        }
-
-        // Top-K sampling
-        if (topK > 0 && topK < probs.length) {
-            // Find top-K indices
-            int[] topIndices = new int[topK];
-            float[] topProbs = new float[topK];
-
-            for (int i = 0; i < topK; i++) {
-                int maxIdx = 0;
-                float maxProb = -1;
-                for (int j = 0; j < probs.length; j++) {
-                    if (probs[j] > maxProb) {
-                        boolean alreadySelected = false;
-                        for (int k = 0; k < i; k++) {
-                            if (topIndices[k] == j) {
-                                alreadySelected = true;
-                                break;
-                            }
-                        }
-                        if (!alreadySelected) {
-                            maxProb = probs[j];
-                            maxIdx = j;
-                        }
+            Map<String, ByteBuffer> kvBuffers = new HashMap<>();
+            List<int[]> kvShapes = new ArrayList<>();
+            kvTensors.clear();
+            kvBytesPerPosition.clear();
+            prefillInputs.clear();
+            prefillOutputs.clear();
+            decodeInputs.clear();
+            decodeOutputs.clear();
+
+            // Decode signature defines the cache layout and logits output.
+            for (String name : mInterpreter.getSignatureInputs(SIGNATURE_DECODE)) {
+                Tensor tensor = mInterpreter.getInputTensorFromSignature(name, SIGNATURE_DECODE);
+                if (isTokensInput(name)) {
+                    ByteBuffer buffer = allocate(tensor.numBytes());
+                    decodeTokens = buffer.asIntBuffer();
+                    decodeInputs.put(name, buffer);
+                } else if (isPositionInput(name)) {
+                    ByteBuffer buffer = allocate(tensor.numBytes());
+                    decodePositions = buffer.asIntBuffer();
+                    decodeInputs.put(name, buffer);
+                } else if (isKvCache(name)) {
+                    ByteBuffer buffer = allocate(tensor.numBytes());
+                    kvBuffers.put(name, buffer);
+                    decodeInputs.put(name, buffer);
+                    int[] shape = tensor.shape();
+                    if (shape.length >= 2) {
+                        kvCacheLen = shape[1];
                     }
+                    kvTensors.add(buffer);
+                    kvShapes.add(shape);
+                } else {
+                    Log.w(TAG, "Unsupported decode input: " + name);
+                    return;
+                }
+            }
+            for (String name : mInterpreter.getSignatureOutputs(SIGNATURE_DECODE)) {
+                if (kvBuffers.containsKey(name)) {
+                    decodeOutputs.put(name, kvBuffers.get(name));
+                } else {
+                    Tensor tensor = mInterpreter.getOutputTensorFromSignature(name, SIGNATURE_DECODE);
+                    decodeLogits = allocate(tensor.numBytes());
+                    decodeLogitsFloats = decodeLogits.asFloatBuffer();
+                    decodeOutputs.put(name, decodeLogits);
+                    int[] shape = tensor.shape();
+                    vocabSize = shape[shape.length - 1];
                 }
-                topIndices[i] = maxIdx;
-                topProbs[i] = maxProb;
             }
 
-            // Renormalize top-K probs
-            float topSum = 0;
-            for (float p : topProbs) topSum += p;
-            for (int i = 0; i < topK; i++) topProbs[i] /= topSum;
-
-            // Sample from top-K
-            float r = (float) Math.random();
-            float cumSum = 0;
-            for (int i = 0; i < topK; i++) {
-                cumSum += topProbs[i];
-                if (r <= cumSum) {
-                    return topIndices[i];
+            for (String name : mInterpreter.getSignatureInputs(SIGNATURE_PREFILL)) {
+                Tensor tensor = mInterpreter.getInputTensorFromSignature(name, SIGNATURE_PREFILL);
+                if (isTokensInput(name)) {
+                    ByteBuffer buffer = allocate(tensor.numBytes());
+                    prefillTokens = buffer.asIntBuffer();
+                    prefillSeqLen = tensor.numElements();
+                    prefillInputs.put(name, buffer);
+                } else if (isPositionInput(name)) {
+                    ByteBuffer buffer = allocate(tensor.numBytes());
+                    prefillPositions = buffer.asIntBuffer();
+                    prefillInputs.put(name, buffer);
+                } else if (kvBuffers.containsKey(name)) {
+                    prefillInputs.put(name, kvBuffers.get(name));
+                } else {
+                    Log.w(TAG, "Unsupported prefill input: " + name);
+                    return;
                 }
             }
-            return topIndices[topK - 1];
-        }
+            for (String name : mInterpreter.getSignatureOutputs(SIGNATURE_PREFILL)) {
+                if (kvBuffers.containsKey(name)) {
+                    prefillOutputs.put(name, kvBuffers.get(name));
+                } else {
+                    Tensor tensor = mInterpreter.getOutputTensorFromSignature(name, SIGNATURE_PREFILL);
+                    ByteBuffer buffer = allocate(tensor.numBytes());
+                    prefillOutputs.put(name, buffer);
+                    int[] shape = tensor.shape();
+                    if (shape.length >= 3 && shape[shape.length - 2] == prefillSeqLen
+                            && shape[shape.length - 1] == vocabSize
+                            && tensor.dataType() == DataType.FLOAT32) {
+                        prefillLogitsFloats = buffer.asFloatBuffer();
+                    }
+                }
+            }
+
+            if (kvBuffers.isEmpty() || decodeTokens == null || decodePositions == null
+                    || decodeLogits == null || prefillTokens == null || prefillPositions == null) {
+                Log.w(TAG, "Incomplete KV cache signatures, using full-sequence inference");
+                return;
+            }
 
-        // Regular sampling
-        float r = (float) Math.random();
-        float cumSum = 0;
-        for (int i = 0; i < probs.length; i++) {
-            cumSum += probs[i];
-            if (r <= cumSum) {
-                return i;
+            kvCacheSupported = true;
+            cachePosition = 0;
+            cachedTokens = new int[kvCacheLen];
+            maxSeqLen = kvCacheLen;
+
+            // Snapshots copy a prefix of positions, which is contiguous for [1, len, ...]
+            snapshotsSupported = true;
+            for (int i = 0; i < kvTensors.size(); i++) {
+                int[] shape = kvShapes.get(i);
+                int capacity = kvTensors.get(i).capacity();
+                boolean positionMajor = shape.length >= 2 && shape[0] == 1 && shape[1] == kvCacheLen
+                        && capacity % kvCacheLen == 0;
+                snapshotsSupported &= positionMajor;
+                kvBytesPerPosition.add(positionMajor ? capacity / kvCacheLen : 0);
             }
+            long cacheBytes = 0;
+            for (ByteBuffer buffer : kvBuffers.values()) cacheBytes += buffer.capacity();
+            Log.d(TAG, "KV cache enabled: tensors=" + kvBuffers.size() + ", len=" + kvCacheLen +
+                    ", prefill=" + prefillSeqLen + ", bytes=" + cacheBytes + ", snapshots=" + snapshotsSupported +
+                    ", verify=" + (prefillLogitsFloats != null));
+        } catch (Exception e) {
+            Log.w(TAG, "Could not set up KV cache, using full-sequence inference", e);
+            kvCacheSupported = false;
         }
+    }
 
-        return probs.length - 1;
+    private void releaseKvCache() {
+        kvCacheSupported = false;
+        snapshotsSupported = false;
+        cachePosition = 0;
+        cachedTokens = new int[0];
+        kvTensors.clear();
+        kvBytesPerPosition.clear();
+        prefillInputs.clear();
+        prefillOutputs.clear();
+        decodeInputs.clear();
+        decodeOutputs.clear();
+        prefillTokens = null;
+        prefillPositions = null;
+        decodeTokens = null;
+        decodePositions = null;
+        decodeLogits = null;
+        decodeLogitsFloats = null;
+        prefillLogitsFloats = null;
     }
 
-    /**
-     * Greedy decoding - select token with highest probability.
-     */
-    public int greedyDecode(float[] logits) {
-        if (logits == null || logits.length == 0) {
-            return -1;
-        }
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
 
-        int maxIdx = 0;
-        float maxVal = logits[0];
-        for (int i = 1; i < logits.length; i++) {
-            if (logits[i] > maxVal) {
-                maxVal = logits[i];
-                maxIdx = i;
-            }
-        }
-        return maxIdx;
+    private static boolean isTokensInput(String name) {
+        return name.equals("tokens") || name.equals("input_ids") || name.equals("input_tokens");
+    }
+
+    private static boolean isPositionInput(String name) {
+        return name.equals("input_pos") || name.equals("positions") || name.equals("position_ids");
+    }
+
+    private static boolean isKvCache(String name) {
+        return name.startsWith("kv_cache") || name.startsWith("past_key") || name.startsWith("past_value");
     }
 
     private void loadModel(String modelPath) throws IOException {
-        interpreterResult = TfLiteHelper.createInterpreter(modelPath, true);
+        interpreterResult = TfLiteHelper.createInterpreter(mContext, modelPath, true, CpuBudget.OWNER_LLM);
         mInterpreter = interpreterResult.interpreter;
         usingGpu = interpreterResult.usingGpu;
-        Log.d(TAG, "LLM model loaded. GPU=" + usingGpu);
+        Log.d(TAG, "LLM model loaded. Backend=" + interpreterResult.backend.label);
     }
 
     private void extractModelInfo() {
@@ -312,6 +744,11 @@ public class TfLiteLlmEngine {
 
             if (inputShape.length >= 2) {
                 maxSeqLen = inputShape[1];
+                int[] signature = inputTensor.shapeSignature();
+                dynamicSeqLen = signature.length >= 2 && signature[1] == -1;
+                if (dynamicSeqLen && maxSeqLen <= 1) {
+                    maxSeqLen = DEFAULT_DYNAMIC_SEQ_LEN;
+                }
             }
 
             // Get output tensor info
@@ -323,6 +760,7 @@ public class TfLiteLlmEngine {
             if (outputShape.length >= 2) {
                 vocabSize = outputShape[outputShape.length - 1];
             }
+            lastTokenOutput = outputShape.length == 2;
 
             Log.d(TAG, "Input shape: " + arrayToString(inputShape) + ", type: " + inputType);
             Log.d(TAG, "Output shape: " + arrayToString(outputShape) + ", type: " + outputType);
@@ -0,0 +1,50 @@
+package com.sbf.assistant.llm
+
+import com.sbf.assistant.ToolDefinition
+import org.json.JSONObject
+
+/**
+ * Builds the [JsonGrammar] schema of a local tool-call reply from the tool definitions:
+ * {"tool_calls":[{"name":"...","arguments":{...}}]}, with the arguments of each call
+ * following its tool's JSON schema.
+ *
+ * Supported schema keywords: type (object, array, string, integer, number, boolean, null),
+ * properties, required, items and enum. Anything else accepts any JSON value.
+ */
+object ToolCallGrammar {
+
+    fun forTools(tools: List<ToolDefinition>): JsonGrammar.Node {
+        val call = JsonGrammar.Node.toolCall(tools.map { it.name }, tools.map { nodeFor(it.parameters) })
+        return JsonGrammar.Node.`object`(
+            listOf("tool_calls"),
+            listOf(JsonGrammar.Node.array(call, 1)),
+            listOf("tool_calls")
+        )
+    }
+
+    private fun nodeFor(schema: JSONObject?): JsonGrammar.Node {
+        if (schema == null) return JsonGrammar.Node.any()
+        schema.optJSONArray("enum")?.let { values ->
+            val strings = (0 until values.length()).mapNotNull { values.opt(it) as? String }
+            if (strings.size == values.length()) return JsonGrammar.Node.enumeration(strings)
+        }
+        return when (schema.opt("type")) {
+            "object" -> {
+                val properties = schema.optJSONObject("properties")
+                    ?: return JsonGrammar.Node.anyObject()
+                val keys = properties.keys().asSequence().toList()
+                val required = schema.optJSONArray("required")
+                    ?.let { array -> (0 until array.length()).map { array.optString(it) } }
+                    .orEmpty()
+                JsonGrammar.Node.`object`(keys, keys.map { nodeFor(properties.optJSONObject(it)) }, required)
+            }
+            "array" -> JsonGrammar.Node.array(nodeFor(schema.optJSONObject("items")), 0)
+            "string" -> JsonGrammar.Node.string()
+            "integer" -> JsonGrammar.Node.integer()
+            "number" -> JsonGrammar.Node.number()
+            "boolean" -> JsonGrammar.Node.bool()
+            "null" -> JsonGrammar.Node.nullValue()
+            else -> JsonGrammar.Node.any()
+        }
+    }
+}
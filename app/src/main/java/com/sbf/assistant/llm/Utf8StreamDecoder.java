@@ -0,0 +1,66 @@
+package com.sbf.assistant.llm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Turns token bytes into text as tokens stream in.
+ *
+ * Byte-level and byte-fallback tokens often split a multi-byte character across tokens.
+ * Bytes of an unfinished character are held back until the rest arrives, so every returned
+ * string is valid text; malformed input becomes U+FFFD instead of being dropped.
+ *
+ * Not thread-safe: use one decoder per generation.
+ */
+public final class Utf8StreamDecoder {
+    private byte[] pending = new byte[16];
+    private int size;
+
+    /**
+     * Append token bytes.
+     *
+     * @return Text completed by these bytes, possibly empty
+     */
+    public String append(byte[] bytes, int offset, int length) {
+        if (size + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, size + length));
+        }
+        System.arraycopy(bytes, offset, pending, size, length);
+        size += length;
+
+        int complete = completeLength();
+        if (complete == 0) {
+            return "";
+        }
+        String text = new String(pending, 0, complete, StandardCharsets.UTF_8);
+        System.arraycopy(pending, complete, pending, 0, size - complete);
+        size -= complete;
+        return text;
+    }
+
+    /**
+     * @return Whatever is still held back, with incomplete characters replaced
+     */
+    public String flush() {
+        String text = new String(pending, 0, size, StandardCharsets.UTF_8);
+        size = 0;
+        return text;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    // Length of the prefix that does not end inside a character
+    private int completeLength() {
+        for (int back = 1; back <= Math.min(3, size); back++) {
+            int b = pending[size - back] & 0xFF;
+            if ((b & 0xC0) == 0x80) {
+                continue;
+            }
+            int needed = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+            return needed > back ? size - back : size;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,266 @@
+package com.sbf.assistant.whisper;
+
+import android.util.Log;
+
+import com.sbf.assistant.llm.ComputePool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Transcribes audio longer than Whisper's 30 s window.
+ *
+ * The audio is split into windows of at most 30 s, cut inside pauses found by the
+ * {@link VoiceActivityDetector} where possible; silence between windows is skipped. When no
+ * pause is available a window is cut hard and the next one overlaps it by a couple of seconds,
+ * and the words repeated in the overlap are dropped when stitching. The interpreter runs on
+ * the calling thread (the engine's inference lane) while the next window's mel is extracted
+ * on the shared {@link ComputePool}, and each window's text is reported as soon as it is ready.
+ */
+public class LongFormTranscriber {
+    private static final String TAG = "LongFormTranscriber";
+
+    private static final int SAMPLE_RATE = WhisperUtil.WHISPER_SAMPLE_RATE;
+    private static final int WINDOW_SAMPLES = SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+    private static final int OVERLAP_SAMPLES = SAMPLE_RATE * 2;
+    private static final int PADDING_SAMPLES = SAMPLE_RATE / 5;
+    // Words searched for a repeat at a hard cut; two seconds of speech rarely exceed this
+    private static final int MAX_OVERLAP_WORDS = 10;
+
+    /**
+     * Text for one window, in samples of the input audio.
+     */
+    public static class Segment {
+        public final int index;
+        public final long startSample;
+        public final long endSample;
+        public final String text;
+
+        public Segment(int index, long startSample, long endSample, String text) {
+            this.index = index;
+            this.startSample = startSample;
+            this.endSample = endSample;
+            this.text = text;
+        }
+    }
+
+    public interface Listener {
+        void onSegment(Segment segment);
+    }
+
+    // Planned window; overlapsPrevious marks a hard cut that needs deduplication
+    static class Window {
+        final long start;
+        final long end;
+        final boolean overlapsPrevious;
+
+        Window(long start, long end, boolean overlapsPrevious) {
+            this.start = start;
+            this.end = end;
+            this.overlapsPrevious = overlapsPrevious;
+        }
+    }
+
+    private final WhisperEngineJava engine;
+    private final VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE);
+
+    public LongFormTranscriber(WhisperEngineJava engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return The stitched transcript, or null if inference failed
+     */
+    public String transcribe(float[] samples, Listener listener) {
+        return transcribe(samples, samples.length, listener);
+    }
+
+    /**
+     * Transcribe samples[0, length).
+     *
+     * @return The stitched transcript, or null if inference failed
+     */
+    public String transcribe(float[] samples, int length, Listener listener) {
+        List<Window> windows = planWindows(vad.detect(samples, length), length,
+                WINDOW_SAMPLES, OVERLAP_SAMPLES, PADDING_SAMPLES);
+        Log.d(TAG, "Transcribing " + length + " samples in " + windows.size() + " windows");
+        if (windows.isEmpty()) {
+            return "";
+        }
+
+        ByteBuffer[] buffers = {engine.newInputBuffer(), engine.newInputBuffer()};
+        StringBuilder transcript = new StringBuilder();
+        String previous = "";
+        FutureTask<Void> prefetch = null;
+        try {
+            Window first = windows.get(0);
+            engine.writeMel(samples, (int) first.start, (int) (first.end - first.start), buffers[0]);
+
+            for (int i = 0; i < windows.size(); i++) {
+                Window window = windows.get(i);
+
+                // Next window's mel overlaps with this window's inference
+                if (i + 1 < windows.size()) {
+                    Window next = windows.get(i + 1);
+                    ByteBuffer nextInput = buffers[(i + 1) % 2];
+                    prefetch = new FutureTask<>(() -> {
+                        engine.writeMel(samples, (int) next.start, (int) (next.end - next.start), nextInput);
+                        return null;
+                    });
+                    ComputePool.get().execute(prefetch);
+                }
+
+                String text = engine.transcribeInput(buffers[i % 2]);
+                if (prefetch != null) {
+                    prefetch.get();
+                    prefetch = null;
+                }
+                if (text == null) {
+                    return null;
+                }
+                text = text.trim();
+                if (window.overlapsPrevious) {
+                    text = dropOverlap(previous, text, MAX_OVERLAP_WORDS);
+                }
+                previous = text;
+
+                if (!text.isEmpty()) {
+                    if (transcript.length() > 0) transcript.append(' ');
+                    transcript.append(text);
+                }
+                if (listener != null) {
+                    listener.onSegment(new Segment(i, window.start, window.end, text));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Mel extraction failed", e.getCause());
+            return null;
+        } finally {
+            // The engine may serve another request next; let the prefetch finish writing first
+            if (prefetch != null) {
+                try {
+                    prefetch.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ignored) {
+                    // Already failing
+                }
+            }
+        }
+        return transcript.toString();
+    }
+
+    /**
+     * Split audio into windows of at most {@code window} samples that cover all speech.
+     * A window ends in the middle of the last pause past its midpoint; without one it is cut
+     * hard and the next window starts {@code overlap} samples earlier.
+     */
+    static List<Window> planWindows(List<VoiceActivityDetector.Segment> speech, long total,
+                                    int window, int overlap, int padding) {
+        List<Window> windows = new ArrayList<>();
+        if (speech.isEmpty()) {
+            return windows;
+        }
+        long speechEnd = Math.min(total, speech.get(speech.size() - 1).end + padding);
+        long start = Math.max(0, speech.get(0).start - padding);
+        boolean overlapsPrevious = false;
+
+        while (start < speechEnd) {
+            long limit = start + window;
+            if (limit >= speechEnd) {
+                windows.add(new Window(start, speechEnd, overlapsPrevious));
+                break;
+            }
+
+            // Latest pause that starts past the middle of the window
+            long cut = -1;
+            int nextSpeech = -1;
+            for (int j = 0; j + 1 < speech.size(); j++) {
+                long gapStart = speech.get(j).end;
+                long gapEnd = speech.get(j + 1).start;
+                if (gapStart > start + window / 2 && gapStart < limit) {
+                    cut = Math.min((gapStart + gapEnd) / 2, limit);
+                    nextSpeech = j + 1;
+                }
+            }
+
+            if (cut > 0) {
+                windows.add(new Window(start, cut, overlapsPrevious));
+                start = Math.max(cut, speech.get(nextSpeech).start - padding);
+                overlapsPrevious = false;
+            } else {
+                windows.add(new Window(start, limit, overlapsPrevious));
+                start = limit - overlap;
+                overlapsPrevious = true;
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * Remove from the start of {@code next} the words that repeat the end of {@code previous}.
+     * The repeat may start a couple of words into {@code next}, since the word split by a hard
+     * cut is often transcribed as a fragment.
+     */
+    static String dropOverlap(String previous, String next, int maxWords) {
+        String[] prevWords = splitWords(previous);
+        String[] nextWords = splitWords(next);
+        if (prevWords.length == 0 || nextWords.length == 0) {
+            return next;
+        }
+
+        int bestEnd = 0;
+        int bestLength = 0;
+        for (int skip = 0; skip <= 2 && skip < nextWords.length; skip++) {
+            int limit = Math.min(maxWords, Math.min(prevWords.length, nextWords.length - skip));
+            for (int k = limit; k > bestLength; k--) {
+                if (matches(prevWords, prevWords.length - k, nextWords, skip, k)) {
+                    bestEnd = skip + k;
+                    bestLength = k;
+                    break;
+                }
+            }
+        }
+        // A single repeated word only counts when it sits right at the cut
+        if (bestLength == 0 || (bestLength == 1 && bestEnd > 1)) {
+            return next;
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (int i = bestEnd; i < nextWords.length; i++) {
+            if (out.length() > 0) out.append(' ');
+            out.append(nextWords[i]);
+        }
+        return out.toString();
+    }
+
+    private static boolean matches(String[] a, int aStart, String[] b, int bStart, int count) {
+        for (int i = 0; i < count; i++) {
+            if (!normalize(a[aStart + i]).equals(normalize(b[bStart + i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] splitWords(String text) {
+        String trimmed = text.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    // Case and surrounding punctuation often differ between windows
+    private static String normalize(String word) {
+        int start = 0;
+        int end = word.length();
+        while (start < end && !Character.isLetterOrDigit(word.charAt(start))) start++;
+        while (end > start && !Character.isLetterOrDigit(word.charAt(end - 1))) end--;
+        return word.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+}
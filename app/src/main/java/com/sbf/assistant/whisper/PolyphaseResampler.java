@@ -0,0 +1,176 @@
+package com.sbf.assistant.whisper;
+
+/**
+ * Streaming sample-rate converter for mono audio, e.g. 44.1 or 48 kHz voice notes to the
+ * 16 kHz Whisper expects.
+ *
+ * The rate ratio is reduced to up/down; each output sample is a short dot product of the
+ * input around its position with one phase of a Blackman-windowed sinc low-pass, cut below
+ * the lower of the two Nyquist rates so downsampling does not alias. Phases are tabulated
+ * once, so converting costs {@link #getTaps()} multiply-adds per output sample.
+ *
+ * Feed input in chunks of any size with {@link #process} and call {@link #flush} at the
+ * end; the total output is {@link #outputLength} samples, aligned with the input (the
+ * filter delay is compensated). Not thread-safe.
+ */
+public class PolyphaseResampler {
+    // Sinc lobes on each side of the centre tap, at the cutoff frequency
+    private static final int ZERO_CROSSINGS = 8;
+    // Cutoff as a fraction of the lower Nyquist rate; leaves room for the transition band
+    private static final double ROLLOFF = 0.92;
+
+    private final int up;
+    private final int down;
+    private final int half;
+    private final int taps;
+    // Phase-major: coefficients[phase * taps + i] weights input base - half + 1 + i
+    private final float[] coefficients;
+
+    // Input kept for outputs still to come; history[0] is input sample historyStart
+    private float[] history;
+    private int historyLength;
+    private long historyStart;
+    private long received;
+    private long produced;
+
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Invalid rates " + inputRate + " -> " + outputRate);
+        }
+        int gcd = gcd(inputRate, outputRate);
+        up = outputRate / gcd;
+        down = inputRate / gcd;
+
+        // Cutoff in cycles per input sample
+        double cutoff = 0.5 * Math.min(1.0, (double) up / down) * ROLLOFF;
+        half = (int) Math.ceil(ZERO_CROSSINGS / (2.0 * cutoff));
+        taps = 2 * half;
+        coefficients = new float[up * taps];
+        for (int phase = 0; phase < up; phase++) {
+            double fraction = (double) phase / up;
+            double sum = 0;
+            for (int i = 0; i < taps; i++) {
+                double x = fraction - (i - half + 1);
+                double value = 2 * cutoff * sinc(2 * cutoff * x) * blackman(x / half);
+                coefficients[phase * taps + i] = (float) value;
+                sum += value;
+            }
+            // Unity gain at DC for every phase, so a constant input stays constant
+            for (int i = 0; i < taps; i++) {
+                coefficients[phase * taps + i] /= (float) sum;
+            }
+        }
+        history = new float[taps * 4];
+    }
+
+    /**
+     * Output samples for {@code inputLength} input samples.
+     */
+    public static long outputLength(long inputLength, int inputRate, int outputRate) {
+        return (inputLength * outputRate + inputRate - 1) / inputRate;
+    }
+
+    /** Multiply-adds per output sample. */
+    public int getTaps() {
+        return taps;
+    }
+
+    /**
+     * Convert {@code input[offset, offset + length)}, writing the outputs that are now
+     * complete into {@code output} from {@code outputOffset}.
+     *
+     * @return Number of samples written
+     */
+    public int process(float[] input, int offset, int length, float[] output, int outputOffset) {
+        if (historyLength + length > history.length) {
+            float[] grown = new float[Math.max(history.length * 2, historyLength + length)];
+            System.arraycopy(history, 0, grown, 0, historyLength);
+            history = grown;
+        }
+        System.arraycopy(input, offset, history, historyLength, length);
+        historyLength += length;
+        received += length;
+        return produce(output, outputOffset, false);
+    }
+
+    /**
+     * Write the remaining outputs, treating the input past its end as silence.
+     *
+     * @return Number of samples written
+     */
+    public int flush(float[] output, int outputOffset) {
+        return produce(output, outputOffset, true);
+    }
+
+    private int produce(float[] output, int outputOffset, boolean end) {
+        int written = 0;
+        long total = end ? (received * up + down - 1) / down : Long.MAX_VALUE;
+        while (produced < total) {
+            long position = produced * down;
+            long base = position / up;
+            // The newest input this output needs
+            if (!end && base + half >= received) {
+                break;
+            }
+            int phase = (int) (position % up);
+            output[outputOffset + written++] = dot(phase, base - half + 1);
+            produced++;
+        }
+        discardBefore(produced * down / up - half + 1);
+        return written;
+    }
+
+    private float dot(int phase, long first) {
+        int c = phase * taps;
+        float sum = 0f;
+        int start = (int) (first - historyStart);
+        if (start >= 0 && start + taps <= historyLength) {
+            for (int i = 0; i < taps; i++) {
+                sum += coefficients[c + i] * history[start + i];
+            }
+            return sum;
+        }
+        // Stream edges: input before the start or past the end counts as silence
+        for (int i = 0; i < taps; i++) {
+            int index = start + i;
+            if (index >= 0 && index < historyLength) {
+                sum += coefficients[c + i] * history[index];
+            }
+        }
+        return sum;
+    }
+
+    private void discardBefore(long index) {
+        int drop = (int) Math.min(Math.max(0, index - historyStart), historyLength);
+        if (drop == 0) {
+            return;
+        }
+        System.arraycopy(history, drop, history, 0, historyLength - drop);
+        historyLength -= drop;
+        historyStart += drop;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0) {
+            return 1.0;
+        }
+        return Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    // x in [-1, 1]
+    private static double blackman(double x) {
+        if (Math.abs(x) >= 1) {
+            return 0;
+        }
+        return 0.42 + 0.5 * Math.cos(Math.PI * x) + 0.08 * Math.cos(2 * Math.PI * x);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,347 @@
+package com.sbf.assistant.whisper;
+
+/**
+ * Planned FFT for real input of even length N.
+ *
+ * The N-point real transform is computed as an N/2-point complex FFT followed by a
+ * split step. The complex FFT is an iterative mixed-radix Stockham (autosort) transform
+ * with radix 4/2/3/5 butterflies and a generic butterfly for other prime factors, so
+ * Whisper's 400-point frames (200 = 4 * 2 * 5 * 5) never fall back to a naive DFT.
+ *
+ * All twiddle factors are computed once in the constructor. The plan is immutable and
+ * can be shared across threads; each thread passes its own work buffer
+ * (see {@link #newWorkBuffer()}).
+ */
+public final class RealFft {
+    private final int n;
+    private final int half;
+    private final int[] radices;
+    // Per stage: twiddles w^(j*k) for j in [0, m), k in [1, p), interleaved re/im
+    private final float[][] stageTwiddles;
+    // Split step twiddles e^(-2*pi*i*k/N) for k in [0, N/2]
+    private final float[] splitCos;
+    private final float[] splitSin;
+    // Per stage: p-th roots of unity for the generic butterfly (null for radix <= 5)
+    private final float[][] stageRoots;
+    private final int maxGenericRadix;
+
+    public RealFft(int n) {
+        if (n < 2 || n % 2 != 0) {
+            throw new IllegalArgumentException("FFT size must be even: " + n);
+        }
+        this.n = n;
+        this.half = n / 2;
+        this.radices = factorize(half);
+
+        this.stageTwiddles = new float[radices.length][];
+        this.stageRoots = new float[radices.length][];
+        int length = half;
+        int generic = 0;
+        for (int stage = 0; stage < radices.length; stage++) {
+            int p = radices[stage];
+            int m = length / p;
+            float[] tw = new float[2 * m * (p - 1)];
+            for (int j = 0; j < m; j++) {
+                for (int k = 1; k < p; k++) {
+                    double angle = -2.0 * Math.PI * j * k / length;
+                    int idx = 2 * (j * (p - 1) + (k - 1));
+                    tw[idx] = (float) Math.cos(angle);
+                    tw[idx + 1] = (float) Math.sin(angle);
+                }
+            }
+            stageTwiddles[stage] = tw;
+            if (p > 5) {
+                float[] roots = new float[2 * p];
+                for (int r = 0; r < p; r++) {
+                    double angle = -2.0 * Math.PI * r / p;
+                    roots[2 * r] = (float) Math.cos(angle);
+                    roots[2 * r + 1] = (float) Math.sin(angle);
+                }
+                stageRoots[stage] = roots;
+                generic = Math.max(generic, p);
+            }
+            length = m;
+        }
+        this.maxGenericRadix = generic;
+
+        this.splitCos = new float[half + 1];
+        this.splitSin = new float[half + 1];
+        for (int k = 0; k <= half; k++) {
+            double angle = -2.0 * Math.PI * k / n;
+            splitCos[k] = (float) Math.cos(angle);
+            splitSin[k] = (float) Math.sin(angle);
+        }
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Number of output bins for real input: N/2 + 1.
+     */
+    public int bins() {
+        return half + 1;
+    }
+
+    /**
+     * Allocate a work buffer for one thread. Reuse it across calls.
+     */
+    public float[] newWorkBuffer() {
+        return new float[4 * half + 4 * maxGenericRadix];
+    }
+
+    /**
+     * Forward transform of {@code input[0..N)} into {@code output} as N/2+1 interleaved
+     * complex bins (re, im). Bins above N/2 are the conjugates of these.
+     */
+    public void forward(float[] input, float[] output, float[] work) {
+        int resultOffset = complexFft(input, work);
+        split(work, resultOffset, output);
+    }
+
+    /**
+     * Power spectrum |X[k]|^2 for k in [0, N/2] written to {@code output}.
+     */
+    public void powerSpectrum(float[] input, float[] output, float[] work) {
+        int resultOffset = complexFft(input, work);
+        int z = resultOffset;
+        float z0r = work[z];
+        float z0i = work[z + 1];
+        output[0] = (z0r + z0i) * (z0r + z0i);
+        output[half] = (z0r - z0i) * (z0r - z0i);
+        for (int k = 1; k < half; k++) {
+            float re = splitRe(work, z, k);
+            float im = splitIm(work, z, k);
+            output[k] = re * re + im * im;
+        }
+    }
+
+    // Packs input as z[j] = x[2j] + i*x[2j+1] and runs the N/2-point complex FFT.
+    // Returns the offset in work where the result lives.
+    private int complexFft(float[] input, float[] work) {
+        System.arraycopy(input, 0, work, 0, n);
+        int src = 0;
+        int dst = 2 * half;
+        int length = half;
+        int stride = 1;
+        for (int stage = 0; stage < radices.length; stage++) {
+            int p = radices[stage];
+            int m = length / p;
+            float[] tw = stageTwiddles[stage];
+            switch (p) {
+                case 2: radix2(work, src, dst, m, stride, tw); break;
+                case 3: radix3(work, src, dst, m, stride, tw); break;
+                case 4: radix4(work, src, dst, m, stride, tw); break;
+                case 5: radix5(work, src, dst, m, stride, tw); break;
+                default: radixGeneric(work, src, dst, p, m, stride, tw, stageRoots[stage]); break;
+            }
+            int tmp = src;
+            src = dst;
+            dst = tmp;
+            length = m;
+            stride *= p;
+        }
+        return src;
+    }
+
+    private void split(float[] work, int z, float[] output) {
+        float z0r = work[z];
+        float z0i = work[z + 1];
+        output[0] = z0r + z0i;
+        output[1] = 0f;
+        output[2 * half] = z0r - z0i;
+        output[2 * half + 1] = 0f;
+        for (int k = 1; k < half; k++) {
+            output[2 * k] = splitRe(work, z, k);
+            output[2 * k + 1] = splitIm(work, z, k);
+        }
+    }
+
+    // X[k] = (Z[k] + conj(Z[M-k])) / 2 - i/2 * w^k * (Z[k] - conj(Z[M-k]))
+    private float splitRe(float[] work, int z, int k) {
+        float ar = work[z + 2 * k];
+        float ai = work[z + 2 * k + 1];
+        float br = work[z + 2 * (half - k)];
+        float bi = -work[z + 2 * (half - k) + 1];
+        float er = 0.5f * (ar + br);
+        float dr = 0.5f * (ar - br);
+        float di = 0.5f * (ai - bi);
+        // -i * w * d = (w.im*d.re + w.re*d.im) + i(...)
+        return er + (splitSin[k] * dr + splitCos[k] * di);
+    }
+
+    private float splitIm(float[] work, int z, int k) {
+        float ai = work[z + 2 * k + 1];
+        float ar = work[z + 2 * k];
+        float br = work[z + 2 * (half - k)];
+        float bi = -work[z + 2 * (half - k) + 1];
+        float ei = 0.5f * (ai + bi);
+        float dr = 0.5f * (ar - br);
+        float di = 0.5f * (ai - bi);
+        return ei + (splitSin[k] * di - splitCos[k] * dr);
+    }
+
+    // Stockham stage: reads x[q + s*(j + r*m)], writes y[q + s*(p*j + k)] = w^(j*k) * DFT_p(a)[k]
+
+    private static void radix2(float[] w, int x, int y, int m, int s, float[] tw) {
+        for (int j = 0; j < m; j++) {
+            float wr = tw[2 * j];
+            float wi = tw[2 * j + 1];
+            for (int q = 0; q < s; q++) {
+                int i0 = x + 2 * (q + s * j);
+                int i1 = x + 2 * (q + s * (j + m));
+                float ar = w[i0], ai = w[i0 + 1];
+                float br = w[i1], bi = w[i1 + 1];
+                int o0 = y + 2 * (q + s * (2 * j));
+                int o1 = y + 2 * (q + s * (2 * j + 1));
+                w[o0] = ar + br;
+                w[o0 + 1] = ai + bi;
+                float dr = ar - br, di = ai - bi;
+                w[o1] = dr * wr - di * wi;
+                w[o1 + 1] = dr * wi + di * wr;
+            }
+        }
+    }
+
+    private static final float SIN_60 = (float) Math.sin(2.0 * Math.PI / 3.0);
+
+    private static void radix3(float[] w, int x, int y, int m, int s, float[] tw) {
+        for (int j = 0; j < m; j++) {
+            int t = 4 * j;
+            for (int q = 0; q < s; q++) {
+                int i0 = x + 2 * (q + s * j);
+                int i1 = x + 2 * (q + s * (j + m));
+                int i2 = x + 2 * (q + s * (j + 2 * m));
+                float a0r = w[i0], a0i = w[i0 + 1];
+                float br = w[i1] + w[i2], bi = w[i1 + 1] + w[i2 + 1];
+                float dr = w[i1] - w[i2], di = w[i1 + 1] - w[i2 + 1];
+                float tr = a0r - 0.5f * br, ti = a0i - 0.5f * bi;
+                // y1 = t - i*s*d, y2 = t + i*s*d
+                float y1r = tr + SIN_60 * di, y1i = ti - SIN_60 * dr;
+                float y2r = tr - SIN_60 * di, y2i = ti + SIN_60 * dr;
+                int o = y + 2 * (q + s * (3 * j));
+                w[o] = a0r + br;
+                w[o + 1] = a0i + bi;
+                store(w, o + 2 * s, y1r, y1i, tw, t);
+                store(w, o + 4 * s, y2r, y2i, tw, t + 2);
+            }
+        }
+    }
+
+    private static void radix4(float[] w, int x, int y, int m, int s, float[] tw) {
+        for (int j = 0; j < m; j++) {
+            int t = 6 * j;
+            for (int q = 0; q < s; q++) {
+                int i0 = x + 2 * (q + s * j);
+                int i1 = x + 2 * (q + s * (j + m));
+                int i2 = x + 2 * (q + s * (j + 2 * m));
+                int i3 = x + 2 * (q + s * (j + 3 * m));
+                float t0r = w[i0] + w[i2], t0i = w[i0 + 1] + w[i2 + 1];
+                float t1r = w[i0] - w[i2], t1i = w[i0 + 1] - w[i2 + 1];
+                float t2r = w[i1] + w[i3], t2i = w[i1 + 1] + w[i3 + 1];
+                // t3 = (a1 - a3) * -i
+                float t3r = w[i1 + 1] - w[i3 + 1], t3i = w[i3] - w[i1];
+                int o = y + 2 * (q + s * (4 * j));
+                w[o] = t0r + t2r;
+                w[o + 1] = t0i + t2i;
+                store(w, o + 2 * s, t1r + t3r, t1i + t3i, tw, t);
+                store(w, o + 4 * s, t0r - t2r, t0i - t2i, tw, t + 2);
+                store(w, o + 6 * s, t1r - t3r, t1i - t3i, tw, t + 4);
+            }
+        }
+    }
+
+    private static final float C1_5 = (float) Math.cos(2.0 * Math.PI / 5.0);
+    private static final float C2_5 = (float) Math.cos(4.0 * Math.PI / 5.0);
+    private static final float S1_5 = (float) Math.sin(2.0 * Math.PI / 5.0);
+    private static final float S2_5 = (float) Math.sin(4.0 * Math.PI / 5.0);
+
+    private static void radix5(float[] w, int x, int y, int m, int s, float[] tw) {
+        for (int j = 0; j < m; j++) {
+            int t = 8 * j;
+            for (int q = 0; q < s; q++) {
+                int i0 = x + 2 * (q + s * j);
+                int i1 = x + 2 * (q + s * (j + m));
+                int i2 = x + 2 * (q + s * (j + 2 * m));
+                int i3 = x + 2 * (q + s * (j + 3 * m));
+                int i4 = x + 2 * (q + s * (j + 4 * m));
+                float a0r = w[i0], a0i = w[i0 + 1];
+                float b1r = w[i1] + w[i4], b1i = w[i1 + 1] + w[i4 + 1];
+                float b2r = w[i2] + w[i3], b2i = w[i2 + 1] + w[i3 + 1];
+                float d1r = w[i1] - w[i4], d1i = w[i1 + 1] - w[i4 + 1];
+                float d2r = w[i2] - w[i3], d2i = w[i2 + 1] - w[i3 + 1];
+                float tr1 = a0r + C1_5 * b1r + C2_5 * b2r, ti1 = a0i + C1_5 * b1i + C2_5 * b2i;
+                float tr2 = a0r + C2_5 * b1r + C1_5 * b2r, ti2 = a0i + C2_5 * b1i + C1_5 * b2i;
+                float ur1 = S1_5 * d1r + S2_5 * d2r, ui1 = S1_5 * d1i + S2_5 * d2i;
+                float ur2 = S2_5 * d1r - S1_5 * d2r, ui2 = S2_5 * d1i - S1_5 * d2i;
+                int o = y + 2 * (q + s * (5 * j));
+                w[o] = a0r + b1r + b2r;
+                w[o + 1] = a0i + b1i + b2i;
+                // y1 = t1 - i*u1, y4 = t1 + i*u1, y2 = t2 - i*u2, y3 = t2 + i*u2
+                store(w, o + 2 * s, tr1 + ui1, ti1 - ur1, tw, t);
+                store(w, o + 4 * s, tr2 + ui2, ti2 - ur2, tw, t + 2);
+                store(w, o + 6 * s, tr2 - ui2, ti2 + ur2, tw, t + 4);
+                store(w, o + 8 * s, tr1 - ui1, ti1 + ur1, tw, t + 6);
+            }
+        }
+    }
+
+    private void radixGeneric(float[] w, int x, int y, int p, int m, int s, float[] tw, float[] roots) {
+        // Scratch for the p inputs lives after both ping-pong buffers
+        int scratch = 4 * half;
+        for (int j = 0; j < m; j++) {
+            int t = 2 * (p - 1) * j;
+            for (int q = 0; q < s; q++) {
+                for (int r = 0; r < p; r++) {
+                    int i = x + 2 * (q + s * (j + r * m));
+                    w[scratch + 2 * r] = w[i];
+                    w[scratch + 2 * r + 1] = w[i + 1];
+                }
+                int o = y + 2 * (q + s * (p * j));
+                for (int k = 0; k < p; k++) {
+                    float sr = 0f, si = 0f;
+                    for (int r = 0; r < p; r++) {
+                        int root = 2 * ((r * k) % p);
+                        float cr = roots[root], ci = roots[root + 1];
+                        float ar = w[scratch + 2 * r], ai = w[scratch + 2 * r + 1];
+                        sr += ar * cr - ai * ci;
+                        si += ar * ci + ai * cr;
+                    }
+                    if (k == 0) {
+                        w[o] = sr;
+                        w[o + 1] = si;
+                    } else {
+                        store(w, o + 2 * k * s, sr, si, tw, t + 2 * (k - 1));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void store(float[] w, int o, float re, float im, float[] tw, int t) {
+        float wr = tw[t];
+        float wi = tw[t + 1];
+        w[o] = re * wr - im * wi;
+        w[o + 1] = re * wi + im * wr;
+    }
+
+    private static int[] factorize(int value) {
+        int[] tmp = new int[32];
+        int count = 0;
+        int remaining = value;
+        while (remaining % 4 == 0) {
+            tmp[count++] = 4;
+            remaining /= 4;
+        }
+        for (int f = 2; remaining > 1; f++) {
+            while (remaining % f == 0) {
+                tmp[count++] = f;
+                remaining /= f;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(tmp, 0, result, 0, count);
+        return result;
+    }
+}
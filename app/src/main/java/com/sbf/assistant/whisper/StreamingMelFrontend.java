@@ -0,0 +1,243 @@
+package com.sbf.assistant.whisper;
+
+import com.sbf.assistant.llm.ComputePool;
+
+import java.util.Arrays;
+
+/**
+ * Incremental log-mel frontend for streaming transcription.
+ *
+ * Audio is pushed with {@link #accept} and each hop-aligned frame is computed exactly once,
+ * as soon as its full 400-sample window is available. Finished frames are kept in a ring
+ * of raw log10 energies covering the last 30 s. {@link #buildWindow} assembles the model
+ * input on demand: it adds the few zero-padded frames at the tail, fills the remaining
+ * frames with silence and applies the clamp/normalization that needs the window maximum.
+ * The result matches {@link WhisperUtil#getMelSpectrogram} on the same audio padded to 30 s.
+ *
+ * Not thread-safe: callers serialize access.
+ */
+public class StreamingMelFrontend {
+    private static final int N_MEL = WhisperUtil.WHISPER_N_MEL;
+    private static final int N_FFT = WhisperUtil.WHISPER_N_FFT;
+    private static final int HOP = WhisperUtil.WHISPER_HOP_LENGTH;
+    private static final int WINDOW_FRAMES = WhisperUtil.WHISPER_MEL_LEN;
+    // Frames that start before the end of the audio but are not complete yet
+    private static final int MAX_TAIL_FRAMES = (N_FFT + HOP - 1) / HOP;
+    // Below this many new frames the pool hand-off costs more than it saves
+    private static final int PARALLEL_MIN_FRAMES = 64;
+
+    private final WhisperUtil util;
+    private final WhisperUtil.FrameScratch[] scratch =
+            new WhisperUtil.FrameScratch[ComputePool.maxThreads()];
+
+    // Finished frames, frame-major: ring[(frame % WINDOW_FRAMES) * N_MEL + mel]
+    private final float[] ring = new float[WINDOW_FRAMES * N_MEL];
+    private final float[] tail = new float[MAX_TAIL_FRAMES * N_MEL];
+    private float[] window;
+
+    // Audio not yet consumed by a finished frame; pending[0] is sample framesComputed * HOP
+    private float[] pending = new float[N_FFT + WhisperUtil.WHISPER_SAMPLE_RATE];
+    private int pendingLength = 0;
+
+    private long totalSamples = 0;
+    private long framesComputed = 0;
+    private long windowStart = 0;
+
+    public StreamingMelFrontend(WhisperUtil util) {
+        this.util = util;
+    }
+
+    public void reset() {
+        pendingLength = 0;
+        totalSamples = 0;
+        framesComputed = 0;
+        windowStart = 0;
+    }
+
+    /** Samples accepted since the last reset. */
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    /** Finished (non-provisional) frames since the last reset. */
+    public long getFrameCount() {
+        return framesComputed;
+    }
+
+    /** First frame of the window returned by {@link #buildWindow}. */
+    public long getWindowStartFrame() {
+        return windowStart;
+    }
+
+    public long getWindowStartSample() {
+        return windowStart * HOP;
+    }
+
+    /** Audio covered by the current window, in samples. */
+    public int getWindowSamples() {
+        return (int) Math.min(totalSamples - windowStart * HOP, (long) WINDOW_FRAMES * HOP);
+    }
+
+    /**
+     * Append audio and compute every frame that became complete.
+     */
+    public void accept(float[] samples, int offset, int length) {
+        if (length <= 0) return;
+        ensurePendingCapacity(pendingLength + length);
+        System.arraycopy(samples, offset, pending, pendingLength, length);
+        pendingLength += length;
+        totalSamples += length;
+
+        long complete = completeFrames(totalSamples);
+        int count = (int) (complete - framesComputed);
+        if (count > 0) {
+            // Frames that would fall out of the ring straight away are skipped
+            int skip = Math.max(0, count - WINDOW_FRAMES);
+            computeRingFrames(skip, count);
+            framesComputed = complete;
+            consumePending(count * HOP);
+        }
+
+        long end = endFrame();
+        if (end - windowStart > WINDOW_FRAMES) {
+            windowStart = end - WINDOW_FRAMES;
+        }
+    }
+
+    /**
+     * Drop the first {@code frames} frames of the window, e.g. once their text is committed.
+     * The window cannot move past the current end of the audio.
+     */
+    public void discardFrames(int frames) {
+        if (frames <= 0) return;
+        long target = Math.min(windowStart + frames, totalSamples / HOP);
+        if (target <= windowStart) return;
+        windowStart = target;
+        if (windowStart > framesComputed) {
+            // Skipped frames were never finished; drop their audio too
+            consumePending((int) (windowStart - framesComputed) * HOP);
+            framesComputed = windowStart;
+        }
+    }
+
+    /**
+     * Normalized mel input for the model, [N_MEL][WINDOW_FRAMES] row-major.
+     * The array is owned by this frontend and overwritten by the next call.
+     */
+    public float[] buildWindow() {
+        if (window == null) {
+            window = new float[N_MEL * WINDOW_FRAMES];
+        }
+        return buildWindow(window);
+    }
+
+    /**
+     * Same as {@link #buildWindow()} but writes into a caller-owned array of
+     * WHISPER_N_MEL * WHISPER_MEL_LEN floats, so it can be used after the lock is released.
+     */
+    public float[] buildWindow(float[] out) {
+        if (out.length < N_MEL * WINDOW_FRAMES) {
+            throw new IllegalArgumentException("Mel window needs " + N_MEL * WINDOW_FRAMES + " floats");
+        }
+        long end = endFrame();
+        int tailCount = (int) Math.max(0, end - Math.max(framesComputed, windowStart));
+        WhisperUtil.FrameScratch frameScratch = scratchFor(0);
+        for (int t = 0; t < tailCount; t++) {
+            int local = (int) (end - tailCount - framesComputed) + t;
+            int start = local * HOP;
+            util.computeFrame(pending, start, pendingLength - start, tail, t * N_MEL, 1, frameScratch);
+        }
+
+        int filled = (int) (end - windowStart);
+        int finished = filled - tailCount;
+
+        double mmax = -1e20;
+        for (int f = 0; f < filled; f++) {
+            float[] src = f < finished ? ring : tail;
+            int base = f < finished ? ringSlot(windowStart + f) : (f - finished) * N_MEL;
+            for (int m = 0; m < N_MEL; m++) {
+                if (src[base + m] > mmax) {
+                    mmax = src[base + m];
+                }
+            }
+        }
+        if (filled < WINDOW_FRAMES && WhisperUtil.WHISPER_LOG_FLOOR > mmax) {
+            mmax = WhisperUtil.WHISPER_LOG_FLOOR;
+        }
+
+        // clamping and normalization, transposed to mel-major
+        mmax -= 8.0;
+        for (int f = 0; f < filled; f++) {
+            float[] src = f < finished ? ring : tail;
+            int base = f < finished ? ringSlot(windowStart + f) : (f - finished) * N_MEL;
+            for (int m = 0; m < N_MEL; m++) {
+                out[m * WINDOW_FRAMES + f] = normalize(src[base + m], mmax);
+            }
+        }
+        float silence = normalize(WhisperUtil.WHISPER_LOG_FLOOR, mmax);
+        for (int m = 0; m < N_MEL; m++) {
+            int row = m * WINDOW_FRAMES;
+            Arrays.fill(out, row + filled, row + WINDOW_FRAMES, silence);
+        }
+        return out;
+    }
+
+    private static float normalize(float value, double mmax) {
+        if (value < mmax) {
+            value = (float) mmax;
+        }
+        return (float) ((value + 4.0) / 4.0);
+    }
+
+    // Frames [skip, count) of the pending audio into their ring slots
+    private void computeRingFrames(int skip, int count) {
+        int total = count - skip;
+        int chunks = total >= PARALLEL_MIN_FRAMES ? total / (PARALLEL_MIN_FRAMES / 2) : 1;
+        long base = framesComputed;
+        ComputePool.get().parallelFor(total, chunks, (chunk, start, end) -> {
+            WhisperUtil.FrameScratch frameScratch = scratchFor(chunk);
+            for (int k = skip + start; k < skip + end; k++) {
+                int offset = k * HOP;
+                util.computeFrame(pending, offset, N_FFT, ring, ringSlot(base + k), 1, frameScratch);
+            }
+        });
+    }
+
+    private static long completeFrames(long samples) {
+        return samples < N_FFT ? 0 : (samples - N_FFT) / HOP + 1;
+    }
+
+    // One past the last frame that starts inside the audio
+    private long endFrame() {
+        return (totalSamples + HOP - 1) / HOP;
+    }
+
+    private static int ringSlot(long frame) {
+        return (int) (frame % WINDOW_FRAMES) * N_MEL;
+    }
+
+    private void consumePending(int samples) {
+        int drop = Math.min(samples, pendingLength);
+        System.arraycopy(pending, drop, pending, 0, pendingLength - drop);
+        pendingLength -= drop;
+    }
+
+    private void ensurePendingCapacity(int capacity) {
+        if (capacity > pending.length) {
+            float[] grown = new float[Math.max(capacity, pending.length * 2)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+    }
+
+    private WhisperUtil.FrameScratch scratchFor(int chunk) {
+        synchronized (scratch) {
+            WhisperUtil.FrameScratch frameScratch = scratch[chunk];
+            if (frameScratch == null) {
+                frameScratch = util.newFrameScratch();
+                scratch[chunk] = frameScratch;
+            }
+            return frameScratch;
+        }
+    }
+}
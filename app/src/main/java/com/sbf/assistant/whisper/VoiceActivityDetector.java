@@ -0,0 +1,372 @@
+package com.sbf.assistant.whisper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lightweight voice activity detector for 16 kHz mono audio.
+ *
+ * Audio is split into 20 ms frames. A frame counts as speech when its energy is well above
+ * an adaptive noise floor and its spectrum is not flat (noise and hum have high spectral
+ * flatness, voiced speech does not); very loud frames count regardless of flatness so
+ * fricatives are not lost. A few consecutive speech frames open a segment and a hangover
+ * of non-speech frames closes it.
+ *
+ * Use {@link #process} for streaming audio (with an optional {@link Listener}) or
+ * {@link #detect}/{@link #findSpeech} for a complete buffer. Not thread-safe.
+ */
+public class VoiceActivityDetector {
+    private static final float EPS = 1e-10f;
+    // The initial noise floor never starts above this, so audio that opens with speech is caught
+    private static final float MAX_INITIAL_FLOOR_DB = -45.0f;
+
+    /**
+     * Speech region in samples, [start, end).
+     */
+    public static class Segment {
+        public final long start;
+        public final long end;
+
+        public Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return "Segment[" + start + ", " + end + ")";
+        }
+    }
+
+    public interface Listener {
+        void onSpeechStart(long startSample);
+
+        void onSpeechEnd(long startSample, long endSample);
+    }
+
+    private final int sampleRate;
+    private final int frameSize;
+    private final RealFft fft;
+    private final float[] window;
+    private final float[] frame;
+    private final float[] power;
+    private final float[] fftWork;
+    private final int firstBin;
+    private final int lastBin;
+
+    // Tuning
+    private float energyMarginDb = 10.0f;
+    private float loudMarginDb = 20.0f;
+    private float flatnessThreshold = 0.45f;
+    private float minRms = 0.002f;
+    private int onsetFrames = 3;
+    private int hangoverFrames = 15;
+    private int minSpeechFrames = 5;
+    private int paddingSamples;
+
+    // Streaming state
+    private final float[] pending;
+    private int pendingLength = 0;
+    private long processedSamples = 0;
+    private float noiseDb = Float.NaN;
+    private boolean inSpeech = false;
+    private int speechRun = 0;
+    private int silenceRun = 0;
+    private long segmentStart = -1;
+    private long lastSpeechEnd = -1;
+    private float lastRms = 0f;
+    private Listener listener;
+    private List<Segment> collected;
+
+    public VoiceActivityDetector(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.frameSize = sampleRate / 50;
+        this.fft = new RealFft(frameSize);
+        this.window = new float[frameSize];
+        for (int i = 0; i < frameSize; i++) {
+            window[i] = (float) (0.5 * (1.0 - Math.cos(2.0 * Math.PI * i / frameSize)));
+        }
+        this.frame = new float[frameSize];
+        this.power = new float[fft.bins()];
+        this.fftWork = fft.newWorkBuffer();
+        this.pending = new float[frameSize];
+        // Speech band for the flatness measure: 100 Hz - 4 kHz
+        this.firstBin = Math.max(1, 100 * frameSize / sampleRate);
+        this.lastBin = Math.min(fft.bins() - 1, 4000 * frameSize / sampleRate);
+        this.paddingSamples = sampleRate / 5;
+    }
+
+    public VoiceActivityDetector() {
+        this(WhisperUtil.WHISPER_SAMPLE_RATE);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * dB above the noise floor a frame needs to count as speech.
+     */
+    public void setEnergyMarginDb(float marginDb) {
+        this.energyMarginDb = marginDb;
+        this.loudMarginDb = 2 * marginDb;
+    }
+
+    /**
+     * Spectral flatness in (0, 1) above which a quiet frame is treated as noise.
+     */
+    public void setFlatnessThreshold(float threshold) {
+        this.flatnessThreshold = threshold;
+    }
+
+    /**
+     * Absolute RMS (full scale = 1) below which nothing is speech.
+     */
+    public void setMinRms(float rms) {
+        this.minRms = rms;
+    }
+
+    /**
+     * Non-speech time that ends a segment.
+     */
+    public void setHangoverMs(long ms) {
+        this.hangoverFrames = Math.max(1, msToFrames(ms));
+    }
+
+    /**
+     * Segments shorter than this are dropped as clicks or bumps.
+     */
+    public void setMinSpeechMs(long ms) {
+        this.minSpeechFrames = Math.max(1, msToFrames(ms));
+    }
+
+    /**
+     * Context kept around speech by {@link #findSpeech}.
+     */
+    public void setPaddingMs(long ms) {
+        this.paddingSamples = (int) (ms * sampleRate / 1000);
+    }
+
+    public void reset() {
+        pendingLength = 0;
+        processedSamples = 0;
+        noiseDb = Float.NaN;
+        inSpeech = false;
+        speechRun = 0;
+        silenceRun = 0;
+        segmentStart = -1;
+        lastSpeechEnd = -1;
+        lastRms = 0f;
+    }
+
+    public boolean isSpeech() {
+        return inSpeech;
+    }
+
+    /**
+     * End of the most recent speech frame, or -1 if none was heard since the last reset.
+     */
+    public long getLastSpeechSample() {
+        return lastSpeechEnd;
+    }
+
+    /**
+     * RMS of the last complete frame, for level meters.
+     */
+    public float getLastRms() {
+        return lastRms;
+    }
+
+    /**
+     * Feed audio in [-1, 1]; partial frames are kept for the next call.
+     *
+     * @return Whether the detector is inside a speech segment afterwards
+     */
+    public boolean process(float[] samples, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            int take = Math.min(frameSize - pendingLength, end - pos);
+            System.arraycopy(samples, pos, pending, pendingLength, take);
+            pendingLength += take;
+            pos += take;
+            if (pendingLength == frameSize) {
+                processFrame(pending);
+                pendingLength = 0;
+            }
+        }
+        return inSpeech;
+    }
+
+    /**
+     * Feed little-endian 16-bit PCM, as read from AudioRecord into a byte array.
+     */
+    public boolean processPcm16(byte[] data, int length) {
+        int count = length / 2;
+        for (int i = 0; i < count; i++) {
+            int sample = (data[2 * i + 1] << 8) | (data[2 * i] & 0xFF);
+            pending[pendingLength++] = (short) sample / 32768.0f;
+            if (pendingLength == frameSize) {
+                processFrame(pending);
+                pendingLength = 0;
+            }
+        }
+        return inSpeech;
+    }
+
+    /**
+     * Close an open segment at the end of the audio.
+     */
+    public void flush() {
+        if (inSpeech) {
+            endSegment();
+        }
+    }
+
+    /**
+     * Speech segments of a complete buffer. Resets the streaming state.
+     */
+    public List<Segment> detect(float[] samples, int length) {
+        reset();
+        // Start from the quiet part of the buffer so speech at sample 0 is not the floor
+        noiseDb = quietFloorDb(samples, length);
+        List<Segment> segments = new ArrayList<>();
+        collected = segments;
+        try {
+            process(samples, 0, length);
+            flush();
+        } finally {
+            collected = null;
+        }
+        return segments;
+    }
+
+    /**
+     * Span from the first to the last speech segment, padded and clamped to the buffer.
+     *
+     * @return null if the buffer holds no speech
+     */
+    public Segment findSpeech(float[] samples, int length) {
+        List<Segment> segments = detect(samples, length);
+        if (segments.isEmpty()) {
+            return null;
+        }
+        long start = Math.max(0, segments.get(0).start - paddingSamples);
+        long end = Math.min(length, segments.get(segments.size() - 1).end + paddingSamples);
+        return new Segment(start, end);
+    }
+
+    private void processFrame(float[] samples) {
+        long frameStart = processedSamples;
+        processedSamples += frameSize;
+
+        double sumSquares = 0.0;
+        for (int i = 0; i < frameSize; i++) {
+            float s = samples[i];
+            sumSquares += s * s;
+            frame[i] = s * window[i];
+        }
+        float rms = (float) Math.sqrt(sumSquares / frameSize);
+        float energyDb = (float) (10.0 * Math.log10(sumSquares / frameSize + EPS));
+        lastRms = rms;
+
+        if (Float.isNaN(noiseDb)) {
+            noiseDb = Math.min(energyDb, MAX_INITIAL_FLOOR_DB);
+        }
+
+        boolean speech = false;
+        if (rms >= minRms && energyDb > noiseDb + energyMarginDb) {
+            speech = energyDb > noiseDb + loudMarginDb || spectralFlatness() < flatnessThreshold;
+        }
+
+        if (!speech) {
+            // Follow drops immediately, rises slowly
+            noiseDb = energyDb < noiseDb ? energyDb : 0.95f * noiseDb + 0.05f * energyDb;
+        }
+
+        if (speech) {
+            speechRun++;
+            silenceRun = 0;
+            lastSpeechEnd = processedSamples;
+            if (!inSpeech && speechRun >= onsetFrames) {
+                inSpeech = true;
+                segmentStart = frameStart - (long) (onsetFrames - 1) * frameSize;
+                if (listener != null) {
+                    listener.onSpeechStart(segmentStart);
+                }
+            }
+        } else {
+            speechRun = 0;
+            if (inSpeech && ++silenceRun >= hangoverFrames) {
+                endSegment();
+            }
+        }
+    }
+
+    private void endSegment() {
+        inSpeech = false;
+        silenceRun = 0;
+        long start = segmentStart;
+        long end = lastSpeechEnd;
+        segmentStart = -1;
+        if (end - start < (long) minSpeechFrames * frameSize) {
+            return;
+        }
+        if (collected != null) {
+            collected.add(new Segment(start, end));
+        }
+        if (listener != null) {
+            listener.onSpeechEnd(start, end);
+        }
+    }
+
+    // 10th percentile of frame energies
+    private float quietFloorDb(float[] samples, int length) {
+        int frames = length / frameSize;
+        if (frames == 0) {
+            return Float.NaN;
+        }
+        float[] energies = new float[frames];
+        for (int f = 0; f < frames; f++) {
+            double sumSquares = 0.0;
+            int base = f * frameSize;
+            for (int i = 0; i < frameSize; i++) {
+                float s = samples[base + i];
+                sumSquares += s * s;
+            }
+            energies[f] = (float) (10.0 * Math.log10(sumSquares / frameSize + EPS));
+        }
+        Arrays.sort(energies);
+        return Math.min(energies[frames / 10], MAX_INITIAL_FLOOR_DB);
+    }
+
+    /**
+     * Seed the noise floor, e.g. from a calibration period, instead of the first frame.
+     */
+    public void setNoiseFloorRms(float rms) {
+        noiseDb = (float) (10.0 * Math.log10((double) rms * rms + EPS));
+    }
+
+    // Geometric over arithmetic mean of the power spectrum in the speech band
+    private float spectralFlatness() {
+        fft.powerSpectrum(frame, power, fftWork);
+        double logSum = 0.0;
+        double sum = 0.0;
+        int count = lastBin - firstBin + 1;
+        for (int k = firstBin; k <= lastBin; k++) {
+            double p = power[k] + EPS;
+            logSum += Math.log(p);
+            sum += p;
+        }
+        return (float) (Math.exp(logSum / count) / (sum / count));
+    }
+
+    private int msToFrames(long ms) {
+        return (int) ((ms * sampleRate / 1000 + frameSize - 1) / frameSize);
+    }
+}
@@ -7,12 +7,29 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 
 public class WaveUtil {
     public static final String TAG = "WaveUtil";
     public static final String RECORDING_FILE = "MicInput.wav";
 
+    // Chunk ids as little-endian ints
+    private static final int RIFF = 0x46464952;
+    private static final int WAVE = 0x45564157;
+    private static final int FMT = 0x20746d66;
+    private static final int DATA = 0x61746164;
+    private static final int ENCODING_PCM_16 = 1;
+    private static final int ENCODING_FLOAT = 3;
+    private static final int ENCODING_EXTENSIBLE = 0xFFFE;
+    // fmt chunk bytes read; enough for WAVE_FORMAT_EXTENSIBLE
+    private static final int FMT_MAX_BYTES = 40;
+    // Frames converted per bulk read
+    private static final int CHUNK_FRAMES = 8192;
+    private static final float PCM16_SCALE = 1f / 32768f;
+
     public static void createWaveFile(String filePath, byte[] samples, int sampleRate, int numChannels, int bytesPerSample) {
         try {
             int dataSize = samples.length; // actual data size in bytes
@@ -44,73 +61,182 @@ public class WaveUtil {
         }
     }
 
+    /**
+     * Samples of a PCM16 or 32-bit float WAV file as 16 kHz mono floats, the input Whisper
+     * expects; other rates are resampled and extra channels averaged. Empty if the file
+     * cannot be read or its format is not supported.
+     */
     public static float[] getSamples(String filePath) {
-        try {
-            FileInputStream fileInputStream = new FileInputStream(filePath);
-
-            // Read the WAV file header
-            byte[] header = new byte[44];
-            fileInputStream.read(header);
+        return getSamples(filePath, WhisperUtil.WHISPER_SAMPLE_RATE);
+    }
 
-            // Check if it's a valid WAV file (contains "RIFF" and "WAVE" markers)
-            String headerStr = new String(header, 0, 4);
-            if (!headerStr.equals("RIFF")) {
-                System.err.println("Not a valid WAV file");
+    /**
+     * Samples of a PCM16 or 32-bit float WAV file, mono at {@code targetRate}.
+     *
+     * The header is walked chunk by chunk, so LIST and other metadata chunks before or
+     * after the audio are skipped, and only the data chunk is memory-mapped. Samples are
+     * read through bulk buffer views a chunk at a time and streamed through the resampler,
+     * so no copy of the whole file is made.
+     */
+    public static float[] getSamples(String filePath, int targetRate) {
+        try (FileInputStream input = new FileInputStream(filePath);
+             FileChannel channel = input.getChannel()) {
+            Format format = readFormat(channel);
+            if (format == null) {
                 return new float[0];
             }
-
-            // Get the audio format details from the header
-            int sampleRate = byteArrayToNumber(header, 24, 4);
-            int bitsPerSample = byteArrayToNumber(header, 34, 2);
-            if (bitsPerSample != 16 && bitsPerSample != 32) {
-                System.err.println("Unsupported bits per sample: " + bitsPerSample);
+            if (format.encoding != ENCODING_PCM_16 && format.encoding != ENCODING_FLOAT) {
+                Log.e(TAG, "Unsupported WAV encoding " + format.encoding + ", " + format.bitsPerSample + " bits");
                 return new float[0];
             }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, format.dataOffset, format.dataLength);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            return decode(data, format, targetRate);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + filePath, e);
+        }
+        return new float[0];
+    }
 
-            // Get the size of the data section (all PCM data)
-            int dataLength = fileInputStream.available(); // byteArrayToInt(header, 40, 4);
-
-            // Calculate the number of samples
-            int bytesPerSample = bitsPerSample / 8;
-            int numSamples = dataLength / bytesPerSample;
+    // Layout of the audio in a WAV file
+    private static class Format {
+        int encoding;
+        int channels;
+        int sampleRate;
+        int bitsPerSample;
+        long dataOffset = -1;
+        long dataLength;
+    }
 
-            // Read the audio data
-            byte[] audioData = new byte[dataLength];
-            fileInputStream.read(audioData);
-            ByteBuffer byteBuffer = ByteBuffer.wrap(audioData);
-            byteBuffer.order(ByteOrder.nativeOrder());
+    // Null if the file is not a WAV with a fmt and a data chunk
+    private static Format readFormat(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FMT_MAX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, header, 0, 12)
+                || header.getInt(0) != RIFF || header.getInt(8) != WAVE) {
+            Log.e(TAG, "Not a valid WAV file");
+            return null;
+        }
 
-            // Convert audio data to PCM_FLOAT format
-            float[] samples = new float[numSamples];
-            if (bitsPerSample == 16) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = (float) (byteBuffer.getShort() / 32768.0);
+        Format format = new Format();
+        boolean hasFmt = false;
+        long position = 12;
+        while (position + 8 <= size && (!hasFmt || format.dataOffset < 0)) {
+            if (!readFully(channel, header, position, 8)) {
+                break;
+            }
+            int id = header.getInt(0);
+            long length = header.getInt(4) & 0xFFFFFFFFL;
+            long body = position + 8;
+            if (id == FMT) {
+                int read = (int) Math.min(length, FMT_MAX_BYTES);
+                if (read < 16 || !readFully(channel, header, body, read)) {
+                    break;
+                }
+                format.encoding = header.getShort(0) & 0xFFFF;
+                format.channels = header.getShort(2) & 0xFFFF;
+                format.sampleRate = header.getInt(4);
+                format.bitsPerSample = header.getShort(14) & 0xFFFF;
+                // WAVE_FORMAT_EXTENSIBLE keeps the real encoding at the start of its sub-format GUID
+                if (format.encoding == ENCODING_EXTENSIBLE && read >= 26) {
+                    format.encoding = header.getShort(24) & 0xFFFF;
                 }
-            } else if (bitsPerSample == 32) {
-                for (int i = 0; i < numSamples; i++) {
-                    samples[i] = byteBuffer.getFloat();
+                if (format.encoding == ENCODING_PCM_16 && format.bitsPerSample != 16
+                        || format.encoding == ENCODING_FLOAT && format.bitsPerSample != 32) {
+                    format.encoding = -1;
                 }
+                hasFmt = true;
+            } else if (id == DATA) {
+                format.dataOffset = body;
+                // Streaming recorders leave 0xFFFFFFFF and truncated files run short: take the rest
+                // of the file. A length of 0 is a real empty chunk, whatever follows it is not audio
+                format.dataLength = body + length > size ? size - body : length;
             }
+            position = body + length + (length & 1);
+        }
 
-            return samples;
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, "Error...", e);
+        if (!hasFmt || format.dataOffset < 0 || format.channels <= 0 || format.sampleRate <= 0) {
+            Log.e(TAG, "WAV file without usable fmt and data chunks");
+            return null;
         }
-        return new float[0];
+        return format;
+    }
+
+    private static float[] decode(ByteBuffer data, Format format, int targetRate) {
+        int channels = format.channels;
+        int frames = data.remaining() / (channels * (format.bitsPerSample / 8));
+        PolyphaseResampler resampler = format.sampleRate == targetRate
+                ? null : new PolyphaseResampler(format.sampleRate, targetRate);
+        float[] samples = new float[resampler == null
+                ? frames : (int) PolyphaseResampler.outputLength(frames, format.sampleRate, targetRate)];
+
+        ShortBuffer pcm = format.encoding == ENCODING_PCM_16 ? data.asShortBuffer() : null;
+        FloatBuffer floats = format.encoding == ENCODING_FLOAT ? data.asFloatBuffer() : null;
+        short[] pcmChunk = pcm != null ? new short[CHUNK_FRAMES * channels] : null;
+        float[] floatChunk = floats != null ? new float[CHUNK_FRAMES * channels] : null;
+        float[] mono = new float[CHUNK_FRAMES];
+
+        int written = 0;
+        for (int start = 0; start < frames; start += CHUNK_FRAMES) {
+            int count = Math.min(CHUNK_FRAMES, frames - start);
+            // Mono at the target rate goes straight into the result
+            float[] target = resampler == null ? samples : mono;
+            int offset = resampler == null ? start : 0;
+            if (pcm != null) {
+                pcm.get(pcmChunk, 0, count * channels);
+                downmix(pcmChunk, channels, count, target, offset);
+            } else if (channels == 1) {
+                floats.get(target, offset, count);
+            } else {
+                floats.get(floatChunk, 0, count * channels);
+                downmix(floatChunk, channels, count, target, offset);
+            }
+            if (resampler != null) {
+                written += resampler.process(mono, 0, count, samples, written);
+            }
+        }
+        if (resampler != null) {
+            resampler.flush(samples, written);
+        }
+        return samples;
     }
 
-    // Convert a portion of a byte array into an integer or a short
-    private static int byteArrayToNumber(byte[] bytes, int offset, int length) {
-        int value = 0; // Start with an initial value of 0
+    private static void downmix(short[] interleaved, int channels, int frames, float[] target, int offset) {
+        if (channels == 1) {
+            for (int i = 0; i < frames; i++) {
+                target[offset + i] = interleaved[i] * PCM16_SCALE;
+            }
+            return;
+        }
+        float scale = PCM16_SCALE / channels;
+        for (int i = 0, s = 0; i < frames; i++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += interleaved[s++];
+            }
+            target[offset + i] = sum * scale;
+        }
+    }
 
-        // Loop through the specified portion of the byte array
-        for (int i = 0; i < length; i++) {
-            // Extract a byte, ensure it's positive, and shift it to its position in the integer
-            value |= (bytes[offset + i] & 0xFF) << (8 * i);
+    private static void downmix(float[] interleaved, int channels, int frames, float[] target, int offset) {
+        float scale = 1f / channels;
+        for (int i = 0, s = 0; i < frames; i++) {
+            float sum = 0f;
+            for (int c = 0; c < channels; c++) {
+                sum += interleaved[s++];
+            }
+            target[offset + i] = sum * scale;
         }
+    }
 
-        return value; // Return the resulting integer value
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private static byte[] intToByteArray(int value) {
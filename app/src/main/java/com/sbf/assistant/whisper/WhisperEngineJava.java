@@ -3,20 +3,25 @@ package com.sbf.assistant.whisper;
 import android.content.Context;
 import android.util.Log;
 
+import com.sbf.assistant.llm.ComputePool;
+import com.sbf.assistant.llm.CpuBudget;
 import com.sbf.assistant.llm.TfLiteHelper;
 
-import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.Tensor;
-import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 public class WhisperEngineJava implements WhisperEngine {
     private final String TAG = "WhisperEngineJava";
     private final WhisperUtil mWhisperUtil = new WhisperUtil();
+    private final VoiceActivityDetector mVad = new VoiceActivityDetector();
+    private boolean vadEnabled = true;
+    private VoiceActivityDetector.Segment lastSpeech = null;
 
     private final Context mContext;
     private boolean mIsInitialized = false;
@@ -24,6 +29,12 @@ public class WhisperEngineJava implements WhisperEngine {
     private Interpreter mInterpreter = null;
     private boolean usingGpu = false;
 
+    // Input/output tensors, allocated once per loaded model
+    private ByteBuffer inputBuffer = null;
+    private FloatBuffer inputFloats = null;
+    private ByteBuffer outputBuffer = null;
+    private IntBuffer outputTokens = null;
+
     public WhisperEngineJava(Context context) {
         mContext = context;
     }
@@ -32,6 +43,16 @@ public class WhisperEngineJava implements WhisperEngine {
         return usingGpu;
     }
 
+    // Trim silence around speech and skip inference on silent audio (default on)
+    public void setVadEnabled(boolean enabled) {
+        vadEnabled = enabled;
+    }
+
+    // Speech span (in samples) of the last transcribed audio, or null if it was silent
+    public VoiceActivityDetector.Segment getLastSpeech() {
+        return lastSpeech;
+    }
+
     @Override
     public boolean isInitialized() {
         return mIsInitialized;
@@ -39,8 +60,20 @@ public class WhisperEngineJava implements WhisperEngine {
 
     @Override
     public boolean initialize(String modelPath, String vocabPath, boolean multilingual) throws IOException {
+        return initialize(TfLiteHelper.loadModelFile(modelPath), modelPath, vocabPath, multilingual);
+    }
+
+    // Load on weights mapped by the caller, so several engines can share one mapping
+    public boolean initialize(ByteBuffer model, String modelPath, String vocabPath, boolean multilingual)
+            throws IOException {
+        return initialize(model, modelPath, vocabPath, multilingual, 1);
+    }
+
+    // One of `engines` pooled engines that may run at once; each takes that part of the Whisper CPU share
+    public boolean initialize(ByteBuffer model, String modelPath, String vocabPath, boolean multilingual,
+                              int engines) throws IOException {
         // Load model
-        loadModel(modelPath);
+        loadModel(model, modelPath, engines);
         Log.d(TAG, "Model is loaded..." + modelPath);
 
         // Load filters and vocab
@@ -64,17 +97,24 @@ public class WhisperEngineJava implements WhisperEngine {
             interpreterResult = null;
         }
         mInterpreter = null;
+        inputBuffer = null;
+        inputFloats = null;
+        outputBuffer = null;
+        outputTokens = null;
     }
 
     @Override
     public String transcribeFile(String wavePath) {
         // Calculate Mel spectrogram
         Log.d(TAG, "Calculating Mel spectrogram...");
-        float[] melSpectrogram = getMelSpectrogram(wavePath);
+        float[] samples = WaveUtil.getSamples(wavePath);
+        if (!writeSpeechMel(samples, samples.length)) {
+            return "";
+        }
         Log.d(TAG, "Mel spectrogram is calculated...!");
 
         // Perform inference
-        String result = runInference(melSpectrogram);
+        String result = runInference(inputBuffer);
         Log.d(TAG, "Inference is executed...!");
 
         return result;
@@ -82,86 +122,132 @@ public class WhisperEngineJava implements WhisperEngine {
 
     @Override
     public String transcribeBuffer(float[] samples) {
+        return transcribeBuffer(samples, samples.length);
+    }
+
+    // Transcribe samples[0, length), e.g. a capture buffer with spare room at the end
+    @Override
+    public String transcribeBuffer(float[] samples, int length) {
         if (!mIsInitialized || mInterpreter == null) {
             Log.e(TAG, "Engine not initialized");
             return null;
         }
 
-        // Pad or truncate samples to fixed input size
-        int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
-        float[] inputSamples = new float[fixedInputSize];
-        int copyLength = Math.min(samples.length, fixedInputSize);
-        System.arraycopy(samples, 0, inputSamples, 0, copyLength);
-
-        // Calculate mel spectrogram
-        int cores = Runtime.getRuntime().availableProcessors();
-        float[] melSpectrogram = mWhisperUtil.getMelSpectrogram(inputSamples, inputSamples.length, cores);
+        // Calculate mel spectrogram straight into the input tensor
+        if (!writeSpeechMel(samples, length)) {
+            return "";
+        }
 
         // Run inference
-        return runInference(melSpectrogram);
+        return runInference(inputBuffer);
     }
 
-    // Load TFLite model with GPU acceleration when available
-    private void loadModel(String modelPath) throws IOException {
-        interpreterResult = TfLiteHelper.createInterpreter(modelPath, true);
-        mInterpreter = interpreterResult.interpreter;
-        usingGpu = interpreterResult.usingGpu;
-        Log.d(TAG, "Whisper model loaded. GPU=" + usingGpu);
+    /**
+     * Incremental mel frontend bound to this engine's filters; feed it audio and pass
+     * {@link StreamingMelFrontend#buildWindow()} to {@link #transcribeMel(float[])}.
+     */
+    public StreamingMelFrontend newStreamingFrontend() {
+        return new StreamingMelFrontend(mWhisperUtil);
     }
 
-    private float[] getMelSpectrogram(String wavePath) {
-        // Get samples in PCM_FLOAT format
-        float[] samples = WaveUtil.getSamples(wavePath);
+    // Transcribe a ready-made normalized mel window (WHISPER_N_MEL x WHISPER_MEL_LEN)
+    public String transcribeMel(float[] melSpectrogram) {
+        if (!mIsInitialized || mInterpreter == null) {
+            Log.e(TAG, "Engine not initialized");
+            return null;
+        }
+        inputFloats.clear();
+        inputFloats.put(melSpectrogram, 0, Math.min(melSpectrogram.length, inputFloats.capacity()));
+        return runInference(inputBuffer);
+    }
 
+    /**
+     * A direct buffer shaped like the model input, for callers that stage mel ahead of
+     * inference (see {@link LongFormTranscriber}).
+     */
+    public ByteBuffer newInputBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(inputBuffer.capacity());
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    // Mel of samples[offset, offset + length), padded or truncated to 30 s, into target.
+    // Uses only the mel scratch, so it may run while another thread is in transcribeInput().
+    public void writeMel(float[] samples, int offset, int length, ByteBuffer target) {
         int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
-        float[] inputSamples = new float[fixedInputSize];
-        int copyLength = Math.min(samples.length, fixedInputSize);
-        System.arraycopy(samples, 0, inputSamples, 0, copyLength);
+        int threads = ComputePool.get().getParallelism();
+        mWhisperUtil.getMelSpectrogram(samples, offset, length, fixedInputSize, threads, target.asFloatBuffer());
+    }
+
+    // Transcribe a buffer filled by writeMel()
+    public String transcribeInput(ByteBuffer input) {
+        if (!mIsInitialized || mInterpreter == null) {
+            Log.e(TAG, "Engine not initialized");
+            return null;
+        }
+        return runInference(input);
+    }
 
-        int cores = Runtime.getRuntime().availableProcessors();
-        return mWhisperUtil.getMelSpectrogram(inputSamples, inputSamples.length, cores);
+    // Load TFLite model with GPU acceleration when available
+    private void loadModel(ByteBuffer model, String modelPath, int engines) {
+        interpreterResult = TfLiteHelper.createInterpreter(mContext, modelPath, model, true,
+                CpuBudget.OWNER_WHISPER, engines);
+        mInterpreter = interpreterResult.interpreter;
+        usingGpu = interpreterResult.usingGpu;
+        Log.d(TAG, "Whisper model loaded. Backend=" + interpreterResult.backend.label);
+        allocateTensorBuffers();
     }
 
-    private String runInference(float[] inputData) {
-        // Create input tensor
+    // Direct buffers the interpreter reads from and writes into on every run
+    private void allocateTensorBuffers() {
         Tensor inputTensor = mInterpreter.getInputTensor(0);
-        TensorBuffer inputBuffer = TensorBuffer.createFixedSize(inputTensor.shape(), inputTensor.dataType());
-//        printTensorDump("Input Tensor Dump ===>", inputTensor);
+        inputBuffer = ByteBuffer.allocateDirect(inputTensor.numBytes());
+        inputBuffer.order(ByteOrder.nativeOrder());
+        inputFloats = inputBuffer.asFloatBuffer();
 
-        // Create output tensor
         Tensor outputTensor = mInterpreter.getOutputTensor(0);
-        TensorBuffer outputBuffer = TensorBuffer.createFixedSize(outputTensor.shape(), DataType.FLOAT32);
-//        printTensorDump("Output Tensor Dump ===>", outputTensor);
-
-        // Load input data
-        int inputSize = inputTensor.shape()[0] * inputTensor.shape()[1] * inputTensor.shape()[2] * Float.BYTES;
-        ByteBuffer inputBuf = ByteBuffer.allocateDirect(inputSize);
-        inputBuf.order(ByteOrder.nativeOrder());
-        for (float input : inputData) {
-            inputBuf.putFloat(input);
+        outputBuffer = ByteBuffer.allocateDirect(outputTensor.numBytes());
+        outputBuffer.order(ByteOrder.nativeOrder());
+        outputTokens = outputBuffer.asIntBuffer();
+    }
+
+    // Writes the mel of the speech span into the input tensor; false if there is no speech
+    private boolean writeSpeechMel(float[] samples, int length) {
+        if (!vadEnabled) {
+            lastSpeech = new VoiceActivityDetector.Segment(0, length);
+            writeMelInput(samples, 0, length);
+            return true;
         }
 
-        // To test mel data as a input directly
-//        try {
-//            byte[] bytes = Files.readAllBytes(Paths.get("/data/user/0/com.example.tfliteaudio/files/mel_spectrogram.bin"));
-//            inputBuf = ByteBuffer.wrap(bytes);
-//        } catch (IOException e) {
-//            throw new RuntimeException(e);
-//        }
+        lastSpeech = mVad.findSpeech(samples, length);
+        if (lastSpeech == null) {
+            Log.d(TAG, "No speech detected, skipping inference");
+            return false;
+        }
+        Log.d(TAG, "Speech " + lastSpeech + " of " + length + " samples");
+        writeMelInput(samples, (int) lastSpeech.start, (int) lastSpeech.length());
+        return true;
+    }
 
-        inputBuffer.loadBuffer(inputBuf);
+    // Pads or truncates to 30 s implicitly; no padded copy of the samples is made
+    private void writeMelInput(float[] samples, int offset, int length) {
+        int fixedInputSize = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE;
+        int threads = ComputePool.get().getParallelism();
+        mWhisperUtil.getMelSpectrogram(samples, offset, length, fixedInputSize, threads, inputFloats);
+    }
 
-//        Log.d(TAG, "Before inference...");
-        // Run inference
-        mInterpreter.run(inputBuffer.getBuffer(), outputBuffer.getBuffer());
-//        Log.d(TAG, "After inference...");
+    // Runs the model on the mel already in input
+    private String runInference(ByteBuffer input) {
+        input.rewind();
+        outputBuffer.rewind();
+        mInterpreter.run(input, outputBuffer);
 
         // Retrieve the results
-        int outputLen = outputBuffer.getIntArray().length;
+        int outputLen = outputTokens.capacity();
         Log.d(TAG, "output_len: " + outputLen);
         StringBuilder result = new StringBuilder();
         for (int i = 0; i < outputLen; i++) {
-            int token = outputBuffer.getBuffer().getInt();
+            int token = outputTokens.get(i);
             if (token == mWhisperUtil.getTokenEOT())
                 break;
 
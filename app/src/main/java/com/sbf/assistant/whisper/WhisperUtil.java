@@ -2,20 +2,16 @@ package com.sbf.assistant.whisper;
 
 import static java.lang.Math.cos;
 import static java.lang.Math.log10;
-import static java.lang.Math.sin;
 
 import android.util.Log;
 
+import com.sbf.assistant.llm.CompiledVocab;
+import com.sbf.assistant.llm.ComputePool;
+
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public class WhisperUtil {
     private static final String TAG = "WhisperUtil";
@@ -26,10 +22,22 @@ public class WhisperUtil {
     public static final int WHISPER_HOP_LENGTH = 160;
     public static final int WHISPER_CHUNK_SIZE = 30;
     public static final int WHISPER_MEL_LEN = 3000;
+    // log10 of the energy floor: value of a frame that only sees zero padding
+    public static final float WHISPER_LOG_FLOOR = -10.0f;
 
     private final WhisperVocab vocab = new WhisperVocab();
     private final WhisperFilter filters = new WhisperFilter();
     private final WhisperMel mel = new WhisperMel();
+    private final RealFft fftPlan = new RealFft(WHISPER_N_FFT);
+    private final FrameScratch[] frameScratch = new FrameScratch[ComputePool.maxThreads()];
+
+    private static final float[] HANN = new float[WHISPER_N_FFT];
+
+    static {
+        for (int i = 0; i < WHISPER_N_FFT; i++) {
+            HANN[i] = (float) (0.5 * (1.0 - cos(2.0 * Math.PI * i / WHISPER_N_FFT)));
+        }
+    }
 
     // Helper functions definitions
     public int getTokenTranslate() {
@@ -65,59 +73,29 @@ public class WhisperUtil {
     }
 
     public String getWordFromToken(int token) {
-        return vocab.tokenToWord.get(token);
+        return vocab.getWord(token);
     }
 
-    // Load filters and vocab data from pre-generated filters_vocab_en.bin file
+    // Load filters and vocab data from pre-generated filters_vocab_en.bin file. The file is
+    // converted once into a CompiledVocab next to it and memory-mapped from then on.
     public boolean loadFiltersAndVocab(boolean multilingual, String vocabPath) throws IOException {
-
-        // Read vocab file
-        byte[] bytes = Files.readAllBytes(Paths.get(vocabPath));
-        ByteBuffer vocabBuf = ByteBuffer.wrap(bytes);
-        vocabBuf.order(ByteOrder.nativeOrder());
-        Log.d(TAG, "Vocab file size: " + vocabBuf.limit());
-
-        // @magic:USEN
-        int magic = vocabBuf.getInt();
-        if (magic == 0x5553454e) {
-            Log.d(TAG, "Magic number: " + magic);
-        } else {
-            Log.d(TAG, "Invalid vocab file (bad magic: " + magic + "), " + vocabPath);
+        CompiledVocab compiled = CompiledVocab.openOrCompile(new File(vocabPath), CompiledVocab::compileWhisper);
+        if (compiled == null) {
+            Log.d(TAG, "Invalid vocab file (bad magic), " + vocabPath);
             return false;
         }
 
         // Load mel filters
-        filters.nMel = vocabBuf.getInt();
-        filters.nFft = vocabBuf.getInt();
+        setFilters(compiled.filterMel(), compiled.filterFft(), compiled.filters());
         Log.d(TAG, "n_mel:" + filters.nMel + ", n_fft:" + filters.nFft);
 
-        byte[] filterData = new byte[filters.nMel * filters.nFft * Float.BYTES];
-        vocabBuf.get(filterData, 0, filterData.length);
-        ByteBuffer filterBuf = ByteBuffer.wrap(filterData);
-        filterBuf.order(ByteOrder.nativeOrder());
-
-        filters.data = new float[filters.nMel * filters.nFft];
-        for (int i = 0; filterBuf.hasRemaining(); i++) {
-            filters.data[i] = filterBuf.getFloat();
-        }
-
-        // Load vocabulary
-        int nVocab = vocabBuf.getInt();
-        Log.d(TAG, "nVocab: " + nVocab);
-        for (int i = 0; i < nVocab; i++) {
-            int len = vocabBuf.getInt();
-            byte[] wordBytes = new byte[len];
-            vocabBuf.get(wordBytes, 0, wordBytes.length);
-            String word = new String(wordBytes);
-            vocab.tokenToWord.put(i, word);
-        }
+        // Words are decoded from the mapped file on demand
+        vocab.words = compiled;
+        vocab.nVocabAdditional = multilingual ? vocab.nVocabMultilingual : vocab.nVocabEnglish;
+        Log.d(TAG, "nVocab: " + compiled.size());
 
         // Add additional vocab ids
-        int nVocabAdditional;
-        if (!multilingual) {
-            nVocabAdditional = vocab.nVocabEnglish;
-        } else {
-            nVocabAdditional = vocab.nVocabMultilingual;
+        if (multilingual) {
             vocab.tokenEOT++;
             vocab.tokenSOT++;
             vocab.tokenPREV++;
@@ -126,202 +104,163 @@ public class WhisperUtil {
             vocab.tokenBEG++;
         }
 
-        for (int i = nVocab; i < nVocabAdditional; i++) {
-            String word;
-            if (i > vocab.tokenBEG) {
-                word = "[_TT_" + (i - vocab.tokenBEG) + "]";
-            } else if (i == vocab.tokenEOT) {
-                word = "[_EOT_]";
-            } else if (i == vocab.tokenSOT) {
-                word = "[_SOT_]";
-            } else if (i == vocab.tokenPREV) {
-                word = "[_PREV_]";
-            } else if (i == vocab.tokenNOT) {
-                word = "[_NOT_]";
-            } else if (i == vocab.tokenBEG) {
-                word = "[_BEG_]";
-            } else {
-                word = "[_extra_token_" + i + "]";
-            }
-
-            vocab.tokenToWord.put(i, word);
-            //Log.d(TAG, "i= " + i + ", word= " + word);
-        }
-
         return true;
     }
 
+    // Mel filter bank, [nMel][nFft] row-major; tests set one directly instead of loading a file
+    void setFilters(int nMel, int nFft, FloatBuffer data) {
+        filters.nMel = nMel;
+        filters.nFft = nFft;
+        filters.data = data;
+        filters.buildSpans();
+    }
+
     // nSamples size => WHISPER_SAMPLE_RATE * WHISPER_CHUNK_SIZE => 480000
+    // The returned array is reused by the next call with the same length.
     public float[] getMelSpectrogram(float[] samples, int nSamples, int nThreads) {
+        float[] out = computeLogMel(samples, 0, nSamples, nSamples / WHISPER_HOP_LENGTH, nThreads);
+        int size = mel.nMel * mel.nLen;
 
-        int fftSize = WHISPER_N_FFT;
-        int fftStep = WHISPER_HOP_LENGTH;
-
-        mel.nMel = WHISPER_N_MEL;
-        mel.nLen = nSamples / fftStep;
-        mel.data = new float[mel.nMel * mel.nLen];
-
-        float[] hann = new float[fftSize];
-        for (int i = 0; i < fftSize; i++) {
-            hann[i] = (float) (0.5 * (1.0 - cos(2.0 * Math.PI * i / fftSize)));
-        }
-
-        int nFft = 1 + fftSize / 2;
-
-/////////////// UNCOMMENT below block to use multithreaded mel calculation /////////////////////////
-        // Calculate mel values using multiple threads
-        List<Thread> workers = new ArrayList<>();
-        for (int iw = 0; iw < nThreads; iw++) {
-            final int ith = iw;  // Capture iw in a final variable for use in the lambda
-            Thread thread = new Thread(() -> {
-                // Inside the thread, ith will have the same value as iw (first value is 0)
-                Log.d(TAG, "Thread " + ith + " started.");
-
-                float[] fftIn = new float[fftSize];
-                Arrays.fill(fftIn, 0.0f);
-                float[] fftOut = new float[fftSize * 2];
-
-                for (int i = ith; i < mel.nLen; i += nThreads) {
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
-
-/////////////// COMMENT below block to use multithreaded mel calculation ///////////////////////////
-//        float[] fftIn = new float[fftSize];
-//        Arrays.fill(fftIn, 0.0f);
-//        float[] fftOut = new float[fftSize * 2];
-//
-//        for (int i = 0; i < mel.nLen; i++) {
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
-
-            int offset = i * fftStep;
-
-            // apply Hanning window
-            for (int j = 0; j < fftSize; j++) {
-                if (offset + j < nSamples) {
-                    fftIn[j] = hann[j] * samples[offset + j];
-                } else {
-                    fftIn[j] = 0.0f;
-                }
+        // clamping and normalization
+        double mmax = maxValue(out, size) - 8.0;
+        for (int i = 0; i < size; i++) {
+            if (out[i] < mmax) {
+                out[i] = (float) mmax;
             }
+            out[i] = (float) ((out[i] + 4.0) / 4.0);
+        }
 
-            // FFT -> mag^2
-            fft(fftIn, fftOut);
-            for (int j = 0; j < fftSize; j++) {
-                fftOut[j] = fftOut[2 * j] * fftOut[2 * j] + fftOut[2 * j + 1] * fftOut[2 * j + 1];
-            }
+        return out;
+    }
 
-            for (int j = 1; j < fftSize / 2; j++) {
-                fftOut[j] += fftOut[fftSize - j];
+    /**
+     * Mel spectrogram of samples[offset, offset + nSamples) zero-padded to {@code paddedSamples},
+     * written normalized straight into {@code out} (e.g. the interpreter's input buffer) starting
+     * at index 0. Padding is never materialized and frames that only see padding skip the FFT.
+     */
+    public void getMelSpectrogram(float[] samples, int offset, int nSamples, int paddedSamples,
+                                  int nThreads, FloatBuffer out) {
+        int nLen = paddedSamples / WHISPER_HOP_LENGTH;
+        float[] logMel = computeLogMel(samples, offset, Math.min(nSamples, paddedSamples), nLen, nThreads);
+        int size = WHISPER_N_MEL * nLen;
+
+        // clamping and normalization into the caller's buffer
+        double mmax = maxValue(logMel, size) - 8.0;
+        for (int i = 0; i < size; i++) {
+            float value = logMel[i];
+            if (value < mmax) {
+                value = (float) mmax;
             }
+            out.put(i, (float) ((value + 4.0) / 4.0));
+        }
+    }
 
-            // mel spectrogram
-            for (int j = 0; j < mel.nMel; j++) {
-                double sum = 0.0;
-                for (int k = 0; k < nFft; k++) {
-                    sum += (fftOut[k] * filters.data[j * nFft + k]);
-                }
+    // Raw log10 mel energies, [WHISPER_N_MEL][nLen], in the reused mel.data array
+    private float[] computeLogMel(float[] samples, int offset, int nSamples, int nLen, int nThreads) {
+        int size = WHISPER_N_MEL * nLen;
+        if (mel.data == null || mel.data.length != size) {
+            mel.data = new float[size];
+        }
+        mel.nMel = WHISPER_N_MEL;
+        mel.nLen = nLen;
 
-                if (sum < 1e-10) {
-                    sum = 1e-10;
-                }
+        float[] out = mel.data;
+        ComputePool.get().parallelFor(nLen, nThreads, (chunk, start, end) ->
+                computeFrames(samples, offset, nSamples, out, nLen, start, end, scratchFor(chunk)));
+        return out;
+    }
 
-                sum = log10(sum);
-                mel.data[j * mel.nLen + i] = (float) sum;
+    private static double maxValue(float[] data, int size) {
+        double mmax = -1e20;
+        for (int i = 0; i < size; i++) {
+            if (data[i] > mmax) {
+                mmax = data[i];
             }
         }
+        return mmax;
+    }
 
-/////////////// UNCOMMENT below block to use multithreaded mel calculation /////////////////////////
-            });
-            workers.add(thread);
-            thread.start();
+    // log10 mel energies for frames [start, end) written column-wise into out[mel * nLen + frame]
+    private void computeFrames(float[] samples, int offset, int nSamples, float[] out, int nLen,
+                               int start, int end, FrameScratch scratch) {
+        for (int i = start; i < end; i++) {
+            int frameOffset = i * WHISPER_HOP_LENGTH;
+            computeFrame(samples, offset + frameOffset, nSamples - frameOffset, out, i, nLen, scratch);
         }
+    }
 
-        // Wait for all threads to finish
-        for (Thread worker : workers) {
-            try {
-                worker.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    // log10 mel energies of the frame starting at samples[offset]; only `available` samples
+    // are real, the rest of the window is zero. Writes out[outIndex + mel * outStride].
+    void computeFrame(float[] samples, int offset, int available, float[] out, int outIndex,
+                      int outStride, FrameScratch scratch) {
+        int valid = Math.max(0, Math.min(WHISPER_N_FFT, available));
+        if (valid == 0) {
+            // Only padding: every filter sits at the energy floor
+            for (int m = 0; m < WHISPER_N_MEL; m++) {
+                out[outIndex + m * outStride] = WHISPER_LOG_FLOOR;
             }
+            return;
         }
-/////////////// END of Block ///////////////////////////////////////////////////////////////////////
 
-        // clamping and normalization
-        double mmax = -1e20;
-        for (int i = 0; i < mel.nMel * mel.nLen; i++) {
-            if (mel.data[i] > mmax) {
-                mmax = mel.data[i];
-            }
+        float[] fftIn = scratch.fftIn;
+        float[] power = scratch.power;
+
+        // apply Hanning window
+        for (int j = 0; j < valid; j++) {
+            fftIn[j] = HANN[j] * samples[offset + j];
+        }
+        for (int j = valid; j < WHISPER_N_FFT; j++) {
+            fftIn[j] = 0.0f;
         }
 
-        mmax -= 8.0;
-        for (int i = 0; i < mel.nMel * mel.nLen; i++) {
-            if (mel.data[i] < mmax) {
-                mel.data[i] = (float) mmax;
-            }
-            mel.data[i] = (float) ((mel.data[i] + 4.0) / 4.0);
+        // FFT -> mag^2, folding the mirrored half of the spectrum into bins 1..N/2-1
+        fftPlan.powerSpectrum(fftIn, power, scratch.fftWork);
+        for (int j = 1; j < WHISPER_N_FFT / 2; j++) {
+            power[j] *= 2.0f;
         }
 
-        return mel.data;
-    }
+        // mel spectrogram over the non-zero span of each triangular filter
+        for (int m = 0; m < WHISPER_N_MEL; m++) {
+            int first = filters.spanStart[m];
+            int weight = filters.spanOffset[m];
+            int count = filters.spanLength[m];
+            double sum = 0.0;
+            for (int k = 0; k < count; k++) {
+                sum += power[first + k] * filters.spanWeights[weight + k];
+            }
 
-    private void dft(float[] input, float[] output) {
-        int inSize = input.length;
-        for (int k = 0; k < inSize; k++) {
-            float re = 0.0f;
-            float im = 0.0f;
-            for (int n = 0; n < inSize; n++) {
-                float angle = (float) (2 * Math.PI * k * n / inSize);
-                re += input[n] * cos(angle);
-                im -= input[n] * sin(angle);
+            if (sum < 1e-10) {
+                sum = 1e-10;
             }
-            output[k * 2 + 0] = re;
-            output[k * 2 + 1] = im;
-        }
-    }
 
-    private void fft(float[] input, float[] output) {
-        int inSize = input.length;
-        if (inSize == 1) {
-            output[0] = input[0];
-            output[1] = 0.0f;
-            return;
+            out[outIndex + m * outStride] = (float) log10(sum);
         }
+    }
 
-        if (inSize % 2 == 1) {
-            dft(input, output);
-            return;
-        }
+    FrameScratch newFrameScratch() {
+        return new FrameScratch(fftPlan);
+    }
 
-        float[] even = new float[inSize / 2];
-        float[] odd = new float[inSize / 2];
-
-        int indxEven = 0;
-        int indxOdd = 0;
-        for (int i = 0; i < inSize; i++) {
-            if (i % 2 == 0) {
-                even[indxEven] = input[i];
-                indxEven++;
-            } else {
-                odd[indxOdd] = input[i];
-                indxOdd++;
+    private FrameScratch scratchFor(int chunk) {
+        synchronized (frameScratch) {
+            FrameScratch scratch = frameScratch[chunk];
+            if (scratch == null) {
+                scratch = new FrameScratch(fftPlan);
+                frameScratch[chunk] = scratch;
             }
+            return scratch;
         }
+    }
+
+    // Per-thread buffers for one frame; reused across frames and calls
+    static class FrameScratch {
+        final float[] fftIn = new float[WHISPER_N_FFT];
+        final float[] power;
+        final float[] fftWork;
 
-        float[] evenFft = new float[inSize];
-        float[] oddFft = new float[inSize];
-
-        fft(even, evenFft);
-        fft(odd, oddFft);
-        for (int k = 0; k < inSize / 2; k++) {
-            float theta = (float) (2 * Math.PI * k / inSize);
-            float re = (float) cos(theta);
-            float im = (float) -sin(theta);
-            float reOdd = oddFft[2 * k + 0];
-            float imOdd = oddFft[2 * k + 1];
-            output[2 * k + 0] = evenFft[2 * k + 0] + re * reOdd - im * imOdd;
-            output[2 * k + 1] = evenFft[2 * k + 1] + re * imOdd + im * reOdd;
-            output[2 * (k + inSize / 2) + 0] = evenFft[2 * k + 0] - re * reOdd + im * imOdd;
-            output[2 * (k + inSize / 2) + 1] = evenFft[2 * k + 1] - re * imOdd - im * reOdd;
+        FrameScratch(RealFft plan) {
+            power = new float[plan.bins()];
+            fftWork = plan.newWorkBuffer();
         }
     }
 
@@ -347,13 +286,71 @@ public class WhisperUtil {
         // Vocab types
         final int nVocabEnglish = 51864;       // for english only vocab
         final int nVocabMultilingual = 51865;  // for multilingual vocab
-        Map<Integer, String> tokenToWord = new HashMap<>();
+        int nVocabAdditional = nVocabEnglish;
+        CompiledVocab words;
+
+        String getWord(int token) {
+            if (words != null && token >= 0 && token < words.size()) {
+                return words.token(token);
+            }
+            if (token < 0 || token >= nVocabAdditional) {
+                return null;
+            }
+            if (token > tokenBEG) {
+                return "[_TT_" + (token - tokenBEG) + "]";
+            } else if (token == tokenEOT) {
+                return "[_EOT_]";
+            } else if (token == tokenSOT) {
+                return "[_SOT_]";
+            } else if (token == tokenPREV) {
+                return "[_PREV_]";
+            } else if (token == tokenNOT) {
+                return "[_NOT_]";
+            } else if (token == tokenBEG) {
+                return "[_BEG_]";
+            }
+            return "[_extra_token_" + token + "]";
+        }
     }
 
     private static class WhisperFilter {
         int nMel = 0;
         int nFft = 0;
-        float[] data;
+        // [nMel][nFft], mapped from the compiled vocab; only read to build the spans
+        FloatBuffer data;
+
+        // Sparse form: each triangular filter keeps only its non-zero bins
+        int[] spanStart;
+        int[] spanLength;
+        int[] spanOffset;
+        float[] spanWeights;
+
+        void buildSpans() {
+            spanStart = new int[nMel];
+            spanLength = new int[nMel];
+            spanOffset = new int[nMel];
+            int total = 0;
+            for (int m = 0; m < nMel; m++) {
+                int first = -1;
+                int last = -1;
+                for (int k = 0; k < nFft; k++) {
+                    if (data.get(m * nFft + k) != 0.0f) {
+                        if (first < 0) first = k;
+                        last = k;
+                    }
+                }
+                spanStart[m] = Math.max(first, 0);
+                spanLength[m] = first < 0 ? 0 : last - first + 1;
+                spanOffset[m] = total;
+                total += spanLength[m];
+            }
+            spanWeights = new float[total];
+            for (int m = 0; m < nMel; m++) {
+                for (int k = 0; k < spanLength[m]; k++) {
+                    spanWeights[spanOffset[m] + k] = data.get(m * nFft + spanStart[m] + k);
+                }
+            }
+        }
     }
 
     private static class WhisperMel {
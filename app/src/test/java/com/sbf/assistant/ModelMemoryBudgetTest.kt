@@ -0,0 +1,80 @@
+package com.sbf.assistant
+
+import android.content.ComponentCallbacks2
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ModelMemoryBudgetTest {
+
+    private val mb = 1024L * 1024L
+    private val budget = ModelMemoryBudget(2048 * mb)
+
+    private fun resident(name: String, sizeMb: Long, lastUsedMs: Long, loadMs: Long = 0) =
+        ModelMemoryBudget.Resident(name, sizeMb * mb, lastUsedMs, loadMs)
+
+    @Test
+    fun admitsWithoutEvictionWhenItFits() {
+        val loaded = listOf(resident("whisper", 150, 0))
+        assertEquals(emptyList<ModelMemoryBudget.Resident>(),
+            budget.victimsFor(1000 * mb, loaded, 4096 * mb, 1_000))
+    }
+
+    @Test
+    fun refusesModelsLargerThanTheBudget() {
+        assertNull(budget.victimsFor(3000 * mb, emptyList(), 8192 * mb, 0))
+        // Free system memory caps the budget as well
+        assertNull(budget.victimsFor(1000 * mb, listOf(resident("a", 200, 0)), 500 * mb, 0))
+    }
+
+    @Test
+    fun evictsModelsThatAreQuickToReloadFirst() {
+        val now = 10_000L
+        // Same size and idle time; the GPU model took far longer to compile and load
+        val cheap = resident("cpu.tflite", 800, now, loadMs = 2_000)
+        val costly = resident("gpu.tflite", 800, now, loadMs = 20_000)
+        val victims = budget.victimsFor(1000 * mb, listOf(costly, cheap), 8192 * mb, now)
+        assertEquals(listOf("cpu.tflite"), victims?.map { it.filename })
+    }
+
+    @Test
+    fun longIdleOutweighsReloadCost() {
+        val now = 30 * 60_000L
+        val stale = resident("stale.task", 800, 0, loadMs = 20_000)
+        val fresh = resident("fresh.tflite", 800, now, loadMs = 4_000)
+        val victims = budget.victimsFor(1000 * mb, listOf(fresh, stale), 8192 * mb, now)
+        assertEquals(listOf("stale.task"), victims?.map { it.filename })
+    }
+
+    @Test
+    fun modelsInUseAreNeverEvicted() {
+        val now = 30 * 60_000L
+        // The stale model would go first, but it is running a generation
+        val busy = resident("busy.tflite", 800, 0).copy(pinned = true)
+        val idle = resident("idle.task", 800, now)
+        val victims = budget.victimsFor(1000 * mb, listOf(busy, idle), 8192 * mb, now)
+        assertEquals(listOf("idle.task"), victims?.map { it.filename })
+        // Its memory still counts, so a model that only fits without it is refused
+        assertNull(budget.victimsFor(1500 * mb, listOf(busy, idle), 8192 * mb, now))
+        assertEquals(listOf("idle.task"), budget.evictDownTo(0, listOf(busy, idle), now).map { it.filename })
+    }
+
+    @Test
+    fun trimLevelsReleaseProgressively() {
+        @Suppress("DEPRECATION")
+        val levels = listOf(
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW,
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+        ).map { budget.trimTarget(it)!! }
+        assertTrue(levels.zipWithNext().all { (a, b) -> a > b })
+        assertNull(budget.trimTarget(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN))
+        @Suppress("DEPRECATION")
+        assertEquals(0L, budget.trimTarget(ComponentCallbacks2.TRIM_MEMORY_COMPLETE))
+
+        val loaded = listOf(resident("a", 600, 0), resident("b", 600, 5_000), resident("c", 600, 9_000))
+        val victims = budget.evictDownTo(budget.trimTarget(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)!!, loaded, 10_000)
+        assertEquals(listOf("a", "b"), victims.map { it.filename })
+    }
+}
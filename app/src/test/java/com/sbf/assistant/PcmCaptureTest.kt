@@ -0,0 +1,74 @@
+package com.sbf.assistant
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class PcmCaptureTest {
+
+    // Little-endian 16-bit PCM
+    private fun pcm(vararg samples: Int): ByteArray {
+        val bytes = ByteArray(samples.size * 2)
+        samples.forEachIndexed { i, sample ->
+            bytes[i * 2] = (sample and 0xFF).toByte()
+            bytes[i * 2 + 1] = ((sample shr 8) and 0xFF).toByte()
+        }
+        return bytes
+    }
+
+    private fun PcmCapture.Recording.values() = samples.copyOf(length)
+
+    @Test
+    fun convertsPcmToFloats() {
+        val capture = PcmCapture()
+        capture.reset()
+        val bytes = pcm(0, 16384, -32768, 32767)
+        capture.appendPcm16(bytes, bytes.size)
+        val recording = capture.finish()!!
+        assertArrayEquals(floatArrayOf(0f, 0.5f, -1f, 32767 / 32768f), recording.values(), 0f)
+    }
+
+    @Test
+    fun growsUntilFullThenKeepsTheLatestAudio() {
+        val capture = PcmCapture(maxSamples = 8, initialSamples = 2)
+        capture.reset()
+        for (i in 1..11) {
+            val bytes = pcm(i * 100)
+            capture.appendPcm16(bytes, bytes.size)
+        }
+        val recording = capture.finish()!!
+        assertEquals(8, recording.length)
+        assertArrayEquals((4..11).map { it * 100 / 32768f }.toFloatArray(), recording.values(), 0f)
+    }
+
+    @Test
+    fun recycledBufferIsReused() {
+        val capture = PcmCapture(maxSamples = 16, initialSamples = 4)
+        capture.reset()
+        val first = pcm(1, 2, 3, 4, 5, 6)
+        capture.appendPcm16(first, first.size)
+        val recording = capture.finish()!!
+        capture.recycle(recording)
+
+        capture.reset()
+        val second = pcm(7)
+        capture.appendPcm16(second, second.size)
+        val next = capture.finish()!!
+        assertSame(recording.samples, next.samples)
+        assertArrayEquals(floatArrayOf(7 / 32768f), next.values(), 0f)
+    }
+
+    @Test
+    fun emptyOrStoppedCaptureYieldsNothing() {
+        val capture = PcmCapture()
+        assertNull(capture.finish())
+        capture.reset()
+        assertNull(capture.finish())
+        // Audio arriving after the capture ended is dropped
+        val late = pcm(1, 2)
+        capture.appendPcm16(late, late.size)
+        assertNull(capture.finish())
+    }
+}
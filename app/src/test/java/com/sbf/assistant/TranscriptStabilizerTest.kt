@@ -0,0 +1,90 @@
+package com.sbf.assistant
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class TranscriptStabilizerTest {
+
+    @Test
+    fun firstHypothesisIsOnlyTail() {
+        val stabilizer = TranscriptStabilizer()
+        val update = stabilizer.onHypothesis(" hello world")
+        assertEquals("", update.committed)
+        assertEquals("hello world", update.tail)
+        assertEquals(-1L, update.settledEnd)
+    }
+
+    @Test
+    fun agreedPrefixIsCommittedOnce() {
+        val stabilizer = TranscriptStabilizer()
+        stabilizer.onHypothesis("hello world how")
+        val second = stabilizer.onHypothesis("hello world, who are")
+        assertEquals("hello world,", second.committed)
+        assertEquals("who are", second.tail)
+
+        val third = stabilizer.onHypothesis("Hello world who are you")
+        assertEquals("who are", third.committed)
+        assertEquals("you", third.tail)
+        assertEquals("hello world, who are", stabilizer.committedText)
+    }
+
+    @Test
+    fun revisedCommittedWordsAreNotReemitted() {
+        val stabilizer = TranscriptStabilizer()
+        stabilizer.onHypothesis("turn on the light")
+        stabilizer.onHypothesis("turn on the lights please")
+        val update = stabilizer.onHypothesis("turn off the lights please")
+        assertEquals("", update.committed)
+        assertEquals("lights please", update.tail)
+        assertEquals("turn on the", stabilizer.committedText)
+    }
+
+    @Test
+    fun passWhoseWordsAreAllCommittedIsSettled() {
+        val stabilizer = TranscriptStabilizer()
+        assertEquals(-1L, stabilizer.onHypothesis("good", 16_000).settledEnd)
+        val update = stabilizer.onHypothesis("good morning", 32_000)
+        assertEquals("good", update.committed)
+        assertEquals(16_000L, update.settledEnd)
+        // The current pass is never settled, even when it repeats the previous one
+        assertEquals(32_000L, stabilizer.onHypothesis("good morning", 48_000).settledEnd)
+        assertEquals(-1L, stabilizer.onHypothesis("", 64_000).settledEnd)
+    }
+
+    @Test
+    fun commitsTheCommonPrefixOfTheLastPasses() {
+        val stabilizer = TranscriptStabilizer(agreement = 3)
+        stabilizer.onHypothesis("set a timer for")
+        assertEquals("", stabilizer.onHypothesis("set a timer four").committed)
+        val third = stabilizer.onHypothesis("set a timer for ten")
+        assertEquals("set a timer", third.committed)
+        assertEquals("for ten", third.tail)
+        // "four" still disagrees until it drops out of the last three passes
+        assertEquals("", stabilizer.onHypothesis("set a timer for ten minutes").committed)
+        assertEquals("for ten", stabilizer.onHypothesis("set a timer for ten minutes").committed)
+    }
+
+    @Test
+    fun settledAudioIsDroppedWithItsWords() {
+        val stabilizer = TranscriptStabilizer()
+        stabilizer.onHypothesis("call mom", 16_000)
+        assertEquals(16_000L, stabilizer.onHypothesis("call mom now", 32_000).settledEnd)
+        stabilizer.onSettledDiscarded()
+        // The window now starts after "call mom"
+        assertEquals("", stabilizer.onHypothesis("now please", 40_000).committed)
+        assertEquals("now please", stabilizer.onHypothesis("now please", 48_000).committed)
+        assertEquals("call mom now please", stabilizer.committedText)
+    }
+
+    @Test
+    fun windowAdvanceStartsNewAgreement() {
+        val stabilizer = TranscriptStabilizer()
+        stabilizer.onHypothesis("one two")
+        stabilizer.onHypothesis("one two")
+        stabilizer.onWindowAdvanced()
+        assertEquals("", stabilizer.onHypothesis("three").committed)
+        assertEquals("three", stabilizer.onHypothesis("three four").committed)
+        assertEquals("four", stabilizer.finish(null))
+        assertEquals("one two three four", stabilizer.committedText)
+    }
+}
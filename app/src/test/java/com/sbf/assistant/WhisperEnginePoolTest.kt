@@ -0,0 +1,101 @@
+package com.sbf.assistant
+
+import com.sbf.assistant.llm.InferenceScheduler.Priority
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class WhisperEnginePoolTest {
+
+    private val created = AtomicInteger()
+    private val destroyed = Collections.synchronizedList(mutableListOf<Int>())
+
+    private fun pool(name: String, maxEngines: Int, canGrow: (Int) -> Boolean = { true }) =
+        WhisperEnginePool(
+            lanePrefix = name,
+            maxEngines = maxEngines,
+            createEngine = { index -> created.incrementAndGet(); index },
+            destroyEngine = { destroyed.add(it) },
+            canGrow = canGrow
+        )
+
+    @Test
+    fun busyEngineMakesRoomForASecond() {
+        val pool = pool("test-pool-grow", maxEngines = 2)
+        val release = CountDownLatch(1)
+        val running = CountDownLatch(2)
+        val first = pool.submit(Priority.VOICE, "dictation") { engine -> running.countDown(); release.await(); engine }
+        val second = pool.submit(Priority.VOICE, "turn") { engine -> running.countDown(); release.await(); engine }
+        assertTrue("Both requests should run at once", running.await(5, TimeUnit.SECONDS))
+        release.countDown()
+        assertEquals(setOf(0, 1), setOf(first.get().value, second.get().value))
+        assertEquals(2, pool.stats().engines)
+        assertEquals(2L, pool.stats().completed)
+        pool.close()
+        assertEquals(2, destroyed.size)
+    }
+
+    @Test
+    fun waitingRequestsRunMostUrgentFirst() {
+        val pool = pool("test-pool-order", maxEngines = 1)
+        pool.prepare()
+        val release = CountDownLatch(1)
+        val started = Collections.synchronizedList(mutableListOf<String>())
+        val holder = pool.submit(Priority.CHAT, "holder") { release.await() }
+        val waiting = listOf(Priority.BACKGROUND to "warmup", Priority.CHAT to "test", Priority.VOICE to "turn")
+            .map { (priority, label) -> pool.submit(priority, label) { started.add(label) } }
+        assertEquals(3, pool.stats().queued)
+        Thread.sleep(20)
+        release.countDown()
+        holder.get()
+        waiting.forEach { it.get(5, TimeUnit.SECONDS) }
+        assertEquals(listOf("turn", "test", "warmup"), started)
+        assertEquals(1, created.get())
+        // The queued requests waited for the holder; the wait is reported apart from inference
+        assertTrue(waiting.last().get().waitMs >= 20)
+        assertTrue(pool.stats().maxWaitMs >= 20)
+        pool.close()
+    }
+
+    @Test
+    fun growthStopsWithoutHeadroom() {
+        val pool = pool("test-pool-headroom", maxEngines = 3, canGrow = { engines -> engines < 1 })
+        val release = CountDownLatch(1)
+        val first = pool.submit(Priority.VOICE, "a") { release.await() }
+        val second = pool.submit(Priority.VOICE, "b") { }
+        Thread.sleep(50)
+        assertEquals(1, pool.stats().engines)
+        assertEquals(1, pool.stats().queued)
+        release.countDown()
+        first.get()
+        second.get(5, TimeUnit.SECONDS)
+        pool.close()
+    }
+
+    @Test
+    fun closeFailsQueuedRequests() {
+        val pool = pool("test-pool-close", maxEngines = 1)
+        pool.prepare()
+        val release = CountDownLatch(1)
+        val holder = pool.submit(Priority.VOICE, "holder") { release.await() }
+        val queued = pool.submit(Priority.CHAT, "queued") { }
+        pool.close()
+        try {
+            queued.get(5, TimeUnit.SECONDS)
+            fail("Queued request should fail once the pool closes")
+        } catch (e: ExecutionException) {
+            // Expected
+        }
+        release.countDown()
+        holder.get()
+        // The busy engine goes once its request ends
+        Thread.sleep(50)
+        assertEquals(listOf(0), destroyed)
+    }
+}
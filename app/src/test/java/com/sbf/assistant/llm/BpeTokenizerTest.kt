@@ -0,0 +1,186 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * Local unit tests for [BpeTokenizer] on vocabs written straight to the compiled format,
+ * plus a rough encode throughput benchmark with and without the word cache (printed to
+ * stdout, only run with -Pbenchmark).
+ */
+class BpeTokenizerTest {
+
+    private fun compile(
+        tokens: List<ByteArray>,
+        merges: List<Pair<Int, Int>>,
+        special: List<Int> = emptyList(),
+        flags: Int = CompiledVocab.FLAG_BYTE_LEVEL
+    ): CompiledVocab {
+        val dir = Files.createTempDirectory("bpe").toFile().also { it.deleteOnExit() }
+        val target = File(dir, "tokenizer.json" + CompiledVocab.EXTENSION)
+        val pairs = merges.flatMap { listOf(it.first, it.second) }.toIntArray()
+        CompiledVocab.write(target, null, 0, 0, tokens, null, pairs, special.toIntArray(), flags)
+        return CompiledVocab.open(target)
+    }
+
+    private fun decode(vocab: CompiledVocab, ids: IntArray): String {
+        val decoder = Utf8StreamDecoder()
+        val out = StringBuilder()
+        for (id in ids) {
+            val bytes = ByteArray(vocab.byteLength(id))
+            vocab.bytes(id, bytes, 0)
+            out.append(decoder.append(bytes, 0, bytes.size))
+        }
+        return out.append(decoder.flush()).toString()
+    }
+
+    @Test
+    fun appliesMergesByRank() {
+        val tokens = listOf("a", "b", "c", "bc", "ab").map { it.toByteArray() }
+        // (b, c) outranks (a, b), so "abc" is a + bc, not ab + c
+        val vocab = compile(tokens, listOf(1 to 2, 0 to 1))
+        assertArrayEquals(intArrayOf(0, 3), BpeTokenizer(vocab).encode("abc"))
+    }
+
+    @Test
+    fun preTokenizerMatchesGpt2Pattern() {
+        val pattern = Regex("'(?:[sdmt]|ll|ve|re)| ?\\p{L}+| ?\\p{N}+| ?[^\\s\\p{L}\\p{N}]+|\\s+(?!\\S)|\\s+")
+        val samples = listOf(
+            "Hello world, it's 2024!",
+            "  leading spaces\n\n  and\tTabs   ",
+            "they'll we've I'm don't 'quoted'",
+            "x1 99bottles café—ñandú 日本語 🙂🙂",
+            "trailing \n"
+        )
+        for (text in samples) {
+            val expected = pattern.findAll(text).map { it.value }.toList()
+            val actual = mutableListOf<String>()
+            var start = 0
+            while (start < text.length) {
+                val end = BpeTokenizer.nextWordEnd(text, start)
+                actual.add(text.substring(start, end))
+                start = end
+            }
+            assertEquals(text, expected, actual)
+        }
+    }
+
+    @Test
+    fun byteLevelRoundTripsAnyText() {
+        val (vocab, _) = trainedVocab(200)
+        val tokenizer = BpeTokenizer(vocab)
+        val text = "The café served ñandú stew — 日本語 too! 🙂\nDone."
+        val ids = tokenizer.encode(text)
+        assertEquals(text, decode(vocab, ids))
+        assertTrue(ids.size < text.toByteArray().size)
+    }
+
+    @Test
+    fun specialTokensAreMatchedVerbatim() {
+        val (vocab, specials) = trainedVocab(50)
+        val ids = BpeTokenizer(vocab).encode("<|im_start|>user\nhello<|im_end|>")
+        assertEquals(specials[0], ids.first())
+        assertEquals(specials[1], ids.last())
+    }
+
+    @Test
+    fun repeatedWordsHitTheCache() {
+        val (vocab, _) = trainedVocab(100)
+        val tokenizer = BpeTokenizer(vocab)
+        val first = tokenizer.encode(CORPUS)
+        val misses = tokenizer.cacheMisses
+        val second = tokenizer.encode(CORPUS)
+        assertArrayEquals(first, second)
+        assertEquals(misses, tokenizer.cacheMisses)
+        assertTrue(tokenizer.cacheHits > 0)
+    }
+
+    @Test
+    fun sentencePieceStyleUsesMarkerAndByteFallback() {
+        val names = mutableListOf("<unk>", "▁", "a", "b", "▁a", "▁ab")
+        for (b in 0 until 256) names.add("<0x%02X>".format(b))
+        val vocab = compile(
+            names.map { it.toByteArray() },
+            listOf(1 to 2, 4 to 3),
+            flags = CompiledVocab.FLAG_PREFIX_SPACE
+        )
+        val tokenizer = BpeTokenizer(vocab)
+        assertArrayEquals(intArrayOf(5, 5), tokenizer.encode("ab ab"))
+        // é has no token: C3 A9 byte-fallback tokens
+        assertArrayEquals(intArrayOf(4, 6 + 0xC3, 6 + 0xA9), tokenizer.encode("aé"))
+        assertEquals(0xA9, tokenizer.byteValue(6 + 0xA9))
+    }
+
+    @Test
+    fun benchmarkEncode() {
+        assumeTrue("benchmark, run with -Pbenchmark", java.lang.Boolean.getBoolean("benchmark"))
+        val (vocab, _) = trainedVocab(400)
+        val text = CORPUS.repeat(20)
+        for ((label, cacheSize) in listOf("no cache" to 0, "cache" to BpeTokenizer.DEFAULT_CACHE_SIZE)) {
+            val tokenizer = BpeTokenizer(vocab, cacheSize)
+            repeat(50) { tokenizer.encode(text) }
+            val runs = 50
+            val start = System.nanoTime()
+            var tokens = 0
+            repeat(runs) { tokens = tokenizer.encode(text).size }
+            val nsPerChar = (System.nanoTime() - start) / runs / text.length
+            println("BPE encode ($label): ${text.length} chars -> $tokens tokens, $nsPerChar ns/char")
+        }
+    }
+
+    // Byte-level vocab: 256 byte tokens plus merges learned from CORPUS, then two specials
+    private fun trainedVocab(mergeCount: Int): Pair<CompiledVocab, List<Int>> {
+        val tokens = (0 until 256).map { byteArrayOf(it.toByte()) }.toMutableList()
+        val merges = mutableListOf<Pair<Int, Int>>()
+        var words = Regex(" ?\\S+").findAll(CORPUS).map { m ->
+            m.value.toByteArray().map { it.toInt() and 0xFF }
+        }.toList()
+
+        repeat(mergeCount) {
+            val counts = HashMap<Pair<Int, Int>, Int>()
+            for (word in words) {
+                for (i in 0 until word.size - 1) {
+                    val pair = word[i] to word[i + 1]
+                    counts[pair] = (counts[pair] ?: 0) + 1
+                }
+            }
+            val best = counts.maxByOrNull { it.value }?.key ?: return@repeat
+            val id = tokens.size
+            tokens.add(tokens[best.first] + tokens[best.second])
+            merges.add(best)
+            words = words.map { word ->
+                val out = ArrayList<Int>(word.size)
+                var i = 0
+                while (i < word.size) {
+                    if (i + 1 < word.size && word[i] == best.first && word[i + 1] == best.second) {
+                        out.add(id)
+                        i += 2
+                    } else {
+                        out.add(word[i++])
+                    }
+                }
+                out
+            }
+        }
+
+        val specials = listOf(tokens.size, tokens.size + 1)
+        tokens.add("<|im_start|>".toByteArray())
+        tokens.add("<|im_end|>".toByteArray())
+        return compile(tokens, merges, specials) to specials
+    }
+
+    companion object {
+        private val CORPUS = """
+            You are a helpful assistant running on the device. When the user asks for the
+            weather, call the get_weather tool with the city name. When the user asks to set
+            a timer, call the set_timer tool with the duration in seconds. Answer briefly and
+            in the language the user writes in. The tools return JSON objects with a status
+            field and a result field; read the result field and explain it to the user.
+        """.trimIndent()
+    }
+}
@@ -0,0 +1,77 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Files
+
+/**
+ * Local unit tests for [CompiledVocab]: conversion from both source formats and lookups
+ * against the mapped file.
+ */
+class CompiledVocabTest {
+
+    private fun tempDir(): File = Files.createTempDirectory("cvoc").toFile().also { it.deleteOnExit() }
+
+    @Test
+    fun textVocabRoundTrips() {
+        val source = File(tempDir(), "vocab.txt")
+        source.writeText("<unk>\t0\n<s>\t0\n</s>\t0\n\n▁hello\t-1.5\nñandú -2.25\n▁hello\t-3\n")
+
+        val vocab = CompiledVocab.openOrCompile(source, CompiledVocab::compileText)!!
+        assertTrue(CompiledVocab.compiledFileFor(source).exists())
+        assertEquals(6, vocab.size())
+        assertEquals("<s>", vocab.token(1))
+        assertEquals("ñandú", vocab.token(4))
+        assertEquals(4, vocab.id("ñandú"))
+        // Duplicates resolve to the last id
+        assertEquals(5, vocab.id("▁hello"))
+        assertEquals(-1, vocab.id("missing"))
+        assertNull(vocab.token(6))
+        assertTrue(vocab.hasScores())
+        assertEquals(-2.25f, vocab.score(4), 0f)
+        assertEquals(0, vocab.filters().remaining())
+    }
+
+    @Test
+    fun whisperVocabKeepsFilters() {
+        val filters = floatArrayOf(0f, 0.5f, 1f, 0f, 0f, 0.25f)
+        val words = listOf("!", " the", "é")
+        val body = ByteBuffer.allocate(1024).order(ByteOrder.nativeOrder())
+        body.putInt(0x5553454e).putInt(2).putInt(3)
+        filters.forEach { body.putFloat(it) }
+        body.putInt(words.size)
+        words.forEach {
+            val bytes = it.toByteArray()
+            body.putInt(bytes.size).put(bytes)
+        }
+        val source = File(tempDir(), "filters_vocab_en.bin")
+        source.writeBytes(body.array().copyOf(body.position()))
+
+        val vocab = CompiledVocab.openOrCompile(source, CompiledVocab::compileWhisper)!!
+        assertEquals(2, vocab.filterMel())
+        assertEquals(3, vocab.filterFft())
+        val mapped = FloatArray(6).also { vocab.filters().get(it) }
+        assertTrue(filters.contentEquals(mapped))
+        assertEquals(" the", vocab.token(1))
+        assertEquals(2, vocab.id("é"))
+        assertFalse(vocab.hasScores())
+    }
+
+    @Test
+    fun rejectsUnknownSourceAndRebuildsCorruptFile() {
+        val dir = tempDir()
+        val bad = File(dir, "bad.bin").apply { writeBytes(ByteArray(16)) }
+        assertNull(CompiledVocab.openOrCompile(bad, CompiledVocab::compileWhisper))
+
+        val source = File(dir, "vocab.txt").apply { writeText("a\nb\n") }
+        CompiledVocab.compiledFileFor(source).writeBytes(ByteArray(8))
+        val vocab = CompiledVocab.openOrCompile(source, CompiledVocab::compileText)!!
+        assertEquals(1, vocab.id("b"))
+    }
+}
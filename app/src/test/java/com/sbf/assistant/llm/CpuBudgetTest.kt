@@ -0,0 +1,85 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class CpuBudgetTest {
+
+    private fun topology(vararg freqs: Long) = CpuBudget.Topology.fromFrequencies(freqs, 8)
+
+    @Test
+    fun countsCoresAboveTheSlowestCluster() {
+        // 4 little + 3 big + 1 prime
+        val triCluster = topology(1_800_000, 1_800_000, 1_800_000, 1_800_000, 2_400_000, 2_400_000, 2_400_000, 3_000_000)
+        assertEquals(4, triCluster.performanceCores)
+        assertTrue(triCluster.isHeterogeneous)
+
+        // 6 little + 2 big
+        assertEquals(2, topology(1_700_000, 1_700_000, 1_700_000, 1_700_000, 1_700_000, 1_700_000, 2_200_000, 2_200_000).performanceCores)
+
+        val uniform = topology(2_000_000, 2_000_000, 2_000_000, 2_000_000)
+        assertEquals(4, uniform.performanceCores)
+        assertFalse(uniform.isHeterogeneous)
+    }
+
+    @Test
+    fun unknownFrequenciesFallBackToHalfTheCores() {
+        assertEquals(4, topology(0, 0, 0, 0).performanceCores)
+        assertEquals(4, CpuBudget.Topology.fromFrequencies(LongArray(0), 8).performanceCores)
+        assertEquals(1, CpuBudget.Topology.fromFrequencies(LongArray(0), 1).performanceCores)
+        // Cores without a reading are not counted as fast
+        assertEquals(1, topology(0, 1_000_000, 2_000_000).performanceCores)
+    }
+
+    @Test
+    fun readsSysfsLayout() {
+        val root = Files.createTempDirectory("cpu").toFile()
+        try {
+            listOf(1_800_000, 1_800_000, 2_800_000).forEachIndexed { i, freq ->
+                val dir = File(root, "cpu$i/cpufreq").apply { mkdirs() }
+                File(dir, "cpuinfo_max_freq").writeText("$freq\n")
+            }
+            File(root, "cpufreq").mkdirs()
+            val topology = CpuBudget.Topology.read(root, 8)
+            assertEquals(3, topology.coreCount)
+            assertEquals(1, topology.performanceCores)
+        } finally {
+            root.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun splitsPerformanceCoresBetweenActiveModels() {
+        val budget = CpuBudget(topology(1_000_000, 1_000_000, 1_000_000, 1_000_000, 2_000_000, 2_000_000, 2_000_000, 2_000_000))
+        assertEquals(4, budget.threadsPerModel())
+        assertEquals(4, budget.acquire(CpuBudget.OWNER_LLM))
+        // A draft model shares the target's slot
+        assertEquals(4, budget.acquire(CpuBudget.OWNER_LLM))
+        assertEquals(2, budget.acquire(CpuBudget.OWNER_WHISPER))
+        assertEquals(2, budget.threadsPerModel())
+
+        budget.release(CpuBudget.OWNER_LLM)
+        assertEquals(2, budget.activeOwners)
+        budget.release(CpuBudget.OWNER_LLM)
+        assertEquals(1, budget.activeOwners)
+        assertEquals(4, budget.threadsPerModel())
+        budget.release(CpuBudget.OWNER_WHISPER)
+        budget.release(CpuBudget.OWNER_WHISPER)
+        assertEquals(0, budget.activeOwners)
+    }
+
+    @Test
+    fun pooledEnginesSplitTheirOwnersShare() {
+        val budget = CpuBudget(topology(1_000_000, 1_000_000, 2_000_000, 2_000_000, 2_000_000, 2_000_000, 2_000_000, 2_000_000))
+        // Two engines of a pool of two fill the six performance cores, not twice over
+        assertEquals(3, budget.acquire(CpuBudget.OWNER_WHISPER, 2))
+        assertEquals(3, budget.acquire(CpuBudget.OWNER_WHISPER, 2))
+        assertEquals(1, budget.activeOwners)
+        // Never below one thread
+        assertEquals(1, budget.acquire(CpuBudget.OWNER_WHISPER, 10))
+    }
+}
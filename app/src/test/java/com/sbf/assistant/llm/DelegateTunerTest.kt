@@ -0,0 +1,48 @@
+package com.sbf.assistant.llm
+
+import com.sbf.assistant.llm.DelegateTuner.Backend
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class DelegateTunerTest {
+
+    @Test
+    fun picksTheFastestBackend() {
+        assertEquals(
+            Backend.GPU_FP16,
+            DelegateTuner.pickFastest(mapOf(Backend.CPU to 40f, Backend.GPU_FP16 to 12f, Backend.GPU_FP32 to 20f))
+        )
+        assertEquals(Backend.NNAPI, DelegateTuner.pickFastest(mapOf(Backend.GPU_FP32 to 30f, Backend.NNAPI to 25f)))
+        assertNull(DelegateTuner.pickFastest(emptyMap()))
+    }
+
+    @Test
+    fun keepsTheCpuUnlessAnAcceleratorIsClearlyFaster() {
+        assertEquals(Backend.CPU, DelegateTuner.pickFastest(mapOf(Backend.CPU to 10f, Backend.GPU_FP16 to 9.5f)))
+        assertEquals(Backend.GPU_FP16, DelegateTuner.pickFastest(mapOf(Backend.CPU to 10f, Backend.GPU_FP16 to 8f)))
+    }
+
+    @Test
+    fun modelKeyFollowsContentNotName() {
+        val dir = Files.createTempDirectory("models").toFile()
+        try {
+            val bytes = ByteArray(3 shl 20) { (it * 31).toByte() }
+            val a = File(dir, "a.tflite").apply { writeBytes(bytes) }
+            val b = File(dir, "b.tflite").apply { writeBytes(bytes) }
+            assertEquals(DelegateTuner.modelKey(a), DelegateTuner.modelKey(b))
+
+            bytes[bytes.size - 1] = 1
+            b.writeBytes(bytes)
+            assertNotEquals(DelegateTuner.modelKey(a), DelegateTuner.modelKey(b))
+
+            val small = File(dir, "small.tflite").apply { writeBytes(byteArrayOf(1, 2, 3)) }
+            assertEquals(32, DelegateTuner.modelKey(small).length)
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+}
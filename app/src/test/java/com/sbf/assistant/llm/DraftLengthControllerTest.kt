@@ -0,0 +1,42 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class DraftLengthControllerTest {
+
+    @Test
+    fun growsWhileDraftsAreAccepted() {
+        val controller = DraftLengthController(1, 6, 3)
+        repeat(20) { controller.record(controller.draftLength, controller.draftLength) }
+        assertEquals(6, controller.draftLength)
+        assertEquals(1.0f, controller.acceptanceRate, 0f)
+        assertTrue(controller.isWorthwhile)
+    }
+
+    @Test
+    fun shrinksAndGivesUpWhenDraftsAreRejected() {
+        val controller = DraftLengthController(1, 6, 4)
+        repeat(3) { controller.record(controller.draftLength, 0) }
+        // Too few rounds to give up yet
+        assertTrue(controller.isWorthwhile)
+        repeat(10) { controller.record(controller.draftLength, 0) }
+        assertEquals(1, controller.draftLength)
+        assertFalse(controller.isWorthwhile)
+
+        controller.reset()
+        assertEquals(4, controller.draftLength)
+        assertTrue(controller.isWorthwhile)
+        assertEquals(0L, controller.proposedTokens)
+    }
+
+    @Test
+    fun holdsLengthAtModerateAcceptance() {
+        val controller = DraftLengthController(1, 8, 4)
+        repeat(20) { controller.record(4, 2) }
+        assertEquals(4, controller.draftLength)
+        assertEquals(0.5f, controller.acceptanceRate, 1e-6f)
+    }
+}
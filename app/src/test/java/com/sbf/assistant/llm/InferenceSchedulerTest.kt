@@ -0,0 +1,140 @@
+package com.sbf.assistant.llm
+
+import com.sbf.assistant.llm.InferenceScheduler.Priority
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.util.Collections
+
+class InferenceSchedulerTest {
+
+    private fun stats(lane: InferenceScheduler.Lane) = InferenceScheduler.stats().first { it.lane == lane.name }
+
+    @Test
+    fun waitingJobsStartMostUrgentFirst() = runBlocking {
+        val lane = InferenceScheduler.lane("test-order")
+        val release = CompletableDeferred<Unit>()
+        val started = Collections.synchronizedList(mutableListOf<String>())
+        val holder = launch {
+            InferenceScheduler.withPermit(lane, Priority.CHAT, "holder") { release.await() }
+        }
+        yield()
+        val jobs = listOf(
+            Priority.BACKGROUND to "summary",
+            Priority.CHAT to "chat",
+            Priority.VOICE to "voice",
+            Priority.CHAT to "chat2"
+        ).map { (priority, label) ->
+            launch { InferenceScheduler.withPermit(lane, priority, label) { started.add(label) } }
+        }
+        repeat(3) { yield() }
+        assertEquals(4, stats(lane).queueDepth)
+        assertEquals(Priority.CHAT, stats(lane).running)
+
+        release.complete(Unit)
+        holder.join()
+        jobs.forEach { it.join() }
+        assertEquals(listOf("voice", "chat", "chat2", "summary"), started)
+        assertEquals(5L, stats(lane).completed)
+        assertEquals(0, stats(lane).queueDepth)
+    }
+
+    @Test
+    fun backgroundJobYieldsItsLaneToVoice() = runBlocking {
+        val lane = InferenceScheduler.lane("test-preempt")
+        val generating = CompletableDeferred<Unit>()
+        val background = async {
+            try {
+                InferenceScheduler.withPermit(lane, Priority.BACKGROUND, "summary") { ticket ->
+                    generating.complete(Unit)
+                    while (true) {
+                        ticket.checkpoint()
+                        yield()
+                    }
+                }
+            } catch (e: InferenceScheduler.PreemptedException) {
+                "preempted"
+            }
+        }
+        generating.await()
+        val voice = InferenceScheduler.execute(lane, Priority.VOICE, "turn") { "spoken" }
+        assertEquals("spoken", voice)
+        assertEquals("preempted", background.await())
+        assertEquals(1L, stats(lane).preempted)
+    }
+
+    @Test
+    fun chatPausesWhileVoiceRunsOnAnotherLane() = runBlocking {
+        val chatLane = InferenceScheduler.lane("test-pause-chat")
+        val voiceLane = InferenceScheduler.lane("test-pause-voice")
+        val release = CompletableDeferred<Unit>()
+        val voiceRunning = CompletableDeferred<Unit>()
+        val voice = launch {
+            InferenceScheduler.withPermit(voiceLane, Priority.VOICE, "turn") {
+                voiceRunning.complete(Unit)
+                release.await()
+            }
+        }
+        voiceRunning.await()
+        val checkpointed = CompletableDeferred<Unit>()
+        val chat = launch {
+            InferenceScheduler.withPermit(chatLane, Priority.CHAT, "reply") { ticket ->
+                ticket.checkpoint()
+                checkpointed.complete(Unit)
+            }
+        }
+        repeat(5) { yield() }
+        assertFalse(checkpointed.isCompleted)
+        assertEquals(1L, stats(chatLane).pauses)
+
+        release.complete(Unit)
+        voice.join()
+        chat.join()
+        assertTrue(checkpointed.isCompleted)
+    }
+
+    @Test
+    fun backgroundWorkIsRefusedUnderMemoryPressure() = runBlocking {
+        val lane = InferenceScheduler.lane("test-admission")
+        val previous = InferenceScheduler.memoryProbe
+        InferenceScheduler.memoryProbe = InferenceScheduler.MemoryProbe { true }
+        try {
+            try {
+                InferenceScheduler.withPermit(lane, Priority.BACKGROUND, "warmup") { }
+                fail("Background job admitted under memory pressure")
+            } catch (e: InferenceScheduler.AdmissionException) {
+                // Expected
+            }
+            assertEquals("ok", InferenceScheduler.withPermit(lane, Priority.VOICE, "turn") { "ok" })
+            assertEquals(1L, stats(lane).rejected)
+        } finally {
+            InferenceScheduler.memoryProbe = previous
+        }
+    }
+
+    @Test
+    fun cancelledWaiterLeavesTheQueue() = runBlocking {
+        val lane = InferenceScheduler.lane("test-cancel")
+        val release = CompletableDeferred<Unit>()
+        val holder = launch {
+            InferenceScheduler.withPermit(lane, Priority.CHAT, "holder") { release.await() }
+        }
+        yield()
+        val waiter = launch { InferenceScheduler.withPermit(lane, Priority.CHAT, "waiter") { } }
+        yield()
+        assertEquals(1, stats(lane).queueDepth)
+        waiter.cancel()
+        waiter.join()
+        assertEquals(0, stats(lane).queueDepth)
+        release.complete(Unit)
+        holder.join()
+        assertEquals("next", InferenceScheduler.execute(lane, Priority.CHAT, "next") { "next" })
+    }
+}
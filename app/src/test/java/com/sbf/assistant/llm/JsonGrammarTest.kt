@@ -0,0 +1,144 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.FloatBuffer
+
+class JsonGrammarTest {
+
+    private val weatherArgs = JsonGrammar.Node.`object`(
+        listOf("location", "days"),
+        listOf(JsonGrammar.Node.string(), JsonGrammar.Node.integer()),
+        listOf("location")
+    )
+    private val timeArgs = JsonGrammar.Node.`object`(emptyList(), emptyList(), emptyList())
+
+    private fun toolGrammar(): JsonGrammar {
+        val call = JsonGrammar.Node.toolCall(listOf("get_weather", "get_time"), listOf(weatherArgs, timeArgs))
+        return JsonGrammar(
+            JsonGrammar.Node.`object`(
+                listOf("tool_calls"),
+                listOf(JsonGrammar.Node.array(call, 1)),
+                listOf("tool_calls")
+            )
+        )
+    }
+
+    private fun JsonGrammar.feed(text: String): Boolean {
+        val bytes = text.toByteArray()
+        return accept(bytes, 0, bytes.size)
+    }
+
+    private fun JsonGrammar.fits(text: String): Boolean {
+        val bytes = text.toByteArray()
+        return canAccept(bytes, 0, bytes.size)
+    }
+
+    @Test
+    fun acceptsValidToolCallByteByByte() {
+        val grammar = toolGrammar()
+        val text = """ {"tool_calls": [{"name":"get_weather","arguments":{"days":3,"location":"Montevideo \"UY\""}}]}"""
+        for (c in text) {
+            assertFalse(grammar.isComplete)
+            assertTrue("rejected '$c'", grammar.feed(c.toString()))
+        }
+        assertTrue(grammar.isComplete)
+        assertTrue(grammar.feed("\n"))
+        assertFalse(grammar.feed("x"))
+    }
+
+    @Test
+    fun argumentsFollowTheMatchedTool() {
+        val grammar = toolGrammar()
+        assertTrue(grammar.feed("""{"tool_calls":[{"name":"get_time","arguments":{"""))
+        // get_time takes no arguments
+        assertFalse(grammar.fits("\"location\""))
+        assertTrue(grammar.feed("}}, {\"name\":\"get_weather\",\"arguments\":{"))
+        assertTrue(grammar.fits("\"location\":\"x\"}"))
+        // location is required
+        assertFalse(grammar.fits("}"))
+        assertFalse(grammar.fits("\"days\":\"3\""))
+        assertFalse(grammar.fits("\"days\":3.5"))
+        assertTrue(grammar.fits("\"days\":-30,\"location\":\"x\"}}]}"))
+    }
+
+    @Test
+    fun rejectsUnknownNamesKeysAndOrder() {
+        val grammar = toolGrammar()
+        assertTrue(grammar.feed("""{"tool_calls":[{"""))
+        // Name comes first
+        assertFalse(grammar.fits("\"arguments\""))
+        assertFalse(grammar.fits("\"name\":\"get_news\""))
+        assertTrue(grammar.fits("\"name\":\"get_weather\""))
+        assertFalse(grammar.fits("\"name\":\"get_weather\",\"name\""))
+        // An empty tool_calls list is not a call
+        val empty = toolGrammar()
+        assertFalse(empty.fits("""{"tool_calls":[]"""))
+    }
+
+    @Test
+    fun freeTextIsNotConstrained() {
+        val grammar = toolGrammar()
+        assertTrue(grammar.feed("  "))
+        assertFalse(grammar.isConstraining)
+        assertTrue(grammar.feed("Hola, {no es JSON}"))
+        assertFalse(grammar.isConstraining)
+        assertFalse(grammar.isComplete)
+    }
+
+    @Test
+    fun anyValueAcceptsNestedJson() {
+        val grammar = JsonGrammar(JsonGrammar.Node.anyObject())
+        assertTrue(grammar.feed("""{"a":[1,-2.5e+3,true,null,{"b":"é\n"}],"c":false}"""))
+        assertTrue(grammar.isComplete)
+        val bad = JsonGrammar(JsonGrammar.Node.anyObject())
+        assertFalse(bad.fits("""{"a":tru}"""))
+        assertFalse(bad.fits("""{"a":01}"""))
+        assertFalse(bad.fits("""{"a":"\q"}"""))
+        assertFalse(bad.fits("{\"a\":1" + " ".repeat(40)))
+    }
+
+    @Test
+    fun maskKeepsOnlyFittingTokens() {
+        val tokens = listOf("", "{\"", "tool_calls", "\":", "hello", "{", "}", " ", "\"", "x", "{\"x")
+        val offsets = IntArray(tokens.size + 1)
+        val bytes = StringBuilder()
+        tokens.forEachIndexed { i, t ->
+            offsets[i] = bytes.length
+            bytes.append(t)
+        }
+        offsets[tokens.size] = bytes.length
+        val grammar = JsonGrammar(
+            JsonGrammar.Node.`object`(listOf("tool_calls"), listOf(JsonGrammar.Node.anyObject()), emptyList())
+        )
+        // Token 0 is end-of-sequence
+        val mask = GrammarMask(grammar, bytes.toString().toByteArray(), offsets, intArrayOf(0))
+        val logits = FloatBuffer.allocate(tokens.size)
+
+        // Before the output commits, only a token opening off-schema JSON is masked
+        assertTrue(mask.mask(logits))
+        assertEquals(listOf(10), (0 until tokens.size).filter { logits.get(it) == Float.NEGATIVE_INFINITY })
+        assertFalse(mask.accept(10))
+
+        assertTrue(mask.accept(1))
+        assertTrue(mask.mask(logits))
+        val allowed = (0 until tokens.size).filter { logits.get(it) != Float.NEGATIVE_INFINITY }
+        assertEquals(listOf(2), allowed)
+
+        assertTrue(mask.accept(2))
+        assertTrue(mask.accept(3))
+        assertFalse(mask.accept(4))
+        assertTrue(mask.accept(5))
+        assertTrue(mask.accept(6))
+        assertFalse(mask.isComplete)
+        assertTrue(mask.accept(6))
+        assertTrue(mask.isComplete)
+
+        val after = FloatBuffer.allocate(tokens.size)
+        assertTrue(mask.mask(after))
+        val allowedAfter = (0 until tokens.size).filter { after.get(it) != Float.NEGATIVE_INFINITY }
+        assertEquals(listOf(0, 7), allowedAfter)
+    }
+}
@@ -0,0 +1,62 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class KvSnapshotCacheTest {
+
+    private fun snapshot(vararg tokens: Int, bytesPerToken: Int = 10): KvSnapshot =
+        KvSnapshot(tokens, arrayOf(ByteBuffer.allocate(tokens.size * bytesPerToken)))
+
+    @Test
+    fun findsLongestMatchingPrefix() {
+        val cache = KvSnapshotCache(1000)
+        val short = snapshot(1, 2)
+        val long = snapshot(1, 2, 3, 4)
+        val other = snapshot(1, 5, 6)
+        cache.put(short)
+        cache.put(long)
+        cache.put(other)
+
+        val prompt = intArrayOf(1, 2, 3, 4, 9, 9)
+        assertSame(long, cache.findLongestPrefix(prompt, prompt.size))
+        // Only the first three tokens are valid, so the four-token snapshot no longer fits
+        assertSame(short, cache.findLongestPrefix(prompt, 3))
+        assertNull(cache.findLongestPrefix(intArrayOf(7, 2, 3), 3))
+        assertTrue(cache.contains(prompt, 4))
+        assertFalse(cache.contains(prompt, 3))
+    }
+
+    @Test
+    fun evictsLeastRecentlyUsedOverBudget() {
+        val cache = KvSnapshotCache(100)
+        val a = snapshot(1, 1, 1, 1)
+        val b = snapshot(2, 2, 2, 2)
+        assertTrue(cache.put(a))
+        assertTrue(cache.put(b))
+        // Touch a so b is the eldest
+        cache.findLongestPrefix(intArrayOf(1, 1, 1, 1), 4)
+
+        assertTrue(cache.put(snapshot(3, 3, 3)))
+        assertEquals(2, cache.size())
+        assertEquals(70L, cache.totalBytes)
+        assertTrue(cache.contains(intArrayOf(1, 1, 1, 1), 4))
+        assertFalse(cache.contains(intArrayOf(2, 2, 2, 2), 4))
+    }
+
+    @Test
+    fun rejectsSnapshotLargerThanBudget() {
+        val cache = KvSnapshotCache(100)
+        cache.put(snapshot(1, 2))
+        assertFalse(cache.put(snapshot(1, 2, 3, bytesPerToken = 50)))
+        assertEquals(1, cache.size())
+        cache.clear()
+        assertEquals(0, cache.size())
+        assertEquals(0L, cache.totalBytes)
+    }
+}
@@ -0,0 +1,117 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Local unit tests for [LlmSampler], plus a rough per-token cost benchmark against
+ * vocabulary size (printed to stdout, only run with -Pbenchmark).
+ */
+class LlmSamplerTest {
+
+    @Test
+    fun greedyPicksHighestLogit() {
+        val sampler = LlmSampler(8, 1L)
+        sampler.setTemperature(0f)
+        val logits = floatArrayOf(0.1f, 2.0f, 5.0f, -1f, 4.9f, 0f, 0f, 0f)
+        assertEquals(2, sampler.sample(logits))
+    }
+
+    @Test
+    fun topKOneIsGreedy() {
+        val sampler = LlmSampler(6, 7L)
+        sampler.setTemperature(1.0f)
+        sampler.setTopK(1)
+        val logits = floatArrayOf(0f, 1f, 3f, 2f, 2.5f, -4f)
+        repeat(50) { assertEquals(2, sampler.sample(logits)) }
+    }
+
+    @Test
+    fun samplesStayInsideTopK() {
+        val sampler = LlmSampler(1000, 3L)
+        sampler.setTemperature(1.5f)
+        sampler.setTopK(3)
+        val logits = FloatArray(1000)
+        logits[10] = 5f
+        logits[20] = 4.5f
+        logits[30] = 4f
+        repeat(500) {
+            val token = sampler.sample(logits)
+            assertTrue(token == 10 || token == 20 || token == 30)
+        }
+    }
+
+    @Test
+    fun topPDropsTail() {
+        val sampler = LlmSampler(4, 11L)
+        sampler.setTemperature(1.0f)
+        sampler.setTopK(0)
+        sampler.setTopP(0.5f)
+        val logits = floatArrayOf(10f, 0f, 0f, 0f)
+        repeat(100) { assertEquals(0, sampler.sample(logits)) }
+    }
+
+    @Test
+    fun minPDropsUnlikelyCandidates() {
+        val sampler = LlmSampler(3, 5L)
+        sampler.setTemperature(1.0f)
+        sampler.setMinP(0.5f)
+        val logits = floatArrayOf(2f, 1.9f, -3f)
+        repeat(200) { assertTrue(sampler.sample(logits) != 2) }
+    }
+
+    @Test
+    fun repetitionPenaltyAvoidsRecentToken() {
+        val sampler = LlmSampler(3, 1L)
+        sampler.setTemperature(0f)
+        sampler.setRepetitionPenalty(2.0f, 4)
+        val logits = floatArrayOf(3f, 2f, 0f)
+        assertEquals(0, sampler.sample(logits))
+        sampler.accept(0)
+        assertEquals(1, sampler.sample(logits))
+        sampler.reset()
+        assertEquals(0, sampler.sample(logits))
+    }
+
+    @Test
+    fun sameSeedIsReproducible() {
+        val logits = randomLogits(5000, Random(42))
+        val first = LlmSampler(5000, 99L).apply { setTemperature(0.9f); setTopK(40); setTopP(0.9f) }
+        val second = LlmSampler(5000, 99L).apply { setTemperature(0.9f); setTopK(40); setTopP(0.9f) }
+        repeat(100) { assertEquals(first.sample(logits), second.sample(logits)) }
+    }
+
+    @Test
+    fun benchmarkSamplingCostByVocabSize() {
+        assumeTrue("benchmark, run with -Pbenchmark", java.lang.Boolean.getBoolean("benchmark"))
+        val random = Random(1234)
+        for (vocab in intArrayOf(8_000, 32_000, 128_000, 256_000)) {
+            val logits = randomLogits(vocab, random)
+            val sampler = LlmSampler(vocab, 1L)
+            sampler.setTemperature(0.7f)
+            sampler.setTopK(40)
+            sampler.setTopP(0.95f)
+            sampler.setRepetitionPenalty(1.1f, 64)
+            repeat(200) { sampler.accept(sampler.sample(logits)) }
+
+            val iterations = 500
+            val start = System.nanoTime()
+            var checksum = 0
+            repeat(iterations) {
+                val token = sampler.sample(logits)
+                sampler.accept(token)
+                checksum += token
+            }
+            val perTokenUs = (System.nanoTime() - start) / iterations / 1000.0
+            println("LlmSampler vocab=$vocab topK=40: ${"%.1f".format(perTokenUs)} us/token (checksum=$checksum)")
+            assertTrue(checksum >= 0)
+        }
+    }
+
+    private fun randomLogits(size: Int, random: Random): FloatArray {
+        return FloatArray(size) { (random.nextGaussian() * 3.0).toFloat() }
+    }
+}
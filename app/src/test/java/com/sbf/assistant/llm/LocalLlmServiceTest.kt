@@ -0,0 +1,38 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class LocalLlmServiceTest {
+
+    @Test
+    fun promptThatFitsIsKept() {
+        val prompt = IntArray(100) { it }
+        val (fitted, header) = LocalLlmService.fitPrompt(prompt, 10, 512, 128)
+        assertSame(prompt, fitted)
+        assertEquals(10, header)
+    }
+
+    @Test
+    fun longPromptDropsOldestTurnsAfterTheHeader() {
+        val prompt = IntArray(1000) { it }
+        // 512-token context, 128 kept for output: 384 for the prompt
+        val (fitted, header) = LocalLlmService.fitPrompt(prompt, 20, 512, 256)
+        assertEquals(384, fitted.size)
+        assertEquals(20, header)
+        assertArrayEquals(IntArray(20) { it }, fitted.copyOf(20))
+        assertEquals(1000 - 364, fitted[20])
+        assertEquals(999, fitted.last())
+    }
+
+    @Test
+    fun oversizedHeaderIsDroppedToo() {
+        val prompt = IntArray(1000) { it }
+        val (fitted, header) = LocalLlmService.fitPrompt(prompt, 300, 512, 128)
+        assertEquals(384, fitted.size)
+        assertEquals(0, header)
+        assertEquals(999, fitted.last())
+    }
+}
@@ -0,0 +1,87 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * Local unit tests for [SubwordEncoder], on small vocabs compiled to temp files.
+ */
+class SubwordEncoderTest {
+
+    private fun compile(lines: List<String>): CompiledVocab {
+        val dir = Files.createTempDirectory("subword").toFile().also { it.deleteOnExit() }
+        val source = File(dir, "vocab.txt").apply { writeText(lines.joinToString("\n")) }
+        return CompiledVocab.openOrCompile(source, CompiledVocab::compileText)!!
+    }
+
+    private fun SubwordEncoder.encode(text: String): IntArray {
+        val bytes = text.toByteArray()
+        return encode(bytes, bytes.size)
+    }
+
+    @Test
+    fun unigramPrefersBestTotalScore() {
+        // "▁hello" alone beats "▁he" + "llo" and the longest-prefix path "▁hell" + "o"
+        val vocab = compile(listOf(
+            "<unk>\t0", "<s>\t0", "</s>\t0",
+            "▁he\t-2", "llo\t-2", "▁hell\t-1", "o\t-4", "▁hello\t-3.5", "▁\t-5",
+            "w\t-3", "or\t-3", "ld\t-3", "▁world\t-2"
+        ))
+        val encoder = SubwordEncoder(vocab, 0, 1, 2)
+        assertArrayEquals(intArrayOf(7, 12), encoder.encode("▁hello▁world"))
+    }
+
+    @Test
+    fun unscoredVocabUsesFewestTokens() {
+        val vocab = compile(listOf("<unk>", "a", "b", "ab", "abc", "c", "bc", "cd", "d"))
+        val encoder = SubwordEncoder(vocab, 0)
+        // "abc" + "d" and "ab" + "cd" tie; either is 2 tokens, never 3 or 4
+        assertEquals(2, encoder.encode("abcd").size)
+        assertArrayEquals(intArrayOf(4), encoder.encode("abc"))
+    }
+
+    @Test
+    fun unknownCharactersCollapseToOneUnk() {
+        val vocab = compile(listOf("<unk>\t0", "▁a\t-1", "b\t-1"))
+        val encoder = SubwordEncoder(vocab, 0)
+        assertArrayEquals(intArrayOf(1, 0, 2), encoder.encode("▁aéü€b"))
+    }
+
+    @Test
+    fun byteFallbackSpellsUnknownCharacters() {
+        val lines = mutableListOf("<unk>\t0")
+        for (b in 0 until 256) lines.add("<0x%02X>\t0".format(b))
+        lines.add("▁x\t-1")
+        val encoder = SubwordEncoder(compile(lines), 0)
+        assertTrue(encoder.hasByteFallback())
+
+        val ids = encoder.encode("▁xé")
+        // é = C3 A9
+        assertArrayEquals(intArrayOf(257, 1 + 0xC3, 1 + 0xA9), ids)
+        assertEquals(0xA9, encoder.byteValue(ids[2]))
+        assertEquals(-1, encoder.byteValue(257))
+    }
+
+    @Test
+    fun controlTokensAreNotMatchedFromText() {
+        val vocab = compile(listOf("<unk>", "<s>", "<", "s", ">"))
+        val encoder = SubwordEncoder(vocab, 0, 1)
+        assertArrayEquals(intArrayOf(2, 3, 4), encoder.encode("<s>"))
+    }
+
+    @Test
+    fun largeVocabBuildsCompactTrie() {
+        val words = (0 until 20000).map { "▁w" + Integer.toString(it * 7919 % 100003, 36) }
+        val vocab = compile(listOf("<unk>") + words.map { "$it\t-${it.length}" })
+        val encoder = SubwordEncoder(vocab, 0)
+        for (i in listOf(0, 1234, 19999)) {
+            assertArrayEquals(intArrayOf(i + 1), encoder.encode(words[i]))
+        }
+        // Three ints per slot; a hash map of boxed entries would be several times larger
+        assertTrue(encoder.trieSize < 20000 * 8)
+    }
+}
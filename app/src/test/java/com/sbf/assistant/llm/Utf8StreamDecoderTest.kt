@@ -0,0 +1,31 @@
+package com.sbf.assistant.llm
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class Utf8StreamDecoderTest {
+
+    @Test
+    fun holdsBackSplitCharacters() {
+        val decoder = Utf8StreamDecoder()
+        val bytes = "a€b🙂".toByteArray()
+        val out = StringBuilder()
+        val pieces = mutableListOf<String>()
+        for (b in bytes) {
+            val text = decoder.append(byteArrayOf(b), 0, 1)
+            pieces.add(text)
+            out.append(text)
+        }
+        assertEquals("a€b🙂", out.toString())
+        // Nothing is emitted until the euro sign (E2 82 AC) is complete
+        assertEquals(listOf("a", "", "", "€", "b", "", "", "", "🙂"), pieces)
+    }
+
+    @Test
+    fun flushReplacesTruncatedCharacter() {
+        val decoder = Utf8StreamDecoder()
+        assertEquals("x", decoder.append(byteArrayOf('x'.code.toByte(), 0xE2.toByte(), 0x82.toByte()), 0, 3))
+        assertEquals("�", decoder.flush())
+        assertEquals("", decoder.flush())
+    }
+}
@@ -0,0 +1,70 @@
+package com.sbf.assistant.whisper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class LongFormTranscriberTest {
+    private val rate = WhisperUtil.WHISPER_SAMPLE_RATE
+    private val window = rate * 30
+    private val overlap = rate * 2
+    private val padding = rate / 5
+
+    private fun seg(startSec: Double, endSec: Double) =
+        VoiceActivityDetector.Segment((startSec * rate).toLong(), (endSec * rate).toLong())
+
+    @Test
+    fun shortAudioIsOneWindowAroundSpeech() {
+        val windows = LongFormTranscriber.planWindows(listOf(seg(2.0, 10.0)), rate * 20L, window, overlap, padding)
+        assertEquals(1, windows.size)
+        assertEquals(seg(2.0, 10.0).start - padding, windows[0].start)
+        assertEquals(seg(2.0, 10.0).end + padding, windows[0].end)
+    }
+
+    @Test
+    fun cutsInsideLatestPause() {
+        val speech = listOf(seg(0.5, 12.0), seg(13.0, 24.0), seg(25.0, 40.0))
+        val windows = LongFormTranscriber.planWindows(speech, rate * 45L, window, overlap, padding)
+        assertEquals(2, windows.size)
+        assertEquals(((24.0 + 25.0) / 2 * rate).toLong(), windows[0].end)
+        assertFalse(windows[1].overlapsPrevious)
+        assertTrue(windows.all { it.end - it.start <= window })
+    }
+
+    @Test
+    fun continuousSpeechIsCutHardWithOverlap() {
+        val windows = LongFormTranscriber.planWindows(listOf(seg(0.0, 70.0)), rate * 70L, window, overlap, padding)
+        assertEquals(3, windows.size)
+        assertEquals(windows[0].end - overlap, windows[1].start)
+        assertTrue(windows[1].overlapsPrevious)
+        assertEquals(rate * 70L, windows.last().end)
+    }
+
+    @Test
+    fun silenceBetweenWindowsIsSkipped() {
+        val speech = listOf(seg(1.0, 20.0), seg(60.0, 70.0))
+        val windows = LongFormTranscriber.planWindows(speech, rate * 80L, window, overlap, padding)
+        assertEquals(2, windows.size)
+        assertEquals(seg(60.0, 70.0).start - padding, windows[1].start)
+    }
+
+    @Test
+    fun dropsRepeatedWordsAtHardCut() {
+        assertEquals(
+            "and then we left",
+            LongFormTranscriber.dropOverlap("we went to the market", "to the Market, and then we left", 10)
+        )
+        // Fragment of the split word before the repeat
+        assertEquals(
+            "was closed",
+            LongFormTranscriber.dropOverlap("the store near the station", "tion. The station was closed", 10)
+        )
+    }
+
+    @Test
+    fun keepsTextWithoutOverlap() {
+        assertEquals("something new", LongFormTranscriber.dropOverlap("old words here", "something new", 10))
+        assertEquals("here we go", LongFormTranscriber.dropOverlap("", "here we go", 10))
+    }
+}
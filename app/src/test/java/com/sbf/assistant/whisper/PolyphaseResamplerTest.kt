@@ -0,0 +1,66 @@
+package com.sbf.assistant.whisper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+class PolyphaseResamplerTest {
+
+    private fun tone(hz: Double, rate: Int, samples: Int) =
+        FloatArray(samples) { (0.5 * sin(2 * PI * hz * it / rate)).toFloat() }
+
+    private fun resample(input: FloatArray, from: Int, to: Int, chunk: Int): FloatArray {
+        val resampler = PolyphaseResampler(from, to)
+        val output = FloatArray(PolyphaseResampler.outputLength(input.size.toLong(), from, to).toInt())
+        var written = 0
+        var offset = 0
+        while (offset < input.size) {
+            val count = minOf(chunk, input.size - offset)
+            written += resampler.process(input, offset, count, output, written)
+            offset += count
+        }
+        written += resampler.flush(output, written)
+        assertEquals(output.size, written)
+        return output
+    }
+
+    private fun rms(samples: FloatArray, from: Int, to: Int): Double =
+        sqrt((from until to).sumOf { samples[it].toDouble() * samples[it] } / (to - from))
+
+    @Test
+    fun keepsToneInPassbandAtTheSameTime() {
+        for (rate in intArrayOf(44_100, 48_000, 8_000, 22_050)) {
+            val input = tone(440.0, rate, rate)
+            val output = resample(input, rate, 16_000, 4096)
+            assertEquals(16_000, output.size)
+            val expected = tone(440.0, 16_000, 16_000)
+            // Away from the edges the output is the same tone, in phase
+            for (i in 1_000 until 15_000) {
+                assertEquals("rate $rate at $i", expected[i], output[i], 0.01f)
+            }
+        }
+    }
+
+    @Test
+    fun removesContentAboveTheNewNyquistRate() {
+        // 10 kHz would alias to 6 kHz at 16 kHz without the low-pass
+        val output = resample(tone(10_000.0, 48_000, 48_000), 48_000, 16_000, 1000)
+        assertTrue(rms(output, 1_000, 15_000) < 0.005)
+    }
+
+    @Test
+    fun chunkSizeDoesNotChangeTheOutput() {
+        val input = tone(1_000.0, 44_100, 30_000)
+        val whole = resample(input, 44_100, 16_000, input.size)
+        for (chunk in intArrayOf(1, 7, 512)) {
+            val pieces = resample(input, 44_100, 16_000, chunk)
+            for (i in whole.indices) {
+                assertTrue("chunk $chunk at $i", abs(whole[i] - pieces[i]) < 1e-6f)
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.sbf.assistant.whisper
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.Random
+import kotlin.math.cos
+import kotlin.math.sin
+
+/**
+ * Checks [RealFft] against a naive DFT, including Whisper's 400-point frame size.
+ */
+class RealFftTest {
+
+    @Test
+    fun matchesNaiveDftForWhisperFrameSize() {
+        assertMatchesDft(WhisperUtil.WHISPER_N_FFT)
+    }
+
+    @Test
+    fun matchesNaiveDftForMixedAndPrimeFactors() {
+        for (n in intArrayOf(2, 6, 14, 16, 22, 30, 512)) {
+            assertMatchesDft(n)
+        }
+    }
+
+    @Test
+    fun powerSpectrumMatchesForward() {
+        val fft = RealFft(400)
+        val input = randomSignal(400, Random(7))
+        val work = fft.newWorkBuffer()
+        val complex = FloatArray(2 * fft.bins())
+        val power = FloatArray(fft.bins())
+        fft.forward(input, complex, work)
+        fft.powerSpectrum(input, power, work)
+        for (k in 0 until fft.bins()) {
+            val expected = complex[2 * k] * complex[2 * k] + complex[2 * k + 1] * complex[2 * k + 1]
+            assertEquals(expected, power[k], 1e-3f * (1f + expected))
+        }
+    }
+
+    private fun assertMatchesDft(n: Int) {
+        val fft = RealFft(n)
+        val input = randomSignal(n, Random(n.toLong()))
+        val output = FloatArray(2 * fft.bins())
+        fft.forward(input, output, fft.newWorkBuffer())
+        for (k in 0 until fft.bins()) {
+            var re = 0.0
+            var im = 0.0
+            for (j in 0 until n) {
+                val angle = -2.0 * Math.PI * k * j / n
+                re += input[j] * cos(angle)
+                im += input[j] * sin(angle)
+            }
+            assertEquals("re n=$n k=$k", re, output[2 * k].toDouble(), 1e-3)
+            assertEquals("im n=$n k=$k", im, output[2 * k + 1].toDouble(), 1e-3)
+        }
+    }
+
+    private fun randomSignal(n: Int, random: Random): FloatArray {
+        return FloatArray(n) { random.nextGaussian().toFloat() }
+    }
+}
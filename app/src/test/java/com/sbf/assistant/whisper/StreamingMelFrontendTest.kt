@@ -0,0 +1,97 @@
+package com.sbf.assistant.whisper
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.FloatBuffer
+import java.util.Random
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.sin
+
+/**
+ * Checks that the incremental mel of [StreamingMelFrontend] matches the batch
+ * [WhisperUtil.getMelSpectrogram] on the same audio.
+ */
+class StreamingMelFrontendTest {
+
+    private val bins = WhisperUtil.WHISPER_N_FFT / 2 + 1
+    private val windowSamples = WhisperUtil.WHISPER_SAMPLE_RATE * WhisperUtil.WHISPER_CHUNK_SIZE
+    private val windowSize = WhisperUtil.WHISPER_N_MEL * WhisperUtil.WHISPER_MEL_LEN
+
+    // Overlapping triangles spread over the spectrum, standing in for the real filter bank
+    private fun util(): WhisperUtil {
+        val filters = FloatArray(WhisperUtil.WHISPER_N_MEL * bins)
+        for (m in 0 until WhisperUtil.WHISPER_N_MEL) {
+            val centre = 2 + m * 2
+            for (k in centre - 3..centre + 3) {
+                if (k in 0 until bins) {
+                    filters[m * bins + k] = 1f - abs(k - centre) / 4f
+                }
+            }
+        }
+        return WhisperUtil().apply {
+            setFilters(WhisperUtil.WHISPER_N_MEL, bins, FloatBuffer.wrap(filters))
+        }
+    }
+
+    private fun speechLike(samples: Int, random: Random) = FloatArray(samples) {
+        (0.3 * sin(2 * PI * 220 * it / WhisperUtil.WHISPER_SAMPLE_RATE) +
+            0.05 * random.nextGaussian()).toFloat()
+    }
+
+    // Feeds the audio in uneven chunks, as the microphone delivers it
+    private fun stream(frontend: StreamingMelFrontend, audio: FloatArray) {
+        val chunks = intArrayOf(1, 37, 160, 399, 1_600, 4_001)
+        var offset = 0
+        var i = 0
+        while (offset < audio.size) {
+            val count = minOf(chunks[i++ % chunks.size], audio.size - offset)
+            frontend.accept(audio, offset, count)
+            offset += count
+        }
+    }
+
+    private fun batch(util: WhisperUtil, audio: FloatArray, start: Int): FloatArray {
+        val out = FloatBuffer.allocate(windowSize)
+        util.getMelSpectrogram(audio, start, audio.size - start, windowSamples, 1, out)
+        return out.array()
+    }
+
+    private fun assertWindowsMatch(expected: FloatArray, actual: FloatArray) {
+        for (i in 0 until windowSize) {
+            val mel = i / WhisperUtil.WHISPER_MEL_LEN
+            val frame = i % WhisperUtil.WHISPER_MEL_LEN
+            assertEquals("mel $mel frame $frame", expected[i], actual[i], 1e-5f)
+        }
+    }
+
+    @Test
+    fun shortAudioMatchesThePaddedBatchSpectrogram() {
+        val util = util()
+        // Not a whole number of hops, so the last frames are provisional
+        val audio = speechLike(40_123, Random(3))
+        val frontend = StreamingMelFrontend(util)
+        stream(frontend, audio)
+
+        val padded = audio.copyOf(windowSamples)
+        val expected = util.getMelSpectrogram(padded, windowSamples, 1).copyOf()
+        assertWindowsMatch(expected, frontend.buildWindow())
+    }
+
+    @Test
+    fun slidingWindowMatchesTheBatchSpectrogramFromItsStart() {
+        val util = util()
+        val audio = speechLike(windowSamples + 52_345, Random(5))
+        val frontend = StreamingMelFrontend(util)
+        stream(frontend, audio)
+
+        var start = frontend.windowStartSample.toInt()
+        assertEquals(audio.size - frontend.windowSamples, start)
+        assertWindowsMatch(batch(util, audio, start), frontend.buildWindow())
+
+        // Dropping committed frames moves the window start like cutting the audio there
+        frontend.discardFrames(250)
+        start = frontend.windowStartSample.toInt()
+        assertWindowsMatch(batch(util, audio, start), frontend.buildWindow())
+    }
+}
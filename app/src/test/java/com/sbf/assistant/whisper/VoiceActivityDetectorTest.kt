@@ -0,0 +1,101 @@
+package com.sbf.assistant.whisper
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+import kotlin.math.PI
+import kotlin.math.sin
+
+/**
+ * Checks [VoiceActivityDetector] on synthetic audio: white noise stands in for room noise
+ * and a harmonic tone with a syllable-rate envelope stands in for voiced speech.
+ */
+class VoiceActivityDetectorTest {
+    private val rate = WhisperUtil.WHISPER_SAMPLE_RATE
+
+    @Test
+    fun digitalSilenceHasNoSpeech() {
+        val vad = VoiceActivityDetector()
+        assertNull(vad.findSpeech(FloatArray(rate * 3), rate * 3))
+    }
+
+    @Test
+    fun steadyNoiseHasNoSpeech() {
+        val audio = noise(rate * 4, 0.01f, Random(1))
+        assertTrue(VoiceActivityDetector().detect(audio, audio.size).isEmpty())
+    }
+
+    @Test
+    fun findsSpeechBetweenSilences() {
+        val audio = noise(rate * 5, 0.003f, Random(2))
+        addVoice(audio, rate * 2, rate * 3 / 2)
+
+        val vad = VoiceActivityDetector()
+        vad.setPaddingMs(0)
+        val bounds = vad.findSpeech(audio, audio.size)
+        assertNotNull(bounds)
+        // Within 100 ms of the true boundaries
+        assertEquals((rate * 2).toDouble(), bounds!!.start.toDouble(), rate * 0.1)
+        assertEquals((rate * 7 / 2).toDouble(), bounds.end.toDouble(), rate * 0.1)
+    }
+
+    @Test
+    fun speechAtStartOfBufferIsDetected() {
+        val audio = noise(rate * 2, 0.003f, Random(3))
+        addVoice(audio, 0, rate)
+        val segments = VoiceActivityDetector().detect(audio, audio.size)
+        assertEquals(1, segments.size)
+        assertTrue(segments[0].start < rate / 10)
+    }
+
+    @Test
+    fun streamingReportsBoundariesOnce() {
+        val audio = noise(rate * 6, 0.003f, Random(4))
+        addVoice(audio, rate, rate)
+        addVoice(audio, rate * 4, rate)
+
+        val starts = mutableListOf<Long>()
+        val ends = mutableListOf<Long>()
+        val vad = VoiceActivityDetector()
+        vad.setListener(object : VoiceActivityDetector.Listener {
+            override fun onSpeechStart(startSample: Long) {
+                starts.add(startSample)
+            }
+
+            override fun onSpeechEnd(startSample: Long, endSample: Long) {
+                ends.add(endSample)
+            }
+        })
+        var pos = 0
+        while (pos < audio.size) {
+            val len = minOf(777, audio.size - pos)
+            vad.process(audio, pos, len)
+            pos += len
+        }
+        assertFalse(vad.isSpeech)
+        assertEquals(2, starts.size)
+        assertEquals(2, ends.size)
+        assertTrue(vad.lastSpeechSample in (rate * 5 - rate / 10)..(rate * 5 + rate / 10))
+    }
+
+    private fun noise(size: Int, level: Float, random: Random): FloatArray {
+        return FloatArray(size) { (random.nextGaussian() * level).toFloat() }
+    }
+
+    // 150 Hz harmonic series with a 4 Hz envelope that never fully closes
+    private fun addVoice(audio: FloatArray, start: Int, length: Int) {
+        for (i in 0 until length) {
+            val t = i.toDouble() / rate
+            val envelope = 0.6 + 0.4 * sin(2 * PI * 4 * t)
+            var v = 0.0
+            for (h in 1..12) {
+                v += sin(2 * PI * 150 * h * t) / h
+            }
+            audio[start + i] += (0.1 * envelope * v).toFloat()
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.sbf.assistant.whisper
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class WaveUtilTest {
+
+    private fun chunk(id: String, body: ByteArray): ByteArray {
+        val padded = body.size + (body.size and 1)
+        return ByteBuffer.allocate(8 + padded).order(ByteOrder.LITTLE_ENDIAN)
+            .put(id.toByteArray()).putInt(body.size).put(body).array()
+    }
+
+    private fun fmt(encoding: Int, channels: Int, rate: Int, bits: Int): ByteArray =
+        ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+            .putShort(encoding.toShort()).putShort(channels.toShort()).putInt(rate)
+            .putInt(rate * channels * bits / 8).putShort((channels * bits / 8).toShort()).putShort(bits.toShort())
+            .array()
+
+    private fun wav(vararg chunks: ByteArray): String {
+        val body = chunks.fold(ByteArray(0)) { all, c -> all + c }
+        val bytes = ByteBuffer.allocate(12 + body.size).order(ByteOrder.LITTLE_ENDIAN)
+            .put("RIFF".toByteArray()).putInt(4 + body.size).put("WAVE".toByteArray()).put(body).array()
+        val file = File.createTempFile("wave_util", ".wav")
+        file.deleteOnExit()
+        file.writeBytes(bytes)
+        return file.absolutePath
+    }
+
+    private fun pcm16(vararg samples: Int): ByteArray {
+        val buffer = ByteBuffer.allocate(samples.size * 2).order(ByteOrder.LITTLE_ENDIAN)
+        samples.forEach { buffer.putShort(it.toShort()) }
+        return buffer.array()
+    }
+
+    @Test
+    fun skipsMetadataChunksAroundTheAudio() {
+        val path = wav(
+            chunk("LIST", "INFOISFT\u0005\u0000\u0000\u0000Lavf\u0000".toByteArray()),
+            chunk("fmt ", fmt(1, 1, 16_000, 16)),
+            chunk("data", pcm16(0, 16384, -32768)),
+            chunk("LIST", ByteArray(5))
+        )
+        val samples = WaveUtil.getSamples(path)
+        assertEquals(listOf(0f, 0.5f, -1f), samples.toList())
+    }
+
+    @Test
+    fun averagesStereoFloat() {
+        val data = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+            .putFloat(0.2f).putFloat(0.4f).putFloat(-1f).putFloat(0f).array()
+        val samples = WaveUtil.getSamples(wav(chunk("fmt ", fmt(3, 2, 16_000, 32)), chunk("data", data)))
+        assertEquals(2, samples.size)
+        assertEquals(0.3f, samples[0], 1e-6f)
+        assertEquals(-0.5f, samples[1], 1e-6f)
+    }
+
+    @Test
+    fun resamplesTo16kHz() {
+        // One second at 48 kHz, with an unpatched data size as some recorders leave it
+        val silence = ByteArray(48_000 * 2)
+        val data = ByteBuffer.allocate(8 + silence.size).order(ByteOrder.LITTLE_ENDIAN)
+            .put("data".toByteArray()).putInt(-1).put(silence).array()
+        val samples = WaveUtil.getSamples(wav(chunk("fmt ", fmt(1, 1, 48_000, 16)), data))
+        assertEquals(16_000, samples.size)
+    }
+
+    @Test
+    fun emptyDataChunkIsNotReadToTheEnd() {
+        val path = wav(
+            chunk("fmt ", fmt(1, 1, 16_000, 16)),
+            chunk("data", ByteArray(0)),
+            chunk("LIST", ByteArray(64) { 1 })
+        )
+        assertEquals(0, WaveUtil.getSamples(path).size)
+    }
+}